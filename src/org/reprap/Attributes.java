@@ -1,5 +1,8 @@
 package org.reprap;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import org.reprap.devices.GenericExtruder;
@@ -21,6 +24,17 @@ public class Attributes {
 	 */
 	private String material;
 	
+	/**
+	 * The material's number (see materialId())
+	 */
+	private int materialId;
+	
+	/**
+	 * The numbers given to the material names so far
+	 */
+	private static final ConcurrentHashMap<String, Integer> materialIds = new ConcurrentHashMap<>();
+	private static final AtomicInteger lastMaterialId = new AtomicInteger(0);
+	
 	/**
 	 * The STLObject of which this is a part
 	 */
@@ -53,12 +67,27 @@ public class Attributes {
 	public Attributes(String s, STLObject p, Group b, Scene a)
 	{
 		material = s;
+		materialId = materialId(s);
 		parent = p;
 		part = b;
 		app = a;
 		e = null;
 	}
 	
+	/**
+	 * The number of a material name.  Each different name gets its own number the
+	 * first time it is seen (starting at 1; a null name is 0), so materials can be
+	 * compared without comparing their names.
+	 * @param name
+	 * @return
+	 */
+	public static int materialId(String name)
+	{
+		if(name == null)
+			return 0;
+		return materialIds.computeIfAbsent(name, n -> lastMaterialId.incrementAndGet());
+	}
+	
 	/**
 	 * Just say the name of the material
      * @return 
@@ -76,6 +105,11 @@ public class Attributes {
 	 */
 	public String getMaterial() { return material; }
 	
+	/**
+	 * @return the number of the material (see materialId())
+	 */
+	public int getMaterialId() { return materialId; }
+	
 	/**
 	 * @return the parent object
 	 */	
@@ -123,6 +157,7 @@ public class Attributes {
 	public void setMaterial(String s) 
 	{ 
 		material = s;
+		materialId = materialId(s);
 		e = null;
 		app = GenericExtruder.getAppearanceFromMaterial(material);
 		if(parent != null)
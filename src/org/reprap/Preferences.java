@@ -474,6 +474,18 @@ public class Preferences {
 		return globalPrefs.loadString(name);
 	}
 
+	/**
+	 * A preference that may be left unset, without complaining if it is
+	 * @param name
+	 * @param otherwise the value if it isn't set
+	 * @return
+	 * @throws IOException
+	 */
+	public static String loadGlobalString(String name, String otherwise) throws IOException {
+		initIfNeeded();
+		return globalPrefs.mainPreferences.getProperty(name, otherwise);
+	}
+
 	public static int loadGlobalInt(String name) throws IOException {
 		initIfNeeded();
 		return globalPrefs.loadInt(name);
@@ -488,6 +500,20 @@ public class Preferences {
 		initIfNeeded();
 		return globalPrefs.loadBool(name);
 	}
+
+	/**
+	 * A true/false preference that may be left unset, without complaining if it is
+	 * @param name
+	 * @param otherwise the value if it isn't set
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean loadGlobalBool(String name, boolean otherwise) throws IOException {
+		String value = loadGlobalString(name, null);
+		if (value == null || value.trim().length() == 0)
+			return otherwise;
+		return value.trim().compareToIgnoreCase("true") == 0;
+	}
 	
 	public static void saveGlobal() throws IOException {		
 		initIfNeeded();
@@ -87,6 +87,12 @@ public class LayerProducer {
 
 
     private PolygonList allPolygons[];
+
+    /**
+     * Have the speeds and back-steps of the polygons already been worked out
+     * by planSpeeds()?
+     */
+    private boolean speedsPlanned = false;
 	
     /**
      * The clue is in the name...
@@ -129,8 +135,22 @@ public class LayerProducer {
      * @throws Exception
      */
     public LayerProducer(PolygonList ap[], LayerRules lc, RrGraphics simPlot) throws Exception 
+    {
+        this(ap, lc, simPlot, false);
+    }
+
+    /**
+     * Set up a normal layer whose polygons may have had their speeds planned already
+     * @param ap[]
+     * @param lc
+     * @param simPlot
+     * @param planned true if planSpeeds() has been run on ap
+     * @throws Exception
+     */
+    public LayerProducer(PolygonList ap[], LayerRules lc, RrGraphics simPlot, boolean planned) throws Exception 
     {
         layerConditions = lc;
+        speedsPlanned = planned;
         startNearHere = null;
         simulationPlot = simPlot;
 
@@ -321,17 +341,75 @@ public class LayerProducer {
 	}
 
 
+	/**
+	 * Work out the speeds along a polygon, and where its extruder and valve should be
+	 * turned off before its end.  This depends only on the polygon and on the printer's
+	 * and extruders' settings, not on where the printer is, so it can be done ahead of
+	 * time on another thread.
+	 * @param p
+	 * @param printer
+	 * @throws Exception 
+	 */
+	private static void planSpeeds(Polygon p, Printer printer) throws Exception
+	{
+		if(p.size() <= 1)
+			return;
+		
+		Attributes att = p.getAttributes();
+		
+		if(att.getExtruder().getMaxAcceleration() > 0)
+		{
+			double outlineFeedrate = att.getExtruder().getOutlineFeedrate();
+			double infillFeedrate = att.getExtruder().getInfillFeedrate();
+			if(Preferences.loadGlobalBool("RepRapAccelerations")) {
+				p.setSpeeds(
+                                        printer.getFastXYFeedrate(), 
+                                        att.getExtruder().getSlowXYFeedrate(), 
+                                        p.isClosed()?outlineFeedrate:infillFeedrate, 
+					att.getExtruder().getMaxAcceleration()
+                                );
+                        } else {
+				p.setSpeeds(
+                                        printer.getFastXYFeedrate(), 
+                                        att.getExtruder().getFastXYFeedrate(), 
+                                        p.isClosed()?outlineFeedrate:infillFeedrate, 
+                                        att.getExtruder().getMaxAcceleration()
+                                );
+                        }
+		}
+		
+		double extrudeBackLength = att.getExtruder().getExtrusionOverRun();
+		double valveBackLength = att.getExtruder().getValveOverRun();
+		if(extrudeBackLength > 0 && valveBackLength > 0)
+			Debug.e("LayerProducer.planSpeeds(): extruder has both valve backoff and extrude backoff specified.");
+
+		p.backStepExtrude(extrudeBackLength);
+		p.backStepValve(valveBackLength);
+	}
+	
+	/**
+	 * Plan the speeds of all the polygons in a layer (see planSpeeds(Polygon, Printer));
+	 * a LayerProducer made with planned set will then not do it again.
+	 * @param ap
+	 * @param printer
+	 * @throws Exception 
+	 */
+	static void planSpeeds(PolygonList ap[], Printer printer) throws Exception
+	{
+		for(PolygonList pl : ap)
+			for(int i = 0; i < pl.size(); i++)
+				planSpeeds(pl.get(i), printer);
+	}
+	
 	/**
 	 * Plot a polygon
 	 * @return
 	 * @throws Exception 
 	 */
-	private void plot(Polygon p, boolean firstOneInLayer, boolean firstOneThisMaterial) throws Exception
+	private void plot(Polygon p, boolean firstOneInLayer) throws Exception
 	{
 		Attributes att = p.getAttributes();
 		Printer printer = layerConditions.getPrinter();
-		double outlineFeedrate = att.getExtruder().getOutlineFeedrate();
-		double infillFeedrate = att.getExtruder().getInfillFeedrate();
 		
 		boolean acc = att.getExtruder().getMaxAcceleration() > 0;
 	
@@ -376,32 +454,11 @@ public class LayerProducer {
 		double liftZ = att.getExtruder().getLift();
 		Boolean lift = att.getExtruder().getMinLiftedZ() >= 0 || liftZ > 0;
 		
-		if(acc)
-		{
-			if(Preferences.loadGlobalBool("RepRapAccelerations")) {
-				p.setSpeeds(
-                                        printer.getFastXYFeedrate(), 
-                                        att.getExtruder().getSlowXYFeedrate(), 
-                                        p.isClosed()?outlineFeedrate:infillFeedrate, 
-					att.getExtruder().getMaxAcceleration()
-                                );
-                        } else {
-				p.setSpeeds(
-                                        printer.getFastXYFeedrate(), 
-                                        att.getExtruder().getFastXYFeedrate(), 
-                                        p.isClosed()?outlineFeedrate:infillFeedrate, 
-                                        att.getExtruder().getMaxAcceleration()
-                                );
-                        }
-		}
+		if(!speedsPlanned)
+			planSpeeds(p, printer);
 		
 		double extrudeBackLength = att.getExtruder().getExtrusionOverRun();
 		double valveBackLength = att.getExtruder().getValveOverRun();
-		if(extrudeBackLength > 0 && valveBackLength > 0)
-			Debug.e("LayerProducer.plot(): extruder has both valve backoff and extrude backoff specified.");
-
-		p.backStepExtrude(extrudeBackLength);
-		p.backStepValve(valveBackLength);
 		
 		if(liftZ > 0)
 			printer.singleMove(printer.getX(), printer.getY(), currentZ + liftZ, printer.getFastFeedrateZ(), true);
@@ -417,9 +474,9 @@ public class LayerProducer {
                 } else {
 			if(p.isClosed())
 			{
-				currentFeedrate = outlineFeedrate;			
+				currentFeedrate = att.getExtruder().getOutlineFeedrate();
 			} else {
-				currentFeedrate = infillFeedrate;			
+				currentFeedrate = att.getExtruder().getInfillFeedrate();
 			}
 		}
 		
@@ -485,15 +542,12 @@ public class LayerProducer {
     public void plot() throws Exception
     {
         boolean firstOneInLayer = true;
-        boolean firstOneThisMaterial;
 
         for (PolygonList allPolygon : allPolygons) {
-            firstOneThisMaterial = true;
             for(int j = 0; j < allPolygon.size(); j++)
             {
-                plot(allPolygon.get(j), firstOneInLayer, firstOneThisMaterial);
+                plot(allPolygon.get(j), firstOneInLayer);
                 firstOneInLayer = false;
-                firstOneThisMaterial = false;
             }
         }
     }
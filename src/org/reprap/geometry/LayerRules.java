@@ -306,6 +306,73 @@ public class LayerRules
 		new Point2D(gp.x().high() + 6, gp.y().high() + 6));
 	}
 	
+	/**
+	 * A copy of lr that describes model layer layer (which is at or below the
+	 * layer lr is on) as it will be when the build gets there.  This is for working
+	 * out the patterns of the layers below on other threads while this one is being
+	 * built, so the records of the layers are shared rather than copied; only the
+	 * original should be stepped, or have things set in it.
+	 * @param lr
+	 * @param layer
+	 */
+	private LayerRules(LayerRules lr, int layer)
+	{
+		firstPoint = lr.firstPoint;
+		firstExtruder = lr.firstExtruder;
+		lastPoint = lr.lastPoint;
+		lastExtruder = lr.lastExtruder;
+		extruderUsedThisLayer = lr.extruderUsedThisLayer;
+		layerZ = lr.layerZ;
+		prologueFileName = lr.prologueFileName;
+		epilogueFileName = lr.epilogueFileName;
+		layerFileNames = lr.layerFileNames;
+		reversing = lr.reversing;
+		alreadyReversed = lr.alreadyReversed;
+		printer = lr.printer;
+		modelZMax = lr.modelZMax;
+		machineZMax = lr.machineZMax;
+		modelLayerMax = lr.modelLayerMax;
+		machineLayerMax = lr.machineLayerMax;
+		layingSupport = lr.layingSupport;
+		zStep = lr.zStep;
+		thickestZStep = lr.thickestZStep;
+		addToStep = 0;
+		topDown = lr.topDown;
+		notStartedYet = false;
+		bBox = lr.bBox;
+		maxSurfaceLayers = lr.maxSurfaceLayers;
+		purge = lr.purge;
+		maxAddress = lr.maxAddress;
+		
+		// Step down as step() would
+		
+		int steps = lr.modelLayer - layer;
+		modelLayer = layer;
+		machineLayer = lr.machineLayer - steps;
+		if(steps == 0)
+		{
+			modelZ = lr.modelZ;
+			machineZ = lr.machineZ;
+		} else
+		{
+			modelZ = modelLayer*zStep;
+			machineZ = zStep*machineLayer;
+		}
+	}
+	
+	/**
+	 * The rules for model layer layer (at or below this one) of a top-down build,
+	 * as they will be when the build gets there.  See the constructor above.
+	 * @param layer
+	 * @return
+	 */
+	public LayerRules atModelLayer(int layer)
+	{
+		if(!topDown || layer > modelLayer)
+			Debug.e("LayerRules.atModelLayer(): can only look down a top-down build, not at layer " + layer);
+		return new LayerRules(this, layer);
+	}
+	
     public boolean purgeXOriented()
     {
         Point2D middle = Point2D.mul(0.5, printer.getBedNorthEast());
@@ -0,0 +1,238 @@
+package org.reprap.geometry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.reprap.Extruder;
+import org.reprap.Preferences;
+import org.reprap.geometry.polygons.PolygonList;
+import org.reprap.geometry.polyhedra.AllSTLsToBuild;
+import org.reprap.utilities.Debug;
+
+/**
+ * Works out the infill and outlines of the layers below the one being built
+ * on all the processors at once, so that they are ready when the Producer
+ * gets to them.
+ *
+ * The work is split up according to what depends on what:
+ *
+ *  - The slice of an object at a layer depends on nothing but the object, so
+ *    every slice is a task of its own.
+ *
+ *  - The infill and outlines of a layer need the slices of that layer and of the
+ *    surface layers above and below it, so each layer is a task that waits for
+ *    those slice tasks and then does its objects in parallel.
+ *
+ *  - Support normally needs the support of the layer above, so it isn't done
+ *    here; the Producer still does it a layer at a time as it goes down.  But if
+ *    the shadows for support were worked out before building started, each
+ *    layer's support only needs its own slice, and it is done here too.
+ *
+ * The Producer takes the layers in order, so the output is the same as when
+ * the layers are done one after another.
+ *
+ */
+class LayerScheduler
+{
+	/**
+	 * The infill, outline and (maybe) support polygons of each STLObject in one layer
+	 */
+	static class Layer
+	{
+		private final PolygonList[] fills;
+		private final PolygonList[] borders;
+		private final PolygonList[] support;
+
+		Layer(int stls)
+		{
+			fills = new PolygonList[stls];
+			borders = new PolygonList[stls];
+			support = new PolygonList[stls];
+		}
+
+		PolygonList fills(int stl)
+		{
+			return fills[stl];
+		}
+
+		PolygonList borders(int stl)
+		{
+			return borders[stl];
+		}
+
+		/**
+		 * @param stl
+		 * @return the support, or null if it wasn't done ahead
+		 */
+		PolygonList support(int stl)
+		{
+			return support[stl];
+		}
+	}
+
+	/**
+	 * One layer's infill and outlines, once the slices it needs are done
+	 */
+	private class LayerTask extends RecursiveTask<Layer>
+	{
+		private static final long serialVersionUID = 1L;
+		private final LayerRules lr;
+		private final List<ForkJoinTask<?>> needs;
+
+		LayerTask(LayerRules lr, List<ForkJoinTask<?>> needs)
+		{
+			this.lr = lr;
+			this.needs = needs;
+		}
+
+		@Override
+		protected Layer compute()
+		{
+			for(ForkJoinTask<?> slice : needs)
+				slice.join();
+			Layer result = new Layer(allSTLs.size());
+			List<ForkJoinTask<?>> objects = new ArrayList<>();
+			for(int stl = 0; stl < allSTLs.size(); stl++)
+			{
+				final int s = stl;
+				objects.add(ForkJoinTask.adapt(() ->
+				{
+					PolygonList fills = allSTLs.computeInfill(s, lr);
+					result.borders[s] = allSTLs.computeOutlines(s, fills, lr);
+					result.fills[s] = fills.cullShorts();
+					if(allSTLs.supportShadowed())
+						result.support[s] = allSTLs.computeSupport(s, lr);
+				}));
+			}
+			ForkJoinTask.invokeAll(objects);
+			return result;
+		}
+	}
+
+	private final AllSTLsToBuild allSTLs;
+	private final LayerRules layerRules;
+	private final ForkJoinPool pool;
+
+	/**
+	 * How many layers are worked on at once
+	 */
+	private final int ahead;
+
+	/**
+	 * How many slices either side of a layer its infill needs
+	 */
+	private final int reach;
+
+	/**
+	 * The tasks slicing each layer, and working out each layer, that have been
+	 * started and are still wanted.  These are only touched by the Producer's thread.
+	 */
+	private final Map<Integer, ForkJoinTask<?>> slices = new HashMap<>();
+	private final Map<Integer, ForkJoinTask<Layer>> layers = new HashMap<>();
+
+	/**
+	 * The lowest layer started so far
+	 */
+	private int lowest = Integer.MAX_VALUE;
+
+	/**
+	 * Should the layers be worked out in parallel?  This is the ParallelSlicing preference.
+	 * @return
+	 */
+	static boolean wanted()
+	{
+		try
+		{
+			return Preferences.loadGlobalBool("ParallelSlicing", false);
+		} catch (IOException e)
+		{
+			Debug.e(e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * @param a
+	 * @param lr
+	 * @param p the pool to do the work in
+	 */
+	LayerScheduler(AllSTLsToBuild a, LayerRules lr, ForkJoinPool p)
+	{
+		allSTLs = a;
+		layerRules = lr;
+		pool = p;
+		ahead = 2*pool.getParallelism();
+		int surface = 1;
+		for(Extruder e : lr.getPrinter().getExtruders())
+			surface = Math.max(surface, e.getSurfaceLayers());
+		reach = surface;
+		allSTLs.setLookAhead(ahead + reach);
+	}
+
+	/**
+	 * The task slicing all the objects at a layer, starting it if need be
+	 * @param layer
+	 * @return
+	 */
+	private ForkJoinTask<?> slice(int layer)
+	{
+		ForkJoinTask<?> task = slices.get(layer);
+		if(task == null)
+		{
+			task = pool.submit(() ->
+			{
+				List<ForkJoinTask<?>> objects = new ArrayList<>();
+				for(int stl = 0; stl < allSTLs.size(); stl++)
+				{
+					final int s = stl;
+					objects.add(ForkJoinTask.adapt(() -> allSTLs.sliceAhead(s, layer)));
+				}
+				ForkJoinTask.invokeAll(objects);
+			});
+			slices.put(layer, task);
+		}
+		return task;
+	}
+
+	/**
+	 * Start working out a layer
+	 * @param layer
+	 */
+	private void start(int layer)
+	{
+		List<ForkJoinTask<?>> needs = new ArrayList<>();
+		for(int l = Math.max(layer - reach, 0); l <= layer + reach; l++)
+			needs.add(slice(l));
+		layers.put(layer, pool.submit(new LayerTask(layerRules.atModelLayer(layer), needs)));
+		lowest = Math.min(lowest, layer);
+	}
+
+	/**
+	 * The infill and outlines of a layer, waiting for them if they're not done yet.
+	 * The layers must be taken from the top down, and this should be called when
+	 * the layer rules are at that layer.  The layers below are started as this one
+	 * is taken.
+	 * @param layer
+	 * @return
+	 */
+	Layer take(int layer)
+	{
+		int bottom = Math.max(layer - ahead + 1, 1);
+		for(int l = Math.min(lowest - 1, layer); l >= bottom; l--)
+			start(l);
+		if(!layers.containsKey(layer))
+			start(layer);
+		Layer result = layers.remove(layer).join();
+
+		// The layers to come don't need the slices above their reach
+
+		slices.keySet().removeIf(l -> l >= layer + reach);
+		return result;
+	}
+}
@@ -0,0 +1,440 @@
+package org.reprap.geometry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import org.reprap.Extruder;
+import org.reprap.Preferences;
+import org.reprap.Printer;
+import org.reprap.geometry.polygons.PolygonList;
+import org.reprap.geometry.polyhedra.AllSTLsToBuild;
+import org.reprap.utilities.Debug;
+
+/**
+ * Builds the layers as a pipeline of four stages, each on its own thread, so that
+ * the layers below the one being sent to the machine are being worked on at the
+ * same time:
+ *
+ *  1. Slicing: every object is sliced at each layer, into the slice cache.
+ *
+ *  2. Patterns: the infill, outlines and support of each object.  A layer can
+ *     only be done once the slices of the surface layers below it are ready,
+ *     and support goes down a layer at a time, so this takes the layers in order.
+ *
+ *  3. Ordering: the patterns are put into one list per extruder, joined up and
+ *     ordered (Producer.arrange()), and the speeds along them are planned.
+ *
+ *  4. Output: the Producer's own thread plots each layer and moves the machine
+ *     (or writes the G-code) as it always has.
+ *
+ * The stages are joined by short queues.  When a queue is full the stage feeding
+ * it waits, so no stage gets more than a few layers ahead of the one after it,
+ * and the slices it needs are still in the cache when they are wanted.
+ *
+ * Each stage counts the layers it has done, the time it has spent working on them,
+ * and the time it has spent waiting on its queues; the stage with the most work
+ * and the least waiting is the one holding the others up.
+ *
+ */
+class Pipeline
+{
+	/**
+	 * What goes down the pipe for one layer; each stage fills in its part
+	 */
+	private static class Work
+	{
+		final int layer;
+		PolygonList[] fills, borders, support;
+		PolygonList[] polygons;
+
+		Work(int layer)
+		{
+			this.layer = layer;
+		}
+	}
+
+	/**
+	 * The throughput counters of one stage.  They are only written by the stage's
+	 * own thread, but may be read from any.
+	 */
+	static class Stage
+	{
+		private final String name;
+		private volatile int layers = 0;
+		private volatile long busy = 0;
+		private volatile long waiting = 0;
+
+		Stage(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Count a layer done
+		 * @param working nanoseconds spent working on it
+		 * @param waited nanoseconds spent waiting for the queues
+		 */
+		private void done(long working, long waited)
+		{
+			layers++;
+			busy += working;
+			waiting += waited;
+		}
+
+		String name()
+		{
+			return name;
+		}
+
+		int layers()
+		{
+			return layers;
+		}
+
+		/**
+		 * @return seconds spent working
+		 */
+		double busy()
+		{
+			return busy*1.0e-9;
+		}
+
+		/**
+		 * @return seconds spent waiting for the queues
+		 */
+		double waiting()
+		{
+			return waiting*1.0e-9;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s: %d layers, %.2fs working, %.2fs waiting", name, layers(), busy(), waiting());
+		}
+	}
+
+	/**
+	 * How many layers may wait in each queue
+	 */
+	private static final int slicedQueue = 4;
+	private static final int patternedQueue = 2;
+	private static final int readyQueue = 2;
+
+	private final AllSTLsToBuild allSTLs;
+
+	/**
+	 * The rules as they were when the pipeline was made.  The Producer steps its
+	 * own rules down the layers as it goes; the stages make their own copies for
+	 * each layer from this one, which never changes.
+	 */
+	private final LayerRules start;
+
+	private final Printer printer;
+
+	/**
+	 * The number of physical extruders
+	 */
+	private final int extruders;
+
+	/**
+	 * If not null, the objects in a layer are done at the same time in this
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * The top layer, and how many slices either side of a layer its infill needs
+	 */
+	private final int top;
+	private final int reach;
+
+	private final BlockingQueue<Work> sliced = new ArrayBlockingQueue<>(slicedQueue);
+	private final BlockingQueue<Work> patterned = new ArrayBlockingQueue<>(patternedQueue);
+	private final BlockingQueue<Work> ready = new ArrayBlockingQueue<>(readyQueue);
+
+	private final Stage slicing = new Stage("Slicing");
+	private final Stage patterns = new Stage("Patterns");
+	private final Stage ordering = new Stage("Ordering");
+	private final Stage output = new Stage("Output");
+
+	private final List<Thread> threads = new ArrayList<>();
+
+	/**
+	 * The first thing that went wrong in any stage, and where
+	 */
+	private volatile Throwable failure = null;
+	private volatile String failedStage = null;
+
+	/**
+	 * When the output stage last got a layer (0 before the first)
+	 */
+	private long lastTaken = 0;
+
+	/**
+	 * Should the layers be pipelined?  This is the PipelinedProducer preference.
+	 * @return
+	 */
+	static boolean wanted()
+	{
+		try
+		{
+			return Preferences.loadGlobalBool("PipelinedProducer", false);
+		} catch (IOException e)
+		{
+			Debug.e(e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Set up a pipeline for the layers from where lr is down to layer 1
+	 * @param a
+	 * @param lr
+	 * @param physicalExtruders
+	 * @param p the pool to do the objects in a layer at the same time in, or null to do them in turn
+	 */
+	Pipeline(AllSTLsToBuild a, LayerRules lr, int physicalExtruders, ForkJoinPool p)
+	{
+		allSTLs = a;
+		start = lr.atModelLayer(lr.getModelLayer());
+		printer = lr.getPrinter();
+		extruders = physicalExtruders;
+		pool = p;
+		top = lr.getModelLayer();
+		int surface = 1;
+		for(Extruder e : printer.getExtruders())
+			surface = Math.max(surface, e.getSurfaceLayers());
+		reach = surface;
+
+		// The cache must hold the slices in the queue and those the patterns stage
+		// is using, as well as the support of the layer above.
+
+		allSTLs.setLookAhead(slicedQueue + 2*reach + 2);
+	}
+
+	/**
+	 * The body of one stage's thread
+	 */
+	private interface Body
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * Make a stage's thread.  If the stage fails the whole pipeline is stopped
+	 * and the failure is passed on to the output stage.
+	 * @param stage
+	 * @param body
+	 */
+	private void thread(Stage stage, Body body)
+	{
+		Thread t = new Thread(() ->
+		{
+			try
+			{
+				body.run();
+			} catch (InterruptedException e)
+			{
+				// Stopped
+			} catch (Throwable e)
+			{
+				if(failure == null)
+				{
+					failedStage = stage.name();
+					failure = e;
+				}
+				stop();
+			}
+		}, "Pipeline " + stage.name());
+		t.setDaemon(true);
+		threads.add(t);
+	}
+
+	/**
+	 * Start the first three stages
+	 */
+	void start()
+	{
+		thread(slicing, this::slice);
+		thread(patterns, this::pattern);
+		thread(ordering, this::order);
+		for(Thread t : threads)
+			t.start();
+	}
+
+	/**
+	 * Stop all the stages.  This may be called more than once, and from any thread.
+	 */
+	void stop()
+	{
+		for(Thread t : threads)
+			if(t != Thread.currentThread())
+				t.interrupt();
+	}
+
+	/**
+	 * The output stage has finished (or given up): count its work on the last layer
+	 * it took and stop the others
+	 */
+	void close()
+	{
+		if(lastTaken != 0)
+			output.done(System.nanoTime() - lastTaken, 0);
+		lastTaken = 0;
+		stop();
+	}
+
+	/**
+	 * Stage 1: slice every object at every layer, from the top down
+	 * @throws InterruptedException
+	 */
+	private void slice() throws InterruptedException
+	{
+		for(int layer = top; layer >= 0; layer--)
+		{
+			long t0 = System.nanoTime();
+			for(int stl = 0; stl < allSTLs.size(); stl++)
+				allSTLs.sliceAhead(stl, layer);
+			long t1 = System.nanoTime();
+			sliced.put(new Work(layer));
+			slicing.done(t1 - t0, System.nanoTime() - t1);
+		}
+	}
+
+	/**
+	 * Work out the infill, outlines and support of object stl in w's layer
+	 * @param stl
+	 * @param lr the rules at that layer
+	 * @param w
+	 */
+	private void object(int stl, LayerRules lr, Work w)
+	{
+		PolygonList f = allSTLs.computeInfill(stl, lr);
+		w.borders[stl] = allSTLs.computeOutlines(stl, f, lr);
+		w.fills[stl] = f.cullShorts();
+		w.support[stl] = allSTLs.computeSupport(stl, lr);
+	}
+
+	/**
+	 * Stage 2: the patterns of each layer, once the slices it needs are ready
+	 * @throws InterruptedException
+	 */
+	private void pattern() throws InterruptedException
+	{
+		int slicedDownTo = Integer.MAX_VALUE;
+		for(int layer = top; layer > 0; layer--)
+		{
+			long t0 = System.nanoTime();
+			while(slicedDownTo > Math.max(layer - reach, 0))
+				slicedDownTo = sliced.take().layer;
+			long t1 = System.nanoTime();
+
+			LayerRules lr = start.atModelLayer(layer);
+			Work w = new Work(layer);
+			w.fills = new PolygonList[allSTLs.size()];
+			w.borders = new PolygonList[allSTLs.size()];
+			w.support = new PolygonList[allSTLs.size()];
+			if(pool != null)
+			{
+				List<ForkJoinTask<?>> objects = new ArrayList<>();
+				for(int stl = 0; stl < allSTLs.size(); stl++)
+				{
+					final int s = stl;
+					objects.add(pool.submit(() -> object(s, lr, w)));
+				}
+				for(ForkJoinTask<?> object : objects)
+					object.join();
+			} else
+			{
+				for(int stl = 0; stl < allSTLs.size(); stl++)
+					object(stl, lr, w);
+			}
+			long t2 = System.nanoTime();
+
+			patterned.put(w);
+			patterns.done(t2 - t1, (t1 - t0) + (System.nanoTime() - t2));
+		}
+	}
+
+	/**
+	 * Stage 3: put each layer's patterns in order and plan their speeds
+	 * @throws Exception
+	 */
+	private void order() throws Exception
+	{
+		for(int layer = top; layer > 0; layer--)
+		{
+			long t0 = System.nanoTime();
+			Work w = patterned.take();
+			long t1 = System.nanoTime();
+			w.polygons = Producer.arrange(w.fills, w.borders, w.support, extruders);
+			LayerProducer.planSpeeds(w.polygons, printer);
+			w.fills = null;
+			w.borders = null;
+			w.support = null;
+			long t2 = System.nanoTime();
+			ready.put(w);
+			ordering.done(t2 - t1, (t1 - t0) + (System.nanoTime() - t2));
+		}
+	}
+
+	/**
+	 * Stage 4: the polygons of a layer, ready to plot, waiting for them if need be.
+	 * The layers must be taken from the top down.  The time between one call and the
+	 * next is counted as the output stage's work on the layer.
+	 * @param layer
+	 * @return
+	 * @throws Exception if any stage has failed
+	 */
+	PolygonList[] take(int layer) throws Exception
+	{
+		long t0 = System.nanoTime();
+		Work w = null;
+		while(w == null)
+		{
+			if(failure != null)
+				throw new Exception("Pipeline: " + failedStage + " stage failed", failure);
+			w = ready.poll(100, TimeUnit.MILLISECONDS);
+		}
+		long t1 = System.nanoTime();
+		if(lastTaken != 0)
+			output.done(t0 - lastTaken, t1 - t0);
+		lastTaken = t1;
+		if(w.layer != layer)
+			Debug.e("Pipeline.take(): asked for layer " + layer + " but got layer " + w.layer);
+		return w.polygons;
+	}
+
+	/**
+	 * The counters of all the stages
+	 * @return
+	 */
+	Stage[] stages()
+	{
+		return new Stage[] {slicing, patterns, ordering, output};
+	}
+
+	/**
+	 * The counters of all the stages, one per line, and which stage looks like the bottleneck
+	 * @return
+	 */
+	String report()
+	{
+		StringBuilder result = new StringBuilder();
+		Stage slowest = null;
+		for(Stage s : stages())
+		{
+			result.append(s.toString()).append('\n');
+			if(slowest == null || s.busy() > slowest.busy())
+				slowest = s;
+		}
+		result.append("Bottleneck: ").append(slowest.name());
+		return result.toString();
+	}
+}
@@ -1,5 +1,10 @@
 package org.reprap.geometry;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JCheckBoxMenuItem;
@@ -35,6 +40,11 @@ public class Producer {
 
     protected AllSTLsToBuild allSTLs;
 
+    /**
+     * The pipeline building the layers, if the PipelinedProducer preference is set
+     */
+    private Pipeline pipeline = null;
+
     /**
      * @param pr
      * @param builder
@@ -121,8 +131,20 @@ public class Producer {
 	public int getLayer()
 	{
 		return layerRules.getMachineLayer();
-	}	
-	
+	}
+
+	/**
+	 * How many layers each stage of the pipeline has done, and how long it has spent
+	 * working and waiting; empty if the build isn't pipelined.
+	 * @return
+	 */
+	public String pipelineReport()
+	{
+		if(pipeline == null)
+			return "";
+		return pipeline.report();
+	}
+
 	public void produce() throws Exception
 	{		
 		if(Preferences.Subtractive()){
@@ -178,6 +200,117 @@ public class Producer {
         }
     }
 
+    /**
+     * Should the objects in each layer be worked out at the same time?
+     * This is the ConcurrentObjects preference.
+     * @return
+     */
+    private static boolean concurrentObjects()
+    {
+        try {
+            return Preferences.loadGlobalBool("ConcurrentObjects", false);
+        } catch (IOException e) {
+            Debug.e(e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Work out the infill, outlines and support of one object in the current layer,
+     * taking the first two from ahead if they've been worked out already.  Objects are
+     * independent, so this may run for all of them at once; each only writes its own
+     * entries in the arrays.
+     * @param stl
+     * @param ahead
+     * @param fills
+     * @param borders
+     * @param support
+     */
+    private void computeObject(int stl, LayerScheduler.Layer ahead, PolygonList[] fills, PolygonList[] borders,
+            PolygonList[] support)
+    {
+        if(ahead != null) {
+            fills[stl] = ahead.fills(stl);
+            borders[stl] = ahead.borders(stl);
+        } else {
+            PolygonList f = allSTLs.computeInfill(stl);
+            borders[stl] = allSTLs.computeOutlines(stl, f); 
+            fills[stl] = f.cullShorts();
+        }
+        if(ahead != null && ahead.support(stl) != null)
+            support[stl] = ahead.support(stl);
+        else
+            support[stl] = allSTLs.computeSupport(stl);
+    }
+
+    /**
+     * Put the patterns of all the objects in a layer together into one list for each
+     * physical extruder, in the order they will be built.  Each object's outlines then
+     * its infill and support are joined up where they can be, and each list starts near
+     * where the one before it finished.
+     * @param fills
+     * @param borders
+     * @param support
+     * @param physicalExtruders
+     * @return
+     */
+    static PolygonList[] arrange(PolygonList fills[], PolygonList borders[], PolygonList support[],
+            int physicalExtruders)
+    {
+        PolygonList allPolygons[] = new PolygonList[physicalExtruders];
+        PolygonList tempBorderPolygons[] = new PolygonList[physicalExtruders];
+        PolygonList tempFillPolygons[] = new PolygonList[physicalExtruders];
+
+        for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++)
+            allPolygons[physicalExtruder] = new PolygonList();
+
+        Point2D startNearHere = new Point2D(0, 0);
+        for(int stl = 0; stl < fills.length; stl++) {
+            for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++) {
+                tempBorderPolygons[physicalExtruder] = new PolygonList();
+                tempFillPolygons[physicalExtruder] = new PolygonList();
+            }
+            borders[stl].forEach((p) ->
+            {
+                tempBorderPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
+            });
+            fills[stl].forEach((p) ->
+            {
+                tempFillPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
+            });
+            support[stl].forEach((p) ->
+            {
+                tempFillPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
+            });
+
+            for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++) {
+                if(tempBorderPolygons[physicalExtruder].size() > 0) {
+                    double linkUp = tempBorderPolygons[physicalExtruder].get(0).getAttributes().getExtruder().getExtrusionSize();
+                    linkUp = 4 * linkUp * linkUp;
+                    tempBorderPolygons[physicalExtruder].radicalReOrder(linkUp);
+                    tempBorderPolygons[physicalExtruder] = tempBorderPolygons[physicalExtruder].nearEnds(startNearHere, false, -1);
+                    if(tempBorderPolygons[physicalExtruder].size() > 0) {
+                        Polygon last = tempBorderPolygons[physicalExtruder].get(tempBorderPolygons[physicalExtruder].size() - 1);
+                        startNearHere = last.point(last.size() - 1);
+                    }
+                    allPolygons[physicalExtruder].add(tempBorderPolygons[physicalExtruder]);
+                }
+                if(tempFillPolygons[physicalExtruder].size() > 0) {
+                    double linkUp = tempFillPolygons[physicalExtruder].get(0).getAttributes().getExtruder().getExtrusionSize();
+                    linkUp = 4 * linkUp * linkUp;
+                    tempFillPolygons[physicalExtruder].radicalReOrder(linkUp);
+                    tempFillPolygons[physicalExtruder] = tempFillPolygons[physicalExtruder].nearEnds(startNearHere, false, -1);
+                    if(tempFillPolygons[physicalExtruder].size() > 0) {
+                        Polygon last = tempFillPolygons[physicalExtruder].get(tempFillPolygons[physicalExtruder].size() - 1);
+                        startNearHere = last.point(last.size() - 1);
+                    }
+                    allPolygons[physicalExtruder].add(tempFillPolygons[physicalExtruder]);
+                }
+            }
+        }
+        return allPolygons;
+    }
+
     private void produceAdditiveTopDown() throws Exception 
     {		
         bld.mouseToWorld();
@@ -201,99 +334,106 @@ public class Producer {
             }
         }
 		
-        PolygonList allPolygons[] = new PolygonList[totalPhysicalExtruders];
-        PolygonList tempBorderPolygons[] = new PolygonList[totalPhysicalExtruders];
-        PolygonList tempFillPolygons[] = new PolygonList[totalPhysicalExtruders];
-
         boolean firstTimeRound = true;
-		
-        while(layerRules.getModelLayer() > 0 ) {
-            if(layerRules.getModelLayer() == 0)
-                reprap.setSeparating(true);
-            else
-                reprap.setSeparating(false);
 
-            if (reprap.isCancelled())
-                break;
+        // Maybe work out the infill and outlines of the layers below on other threads
+        // while each layer is being built, and/or do the objects in each layer at the same time.
+        // Pipelining does its own looking ahead, so it doesn't need the scheduler.
+
+        boolean concurrentObjects = concurrentObjects();
+        boolean pipelined = Pipeline.wanted();
+        boolean parallelSlicing = LayerScheduler.wanted() && !pipelined;
+        ForkJoinPool pool = null;
+        if(concurrentObjects || parallelSlicing)
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        // Maybe work out the shadows the objects cast down for support first, so that
+        // the support of a layer doesn't have to wait for the layer above.
+
+        allSTLs.computeSupportShadows(pool);
+        LayerScheduler scheduler = null;
+        if(parallelSlicing)
+            scheduler = new LayerScheduler(allSTLs, layerRules, pool);
+        if(pipelined) {
+            pipeline = new Pipeline(allSTLs, layerRules, totalPhysicalExtruders, concurrentObjects ? pool : null);
+            pipeline.start();
+        }
+        PolygonList fillsOf[] = new PolygonList[allSTLs.size()];
+        PolygonList bordersOf[] = new PolygonList[allSTLs.size()];
+        PolygonList supportOf[] = new PolygonList[allSTLs.size()];
 
-            waitWhilePaused();
+        try {
+            while(layerRules.getModelLayer() > 0 ) {
+                if(layerRules.getModelLayer() == 0)
+                    reprap.setSeparating(true);
+                else
+                    reprap.setSeparating(false);
 
-            Debug.d("Commencing model layer " + layerRules.getModelLayer() + " at " + layerRules.getMachineZ());
+                if (reprap.isCancelled())
+                    break;
 
-            reprap.startingLayer(layerRules);
+                waitWhilePaused();
 
-            reprap.waitWhileBufferNotEmpty();
-            reprap.slowBuffer();
+                Debug.d("Commencing model layer " + layerRules.getModelLayer() + " at " + layerRules.getMachineZ());
 
-            for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++)
-                allPolygons[physicalExtruder] = new PolygonList();
+                reprap.startingLayer(layerRules);
 
-            Point2D startNearHere = new Point2D(0, 0);
-            for(int stl = 0; stl < allSTLs.size(); stl++) {
-                PolygonList fills = allSTLs.computeInfill(stl);
-                PolygonList borders = allSTLs.computeOutlines(stl, fills); 
-                fills = fills.cullShorts();
-                PolygonList support = allSTLs.computeSupport(stl);
+                reprap.waitWhileBufferNotEmpty();
+                reprap.slowBuffer();
 
-                for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++) {
-                    tempBorderPolygons[physicalExtruder] = new PolygonList();
-                    tempFillPolygons[physicalExtruder] = new PolygonList();
-                }
-                borders.forEach((p) ->
-                {
-                    tempBorderPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
-                });
-                fills.forEach((p) ->
-                {
-                    tempFillPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
-                });
-                support.forEach((p) ->
-                {
-                    tempFillPolygons[p.getAttributes().getExtruder().getPhysicalExtruderNumber()].add(p);
-                });
+                PolygonList allPolygons[];
 
-                for(int physicalExtruder = 0; physicalExtruder < allPolygons.length; physicalExtruder++) {
-                    if(tempBorderPolygons[physicalExtruder].size() > 0) {
-                        double linkUp = tempBorderPolygons[physicalExtruder].get(0).getAttributes().getExtruder().getExtrusionSize();
-                        linkUp = 4 * linkUp * linkUp;
-                        tempBorderPolygons[physicalExtruder].radicalReOrder(linkUp);
-                        tempBorderPolygons[physicalExtruder] = tempBorderPolygons[physicalExtruder].nearEnds(startNearHere, false, -1);
-                        if(tempBorderPolygons[physicalExtruder].size() > 0) {
-                            Polygon last = tempBorderPolygons[physicalExtruder].get(tempBorderPolygons[physicalExtruder].size() - 1);
-                            startNearHere = last.point(last.size() - 1);
-                        }
-                        allPolygons[physicalExtruder].add(tempBorderPolygons[physicalExtruder]);
-                    }
-                    if(tempFillPolygons[physicalExtruder].size() > 0) {
-                        double linkUp = tempFillPolygons[physicalExtruder].get(0).getAttributes().getExtruder().getExtrusionSize();
-                        linkUp = 4 * linkUp * linkUp;
-                        tempFillPolygons[physicalExtruder].radicalReOrder(linkUp);
-                        tempFillPolygons[physicalExtruder] = tempFillPolygons[physicalExtruder].nearEnds(startNearHere, false, -1);
-                        if(tempFillPolygons[physicalExtruder].size() > 0) {
-                            Polygon last = tempFillPolygons[physicalExtruder].get(tempFillPolygons[physicalExtruder].size() - 1);
-                            startNearHere = last.point(last.size() - 1);
+                if(pipeline != null) {
+                    allPolygons = pipeline.take(layerRules.getModelLayer());
+                } else {
+                    LayerScheduler.Layer ahead = null;
+                    if(scheduler != null)
+                        ahead = scheduler.take(layerRules.getModelLayer());
+
+                    // Work out each object's patterns, then put them together in order
+
+                    if(concurrentObjects) {
+                        List<ForkJoinTask<?>> objects = new ArrayList<>();
+                        for(int stl = 0; stl < allSTLs.size(); stl++) {
+                            final int s = stl;
+                            final LayerScheduler.Layer a = ahead;
+                            objects.add(pool.submit(() -> computeObject(s, a, fillsOf, bordersOf, supportOf)));
                         }
-                        allPolygons[physicalExtruder].add(tempFillPolygons[physicalExtruder]);
+                        for(ForkJoinTask<?> object : objects)
+                            object.join();
+                    } else {
+                        for(int stl = 0; stl < allSTLs.size(); stl++)
+                            computeObject(stl, ahead, fillsOf, bordersOf, supportOf);
                     }
+
+                    allPolygons = arrange(fillsOf, bordersOf, supportOf, totalPhysicalExtruders);
                 }
-            }
 
-            layerRules.setFirstAndLast(allPolygons);
+                layerRules.setFirstAndLast(allPolygons);
 
-            LayerProducer lp = new LayerProducer(allPolygons, layerRules, simulationPlot);
-            lp.plot();
+                LayerProducer lp = new LayerProducer(allPolygons, layerRules, simulationPlot, pipeline != null);
+                lp.plot();
 
-            reprap.finishedLayer(layerRules);
-            reprap.betweenLayers(layerRules);
+                reprap.finishedLayer(layerRules);
+                reprap.betweenLayers(layerRules);
 
-            if(firstTimeRound) {
-                reprap.setTop(reprap.getX(), reprap.getY(), reprap.getZ());
-                firstTimeRound = false;
-            }
+                if(firstTimeRound) {
+                    reprap.setTop(reprap.getX(), reprap.getY(), reprap.getZ());
+                    firstTimeRound = false;
+                }
 
-            allSTLs.destroyLayer();
+                allSTLs.destroyLayer();
 
-            layerRules.step();
+                layerRules.step();
+            }
+        } finally {
+            if(pipeline != null) {
+                pipeline.close();
+                Debug.d(pipeline.report());
+            }
+            if(pool != null)
+                pool.shutdownNow();
+            Debug.d(allSTLs.sliceCacheStatistics());
         }
 
         layFoundationTopDown(layerRules.getBox());
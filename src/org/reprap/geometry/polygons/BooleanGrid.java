@@ -1,7 +1,9 @@
 
 /**
  * This class stores a rectangular grid at the same grid resolution
- * as the RepRap machine's finest resolution using the Java BitSet class.
+ * as the RepRap machine's finest resolution using a TiledRaster, which packs
+ * the pixels into 64-bit words in 64x64 tiles, only storing tiles that are not
+ * uniformly solid or air.
  * 
  * There are two types of pixel: solid (or true),
  * and air (or false).
@@ -21,10 +23,14 @@
 
 package org.reprap.geometry.polygons;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.BitSet;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 
 import org.reprap.Attributes;
 import org.reprap.Preferences;
@@ -229,13 +235,11 @@ public class BooleanGrid
 		public iRectangle union(iRectangle b)
 		{
 			iRectangle result = new iRectangle(this);
-			result.swCorner.x = Math.min(result.swCorner.x, b.swCorner.x);
-			result.swCorner.y = Math.min(result.swCorner.y, b.swCorner.y);
-			int sx = result.swCorner.x + result.size.x - 1;
-			sx = Math.max(sx, b.swCorner.x + b.size.x - 1) - result.swCorner.x + 1;
-			int sy = result.swCorner.y + result.size.y - 1;
-			sy = Math.max(sy, b.swCorner.y + b.size.y - 1) - result.swCorner.y + 1;
-			result.size = new iPoint(sx, sy);			
+			int sx = Math.max(swCorner.x + size.x, b.swCorner.x + b.size.x);
+			int sy = Math.max(swCorner.y + size.y, b.swCorner.y + b.size.y);
+			result.swCorner.x = Math.min(swCorner.x, b.swCorner.x);
+			result.swCorner.y = Math.min(swCorner.y, b.swCorner.y);
+			result.size = new iPoint(sx - result.swCorner.x, sy - result.swCorner.y);
 			return result;
 		}
 		
@@ -247,13 +251,11 @@ public class BooleanGrid
 		public iRectangle intersection(iRectangle b)
 		{
 			iRectangle result = new iRectangle(this);
-			result.swCorner.x = Math.max(result.swCorner.x, b.swCorner.x);
-			result.swCorner.y = Math.max(result.swCorner.y, b.swCorner.y);
-			int sx = result.swCorner.x + result.size.x - 1;
-			sx = Math.min(sx, b.swCorner.x + b.size.x - 1) - result.swCorner.x + 1;
-			int sy = result.swCorner.y + result.size.y - 1;
-			sy = Math.min(sy, b.swCorner.y + b.size.y - 1) - result.swCorner.y + 1;
-			result.size = new iPoint(sx, sy);			
+			int sx = Math.min(swCorner.x + size.x, b.swCorner.x + b.size.x);
+			int sy = Math.min(swCorner.y + size.y, b.swCorner.y + b.size.y);
+			result.swCorner.x = Math.max(swCorner.x, b.swCorner.x);
+			result.swCorner.y = Math.max(swCorner.y, b.swCorner.y);
+			result.size = new iPoint(sx - result.swCorner.x, sy - result.swCorner.y);
 			return result;
 		}
 		
@@ -283,16 +285,23 @@ public class BooleanGrid
 	}
 	
 	/**
-	 * Integer-point polygon
+	 * Integer-point polygon.  The points are stored packed as (x, y) pairs
+	 * in an auto-extending int array, so building and walking long pixel
+	 * outlines doesn't create an object per point.
 	 * @author ensab
 	 *
 	 */
 	class iPolygon
 	{
 		/**
-		 * Auto-extending list of points
+		 * Point i is (xy[2*i], xy[2*i + 1])
 		 */
-		private List<iPoint> points = null;
+		private int[] xy;
+		
+		/**
+		 * How many points?
+		 */
+		private int count;
 		
 		/**
 		 * Does the polygon loop back on itself?
@@ -301,7 +310,8 @@ public class BooleanGrid
 		
 		public iPolygon(boolean c)
 		{
-			points = new ArrayList<>();
+			xy = new int[16];
+			count = 0;
 			closed = c;
 		}
 		
@@ -311,20 +321,41 @@ public class BooleanGrid
 		 */
 		public iPolygon(iPolygon a)
 		{
-			points = new ArrayList<>();
-			for(int i = 0; i < a.size(); i++)
-				add(a.point(i));
+			xy = Arrays.copyOf(a.xy, Math.max(2*a.count, 16));
+			count = a.count;
 			closed = a.closed;
 		}
 		
 		/**
-		 * Return the point at a given index
+		 * Return (a copy of) the point at a given index
 		 * @param i
 		 * @return
 		 */
 		public iPoint point(int i)
 		{
-			return points.get(i);
+			if(i < 0 || i >= count)
+				throw new IndexOutOfBoundsException("iPolygon.point(): " + i + " of " + count);
+			return new iPoint(xy[2*i], xy[2*i + 1]);
+		}
+		
+		/**
+		 * The x coordinate of the point at a given index
+		 * @param i
+		 * @return
+		 */
+		public int x(int i)
+		{
+			return xy[2*i];
+		}
+		
+		/**
+		 * The y coordinate of the point at a given index
+		 * @param i
+		 * @return
+		 */
+		public int y(int i)
+		{
+			return xy[2*i + 1];
 		}
 		
 		/**
@@ -333,7 +364,21 @@ public class BooleanGrid
 		 */
 		public int size()
 		{
-			return points.size();
+			return count;
+		}
+		
+		/**
+		 * Add a new point on the end
+		 * @param x
+		 * @param y
+		 */
+		public void add(int x, int y)
+		{
+			if(2*count + 1 >= xy.length)
+				xy = Arrays.copyOf(xy, 2*xy.length);
+			xy[2*count] = x;
+			xy[2*count + 1] = y;
+			count++;
 		}
 		
 		/**
@@ -342,7 +387,7 @@ public class BooleanGrid
 		 */
 		public void add(iPoint p)
 		{
-			points.add(p);
+			add(p.x, p.y);
 		}
 		
 		/**
@@ -352,7 +397,7 @@ public class BooleanGrid
 		public void add(iPolygon a)
 		{
 			for(int i = 0; i < a.size(); i++)
-				add(a.point(i));
+				add(a.x(i), a.y(i));
 		}
 		
 		/**
@@ -361,7 +406,10 @@ public class BooleanGrid
 		 */
 		public void remove(int i)
 		{
-			points.remove(i);
+			if(i < 0 || i >= count)
+				throw new IndexOutOfBoundsException("iPolygon.remove(): " + i + " of " + count);
+			System.arraycopy(xy, 2*i + 2, xy, 2*i, 2*(count - i - 1));
+			count--;
 		}
 		
 		/**
@@ -378,7 +426,9 @@ public class BooleanGrid
 			long d0 = tooFar2;
 			while(i < size())
 			{
-				long d1 = point(i).sub(a).magnitude2();
+				long dx = x(i) - a.x;
+				long dy = y(i) - a.y;
+				long d1 = dx*dx + dy*dy;
 				if(d1 < d0)
 				{
 					j = i;
@@ -397,7 +447,7 @@ public class BooleanGrid
 		{
 			iPolygon result = new iPolygon(closed);
 			for(int i = size() - 1; i >= 0; i--)
-				result.add(point(i)); 
+				result.add(x(i), y(i)); 
 			return result;
 		}
 		
@@ -410,13 +460,14 @@ public class BooleanGrid
 		{
 			iPolygon result = new iPolygon(closed);
 			for(int i = 0; i < size(); i++)
-				result.add(point(i).add(t));
+				result.add(x(i) + t.x, y(i) + t.y);
 			return result;
 		}
 		
 		/**
 		 * Find the furthest point from point v1 on the polygon such that the polygon between
-		 * the two can be approximated by a DDA straight line from v1.
+		 * the two can be approximated by a DDA straight line from v1.  The DDA is
+		 * the same as the DDA class's, but stepped inline to avoid making points.
 		 * @param v1
 		 * @return
 		 */
@@ -424,23 +475,42 @@ public class BooleanGrid
 		{
 			int top = size() - 1;
 			int bottom = v1;
-			iPoint p1 = point(v1);
+			int x1 = x(v1);
+			int y1 = y(v1);
 			int offCount = 0;
 			while(top - bottom > 1)
 			{
 				int middle = (bottom + top)/2;
-				DDA line = new DDA(p1, point(middle));
-				iPoint n = line.next();
+				int dx = Math.abs(x(middle) - x1);
+				int dy = Math.abs(y(middle) - y1);
+				int xStep = x(middle) >= x1 ? 1 : -1;
+				int yStep = y(middle) >= y1 ? 1 : -1;
+				int steps = Math.max(dx, dy);
+				int cx = -steps/2;
+				int cy = -steps/2;
+				int px = x1;
+				int py = y1;
 				offCount = 0;
 				int j = v1;
 
-				while(j <= middle && n != null && offCount < 2)
+				for(int taken = 0; j <= middle && taken <= steps && offCount < 2; taken++)
 				{		
-					if(point(j).coincidesWith(n))
+					if(x(j) == px && y(j) == py)
 						offCount = 0;
 					else
 						offCount++;
-					n = line.next();
+					cx += dx;
+					cy += dy;
+					if(cx > 0)
+					{
+						cx -= steps;
+						px += xStep;
+					}
+					if(cy > 0)
+					{
+						cy -= steps;
+						py += yStep;
+					}
 					j++;
 				}
 				
@@ -468,10 +538,10 @@ public class BooleanGrid
 			int v = 0;
 			do
 			{
-				r.add(point(v));
+				r.add(x(v), y(v));
 				v = findAngleStart(v);
 			}while(v < size() - 1);
-			r.add(point(v));
+			r.add(x(v), y(v));
 			return r;
 		}
 		
@@ -484,7 +554,7 @@ public class BooleanGrid
 		{
 			Polygon result = new Polygon(a, closed);
 			for(int i = 0; i < size(); i++)
-				result.add(point(i).realPoint());
+				result.add(new Point2D(scale(rec.swCorner.x + x(i)), scale(rec.swCorner.y + y(i))));
 			return result;
 		}
 	}
@@ -606,7 +676,7 @@ public class BooleanGrid
 	 */
 	class DDA
 	{
-		private iPoint delta, count, p;
+		private iPoint delta, count, p, start;
 		private int steps, taken;
 		private boolean xPlus, yPlus, finished;
 		
@@ -628,10 +698,66 @@ public class BooleanGrid
 			count = new iPoint(-steps / 2, -steps / 2);
 			
 			p = new iPoint(s);
+			start = new iPoint(s);
 			
 			finished = false;
 		}
 		
+		/**
+		 * How many steps are there from the start to the end?
+		 * @return
+		 */
+		int steps()
+		{
+			return steps;
+		}
+		
+		/**
+		 * The distance moved along one axis after k steps, where that
+		 * axis moves d in total.  This is how often next() will have had to
+		 * correct the count for that axis by then.
+		 * @param k
+		 * @param d
+		 * @return
+		 */
+		private int moved(int k, int d)
+		{
+			if(steps == 0)
+				return 0;
+			return (int)Math.floorDiv(-(steps/2) + (long)k*d + steps - 1, steps);
+		}
+		
+		/**
+		 * The point that next() returns after k steps, without stepping there
+		 * @param k
+		 * @return
+		 */
+		iPoint point(int k)
+		{
+			return new iPoint(start.x + (xPlus ? 1 : -1)*moved(k, delta.x), start.y + (yPlus ? 1 : -1)*moved(k, delta.y));
+		}
+		
+		/**
+		 * How many steps along the line is pixel (x, y)?  Return -1 if the line
+		 * doesn't go through it.
+		 * @param x
+		 * @param y
+		 * @return
+		 */
+		int stepsTo(int x, int y)
+		{
+			int k;
+			if(delta.x >= delta.y)
+				k = xPlus ? x - start.x : start.x - x;
+			else
+				k = yPlus ? y - start.y : start.y - y;
+			if(k < 0 || k > steps)
+				return -1;
+			if(start.x + (xPlus ? 1 : -1)*moved(k, delta.x) != x || start.y + (yPlus ? 1 : -1)*moved(k, delta.y) != y)
+				return -1;
+			return k;
+		}
+		
 		/**
 		 * Return the next point along the line, or null
 		 * if the last point returned was the final one.
@@ -692,6 +818,137 @@ public class BooleanGrid
 		}
 	}
 	
+	/**
+	 * One connected piece of a pattern, as found by islands(), along with its
+	 * size and whereabouts.
+	 *
+	 */
+	public static class Island
+	{
+		private final BooleanGrid grid;
+		private final Point2D centroid;
+		private final long pixels;
+		private final Rectangle box;
+		
+		Island(BooleanGrid g, Point2D c, long p, Rectangle b)
+		{
+			grid = g;
+			centroid = c;
+			pixels = p;
+			box = b;
+		}
+		
+		/**
+		 * The island on its own, in a grid just big enough to hold it
+		 * @return
+		 */
+		public BooleanGrid grid() { return grid; }
+		
+		/**
+		 * The middle of the island (as findCentroid() would give)
+		 * @return
+		 */
+		public Point2D centroid() { return centroid; }
+		
+		/**
+		 * How many pixels in the island?
+		 * @return
+		 */
+		public long pixelCount() { return pixels; }
+		
+		/**
+		 * The island's bounding box
+		 * @return
+		 */
+		public Rectangle box() { return box; }
+	}
+	
+	/**
+	 * For each pixel of a rectangle, how many layers in a row are solid there going up
+	 * from one layer (counting no higher than some depth).  The layers come from the top
+	 * down, and the counts at each layer are worked out from those at the layer above and
+	 * this layer's slice in a single pass over the raster tiles.  The counts are held
+	 * bit-sliced, bit i of every pixel's count in raster planes[i], so each word operation
+	 * does 64 pixels at once, and tiles where everything is uniform are done in one go.
+	 * 
+	 * The pixels that are solid in all of n layers from this one up (the intersection
+	 * of n slices) are then just those whose count is at least n.
+	 *
+	 */
+	public static class Solidity
+	{
+		/**
+		 * An all-air grid giving the rectangle and the attributes of the layer
+		 */
+		private final BooleanGrid frame;
+		
+		/**
+		 * The counts stop going up at this
+		 */
+		private final int depth;
+		
+		/**
+		 * Bit i of the counts
+		 */
+		private final TiledRaster[] planes;
+		
+		/**
+		 * Zero counts everywhere in rectangle, as above the top of an object
+		 * @param rectangle
+		 * @param a
+		 * @param depth
+		 */
+		public Solidity(Rectangle rectangle, Attributes a, int depth)
+		{
+			this(new BooleanGrid(rectangle, a), Math.max(depth, 1));
+		}
+		
+		/**
+		 * Zero counts in frame's rectangle
+		 * @param frame
+		 * @param depth
+		 */
+		private Solidity(BooleanGrid frame, int depth)
+		{
+			this.frame = frame;
+			this.depth = depth;
+			planes = new TiledRaster[32 - Integer.numberOfLeadingZeros(depth)];
+			for(int i = 0; i < planes.length; i++)
+				planes[i] = new TiledRaster(frame.rec.size.x, frame.rec.size.y);
+		}
+		
+		/**
+		 * The counts at the layer below this one, whose slice is slice
+		 * @param slice
+		 * @return
+		 */
+		public Solidity down(BooleanGrid slice)
+		{
+			if(slice == nothingThere)
+				return new Solidity(new BooleanGrid(frame.att, frame.rec), depth);
+			Solidity result = new Solidity(new BooleanGrid(slice.att, frame.rec), depth);
+			TiledRaster solid = slice.rec.coincidesWith(frame.rec) ? slice.bits : new BooleanGrid(slice, frame.rec).bits;
+			TiledRaster.countUp(solid, planes, depth, result.planes);
+			return result;
+		}
+		
+		/**
+		 * The pixels that are solid in all of the n layers from this one up, with the
+		 * attributes of this layer's slice
+		 * @param n (at least 1 and no more than the depth)
+		 * @return
+		 */
+		public BooleanGrid atLeast(int n)
+		{
+			if(n < 1 || n > depth)
+				Debug.e("BooleanGrid.Solidity.atLeast(): " + n + " is outside 1 to " + depth);
+			BooleanGrid result = new BooleanGrid(frame.att, frame.rec);
+			if(!TiledRaster.atLeast(planes, n, result.bits))
+				return nothingThere;
+			return normalise(result);
+		}
+	}
+	
 	//**************************************************************************************************
 	
 	// Start of BooleanGrid proper
@@ -708,8 +965,21 @@ public class BooleanGrid
 	 */
 	private static final int simpleEnough = 3;
 	
+	/**
+	 * ...and how few pixels does a rectangle have to have to be worked out pixel by
+	 * pixel rather than divided further, when it is?  Pruning a CompiledCSG2D costs
+	 * little, so dividing a big rectangle with an edge across it is cheaper than
+	 * evaluating all its pixels.
+	 */
+	private static final int smallEnough = 64;
+	
 	private static final BooleanGrid nothingThere = new BooleanGrid();
 	
+	/**
+	 * Should the results of booleans and offsets be cropped to the pixels they contain?
+	 */
+	private static final boolean cropResults = cropResults();
+	
 	/**
 	 * Run round the eight neighbours of a pixel anticlockwise from bottom left
 	 */
@@ -783,12 +1053,12 @@ public class BooleanGrid
 	/**
 	 * The pixel map
 	 */
-	private BitSet bits;
+	private TiledRaster bits;
 	
 	/**
 	 * Flags for visited pixels during searches
 	 */
-	private BitSet visited;
+	private TiledRaster visited;
 	
 	/**
 	 * The rectangle the pixelmap covers
@@ -802,53 +1072,106 @@ public class BooleanGrid
 	
 	private Boolean isThin = false;
 	
+	/**
+	 * How many full-resolution pixels across each of this grid's pixels is (1 for a
+	 * full-resolution grid).  Coarse pixel i covers full-resolution pixels i*coarse to
+	 * i*coarse + coarse - 1, so the pixels of different resolutions nest.
+	 */
+	private int coarse = 1;
+	
+	/**
+	 * Lazily-computed distance fields for offsetting: from each pixel to the nearest
+	 * air (for shrinking) and to the nearest solid (for growing).  They are soft
+	 * references because they are big and can always be recomputed.
+	 */
+	private SoftReference<DistanceField> insideField = null;
+	private SoftReference<DistanceField> outsideField = null;
+	
 
 	
 	//**************************************************************************************************
 	// Debugging and timing
 	
-	private static String stack[] = new String[20];
-	private static int sp = -1;
+	// Grids are worked on by several threads at once, so each has its own stack.
+	
+	private static final ThreadLocal<ArrayDeque<String>> stack = ThreadLocal.withInitial(ArrayDeque::new);
 	private static boolean debug = false;
 	
 	private void push(String s)
 	{
 		if(!debug)
 			return;
-		sp++;
-		stack[sp] = s;
+		ArrayDeque<String> st = stack.get();
 		String str = "";
-		for(int i = 0; i < sp; i++)
+		for(int i = 0; i < st.size(); i++)
 			str += " ";
+		st.push(s);
 		Debug.a("{ " + str + s);
 	}
 	private void pop()
 	{
 		if(!debug)
 			return;
+		ArrayDeque<String> st = stack.get();
+		String s = st.pop();
 		String str = "";
-		for(int i = 0; i < sp; i++)
+		for(int i = 0; i < st.size(); i++)
 			str += " ";		
-		Debug.a("} " + str + stack[sp]);
-		sp--;
+		Debug.a("} " + str + s);
 	}
 	
 	//**************************************************************************************************
 	// Constructors and administration
 	
 	/**
-	 * Back and forth from real to pixel/integer coordinates
+	 * Back and forth from real to pixel/integer coordinates.  Real coordinates
+	 * are at the middle of a pixel, whatever its size.
 	 * @param i
 	 * @return
 	 */
-	static double scale(int i) { return i*pixSize; }
-	static int iScale(double d) { return (int)Math.round(d/pixSize); }
+	double scale(int i) { return (i*coarse + 0.5*(coarse - 1))*pixSize; }
+	double toPixels(double d) { return (d/pixSize - 0.5*(coarse - 1))/coarse; }
+	int iScale(double d) { return (int)Math.round(toPixels(d)); }
+	
+	/**
+	 * A real length in pixels
+	 * @param d
+	 * @return
+	 */
+	int iLength(double d) { return (int)Math.round(d/pixelSize()); }
+	
+	/**
+	 * How far grids built from a rectangle go beyond it
+	 * @return
+	 */
+	public static double margin() { return rSwell; }
+	
+	/**
+	 * The size of this grid's pixels
+	 * @return
+	 */
+	public double pixelSize() { return pixSize*coarse; }
+	
+	/**
+	 * How many full-resolution pixels across each of this grid's pixels is
+	 * @return
+	 */
+	public int coarseness() { return coarse; }
 	
 	/**
 	 * Build the grid from a CSG expression
 	 * @param csgExp
 	 */
 	public BooleanGrid(CSG2D csgExp, Rectangle rectangle, Attributes a)
+	{
+		this(csgExp.compile(), rectangle, a);
+	}
+	
+	/**
+	 * Build the grid from a compiled CSG expression
+	 * @param csgExp
+	 */
+	public BooleanGrid(CompiledCSG2D csgExp, Rectangle rectangle, Attributes a)
 	{
 		att = a;
 		isThin = false;
@@ -856,17 +1179,46 @@ public class BooleanGrid
 		rec = new iRectangle(new iPoint(0, 0), new iPoint(1, 1));  // Set the origin to (0, 0)...
 		rec.swCorner = new iPoint(ri.sw());                        // That then gets subtracted by the iPoint constructor to give the true origin
 		rec.size = new iPoint(ri.ne());                            // The true origin is now automatically subtracted.
-		bits = new BitSet(rec.size.x*rec.size.y);
+		bits = new TiledRaster(rec.size.x, rec.size.y);
 		visited = null;
 		push("Build quad tree... ");
 		//Debug.e("Quad start.");
-		generateQuadTree(new iPoint(0, 0), new iPoint(rec.size.x - 1, rec.size.y - 1), csgExp);
+		int[][] masks = new int[2*(33 - Integer.numberOfLeadingZeros(Math.max(rec.size.x, rec.size.y)))][csgExp.size()];
+		generateQuadTree(new iPoint(0, 0), new iPoint(rec.size.x - 1, rec.size.y - 1), csgExp, masks, 0, csgExp.all(masks[0]));
 		//Debug.e("Quad end.");
+		bits.compact();
 		pop();
 		deWhisker();
 	}
 	
 	
+	/**
+	 * Build the grid directly from a list of closed polygons by filling scanlines,
+	 * without going via CSG.  If nonZero is false a pixel is solid if it is inside an
+	 * odd number of the polygons; if it is true, a pixel is solid if the polygons wind
+	 * round it a non-zero number of times.
+	 * @param pl
+	 * @param rectangle
+	 * @param a
+	 * @param nonZero
+	 */
+	public BooleanGrid(PolygonList pl, Rectangle rectangle, Attributes a, boolean nonZero)
+	{
+		att = a;
+		isThin = false;
+		Rectangle ri = rectangle.offset(rSwell);
+		rec = new iRectangle(new iPoint(0, 0), new iPoint(1, 1));  // Set the origin to (0, 0)...
+		rec.swCorner = new iPoint(ri.sw());                        // That then gets subtracted by the iPoint constructor to give the true origin
+		rec.size = new iPoint(ri.ne());                            // The true origin is now automatically subtracted.
+		bits = new TiledRaster(rec.size.x, rec.size.y);
+		visited = null;
+		push("Scanline fill... ");
+		scanFill(pl, nonZero);
+		bits.compact();
+		pop();
+		deWhisker();
+	}
+	
 	/**
 	 * Copy constructor
 	 * N.B. attributes are _not_ deep copied
@@ -877,8 +1229,9 @@ public class BooleanGrid
 		att = bg.att;
 		visited = null;
 		isThin = bg.isThin;
+		coarse = bg.coarse;
 		rec= new iRectangle(bg.rec);
-		bits = (BitSet)bg.bits.clone();
+		bits = new TiledRaster(bg.bits);
 	}
 	
 	/**
@@ -891,16 +1244,60 @@ public class BooleanGrid
 		att = bg.att;
 		visited = null;
 		isThin = bg.isThin;
+		coarse = bg.coarse;
 		rec= new iRectangle(newRec);
-		bits = new BitSet(rec.size.x*rec.size.y);
-		iRectangle recScan = rec.intersection(bg.rec);
-		int offxOut = recScan.swCorner.x - rec.swCorner.x;
-		int offyOut = recScan.swCorner.y - rec.swCorner.y;
-		int offxIn = recScan.swCorner.x - bg.rec.swCorner.x;
-		int offyIn = recScan.swCorner.y - bg.rec.swCorner.y;
-		for(int x = 0; x < recScan.size.x; x++)
-			for(int y = 0; y < recScan.size.y; y++)
-				bits.set(pixI(x + offxOut, y + offyOut), bg.bits.get(bg.pixI(x + offxIn, y + offyIn)));
+		bits = new TiledRaster(rec.size.x, rec.size.y);
+		combineWindow(TiledRaster.opCopy, bg);
+	}
+	
+	/**
+	 * An all-air grid covering rectangle (with the same margins as the grids built from it)
+	 * @param rectangle
+	 * @param a
+	 */
+	private BooleanGrid(Rectangle rectangle, Attributes a)
+	{
+		att = a;
+		isThin = false;
+		Rectangle ri = rectangle.offset(rSwell);
+		rec = new iRectangle(new iPoint(0, 0), new iPoint(1, 1));
+		rec.swCorner = new iPoint(ri.sw());
+		rec.size = new iPoint(ri.ne());
+		bits = new TiledRaster(rec.size.x, rec.size.y);
+		visited = null;
+	}
+	
+	/**
+	 * An all-air grid covering rectangle r
+	 * @param a
+	 * @param r
+	 */
+	private BooleanGrid(Attributes a, iRectangle r)
+	{
+		att = a;
+		rec = new iRectangle(r);
+		bits = new TiledRaster(rec.size.x, rec.size.y);
+		isThin = false;
+		visited = null;
+	}
+	
+	/**
+	 * An all-air grid on the w x h pixels with (x, y) at the bottom left
+	 * @param a
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 */
+	private BooleanGrid(Attributes a, int x, int y, int w, int h)
+	{
+		att = a;
+		rec = new iRectangle();
+		rec.swCorner = new iPoint(x, y);
+		rec.size = new iPoint(w, h);
+		bits = new TiledRaster(w, h);
+		isThin = false;
+		visited = null;
 	}
 	
 	/**
@@ -910,11 +1307,110 @@ public class BooleanGrid
 	{
 		att = new Attributes(null, null, null, null);
 		rec = new iRectangle();
-		bits = new BitSet(1);
+		bits = new TiledRaster(1, 1);
 		isThin = false;
 		visited = null;		
 	}
 	
+	/**
+	 * Read back a grid saved by write() (apart from the flag saying if it was the empty grid)
+	 * @param in
+	 * @param a
+	 * @throws IOException
+	 */
+	private BooleanGrid(DataInput in, Attributes a) throws IOException
+	{
+		att = a;
+		int x = in.readInt();
+		int y = in.readInt();
+		int w = in.readInt();
+		int h = in.readInt();
+		rec = new iRectangle(new iPoint(x, y), new iPoint(x + w - 1, y + h - 1));
+		isThin = in.readBoolean();
+		coarse = in.readInt();
+		bits = new TiledRaster(in);
+		visited = null;
+	}
+	
+	/**
+	 * Save the grid's pixels and where they are (but not its attributes) so that
+	 * read() can make a copy of it later.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeBoolean(this == nothingThere);
+		if(this == nothingThere)
+			return;
+		out.writeInt(rec.swCorner.x);
+		out.writeInt(rec.swCorner.y);
+		out.writeInt(rec.size.x);
+		out.writeInt(rec.size.y);
+		out.writeBoolean(isThin);
+		out.writeInt(coarse);
+		bits.write(out);
+	}
+	
+	/**
+	 * Read back a grid saved by write(), giving it attributes a.  The empty grid
+	 * comes back as itself.
+	 * @param in
+	 * @param a
+	 * @return
+	 * @throws IOException
+	 */
+	public static BooleanGrid read(DataInput in, Attributes a) throws IOException
+	{
+		if(in.readBoolean())
+			return nothingThere;
+		return new BooleanGrid(in, a);
+	}
+	
+	/**
+	 * Roughly how many bytes of memory the grid's pixels take up
+	 * @return
+	 */
+	public long bytes()
+	{
+		return 64 + bits.bytes();
+	}
+	
+	/**
+	 * The pixels, for the other rasters in this package to read (or, for a grid
+	 * from blank(), to fill in)
+	 * @return
+	 */
+	TiledRaster raster()
+	{
+		return bits;
+	}
+	
+	/**
+	 * Where the pixels are, in this grid's pixel coordinates, as {x, y, width, height}
+	 * with (x, y) the bottom left
+	 * @return
+	 */
+	int[] pixelRectangle()
+	{
+		return new int[] {rec.swCorner.x, rec.swCorner.y, rec.size.x, rec.size.y};
+	}
+	
+	/**
+	 * An all-air grid on a pixel rectangle from pixelRectangle(), with pixels
+	 * coarse full-resolution pixels across
+	 * @param a
+	 * @param r
+	 * @param coarse
+	 * @return
+	 */
+	static BooleanGrid blank(Attributes a, int[] r, int coarse)
+	{
+		BooleanGrid result = new BooleanGrid(a, r[0], r[1], r[2], r[3]);
+		result.coarse = coarse;
+		return result;
+	}
+	
 	/**
 	 * The empty set
 	 * @return
@@ -927,42 +1423,262 @@ public class BooleanGrid
 	/**
 	 * Overwrite the attributes
 	 * Only to be used if you know what you're doing...
+	 * The empty grid is shared by everything (on every thread), so it keeps its own.
 	 * @param a
 	 */
 	public void forceAttribute(Attributes a)
 	{
+		if(this == nothingThere)
+			return;
 		att = a;
 	}
 	
 	/**
-	 * The index of a pixel in the 1D bit array.
+	 * Combine the part of bg that overlaps this grid's rectangle into this grid
+	 * with one of the TiledRaster operations.  The two rectangles need not match;
+	 * the overlap is found and the rows are shifted into place a word at a time.
+	 * @param op
+	 * @param bg
+	 */
+	private void combineWindow(int op, BooleanGrid bg)
+	{
+		iRectangle recScan = rec.intersection(bg.rec);
+		if(recScan.size.x <= 0 || recScan.size.y <= 0)
+			return;
+		bits.combine(op, bg.bits, recScan.swCorner.x - bg.rec.swCorner.x, recScan.swCorner.y - bg.rec.swCorner.y, 
+				recScan.swCorner.x - rec.swCorner.x, recScan.swCorner.y - rec.swCorner.y, recScan.size.x, recScan.size.y);
+	}
+	
+	/**
+	 * Read the CropBooleanGrids preference
+	 * @return
+	 */
+	private static boolean cropResults()
+	{
+		try
+		{
+			return Preferences.loadGlobalBool("CropBooleanGrids", false);
+		} catch (IOException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Shrink the rectangle to the smallest one containing all the solid pixels.
+	 * The west edge is kept on a word boundary of the old rectangle so that
+	 * combining the result with grids on that rectangle needs no shifting.
+	 * The grid must not be empty.
+	 */
+	private void tighten()
+	{
+		int[] b = bits.bounds();
+		if(b == null)
+			return;
+		int x0 = b[0] & ~63;
+		int w = b[2] - x0 + 1;
+		int h = b[3] - b[1] + 1;
+		if(w == rec.size.x && h == rec.size.y)
+			return;
+		TiledRaster cropped = new TiledRaster(w, h);
+		cropped.combine(TiledRaster.opCopy, bits, x0, b[1], 0, 0, w, h);
+		bits = cropped;
+		rec = new iRectangle(rec);
+		rec.swCorner = new iPoint(rec.swCorner.x + x0, rec.swCorner.y + b[1]);
+		rec.size = new iPoint(w, h);
+		visited = null;
+		changed();
+	}
+	
+	/**
+	 * A copy of this grid whose rectangle is just big enough to hold its solid pixels
+	 * @return
+	 */
+	public BooleanGrid crop()
+	{
+		if(isEmpty())
+			return nothingThere;
+		BooleanGrid result = new BooleanGrid(this);
+		result.tighten();
+		return result;
+	}
+	
+	/**
+	 * This grid with pixels level full-resolution pixels across.  Going to bigger
+	 * pixels, if cover is true a pixel is solid if any of the pixels it covers is;
+	 * otherwise only if all of them are.  Going to smaller pixels is exact.
+	 * @param level
+	 * @param cover
+	 * @return
+	 */
+	public BooleanGrid resample(int level, boolean cover)
+	{
+		level = Math.max(Math.min(level, 64), 1);
+		if(this == nothingThere || level == coarse)
+			return this;
+		if(level % coarse == 0)
+			return coarsen(level/coarse, cover);
+		if(coarse % level == 0)
+			return refine(coarse/level);
+		return refine(coarse).resample(level, cover);
+	}
+	
+	/**
+	 * Bits x to x + 63 of a row of words, with air beyond its ends
+	 * @param row
 	 * @param x
-	 * @param y
 	 * @return
 	 */
-	private int pixI(int x, int y)
+	private static long run(long[] row, int x)
 	{
-		return x*rec.size.y + y;
+		int w = x >> 6;
+		int b = x & 63;
+		long result = w >= 0 && w < row.length ? row[w] >>> b : 0;
+		if(b != 0 && w + 1 >= 0 && w + 1 < row.length)
+			result |= row[w + 1] << (64 - b);
+		return result;
 	}
 	
 	/**
-	 * The index of a pixel in the 1D bit array.
-	 * @param p
+	 * This grid with pixels f times the size.  The rows under each new row are
+	 * combined a word at a time, then each new pixel looks at its f bits.
+	 * @param f
+	 * @param cover
+	 * @return
+	 */
+	private BooleanGrid coarsen(int f, boolean cover)
+	{
+		int x0 = Math.floorDiv(rec.swCorner.x, f);
+		int y0 = Math.floorDiv(rec.swCorner.y, f);
+		int x1 = Math.floorDiv(rec.swCorner.x + rec.size.x - 1, f);
+		int y1 = Math.floorDiv(rec.swCorner.y + rec.size.y - 1, f);
+		BooleanGrid result = new BooleanGrid(att, new iRectangle(new iPoint(x0, y0), new iPoint(x1, y1)));
+		result.coarse = coarse*f;
+		long mask = f == 64 ? -1L : (1L << f) - 1;
+		long[] row = new long[bits.stride()];
+		long[] out = new long[result.bits.stride()];
+		for(int y = 0; y < result.rec.size.y; y++)
+		{
+			int yStart = (y0 + y)*f - rec.swCorner.y;
+			int yEnd = yStart + f;
+			if(!cover && (yStart < 0 || yEnd > rec.size.y))
+				continue;
+			boolean any = false;
+			for(int w = 0; w < row.length; w++)
+			{
+				long v = cover ? 0 : -1L;
+				for(int r = Math.max(yStart, 0); r < Math.min(yEnd, rec.size.y); r++)
+				{
+					if(cover)
+						v |= bits.word(w, r);
+					else
+						v &= bits.word(w, r);
+				}
+				row[w] = v;
+				any |= v != 0;
+			}
+			if(!any)
+				continue;
+			Arrays.fill(out, 0);
+			for(int x = 0; x < result.rec.size.x; x++)
+			{
+				long v = run(row, (x0 + x)*f - rec.swCorner.x) & mask;
+				if(cover ? v != 0 : v == mask)
+					out[x >> 6] |= 1L << (x & 63);
+			}
+			for(int w = 0; w < out.length; w++)
+				if(out[w] != 0)
+					result.bits.setWord(w, y, out[w]);
+		}
+		result.bits.compact();
+		if(result.isEmpty())
+			return nothingThere;
+		return result;
+	}
+	
+	/**
+	 * This grid with pixels 1/f of the size
+	 * @param f
 	 * @return
 	 */
-	private int pixI(iPoint p)
+	private BooleanGrid refine(int f)
 	{
-		return pixI(p.x, p.y);
+		iPoint sw = new iPoint(rec.swCorner.x*f, rec.swCorner.y*f);
+		iPoint ne = new iPoint((rec.swCorner.x + rec.size.x)*f - 1, (rec.swCorner.y + rec.size.y)*f - 1);
+		BooleanGrid result = new BooleanGrid(att, new iRectangle(sw, ne));
+		result.coarse = coarse/f;
+		result.isThin = isThin;
+		for(int y = 0; y < rec.size.y; y++)
+		{
+			int fy = y*f;
+			for(int x = bits.nextSetBit(0, y); x >= 0; x = bits.nextSetBit(x, y))
+			{
+				int end = bits.nextClearBit(x, y);
+				result.bits.setSpan(fy, x*f, end*f - 1, true);
+				if(end >= rec.size.x)
+					break;
+				x = end;
+			}
+			for(int w = 0; w < result.bits.stride(); w++)
+			{
+				long v = result.bits.word(w, fy);
+				if(v != 0)
+					for(int r = 1; r < f; r++)
+						result.bits.setWord(w, fy + r, v);
+			}
+		}
+		result.bits.compact();
+		return result;
 	}
 	
 	/**
-	 * The pixel corresponding to an index into the bit array
-	 * @param i
+	 * If we have been asked to, crop the result of a boolean or offset
+	 * @param result
 	 * @return
 	 */
-	private iPoint pixel(int i)
+	private static BooleanGrid normalise(BooleanGrid result)
 	{
-		return new iPoint(i/rec.size.y, i%rec.size.y);
+		if(cropResults && result != nothingThere)
+			result.tighten();
+		return result;
+	}
+	
+	/**
+	 * The pixels have been altered, so any distance fields are out of date
+	 */
+	private void changed()
+	{
+		insideField = null;
+		outsideField = null;
+	}
+	
+	/**
+	 * The distance field to the solid (toSolid true) or the air, extending
+	 * at least margin pixels beyond the rectangle and exact to at least band pixels.
+	 * This is computed the first time it is needed and then reused by subsequent
+	 * offsets.  When a wider band is needed it is at least doubled, so a run of
+	 * growing shells only recomputes the field a few times.
+	 * @param toSolid
+	 * @param margin
+	 * @param band
+	 * @return
+	 */
+	private DistanceField distanceField(boolean toSolid, int margin, int band)
+	{
+		SoftReference<DistanceField> ref = toSolid ? outsideField : insideField;
+		DistanceField field = ref == null ? null : ref.get();
+		if(field == null || field.margin() < margin || field.band() < band)
+		{
+			if(field != null)
+				band = Math.max(band, 2*field.band());
+			field = new DistanceField(bits, toSolid, margin, band);
+			ref = new SoftReference<>(field);
+			if(toSolid)
+				outsideField = ref;
+			else
+				insideField = ref;
+		}
+		return field;
 	}
 	
 	/**
@@ -985,6 +1701,8 @@ public class BooleanGrid
 	
 	public void setThin(Boolean t)
 	{
+		if(this == nothingThere)
+			return;  // Shared; see forceAttribute()
 		isThin = t;
 	}
 	
@@ -1004,13 +1722,18 @@ public class BooleanGrid
 	 */
 	private boolean inside(iPoint p)
 	{
-		if(p.x < 0)
-			return false;
-		if(p.y < 0)
-			return false;
-		if(p.x >= rec.size.x)
-			return false;
-		return p.y < rec.size.y;
+		return inside(p.x, p.y);
+	}
+	
+	/**
+	 * Is a pixel inside the image?
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private boolean inside(int x, int y)
+	{
+		return x >= 0 && y >= 0 && x < rec.size.x && y < rec.size.y;
 	}
 	
 	
@@ -1026,7 +1749,8 @@ public class BooleanGrid
 			Debug.e("BoolenGrid.set(): attempt to set pixel beyond boundary!");
 			return;
 		}
-		bits.set(pixI(p), v);
+		changed();
+		bits.set(p.x, p.y, v);
 	}
 	
 	/**
@@ -1037,18 +1761,16 @@ public class BooleanGrid
 	 */
 	public void disc(iPoint c, int r, boolean v)
 	{
-		for(int x = -r; x <= r; x++)
+		changed();
+		for(int y = -r; y <= r; y++)
 		{
-			int xp = c.x + x;
-			if(xp > 0 && xp < rec.size.x)
+			int yp = c.y + y;
+			if(yp >= 0 && yp < rec.size.y)
 			{
-				int y = (int)Math.round(Math.sqrt((double)(r*r - x*x)));
-				int yp0 = c.y - y;
-				int yp1 = c.y + y;
-				yp0 = Math.max(yp0, 0);
-				yp1 = Math.min(yp1, rec.size.y - 1);
-				if(yp0 <= yp1)
-					bits.set(pixI(xp, yp0), pixI(xp, yp1) + 1, v);
+				int x = (int)Math.round(Math.sqrt((double)(r*r - y*y)));
+				int xp0 = Math.max(c.x - x, 0);
+				int xp1 = Math.min(c.x + x, rec.size.x - 1);
+				bits.setSpan(yp, xp0, xp1, v);
 			}
 		}
 	}
@@ -1061,7 +1783,7 @@ public class BooleanGrid
 	 */
 	public void disc(Point2D c, double r, boolean v)
 	{
-		disc(new iPoint(c), iScale(r), v);
+		disc(new iPoint(c), iLength(r), v);
 	}
 	
 	/**
@@ -1073,6 +1795,7 @@ public class BooleanGrid
 	 */
 	public void rectangle(iPoint p0, iPoint p1, int r, boolean v)
 	{
+		changed();
 		r = Math.abs(r);
 		Point2D rp0 = new Point2D(p0.x, p0.y);
 		Point2D rp1 = new Point2D(p1.x, p1.y);
@@ -1082,8 +1805,8 @@ public class BooleanGrid
 		h[0] = h[0].offset(-r).complement();
 		h[1] = new HalfPlane(rp0, Point2D.add(rp0, h[2].normal()));
 		h[3] = new HalfPlane(rp1, Point2D.add(rp1, h[0].normal()));
-		double xMin = Double.MAX_VALUE;
-		double xMax = Double.MIN_VALUE;
+		double yMin = Double.MAX_VALUE;
+		double yMax = -Double.MAX_VALUE;
 		Point2D p = null;
 		for(int i = 0; i < 4; i++)
 		{
@@ -1092,27 +1815,26 @@ public class BooleanGrid
 				p = h[i].cross_point(h[(i+1)%4]);
 			} catch (ParallelException e)
 			{}
-			xMin = Math.min(xMin, p.x());
-			xMax = Math.max(xMax, p.x());
+			yMin = Math.min(yMin, p.y());
+			yMax = Math.max(yMax, p.y());
 		}
-		int iXMin = (int)Math.round(xMin);
-		iXMin = Math.max(iXMin, 0);
-		int iXMax = (int)Math.round(xMax);
-		iXMax = Math.min(iXMax, rec.size.x - 1);
-		for(int x = iXMin; x <= iXMax; x++)
+		int iYMin = (int)Math.round(yMin);
+		iYMin = Math.max(iYMin, 0);
+		int iYMax = (int)Math.round(yMax);
+		iYMax = Math.min(iYMax, rec.size.y - 1);
+		for(int y = iYMin; y <= iYMax; y++)
 		{
-			Line yLine = new Line(new Point2D(x, 0), new Point2D(x, 1));
+			Line xLine = new Line(new Point2D(0, y), new Point2D(1, y));
 			Interval iv = Interval.bigInterval();
 			for(int i = 0; i < 4; i++)
-				iv = h[i].wipe(yLine, iv);
+				iv = h[i].wipe(xLine, iv);
 			if(!iv.empty())
 			{
-				int yLow = (int)Math.round(yLine.point(iv.low()).y());
-				int yHigh = (int)Math.round(yLine.point(iv.high()).y());
-				yLow = Math.max(yLow, 0);
-				yHigh = Math.min(yHigh, rec.size.y - 1);
-				if(yLow <= yHigh)
-					bits.set(pixI(x, yLow), pixI(x, yHigh) + 1, v);
+				int xLow = (int)Math.round(xLine.point(iv.low()).x());
+				int xHigh = (int)Math.round(xLine.point(iv.high()).x());
+				xLow = Math.max(xLow, 0);
+				xHigh = Math.min(xHigh, rec.size.x - 1);
+				bits.setSpan(y, xLow, xHigh, v);
 			} 
 		}
 	}
@@ -1126,7 +1848,7 @@ public class BooleanGrid
 	 */
 	public void rectangle(Point2D p0, Point2D p1, double r, boolean v)
 	{
-		rectangle(new iPoint(p0), new iPoint(p1), iScale(r), v);
+		rectangle(new iPoint(p0), new iPoint(p1), iLength(r), v);
 	}
 	
 	/**
@@ -1137,8 +1859,9 @@ public class BooleanGrid
 	 */
 	private void homogeneous(iPoint ipsw, iPoint ipne, boolean v)
 	{
-		for(int x = ipsw.x; x <= ipne.x; x++)
-			bits.set(pixI(x, ipsw.y), pixI(x, ipne.y) + 1, v);
+		changed();
+		for(int y = ipsw.y; y <= ipne.y; y++)
+			bits.setSpan(y, ipsw.x, ipne.x, v);
 	}
 	
 	/**
@@ -1156,13 +1879,18 @@ public class BooleanGrid
 	 * Set a whole rectangle to the right values for a CSG expression
 	 * @param ipsw
 	 * @param ipne
-	 * @param v
+	 * @param csg
+	 * @param mask
+	 * @param n
 	 */
-	private void heterogeneous(iPoint ipsw, iPoint ipne, CSG2D csgExpression)
+	private void heterogeneous(iPoint ipsw, iPoint ipne, CompiledCSG2D csg, int[] mask, int n)
 	{
-		for(int x = ipsw.x; x <= ipne.x; x++)
-			for(int y = ipsw.y; y <= ipne.y; y++)
-				bits.set(pixI(x, y), csgExpression.value(new iPoint(x, y).realPoint()) <= 0);
+		for(int y = ipsw.y; y <= ipne.y; y++)
+		{
+			double ry = scale(rec.swCorner.y + y);
+			for(int x = ipsw.x; x <= ipne.x; x++)
+				bits.set(x, y, csg.value(mask, n, scale(rec.swCorner.x + x), ry) <= 0);
+		}
 	}
 	
 	/**
@@ -1181,9 +1909,20 @@ public class BooleanGrid
 	 */
 	public boolean get(iPoint p)
 	{
-		if(!inside(p))
+		return get(p.x, p.y);
+	}
+	
+	/**
+	 * The value at a pixel; pixels outside the image are air.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private boolean get(int x, int y)
+	{
+		if(!inside(x, y))
 			return false;
-		return bits.get(pixI(p));
+		return bits.get(x, y);
 	}
 	
 	/**
@@ -1210,8 +1949,8 @@ public class BooleanGrid
 			return;
 		}
 		if(visited == null)
-			visited = new BitSet(rec.size.x*rec.size.y);
-		visited.set(pixI(p), v);
+			visited = new TiledRaster(rec.size.x, rec.size.y);
+		visited.set(p.x, p.y, v);
 	}
 	
 	/**
@@ -1225,7 +1964,7 @@ public class BooleanGrid
 			return false;
 		if(!inside(p))
 			return false;		
-		return visited.get(pixI(p));
+		return visited.get(p.x, p.y);
 	}
 	
 	public long pixelCount()
@@ -1239,13 +1978,12 @@ public class BooleanGrid
 	 */
 	private iPoint findSeed_i()
 	{
-		for(int x = 0; x < rec.size.x; x++)
-			for(int y = 0; y < rec.size.y; y++)
-			{
-				iPoint p = new iPoint(x, y);
-				if(get(p))
-					return p;
-			}
+		for(int y = 0; y < rec.size.y; y++)
+		{
+			int x = bits.nextSetBit(0, y);
+			if(x >= 0)
+				return new iPoint(x, y);
+		}
 		return null;
 	}
 	
@@ -1268,71 +2006,207 @@ public class BooleanGrid
 	 */
 	private iPoint findCentroid_i()
 	{
-		iPoint sum = new iPoint(0,0);
-		int points = 0;
-		for(int x = 0; x < rec.size.x; x++)
-			for(int y = 0; y < rec.size.y; y++)
+		long sx = 0;
+		long sy = 0;
+		long points = 0;
+		for(int y = 0; y < rec.size.y; y++)
+			for(int x = bits.nextSetBit(0, y); x >= 0; x = bits.nextSetBit(x + 1, y))
+			{
+				sx += x;
+				sy += y;
+				points++;
+			}
+		if(points == 0)
+			return null;
+		return new iPoint((int)(sx/points), (int)(sy/points));
+	}
+	
+	/**
+	 * Find the centroid of the shape(s)
+	 * @return
+	 */
+	public Point2D findCentroid()
+	{
+		iPoint p = findCentroid_i();
+		if(p == null)
+			return null;
+		else
+			return p.realPoint();
+	}
+	
+	/**
+	 * Fill the polygons in pl into the image row by row.  Each polygon edge is
+	 * put in a bucket for the first row it crosses, and is dropped from the list
+	 * of active edges after the last, so each row only looks at the edges that cross it.
+	 * The crossings are at pixel centres, with an edge counting as crossing a
+	 * row at its lower end but not at its upper one.
+	 * @param pl
+	 * @param nonZero
+	 */
+	private void scanFill(PolygonList pl, boolean nonZero)
+	{
+		int n = 0;
+		for(int i = 0; i < pl.size(); i++)
+			n += pl.get(i).size();
+		
+		// The edges in pixel coordinates, lower end first, with the direction they went
+		
+		double[] ex = new double[n];
+		double[] ey = new double[n];
+		double[] slope = new double[n];
+		int[] endRow = new int[n];
+		int[] up = new int[n];
+		int[] next = new int[n];
+		int[] firstEdge = new int[rec.size.y];
+		Arrays.fill(firstEdge, -1);
+		int edges = 0;
+		for(int i = 0; i < pl.size(); i++)
+		{
+			Polygon p = pl.get(i);
+			int ps = p.size();
+			if(ps < 3)
+				continue;
+			for(int j = 0; j < ps; j++)
+			{
+				Point2D a = p.point(j);
+				Point2D b = p.point((j + 1)%ps);
+				double ax = toPixels(a.x()) - rec.swCorner.x;
+				double ay = toPixels(a.y()) - rec.swCorner.y;
+				double bx = toPixels(b.x()) - rec.swCorner.x;
+				double by = toPixels(b.y()) - rec.swCorner.y;
+				if(ay == by)
+					continue;
+				int dir = 1;
+				if(ay > by)
+				{
+					double t = ax; ax = bx; bx = t;
+					t = ay; ay = by; by = t;
+					dir = -1;
+				}
+				int r0 = Math.max(0, (int)Math.ceil(ay));
+				int r1 = Math.min(rec.size.y, (int)Math.ceil(by));
+				if(r0 >= r1)
+					continue;
+				ex[edges] = ax;
+				ey[edges] = ay;
+				slope[edges] = (bx - ax)/(by - ay);
+				endRow[edges] = r1;
+				up[edges] = dir;
+				next[edges] = firstEdge[r0];
+				firstEdge[r0] = edges;
+				edges++;
+			}
+		}
+		
+		int[] active = new int[edges];
+		int activeCount = 0;
+		double[] xs = new double[edges];
+		int[] ws = new int[edges];
+		for(int y = 0; y < rec.size.y; y++)
+		{
+			for(int e = firstEdge[y]; e >= 0; e = next[e])
+				active[activeCount++] = e;
+			if(activeCount == 0)
+				continue;
+			
+			// Drop the edges that have finished, and insertion-sort the crossings of the rest
+			
+			int kept = 0;
+			int m = 0;
+			for(int i = 0; i < activeCount; i++)
+			{
+				int e = active[i];
+				if(endRow[e] <= y)
+					continue;
+				active[kept++] = e;
+				double x = ex[e] + (y - ey[e])*slope[e];
+				int k = m++;
+				while(k > 0 && xs[k - 1] > x)
+				{
+					xs[k] = xs[k - 1];
+					ws[k] = ws[k - 1];
+					k--;
+				}
+				xs[k] = x;
+				ws[k] = up[e];
+			}
+			activeCount = kept;
+			
+			if(!nonZero)
+			{
+				for(int k = 0; k + 1 < m; k += 2)
+					scanSpan(y, xs[k], xs[k + 1]);
+			} else
 			{
-				iPoint p = new iPoint(x, y);
-				if(get(p))
+				int winding = 0;
+				double start = 0;
+				for(int k = 0; k < m; k++)
 				{
-					sum = sum.add(p);
-					points++;
+					int last = winding;
+					winding += ws[k];
+					if(last == 0 && winding != 0)
+						start = xs[k];
+					else if(last != 0 && winding == 0)
+						scanSpan(y, start, xs[k]);
 				}
 			}
-		if(points == 0)
-			return null;
-		return new iPoint(sum.x/points, sum.y/points);
+		}
 	}
 	
 	/**
-	 * Find the centroid of the shape(s)
-	 * @return
+	 * Set the pixels in row y whose centres lie in [x0, x1)
+	 * @param y
+	 * @param x0
+	 * @param x1
 	 */
-	public Point2D findCentroid()
+	private void scanSpan(int y, double x0, double x1)
 	{
-		iPoint p = findCentroid_i();
-		if(p == null)
-			return null;
-		else
-			return p.realPoint();
+		int i0 = Math.max(0, (int)Math.ceil(x0));
+		int i1 = Math.min(rec.size.x, (int)Math.ceil(x1)) - 1;
+		if(i0 <= i1)
+			bits.setSpan(y, i0, i1, true);
 	}
 	
 	/**
 	 * Generate the entire image from a CSG experession recursively
-	 * using a quad tree.
+	 * using a quad tree.  The expression at each level is a mask of the
+	 * compiled CSG, pruned to the quad, in masks[level].
 	 * @param ipsw
 	 * @param ipne
 	 * @param csg
+	 * @param masks
+	 * @param level
+	 * @param n the mask's count
 	 */
-	private void generateQuadTree(iPoint ipsw, iPoint ipne, CSG2D csgExpression)
+	private void generateQuadTree(iPoint ipsw, iPoint ipne, CompiledCSG2D csg, int[][] masks, int level, int n)
 	{
-		Point2D inc = new Point2D(pixSize*0.5, pixSize*0.5);
+		double inc = pixelSize()*0.5;
 		Point2D p0 = ipsw.realPoint();
+		int[] mask = masks[level];
 		
 		// Single pixel?
 		
 		if(ipsw.coincidesWith(ipne))
 		{
-			set(ipsw, csgExpression.value(p0) <= 0);
+			set(ipsw, csg.value(mask, n, p0.x(), p0.y()) <= 0);
 			return;
 		}
 		
 		// Uniform rectangle?
 		
 		Point2D p1 = ipne.realPoint();
-		Interval i = csgExpression.value(new Rectangle(Point2D.sub(p0, inc), Point2D.add(p1, inc)));
-		if(!i.zero())
+		int i = csg.classify(mask, n, p0.x() - inc, p0.y() - inc, p1.x() + inc, p1.y() + inc);
+		if(i != CompiledCSG2D.MIXED)
 		{
-			homogeneous(ipsw, ipne, i.high() <= 0);
+			homogeneous(ipsw, ipne, i == CompiledCSG2D.INSIDE);
 			return;
 		}
 		
 		// Non-uniform, but simple, rectangle
 		
-		if(csgExpression.complexity() <= simpleEnough)
+		if(CompiledCSG2D.complexity(n) <= simpleEnough && (ipne.x - ipsw.x + 1)*(ipne.y - ipsw.y + 1) <= smallEnough)
 		{
-			heterogeneous(ipsw, ipne, csgExpression);
+			heterogeneous(ipsw, ipne, csg, mask, n);
 			return;
 		}
 	
@@ -1352,7 +2226,6 @@ public class BooleanGrid
 		int ym = y0 + yd/2;
 		if(yd == 2)
 			ym--;
-		iPoint sw, ne;
 		
 		// Special case - a single vertical line of pixels
 		
@@ -1360,14 +2233,8 @@ public class BooleanGrid
 		{
 			if(yd <= 1)
 				Debug.e("BooleanGrid.generateQuadTree: attempt to divide single pixel!");
-			sw = new iPoint(x0, y0);
-			ne = new iPoint(x0, ym);
-			generateQuadTree(sw, ne, csgExpression.prune(new Rectangle(Point2D.sub(sw.realPoint(), inc), Point2D.add(ne.realPoint(), inc))));
-			
-			sw = new iPoint(x0, ym+1);
-			ne = new iPoint(x0, y1);
-			generateQuadTree(sw, ne, csgExpression.prune(new Rectangle(Point2D.sub(sw.realPoint(), inc), Point2D.add(ne.realPoint(), inc))));
-			
+			quad(new iPoint(x0, y0), new iPoint(x0, ym), csg, masks, level, n);
+			quad(new iPoint(x0, ym+1), new iPoint(x0, y1), csg, masks, level, n);
 			return;
 		}
 		
@@ -1375,35 +2242,35 @@ public class BooleanGrid
 		
 		if(yd <= 1)
 		{
-			sw = new iPoint(x0, y0);
-			ne = new iPoint(xm, y0);
-			generateQuadTree(sw, ne, csgExpression.prune(new Rectangle(Point2D.sub(sw.realPoint(), inc), Point2D.add(ne.realPoint(), inc))));
-			
-			sw = new iPoint(xm+1, y0);
-			ne = new iPoint(x1, y0);
-			generateQuadTree(sw, ne, csgExpression.prune(new Rectangle(Point2D.sub(sw.realPoint(), inc), Point2D.add(ne.realPoint(), inc))));
-			
+			quad(new iPoint(x0, y0), new iPoint(xm, y0), csg, masks, level, n);
+			quad(new iPoint(xm+1, y0), new iPoint(x1, y0), csg, masks, level, n);
 			return;
 		}
 		
 		// General case - 4 quads.
 		
-		sw = new iPoint(x0, y0);
-		ne = new iPoint(xm, ym);
-		generateQuadTree(sw, ne, csgExpression.prune(new Rectangle(Point2D.sub(sw.realPoint(), inc), Point2D.add(ne.realPoint(), inc))));
-		
-		sw = new iPoint(x0, ym + 1);
-		ne = new iPoint(xm, y1);
-		generateQuadTree(sw, ne, csgExpression.prune(new Rectangle(Point2D.sub(sw.realPoint(), inc), Point2D.add(ne.realPoint(), inc))));
-		
-		sw = new iPoint(xm+1, ym + 1);
-		ne = new iPoint(x1, y1);
-		generateQuadTree(sw, ne, csgExpression.prune(new Rectangle(Point2D.sub(sw.realPoint(), inc), Point2D.add(ne.realPoint(), inc))));
-		
-		sw = new iPoint(xm+1, y0);
-		ne = new iPoint(x1, ym);
-		generateQuadTree(sw, ne, csgExpression.prune(new Rectangle(Point2D.sub(sw.realPoint(), inc), Point2D.add(ne.realPoint(), inc))));		
-
+		quad(new iPoint(x0, y0), new iPoint(xm, ym), csg, masks, level, n);
+		quad(new iPoint(x0, ym + 1), new iPoint(xm, y1), csg, masks, level, n);
+		quad(new iPoint(xm+1, ym + 1), new iPoint(x1, y1), csg, masks, level, n);
+		quad(new iPoint(xm+1, y0), new iPoint(x1, ym), csg, masks, level, n);
+	}
+	
+	/**
+	 * Prune the mask at one level of the quad tree to a quad and generate that
+	 * @param sw
+	 * @param ne
+	 * @param csg
+	 * @param masks
+	 * @param level
+	 * @param n
+	 */
+	private void quad(iPoint sw, iPoint ne, CompiledCSG2D csg, int[][] masks, int level, int n)
+	{
+		double inc = pixelSize()*0.5;
+		Point2D p0 = sw.realPoint();
+		Point2D p1 = ne.realPoint();
+		int m = csg.prune(masks[level], n, p0.x() - inc, p0.y() - inc, p1.x() + inc, p1.y() + inc, masks[level + 1]);
+		generateQuadTree(sw, ne, csg, masks, level + 1, m);
 	}
 
 	
@@ -1496,7 +2363,7 @@ public class BooleanGrid
 	 * TODO: also need to do the same for cracks?
 	 *
 	 */
-	private void deWhisker()
+	void deWhisker()
 	{
 //		push("deWhisker... ");
 //		
@@ -1740,73 +2607,243 @@ public class BooleanGrid
 //	}
 	
 	/**
-	 * Recursive flood-fill of solid pixels from p to return a BooleanGrid of 
-	 * just the shape connected to that pixel.
-	 * TODO - replace with more efficient scan-line algorithm
-	 * @param pp
+	 * Find the root of run r's set, halving the path on the way
+	 * @param parent
+	 * @param r
 	 * @return
 	 */
-	public BooleanGrid floodCopy(Point2D pp)
+	private static int root(int[] parent, int r)
 	{
-		iPoint p = new iPoint(pp);
-		if(!this.inside(p) || !this.get(p))
-			return nothingThere;
-		BooleanGrid result = new BooleanGrid();
-		result.att = this.att;
-		result.visited = null;
-		result.rec= new iRectangle(this.rec);
-		result.bits = new BitSet(result.rec.size.x*result.rec.size.y);
+		while(parent[r] != r)
+		{
+			parent[r] = parent[parent[r]];
+			r = parent[r];
+		}
+		return r;
+	}
+	
+	/**
+	 * Split the pattern into its 4-connected pieces (the same pieces that floodCopy() gives)
+	 * in a single pass.  The rows are cut into runs of solid pixels, each run is joined to the runs
+	 * it touches in the row below with union-find, and the runs are then shared out to the islands.
+	 * The islands are in the order of their first pixels, row by row.
+	 * @return
+	 */
+	public List<Island> islands()
+	{
+		List<Island> result = new ArrayList<>();
+		
+		// Cut the rows into runs: run i is pixels runX0[i] to runX1[i] of row runY[i]
+		
+		int[] runY = new int[64];
+		int[] runX0 = new int[64];
+		int[] runX1 = new int[64];
+		int[] parent = new int[64];
+		int runs = 0;
+		int belowStart = 0;
+		int belowEnd = 0;
+		for(int y = 0; y < rec.size.y; y++)
+		{
+			int rowStart = runs;
+			int below = belowStart;
+			for(int x = bits.nextSetBit(0, y); x >= 0; )
+			{
+				int xEnd = bits.nextClearBit(x, y) - 1;
+				if(runs >= runY.length)
+				{
+					runY = Arrays.copyOf(runY, 2*runs);
+					runX0 = Arrays.copyOf(runX0, 2*runs);
+					runX1 = Arrays.copyOf(runX1, 2*runs);
+					parent = Arrays.copyOf(parent, 2*runs);
+				}
+				runY[runs] = y;
+				runX0[runs] = x;
+				runX1[runs] = xEnd;
+				parent[runs] = runs;
+				
+				// Join up with the runs below that share a column; the earliest run is the root
+				
+				while(below < belowEnd && runX1[below] < x)
+					below++;
+				for(int b = below; b < belowEnd && runX0[b] <= xEnd; b++)
+				{
+					int r0 = root(parent, b);
+					int r1 = root(parent, runs);
+					if(r0 < r1)
+						parent[r1] = r0;
+					else
+						parent[r0] = r1;
+				}
+				runs++;
+				x = bits.nextSetBit(xEnd + 1, y);
+			}
+			belowStart = rowStart;
+			belowEnd = runs;
+		}
+		
+		// Number the islands and add up their sizes, centres and extents
+		
+		int[] island = new int[runs];
+		int islands = 0;
+		for(int r = 0; r < runs; r++)
+		{
+			int rt = root(parent, r);
+			island[r] = rt == r ? islands++ : island[rt];
+		}
+		long[] count = new long[islands];
+		long[] sx = new long[islands];
+		long[] sy = new long[islands];
+		int[] xMin = new int[islands];
+		int[] xMax = new int[islands];
+		int[] yMin = new int[islands];
+		int[] yMax = new int[islands];
+		Arrays.fill(xMin, Integer.MAX_VALUE);
+		Arrays.fill(xMax, -1);
+		Arrays.fill(yMin, Integer.MAX_VALUE);
+		Arrays.fill(yMax, -1);
+		for(int r = 0; r < runs; r++)
+		{
+			int i = island[r];
+			long n = runX1[r] - runX0[r] + 1;
+			count[i] += n;
+			sx[i] += n*(runX0[r] + runX1[r])/2;
+			sy[i] += n*runY[r];
+			xMin[i] = Math.min(xMin[i], runX0[r]);
+			xMax[i] = Math.max(xMax[i], runX1[r]);
+			yMin[i] = Math.min(yMin[i], runY[r]);
+			yMax[i] = Math.max(yMax[i], runY[r]);
+		}
 		
-		// We implement our own floodfill stack, rather than using recursion to
-		// avoid having to specify a big Java stack just for this one function.
+		// Copy each island's runs into its own grid, keeping the west edge on a word boundary of this one
 		
-		int top = 4000000;
-		iPoint[] stack = new iPoint[top];
+		BooleanGrid[] grids = new BooleanGrid[islands];
+		for(int i = 0; i < islands; i++)
+		{
+			int x0 = xMin[i] & ~63;
+			iRectangle r = new iRectangle(rec);
+			r.swCorner = new iPoint(rec.swCorner.x + x0, rec.swCorner.y + yMin[i]);
+			r.size = new iPoint(xMax[i] - x0 + 1, yMax[i] - yMin[i] + 1);
+			grids[i] = new BooleanGrid(att, r);
+			grids[i].isThin = isThin;
+			grids[i].coarse = coarse;
+		}
+		for(int r = 0; r < runs; r++)
+		{
+			int i = island[r];
+			int x0 = xMin[i] & ~63;
+			grids[i].bits.setSpan(runY[r] - yMin[i], runX0[r] - x0, runX1[r] - x0, true);
+		}
+		for(int i = 0; i < islands; i++)
+		{
+			grids[i].bits.compact();
+			Point2D centroid = new iPoint((int)(sx[i]/count[i]), (int)(sy[i]/count[i])).realPoint();
+			Rectangle box = new Rectangle(new iPoint(xMin[i], yMin[i]).realPoint(), new iPoint(xMax[i], yMax[i]).realPoint());
+			result.add(new Island(grids[i], centroid, count[i], box));
+		}
+		return result;
+	}
+	
+	/**
+	 * Scan-line flood fill: copy into result the 4-connected solid pixels of this grid that
+	 * are joined to (x, y), which must be solid.  Each maximal run of solid pixels in a row is found
+	 * and filled with word operations, and is pushed on the stack just once, as its row and its
+	 * two ends.  So the stack holds at most one entry per run, and it grows as needed rather than
+	 * overflowing on a big region.
+	 * @param x
+	 * @param y
+	 * @param result
+	 */
+	private void fillRegion(int x, int y, TiledRaster result)
+	{
+		int[] stack = new int[3*64];
 		int sp = 0;
-		stack[sp] = p;
-		iPoint q;
+		int x0 = bits.previousClearBit(x, y) + 1;
+		int x1 = bits.nextClearBit(x, y) - 1;
+		result.setSpan(y, x0, x1, true);
+		stack[sp++] = y;
+		stack[sp++] = x0;
+		stack[sp++] = x1;
 		
-		while(sp > -1)
+		while(sp > 0)
 		{
-			p = stack[sp];
-			sp--;
-
-			result.set(p, true);
+			x1 = stack[--sp];
+			x0 = stack[--sp];
+			y = stack[--sp];
 			
-			for(int i = 1; i < 8; i += 2)
+			// Look at the rows above and below for runs touching this one that we haven't yet filled.
+			// Runs are always filled whole, so if any pixel of one is set in result, all of it is.
+			
+			for(int yy = y - 1; yy <= y + 1; yy += 2)
 			{
-				q = p.add(neighbour[i]);
-				if(this.get(q) && !result.get(q))
+				if(yy < 0 || yy >= rec.size.y)
+					continue;
+				for(int xx = bits.nextSetBit(x0, yy); xx >= 0 && xx <= x1; )
 				{
-					sp++;
-					if(sp >= top)
+					int end = bits.nextClearBit(xx, yy) - 1;
+					if(!result.get(xx, yy))
 					{
-						Debug.e("BooleanGrid.floodCopy(): stack overflow!");
-						return result;
+						int start = bits.previousClearBit(xx, yy) + 1;
+						result.setSpan(yy, start, end, true);
+						if(sp + 3 > stack.length)
+							stack = Arrays.copyOf(stack, 2*stack.length);
+						stack[sp++] = yy;
+						stack[sp++] = start;
+						stack[sp++] = end;
 					}
-					stack[sp] = q;
+					xx = bits.nextSetBit(end + 1, yy);
 				}
 			}
 		}
-		
+	}
+	
+	/**
+	 * Flood-fill of solid pixels from p to return a BooleanGrid of 
+	 * just the shape connected to that pixel.  The result has the same
+	 * rectangle as this grid.
+	 * @param pp
+	 * @return
+	 */
+	public BooleanGrid floodCopy(Point2D pp)
+	{
+		iPoint p = new iPoint(pp);
+		if(!this.inside(p) || !this.get(p))
+			return nothingThere;
+		BooleanGrid result = new BooleanGrid(att, rec);
+		result.coarse = coarse;
+		fillRegion(p.x, p.y, result.bits);
+		result.bits.compact();
 		return result;
 	}
 	
-
+	/**
+	 * The region of the pattern that contains p (that is, the shape connected
+	 * to that pixel), in a grid cropped to just hold it.  If p is not in
+	 * the solid the result is empty.
+	 * @param p
+	 * @return
+	 */
+	public BooleanGrid region(Point2D p)
+	{
+		BooleanGrid result = floodCopy(p);
+		if(result != nothingThere)
+			result.tighten();
+		return result;
+	}
 	
 	/**
-	 * Calculate the 4-bit marching squares value for a point
-	 * @param ip
+	 * Calculate the 4-bit marching squares value for the cell at (x, y)
+	 * @param x
+	 * @param y
 	 * @return
 	 */
-	private int marchPattern(iPoint ip)
+	private int marchPattern(int x, int y)
 	{
 		int result = 0;
 		
-		if(get(ip)) result |= 1;
-		if(get(ip.add(neighbour[3]))) result |= 2;
-		if(get(ip.add(neighbour[1]))) result |= 4;
-		if(get(ip.add(neighbour[2]))) result |= 8;
+		if(get(x, y)) result |= 1;
+		if(get(x + 1, y)) result |= 2;
+		if(get(x, y - 1)) result |= 4;
+		if(get(x + 1, y - 1)) result |= 8;
 		return result;
 	}
 	
@@ -1843,7 +2880,7 @@ public class BooleanGrid
 	public PolygonList allPerimiters(Attributes a)
 	{
 		PolygonList r = iAllPerimiters().realPolygons(a);
-		r = r.simplify(realResolution);	
+		r = r.simplify(realResolution*coarse);	
 		return r;
 	}
 	
@@ -2118,9 +3155,9 @@ public class BooleanGrid
 	 * @param previous
 	 * @return
 	 */
-	private int step(iPoint here, int previous)
+	private int step(int x, int y, int previous)
 	{
-		int m = marchPattern(here);
+		int m = marchPattern(x, y);
 		int result = march[m];
 		if(m == 6)
 		{
@@ -2140,114 +3177,237 @@ public class BooleanGrid
 	}
 	
 	/**
-	 * Run marching squares round the polygon starting with the 2x2 march pattern at start
-	 * @param start
+	 * Run marching squares round the polygon starting with the 2x2 march pattern at (x0, y0)
+	 * @param x0
+	 * @param y0
 	 * @return
 	 */
-	private iPolygon marchRound(iPoint start)
+	iPolygon marchRound(int x0, int y0)
 	{
 		iPolygon result = new iPolygon(true);
 		
-		iPoint here = new iPoint(start);
+		if(visited == null)
+			visited = new TiledRaster(rec.size.x, rec.size.y);
+		int x = x0;
+		int y = y0;
 		int next;
 		int previous = 3;
 		
 		do
 		{
-			next = step(here, previous);
-			result.add(here);
-			vSet(here, true);
-			here = here.add(neighbour[next]);
+			next = step(x, y, previous);
+			result.add(x, y);
+			if(inside(x, y))
+				visited.set(x, y, true);
+			else
+				Debug.e("BoolenGrid.marchRound(): attempt to visit pixel beyond boundary!");
+			x += neighbour[next].x;
+			y += neighbour[next].y;
 			previous = next;
-		} while(!here.coincidesWith(start));
+		} while(x != x0 || y != y0);
 		
 		return result;
 	}
 	
 	/**
-	 * Run marching squares round all polygons in the pattern, returning a list of them all
+	 * Has pixel (x, y) been visited?
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	boolean vGet(int x, int y)
+	{
+		return visited != null && inside(x, y) && visited.get(x, y);
+	}
+	
+	/**
+	 * Run marching squares round all polygons in the pattern, returning a list of them all.
+	 * 
+	 * The cells (x, y) are the 2x2 blocks with corners (x, y) and (x + 1, y - 1).  Each
+	 * pair of rows is scanned 64 cells at a time for cells that are neither all solid nor
+	 * all air, so the interiors and surroundings of shapes cost a word operation per 64 cells.
 	 * @return
 	 */
-	private iPolygonList marchAll()
+	iPolygonList marchAll()
 	{
 		//if(isThin)
 		//	return marchLines(); // XXXXXXXXXXXXXXXXXXXXXXX
 		iPolygonList result = new iPolygonList();
 		if(isEmpty())
 			return result;
-		iPoint start;
 		iPolygon p;
-		int m;
 		
-		for(int x = 0; x < rec.size.x - 1; x++)
-			for(int y = 0; y < rec.size.y - 1; y++)
+		int cells = rec.size.x - 1;
+		for(int y = 0; y < rec.size.y - 1; y++)
+		{
+			for(int x0 = 0; x0 < cells; x0 += 64)
 			{
-				start = new iPoint(x, y);
-				m = marchPattern(start);
-				if(m != 0 && m != 15)
+				long here = bits.bitsAt(x0, y);
+				long right = bits.bitsAt(x0 + 1, y);
+				long below = y > 0 ? bits.bitsAt(x0, y - 1) : 0;
+				long belowRight = y > 0 ? bits.bitsAt(x0 + 1, y - 1) : 0;
+				long mixed = (here ^ right) | (here ^ below) | (here ^ belowRight);
+				if(cells - x0 < 64)
+					mixed &= (1L << (cells - x0)) - 1;
+				while(mixed != 0)
 				{
-					if( !( vGet(start) || vGet(start.add(neighbour[1])) || vGet(start.add(neighbour[2])) || vGet(start.add(neighbour[3])) ) )
+					int x = x0 + Long.numberOfTrailingZeros(mixed);
+					mixed &= mixed - 1;
+					if( !( vGet(x, y) || vGet(x, y - 1) || vGet(x + 1, y - 1) || vGet(x + 1, y) ) )
 					{
-						p = marchRound(start);
+						p = marchRound(x, y);
 						if(p.size() > 2)
 							result.add(p);
 					}
 				}
 			}
+		}
 		resetVisited();	
 		return result;
 	}
 	
 	/**
-	 * Generate a sequence of point-pairs where the line h enters
-	 * and leaves solid areas.  The point pairs are stored in a 
+	 * Generate sequences of point-pairs where each of the lines in hatches enters
+	 * and leaves solid areas.  The point pairs for each line are stored in a 
 	 * polygon, which should consequently have an even number of points
-	 * in it on return.
-	 * @param h
+	 * in it on return.  The points are the first and last solid pixels in each run
+	 * that a DDA along the line passes through.
+	 * 
+	 * Rather than walking the DDA for every line, this finds the boundary pixels (those
+	 * whose 3x3 neighbourhood is neither all solid nor all air) a word at a time, skipping
+	 * uniform tiles, and sends each to the line through it.  Anywhere else along a line a pixel is the
+	 * same as its neighbours, so only the boundary pixels on a line can be where it goes
+	 * in or out, and each line costs time in proportion to the boundary it crosses, not
+	 * its length.
+	 * @param hatches
 	 * @return
 	 */
-	private iPolygon hatch(HalfPlane h)
+	iPolygonList hatch(List<HalfPlane> hatches)
 	{
-		iPolygon result = new iPolygon(false);
+		int n = hatches.size();
+		iPolygonList result = new iPolygonList();
+		if(n <= 0)
+			return result;
 		
-		Interval se = box().wipe(h.pLine(), Interval.bigInterval());
+		// Set up the DDA for each line across the box, and the distance of the line from the origin
 		
-		if(se.empty())
-			return result;
+		Rectangle b = box();
+		Point2D normal = hatches.get(0).normal();
+		DDA[] lines = new DDA[n];
+		double[] offsets = new double[n];
+		for(int i = 0; i < n; i++)
+		{
+			HalfPlane h = hatches.get(i);
+			offsets[i] = Point2D.mul(normal, h.pLine().origin());
+			Interval se = b.wipe(h.pLine(), Interval.bigInterval());
+			if(se.empty())
+				continue;
+			iPoint s = new iPoint(h.pLine().point(se.low()));
+			iPoint e = new iPoint(h.pLine().point(se.high()));
+			if(get(s))
+				Debug.e("BooleanGrid.hatch(): start point is in solid!");
+			lines[i] = new DDA(s, e);
+		}
+		double spacing = n > 1 ? offsets[1] - offsets[0] : 1;
+		
+		// A DDA strays up to half a pixel from the line between its ends, and each end
+		// is rounded to a pixel centre, so its pixels may be up to about 1.2 pixels
+		// from the line itself.  Allow a bit more than that, and leave it to stepsTo()
+		// to say which of the lines in reach really go through a pixel.
 		
-		iPoint s = new iPoint(h.pLine().point(se.low()));
-		iPoint e = new iPoint(h.pLine().point(se.high()));
-		if(get(s))
-			Debug.e("BooleanGrid.hatch(): start point is in solid!");
-		DDA dda = new DDA(s, e);
+		double reach = 1.5*pixelSize()/Math.abs(spacing);
 		
-		iPoint n = dda.next();
-		iPoint nOld = n;
-		boolean v;
-		boolean vs = false;
-		while(n != null)
+		// Find the boundary pixels that the lines go through; each entry is (steps along the line)*2 + (1 if solid)
+		
+		long[][] found = new long[n][];
+		int[] foundCount = new int[n];
+		for(int band = 0; band < rec.size.y; band += bits.tileSize())
 		{
-			v = get(n);
-			if(v != vs)
+			for(int w = 0; w < bits.stride(); w++)
 			{
-				if(v)
-					result.add(n);
-				else
-					result.add(nOld);
+				if(bits.quiet(w, band))
+					continue;
+				int x0 = w << 6;
+				for(int y = band; y < Math.min(band + bits.tileSize(), rec.size.y); y++)
+				{
+					long edge = bits.edges(w, y);
+					while(edge != 0)
+					{
+						int x = x0 + Long.numberOfTrailingZeros(edge);
+						edge &= edge - 1;
+						
+						// Which lines are near enough to go through it?
+						
+						double t = (normal.x()*scale(rec.swCorner.x + x) + normal.y()*scale(rec.swCorner.y + y) - offsets[0])/spacing;
+						int first = Math.max(0, (int)Math.ceil(t - reach));
+						int last = Math.min(n - 1, (int)Math.floor(t + reach));
+						for(int i = first; i <= last; i++)
+						{
+							if(lines[i] == null)
+								continue;
+							int k = lines[i].stepsTo(x, y);
+							if(k < 0)
+								continue;
+							if(found[i] == null)
+								found[i] = new long[16];
+							else if(foundCount[i] >= found[i].length)
+								found[i] = Arrays.copyOf(found[i], 2*found[i].length);
+							found[i][foundCount[i]++] = 2L*k + (bits.get(x, y) ? 1 : 0);
+						}
+					}
+				}
 			}
-			vs = v;
-			nOld = n;
-			n = dda.next();
 		}
 		
-		if(get(e))
+		// Run along the boundary pixels on each line in order looking for changes
+		
+		for(int i = 0; i < n; i++)
 		{
-			Debug.e("BooleanGrid.hatch(): end point is in solid!");
-			result.add(e);
+			iPolygon ip = new iPolygon(false);
+			result.add(ip);
+			DDA line = lines[i];
+			if(line == null)
+				continue;
+			long[] f = found[i];
+			int count = foundCount[i];
+			if(count > 0)
+				Arrays.sort(f, 0, count);
+			for(int j = 0; j < count; j++)
+			{
+				int k = (int)(f[j] >> 1);
+				boolean v = (f[j] & 1) != 0;
+				
+				// Pixels off the boundary match their neighbours on the line, unless they are beyond the grid
+				
+				boolean before;
+				if(k == 0)
+					before = false;
+				else if(j > 0 && (f[j - 1] >> 1) == k - 1)
+					before = (f[j - 1] & 1) != 0;
+				else
+					before = v && inside(line.point(k - 1));
+				if(before != v)
+				{
+					if(v)
+						ip.add(line.point(k));
+					else
+						ip.add(line.point(k - 1));
+				}
+				
+				if(v && k < line.steps() && !(j + 1 < count && (f[j + 1] >> 1) == k + 1) && !inside(line.point(k + 1)))
+					ip.add(line.point(k));
+			}
+			
+			iPoint e = line.point(line.steps());
+			if(get(e))
+			{
+				Debug.e("BooleanGrid.hatch(): end point is in solid!");
+				ip.add(e);
+			}
+			
+			if(ip.size()%2 != 0)
+				Debug.e("BooleanGrid.hatch(): odd number of crossings: " + ip.size());
 		}
-		
-		if(result.size()%2 != 0)
-			Debug.e("BooleanGrid.hatch(): odd number of crossings: " + result.size());
 		return result;
 	}
 	
@@ -2597,21 +3757,26 @@ public class BooleanGrid
 		//	HalfPlane(org, Point2D.add(org, hp.pLine().direction()));
 		
 
-		List<HalfPlane> hatches = new ArrayList<>();
-		iPolygonList iHatches = new iPolygonList();
-		
+		List<HalfPlane> allHatches = new ArrayList<>();
 		double g = 0;		
 		while (g < d)
 		{
-			iPolygon ip = hatch(hatcher);
-			
+			allHatches.add(hatcher);
+			hatcher = hatcher.offset(gap);
+			g += gap;
+		}
+		
+		iPolygonList allIHatches = hatch(allHatches);
+		List<HalfPlane> hatches = new ArrayList<>();
+		iPolygonList iHatches = new iPolygonList();
+		for(int i = 0; i < allIHatches.size(); i++)
+		{
+			iPolygon ip = allIHatches.polygon(i);
 			if(ip.size() > 0)
 			{
-				hatches.add(hatcher);
+				hatches.add(allHatches.get(i));
 				iHatches.add(ip);
 			}
-			hatcher = hatcher.offset(gap);
-			g += gap;
 		}
 		
 		// Now we have the individual hatch lines, join them up
@@ -2645,7 +3810,7 @@ public class BooleanGrid
 		
 		resetVisited();
 		
-		PolygonList result = snakes.realPolygons(a).simplify(realResolution);
+		PolygonList result = snakes.realPolygons(a).simplify(realResolution*coarse);
 		//result = result.nearEnds(startNearHere);
 		
 		//pop();
@@ -2675,41 +3840,40 @@ public class BooleanGrid
 	/**
 	 * Offset the pattern by a given real-world distance.  If the distance is
 	 * negative the pattern is shrunk; if it is positive it is grown;
+	 * 
+	 * Each offset is a threshold of this grid's distance field, which is only computed
+	 * once however many offsets are taken (shells, infill insets, support gaps...).
 	 * @param dist
 	 * @return
 	 */
 	public BooleanGrid offset(double dist)
 	{
-		int r = iScale(dist);
+		int r = iLength(dist);
 		
-		BooleanGrid result = new BooleanGrid(this, rec.offset(r));
 		if(r == 0)
-			return result;
-
-		iPolygonList polygons = iAllPerimiters().translate(rec.swCorner.sub(result.rec.swCorner));
-		if(polygons.size() <= 0)
-		{
-			iRectangle newRec = new iRectangle(result.rec);
-			newRec.size.x = 1;
-			newRec.size.y = 1;
-			return new BooleanGrid(CSG2D.nothing(), newRec.realRectangle(), att);
-		}
-
-		for(int p = 0; p < polygons.size(); p++)
-		{
-			iPolygon ip = polygons.polygon(p);
-			for(int e = 0; e < ip.size(); e++)
-			{
-				iPoint p0 = ip.point(e);
-				iPoint p1 = ip.point((e+1)%ip.size());
-				result.rectangle(p0, p1, Math.abs(r), r > 0);
-				result.disc(p1, Math.abs(r), r > 0);
-			}
-		}
+			return new BooleanGrid(this);
+		
+		if(isEmpty())
+			return nothingThere;
+		
+		BooleanGrid result = new BooleanGrid(att, rec.offset(r));
+		result.isThin = isThin;
+		result.coarse = coarse;
+		
+		// Result pixel (x, y) is pixel (x - r, y - r) here.  Growing keeps everything
+		// within r of the solid; shrinking keeps everything more than -r from the air.
+		// r*r + |r| is (|r| + 1/2)^2 rounded down, so distances are compared to the nearest pixel.
+		
+		long r2 = (long)r*r + Math.abs(r);
+		if(r > 0)
+			distanceField(true, r, r + 1).threshold(result.bits, -r, -r, r2, false);
+		else
+			distanceField(false, 0, 1 - r).threshold(result.bits, -r, -r, r2, true);
+		
 		if(result.isEmpty())
 			return nothingThere;
-			result.deWhisker();
-		return result;
+		result.deWhisker();
+		return normalise(result);
 	}
 	
 	//*********************************************************************************************************
@@ -2726,7 +3890,7 @@ public class BooleanGrid
 	public BooleanGrid complement()
 	{
 		BooleanGrid result = new BooleanGrid(this);
-		result.bits.flip(0, result.rec.size.x*result.rec.size.y - 1);
+		result.bits.flip();
 		//result.deWhisker();
 		return result;
 	}
@@ -2734,6 +3898,8 @@ public class BooleanGrid
 
 	/**
 	 * Compute the union of two bit patterns, forcing attribute a on the result.
+	 * If the grids' pixels are different sizes the result has d's, and e is
+	 * resampled so that all of it is included.
 	 * @param d
 	 * @param e
 	 * @param a
@@ -2743,6 +3909,9 @@ public class BooleanGrid
 	{	
 		BooleanGrid result;
 		
+		if(d != nothingThere)
+			e = e.resample(d.coarse, true);
+		
 		if(d == nothingThere)
 		{
 			if(e == nothingThere)
@@ -2771,12 +3940,11 @@ public class BooleanGrid
 		{
 			iRectangle u = d.rec.union(e.rec);
 			result = new BooleanGrid(d, u);
-			BooleanGrid temp = new BooleanGrid(e, u);
-			result.bits.or(temp.bits);
+			result.combineWindow(TiledRaster.opOr, e);
 		}
 		//result.deWhisker();
 		result.forceAttribute(a);
-		return result;
+		return normalise(result);
 	}
 	
 	/**
@@ -2788,7 +3956,7 @@ public class BooleanGrid
 	public static BooleanGrid union(BooleanGrid d, BooleanGrid e)
 	{
 		BooleanGrid result = union(d, e, d.att);
-		if(result != nothingThere && !d.att.getMaterial().contentEquals(e.att.getMaterial()))
+		if(result != nothingThere && d.att.getMaterialId() != e.att.getMaterialId())
 			Debug.e("BooleanGrid.union(): attempt to union two bitmaps of different materials: " +
 					d.attribute().getMaterial() + " and " + e.attribute().getMaterial()	);
 		return result;
@@ -2797,6 +3965,8 @@ public class BooleanGrid
 	
 	/**
 	 * Compute the intersection of two  bit patterns
+	 * If the grids' pixels are different sizes the result has d's, and e is
+	 * resampled so that nothing outside it is included.
 	 * @param d
 	 * @param e
 	 * @return
@@ -2807,6 +3977,9 @@ public class BooleanGrid
 		
 		if(d == nothingThere || e == nothingThere)
 			return nothingThere;
+		e = e.resample(d.coarse, false);
+		if(e == nothingThere)
+			return nothingThere;
 
 		if(d.rec.coincidesWith(e.rec))
 		{
@@ -2819,14 +3992,13 @@ public class BooleanGrid
 			if(u.isEmpty())
 				return nothingThere;
 			result = new BooleanGrid(d, u);
-			BooleanGrid temp = new BooleanGrid(e, u);
-			result.bits.and(temp.bits);
+			result.combineWindow(TiledRaster.opAnd, e);
 		}
 		if(result.isEmpty())
 			return nothingThere;
 		result.deWhisker();
 		result.forceAttribute(a);
-		return result;
+		return normalise(result);
 	}
 
 	/**
@@ -2838,7 +4010,7 @@ public class BooleanGrid
 	public static BooleanGrid intersection(BooleanGrid d, BooleanGrid e)
 	{
 		BooleanGrid result = intersection(d, e, d.att);
-		if(result != nothingThere && !d.att.getMaterial().contentEquals(e.att.getMaterial()))
+		if(result != nothingThere && d.att.getMaterialId() != e.att.getMaterialId())
 			Debug.e("BooleanGrid.intersection(): attempt to intersect two bitmaps of different materials: " +
 					d.attribute().getMaterial() + " and " + e.attribute().getMaterial()	);
 		return result;
@@ -2846,8 +4018,9 @@ public class BooleanGrid
 	
 	/**
 	 * Grid d - grid e, forcing attribute a on the result
-	 * d's rectangle is presumed to contain the result.
-	 * TODO: write a function to compute the rectangle from the bitmap
+	 * d's rectangle is presumed to contain the result (see crop() for a tighter one).
+	 * If the grids' pixels are different sizes the result has d's, and e is
+	 * resampled so that all of it is taken away.
 	 * @param d
 	 * @param e
 	 * @param a
@@ -2860,6 +4033,8 @@ public class BooleanGrid
 		
 		BooleanGrid result;
 		
+		e = e.resample(d.coarse, true);
+		
 		if(e == nothingThere)
 		{
 			if(d.att == a)
@@ -2870,22 +4045,19 @@ public class BooleanGrid
 		}
 		
 		result = new BooleanGrid(d);
-		BooleanGrid temp;
 		if(d.rec.coincidesWith(e.rec))
-			temp = e;
+			result.bits.andNot(e.bits);
 		else
-			temp = new BooleanGrid(e, result.rec);
-		result.bits.andNot(temp.bits);
+			result.combineWindow(TiledRaster.opAndNot, e);
 		if(result.isEmpty())
 			return nothingThere;
 		result.deWhisker();
 		result.forceAttribute(a);
-		return result;
+		return normalise(result);
 	}
 	/**
 	 * Grid d - grid e
-	 * d's rectangle is presumed to contain the result.
-	 * TODO: write a function to compute the rectangle from the bitmap
+	 * d's rectangle is presumed to contain the result (see crop() for a tighter one).
 	 * @param d
 	 * @param e
 	 * @return
@@ -2893,9 +4065,200 @@ public class BooleanGrid
 	public static BooleanGrid difference(BooleanGrid d, BooleanGrid e)
 	{
 		BooleanGrid result = difference(d, e, d.att);
-		if(result != nothingThere && !d.att.getMaterial().contentEquals(e.att.getMaterial()))
+		if(result != nothingThere && d.att.getMaterialId() != e.att.getMaterialId())
 			Debug.e("BooleanGrid.difference(): attempt to subtract two bitmaps of different materials: " +
 					d.attribute().getMaterial() + " and " + e.attribute().getMaterial()	);
 		return result;
 	}
+	
+	/**
+	 * Are the pixels of all the (non-empty) grids the same size?
+	 * @param grids
+	 * @return
+	 */
+	static boolean sameResolution(List<BooleanGrid> grids)
+	{
+		int level = 0;
+		for(BooleanGrid g : grids)
+		{
+			if(g == nothingThere)
+				continue;
+			if(level != 0 && g.coarse != level)
+				return false;
+			level = g.coarse;
+		}
+		return true;
+	}
+	
+	/**
+	 * Work out a whole boolean expression over some grids in one pass, making no intermediate grids.
+	 * The expression is in postfix form: an entry k >= 0 pushes leaves.get(k), and an entry -(op + 1)
+	 * pops two grids and pushes the result of combining them with the TiledRaster operation op (opOr,
+	 * opAnd or opAndNot, for union(), intersection() and difference()).  The result has the rectangle
+	 * that those functions would have given it, and each of its words is worked out straight from
+	 * the words of the leaves.  The leaves' pixels must all be the same size (see sameResolution()).
+	 * @param leaves
+	 * @param program
+	 * @param length
+	 * @param a
+	 * @return
+	 */
+	static BooleanGrid evaluate(List<BooleanGrid> leaves, int[] program, int length, Attributes a)
+	{
+		// Find the rectangle first (null for empty)
+		
+		iRectangle[] recs = new iRectangle[length];
+		int sp = 0;
+		for(int i = 0; i < length; i++)
+		{
+			int k = program[i];
+			if(k >= 0)
+			{
+				BooleanGrid g = leaves.get(k);
+				recs[sp++] = g == nothingThere ? null : g.rec;
+				continue;
+			}
+			iRectangle e = recs[--sp];
+			iRectangle d = recs[--sp];
+			switch(-k - 1)
+			{
+			case TiledRaster.opOr:
+				if(d == null)
+					d = e;
+				else if(e != null)
+					d = d.union(e);
+				break;
+				
+			case TiledRaster.opAnd:
+				if(d != null)
+					d = e == null ? null : d.intersection(e);
+				if(d != null && (d.size.x <= 0 || d.size.y <= 0))
+					d = null;
+				break;
+				
+			default:  // A difference keeps the rectangle of the grid subtracted from
+				break;
+			}
+			recs[sp++] = d;
+		}
+		iRectangle r = recs[0];
+		if(r == null)
+			return nothingThere;
+		
+		// Then run the expression over the result a tile at a time.  If what the leaves have
+		// under a tile is all air or all solid the tile can be done in one go; otherwise it is done
+		// a word at a time.
+		
+		BooleanGrid result = new BooleanGrid(a, r);
+		for(BooleanGrid g : leaves)
+			if(g != nothingThere)
+			{
+				result.coarse = g.coarse;
+				break;
+			}
+		int n = leaves.size();
+		TiledRaster[] src = new TiledRaster[n];
+		int[] dx = new int[n];
+		int[] dy = new int[n];
+		for(int k = 0; k < n; k++)
+		{
+			BooleanGrid g = leaves.get(k);
+			if(g == nothingThere)
+				continue;
+			src[k] = g.bits;
+			dx[k] = r.swCorner.x - g.rec.swCorner.x;
+			dy[k] = r.swCorner.y - g.rec.swCorner.y;
+		}
+		int[] state = new int[length];
+		long[] stack = new long[length];
+		int tile = result.bits.tileSize();
+		int stride = result.bits.stride();
+		for(int ty = 0; ty < r.size.y; ty += tile)
+		{
+			int yEnd = Math.min(ty + tile, r.size.y);
+			for(int w = 0; w < stride; w++)
+			{
+				int x = w << 6;
+				
+				// The tile's state: 0 for air, 1 for solid, 2 for mixed
+				
+				sp = 0;
+				for(int i = 0; i < length; i++)
+				{
+					int k = program[i];
+					if(k >= 0)
+					{
+						state[sp++] = src[k] == null ? 0 : src[k].window(x + dx[k], ty + dy[k]);
+						continue;
+					}
+					int e = state[--sp];
+					int d = state[sp - 1];
+					switch(-k - 1)
+					{
+					case TiledRaster.opOr:
+						d = d == 1 || e == 1 ? 1 : Math.max(d, e);
+						break;
+						
+					case TiledRaster.opAnd:
+						d = d == 0 || e == 0 ? 0 : Math.max(d, e);
+						break;
+						
+					default:
+						d = d == 0 || e == 1 ? 0 : (e == 0 ? d : 2);
+					}
+					state[sp - 1] = d;
+				}
+				if(state[0] == 0)
+					continue;
+				if(state[0] == 1)
+				{
+					for(int y = ty; y < yEnd; y++)
+						result.bits.setWord(w, y, -1L);
+					continue;
+				}
+				
+				for(int y = ty; y < yEnd; y++)
+				{
+					sp = 0;
+					for(int i = 0; i < length; i++)
+					{
+						int k = program[i];
+						if(k >= 0)
+						{
+							int ly = y + dy[k];
+							if(src[k] == null || ly < 0 || ly >= src[k].height())
+								stack[sp++] = 0;
+							else
+								stack[sp++] = src[k].bitsAt(x + dx[k], ly);
+							continue;
+						}
+						long e = stack[--sp];
+						switch(-k - 1)
+						{
+						case TiledRaster.opOr:
+							stack[sp - 1] |= e;
+							break;
+							
+						case TiledRaster.opAnd:
+							stack[sp - 1] &= e;
+							break;
+							
+						default:
+							stack[sp - 1] &= ~e;
+						}
+					}
+					result.bits.setWord(w, y, stack[0]);
+				}
+			}
+		}
+		result.bits.compact();
+		if(result.isEmpty())
+			return nothingThere;
+		
+		// Unions are left with their whiskers, as in union()
+		
+		if(program[length - 1] != -(TiledRaster.opOr + 1))
+			result.deWhisker();
+		return normalise(result);
+	}
 }
@@ -1,14 +1,22 @@
 package org.reprap.geometry.polygons;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import org.reprap.Attributes;
 import org.reprap.Extruder;
+import org.reprap.Preferences;
 import org.reprap.geometry.LayerRules;
 import org.reprap.utilities.Debug;
 
 /**
  * Class to hold a list of BooleanGrids with associated atributes for each
+ * 
+ * If the LazyBooleanGrids preference is set, unions(), intersections() and differences()
+ * don't work out their results straight away; they build GridExpressions instead.  The list
+ * is evaluated when something looks at its shapes, and each entry then takes a single pass
+ * over the raster words however long the chain of operations that made it.
+ * 
  * @author ensab
  *
  */
@@ -16,7 +24,19 @@ import org.reprap.utilities.Debug;
 public class BooleanGridList 
 {
 
-    private List<BooleanGrid> shapes = null;
+    private List<GridExpression> shapes = null;
+    
+    /**
+     * Are there entries in shapes that haven't been worked out yet?  Lists
+     * may be read by more than one thread, so this is checked again once
+     * evaluate() has the list's lock.
+     */
+    private volatile boolean pending = false;
+    
+    /**
+     * Defer the boolean operations?
+     */
+    private static final boolean lazy = lazy();
 
     public BooleanGridList()
     {
@@ -34,7 +54,44 @@ public class BooleanGridList
             if(a == null) return;
 
             for(int i = 0; i < a.size(); i++)
-                    shapes.add(new BooleanGrid(a.get(i)));
+                    shapes.add(GridExpression.of(new BooleanGrid(a.get(i))));
+    }
+    
+    /**
+     * Read the LazyBooleanGrids preference
+     * @return
+     */
+    private static boolean lazy()
+    {
+    	try
+    	{
+    		return Preferences.loadGlobalBool("LazyBooleanGrids", false);
+    	} catch (IOException e)
+    	{
+    		return false;
+    	}
+    }
+    
+    /**
+     * Work out any deferred entries now, dropping those that turn out to be empty.
+     * This happens anyway when anything looks at the shapes; calling it just
+     * chooses when, and on which thread, the work is done.
+     */
+    public void evaluate()
+    {
+    	if(!pending)
+    		return;
+    	synchronized(this)
+    	{
+    		if(!pending)
+    			return;
+    		List<GridExpression> evaluated = new ArrayList<>();
+    		for(GridExpression x : shapes)
+    			if(x.grid() != BooleanGrid.nullBooleanGrid())
+    				evaluated.add(x);
+    		shapes = evaluated;
+    		pending = false;
+    	}
     }
 
     /**
@@ -44,7 +101,8 @@ public class BooleanGridList
      */
     public BooleanGrid get(int i)
     {
-            return shapes.get(i);
+            evaluate();
+            return shapes.get(i).grid();
     }
 		
     /**
@@ -67,6 +125,7 @@ public class BooleanGridList
      */
     public Attributes attribute(int i)
     {
+            evaluate();
             return shapes.get(i).attribute();
     }
 
@@ -76,6 +135,7 @@ public class BooleanGridList
      */
     public int size()
     {
+            evaluate();
             return shapes.size();
     }
 		
@@ -85,6 +145,7 @@ public class BooleanGridList
      */
     public void remove(int i)
     {
+            evaluate();
             shapes.remove(i);
     }
 
@@ -101,7 +162,22 @@ public class BooleanGridList
             return;
         }
         if(b != BooleanGrid.nullBooleanGrid())
-            shapes.add(b);
+            shapes.add(GridExpression.of(b));
+    }
+    
+    /**
+     * Add a shape that may not have been worked out yet on the end
+     * @param x
+     */
+    private void add(GridExpression x)
+    {
+        if(x.evaluated())
+            add(x.grid());
+        else
+        {
+            shapes.add(x);
+            pending = true;
+        }
     }
 		
     /**
@@ -110,8 +186,48 @@ public class BooleanGridList
      */
     public void add(BooleanGridList aa)
     {
-        for(int i = 0; i < aa.size(); i++)
-            add(aa.get(i));
+        for(GridExpression x : aa.shapes)
+            add(x);
+    }
+    
+    /**
+     * The union of d and e, deferred if we are being lazy
+     * @param d
+     * @param e
+     * @return
+     */
+    private static GridExpression union(GridExpression d, GridExpression e)
+    {
+        if(lazy)
+            return GridExpression.union(d, e);
+        return GridExpression.of(BooleanGrid.union(d.grid(), e.grid()));
+    }
+    
+    /**
+     * The intersection of d and e, deferred if we are being lazy
+     * @param d
+     * @param e
+     * @return
+     */
+    private static GridExpression intersection(GridExpression d, GridExpression e)
+    {
+        if(lazy)
+            return GridExpression.intersection(d, e);
+        return GridExpression.of(BooleanGrid.intersection(d.grid(), e.grid()));
+    }
+    
+    /**
+     * d - e with attributes a, deferred if we are being lazy
+     * @param d
+     * @param e
+     * @param a
+     * @return
+     */
+    private static GridExpression difference(GridExpression d, GridExpression e, Attributes a)
+    {
+        if(lazy)
+            return GridExpression.difference(d, e, a);
+        return GridExpression.of(BooleanGrid.difference(d.grid(), e.grid(), a));
     }
 
     /**
@@ -125,6 +241,21 @@ public class BooleanGridList
                     result.add(get(i));
             return result;
     }
+
+    /**
+     * The list with all its shapes' pixels level full-resolution pixels across
+     * (see BooleanGrid.resample())
+     * @param level
+     * @param cover
+     * @return
+     */
+    public BooleanGridList resample(int level, boolean cover)
+    {
+            BooleanGridList result = new BooleanGridList();
+            for(int i = 0; i < size(); i++)
+                    result.add(get(i).resample(level, cover));
+            return result;
+    }
 		
 		/**
 		 * Offset all the shapes in the list for this layer
@@ -270,31 +401,32 @@ public class BooleanGridList
 		public BooleanGridList unionDuplicates()
 		{
 			BooleanGridList result = new BooleanGridList();
+			int n = shapes.size();
 
-			if(size() <= 0)
+			if(n <= 0)
 				return result;
 			
-			if(size() == 1)
+			if(n == 1)
 				return this;
 
-			boolean[] usedUp = new boolean[size()];
+			boolean[] usedUp = new boolean[n];
 			for(int i = 0; i < usedUp.length; i++)
 				usedUp[i] = false;
 
-			for(int i = 0; i < size() - 1; i++)
+			for(int i = 0; i < n - 1; i++)
 			{
 				if(!usedUp[i])
 				{
-					BooleanGrid union = get(i);
+					GridExpression union = shapes.get(i);
 					int iExId = union.attribute().getExtruder().getID();
-					for(int j = i+1; j < size(); j++)
+					for(int j = i+1; j < n; j++)
 					{
 						if(!usedUp[j])
 						{
-							BooleanGrid jg = get(j);
+							GridExpression jg = shapes.get(j);
 							if(iExId == jg.attribute().getExtruder().getID())
 							{
-								union = BooleanGrid.union(union, jg);
+								union = union(union, jg);
 								usedUp[j] = true;
 							}
 						}
@@ -303,8 +435,8 @@ public class BooleanGridList
 				}
 			}
 			
-			if(!usedUp[size() - 1])
-				result.add(get(size() - 1));
+			if(!usedUp[n - 1])
+				result.add(shapes.get(n - 1));
 
 			return result;
 		}
@@ -329,24 +461,24 @@ public class BooleanGridList
 				return a;
 			if(a == b)
 				return a;
-			if(a.size() <= 0)
+			if(a.shapes.isEmpty())
 				return b;
-			if(b.size() <= 0)
+			if(b.shapes.isEmpty())
 				return a;
 			
-			boolean[] bMatched = new boolean[b.size()];
+			boolean[] bMatched = new boolean[b.shapes.size()];
 			for(int i = 0; i < bMatched.length; i++)
 				bMatched[i] = false;
 			
-			for(int i = 0; i < a.size(); i++)
+			for(GridExpression abg : a.shapes)
 			{
-				BooleanGrid abg = a.get(i);
 				boolean aMatched = false;
-				for(int j = 0; j < b.size(); j++)
+				for(int j = 0; j < b.shapes.size(); j++)
 				{
-					if(abg.attribute().getExtruder().getID() == b.attribute(j).getExtruder().getID())
+					GridExpression bbg = b.shapes.get(j);
+					if(abg.attribute().getExtruder().getID() == bbg.attribute().getExtruder().getID())
 					{
-						result.add(BooleanGrid.union(abg, b.get(j)));
+						result.add(union(abg, bbg));
 						bMatched[j] = true;
 						aMatched = true;
 						break;
@@ -358,7 +490,7 @@ public class BooleanGridList
 			
 			for(int i = 0; i < bMatched.length; i++)
 				if(!bMatched[i])
-					result.add(b.get(i));
+					result.add(b.shapes.get(i));
 			
 			return result.unionDuplicates();
 		}
@@ -379,17 +511,16 @@ public class BooleanGridList
 				return result;
 			if(a == b)
 				return a;
-			if(a.size() <= 0  || b.size() <= 0)
+			if(a.shapes.isEmpty()  || b.shapes.isEmpty())
 				return result;
 			
-			for(int i = 0; i < a.size(); i++)
+			for(GridExpression abg : a.shapes)
 			{
-				BooleanGrid abg = a.get(i);
-				for(int j = 0; j < b.size(); j++)
+				for(GridExpression bbg : b.shapes)
 				{
-					if(abg.attribute().getExtruder().getID() == b.attribute(j).getExtruder().getID())
+					if(abg.attribute().getExtruder().getID() == bbg.attribute().getExtruder().getID())
 					{
-						result.add(BooleanGrid.intersection(abg, b.get(j)));
+						result.add(intersection(abg, bbg));
 						break;
 					}
 				}
@@ -405,9 +536,9 @@ public class BooleanGridList
 		{
 			BooleanGridList result = new BooleanGridList();
 
-			for(int i = 0; i < size(); i++)
-				if(get(i).attribute().getExtruder().getSupportExtruderNumber() < 0)
-					result.add(get(i));
+			for(GridExpression x : shapes)
+				if(x.attribute().getExtruder().getSupportExtruderNumber() < 0)
+					result.add(x);
 			
 			return result;
 		}
@@ -420,9 +551,9 @@ public class BooleanGridList
 		{
 			BooleanGridList result = new BooleanGridList();
 
-			for(int i = 0; i < size(); i++)
-				if(get(i).attribute().getExtruder().getSupportExtruderNumber() >= 0)
-					result.add(get(i));
+			for(GridExpression x : shapes)
+				if(x.attribute().getExtruder().getSupportExtruderNumber() >= 0)
+					result.add(x);
 			
 			return result;
 		}
@@ -453,20 +584,19 @@ public class BooleanGridList
 				return a;			
 			if(a == b)
 				return result;
-			if(a.size() <= 0)
+			if(a.shapes.isEmpty())
 				return result;
-			if(b.size() <= 0)
+			if(b.shapes.isEmpty())
 				return a;
 			
-			for(int i = 0; i < a.size(); i++)
+			for(GridExpression abg : a.shapes)
 			{
-				BooleanGrid abg = a.get(i);
 				boolean aMatched = false;
-				for(int j = 0; j < b.size(); j++)
+				for(GridExpression bbg : b.shapes)
 				{
-					if(ignoreAttributes || (abg.attribute().getExtruder().getID() == b.attribute(j).getExtruder().getID()))
+					if(ignoreAttributes || (abg.attribute().getExtruder().getID() == bbg.attribute().getExtruder().getID()))
 					{
-						result.add(BooleanGrid.difference(abg, b.get(j), abg.attribute()));
+						result.add(difference(abg, bbg, abg.attribute()));
 						if(!ignoreAttributes)
 						{
 							aMatched = true;
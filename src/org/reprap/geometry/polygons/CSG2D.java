@@ -51,6 +51,10 @@
 package org.reprap.geometry.polygons;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.reprap.CSGOp;
 import org.reprap.geometry.polyhedra.CSG3D;
@@ -223,12 +227,10 @@ public class CSG2D
 			break;
 			
 		case NULL:
-				Debug.e("CSG2D constructor from CSG3D: null set in tree!");
-			break;
+			return nothing();   // A CSG3D pruned to a box may come to this
 			
 		case UNIVERSE:
-				Debug.e("CSG2D constructor from CSG3D: universal set in tree!");
-			break;
+			return universe();
 			
 		case UNION:  
 			return CSG2D.union(slice(t.c_1(), z), slice(t.c_2(), z));
@@ -242,6 +244,27 @@ public class CSG2D
 		return r;
 	}
 	
+	/**
+	 * Compute a 2D slice of a 3D CSG at a given Z value straight into a
+	 * CompiledCSG2D, for building grids from
+	 * @param t
+	 * @param z
+	 * @return
+	 */
+	public static CompiledCSG2D compiledSlice(CSG3D t, double z)
+	{
+		return CompiledCSG2D.slice(t, z);
+	}
+	
+	/**
+	 * Flatten into a program for fast evaluation (see CompiledCSG2D)
+	 * @return
+	 */
+	public CompiledCSG2D compile()
+	{
+		return new CompiledCSG2D(this);
+	}
+	
 	/**
 	 * Get children, operator etc
 	 * @return children
@@ -595,21 +618,18 @@ public class CSG2D
 	 * a list of the distinct leaves.  Note: leaf and leaf.complement() are
 	 * not considered distinct.
 	 * Recursive internal call.
-	 * @param expression
+	 * @param list
+	 * @param seen the leaves in the list so far
 	 * @return
 	 */
-	private void uniqueList_r(ArrayList<CSG2D> list)
+	private void uniqueList_r(ArrayList<CSG2D> list, Set<CSG2D> seen)
 	{
 		switch(op)
 		{
 		case LEAF:
-			CSG2D entry;
-			for(int i = 0; i < list.size(); i++)
-			{
-				entry = list.get(i);
-				if(this == entry || complement() == entry)
-					return;
-			}
+			if(seen.contains(this) || seen.contains(complement()))
+				return;
+			seen.add(this);
 			list.add(this);
 			break;
 
@@ -620,8 +640,8 @@ public class CSG2D
 			
 		case UNION:
 		case INTERSECTION:
-			c1.uniqueList_r(list);
-			c2.uniqueList_r(list);
+			c1.uniqueList_r(list, seen);
+			c2.uniqueList_r(list, seen);
 			break;
 			
 		default:
@@ -640,7 +660,7 @@ public class CSG2D
 	private ArrayList<CSG2D> uniqueList()
 	{
 		ArrayList<CSG2D> result = new ArrayList<>();
-		uniqueList_r(result);
+		uniqueList_r(result, Collections.newSetFromMap(new IdentityHashMap<>()));
 		return result;
 	}	
 	
@@ -680,85 +700,60 @@ public class CSG2D
 	}
 	
 	/**
-	 * Replace duplicate of leaf with leaf itself
-	 * TODO: this should also use known complements
-	 * @param leaf
-	 * @param tolerance
-	 */		
-	private void replaceAllSameLeaves(CSG2D leaf, double tolerance)
-	{	
-		int same;
-		switch(op)
-		{
-		case LEAF:
-		case NULL:   
-		case UNIVERSE:
-			//System.out.println("replace_all_same_leaves(): at a leaf!");
-			break;
-			
-		case UNION:
-		case INTERSECTION:    
-			HalfPlane hp = leaf.hp;
-			if(c1.op == CSGOp.LEAF)
-			{
-				same = HalfPlane.same(hp, c1.hp, tolerance);
-				if(same == 0)
-					c1 = leaf;
-				if(same == -1)
-					c1 = leaf.complement();
-			} else
-				c1.replaceAllSameLeaves(leaf, tolerance);
-			
-			if(c2.op == CSGOp.LEAF)
-			{
-				same = HalfPlane.same(hp, c2.hp, tolerance);
-				if(same == 0)
-					c2 = leaf;
-				if(same == -1)
-					c2 = leaf.complement();
-			} else
-				c2.replaceAllSameLeaves(leaf, tolerance);
-			break;
-			
-		default:
-			Debug.e("replace_all_same(): invalid operator.");		
-		}
-	}
-	
-	/**
-	 * Replace duplicate of all leaves with the last instance of each; also
-	 * link up complements.
-	 * @param root
-	 * @param tolerance
-	 * @return simplified CSG object
-	 */		
-	private void simplify_r(CSG2D root, double tolerance)
+	 * Rebuild an expression from the leaves and nodes in a table, adding any
+	 * that aren't there yet.  Each node is only done once, however many times
+	 * it appears.
+	 * @param table
+	 * @param done the nodes done so far, and what they became
+	 * @return the rebuilt expression
+	 */
+	private CSG2D canonical(CanonicalLeaves<CSG2D> table, Map<CSG2D, CSG2D> done)
 	{
+		CSG2D result = done.get(this);
+		if(result != null)
+			return result;
+		
 		switch(op)
 		{
 		case LEAF:
-			root.replaceAllSameLeaves(this, tolerance);
+			double[] normal = {hp.normal().x(), hp.normal().y()};
+			result = table.find(normal, hp.offset(), this);
+			if(result == null)
+			{
+				result = new CSG2D(hp);
+				table.add(normal, hp.offset(), result);
+				table.add(new double[] {-normal[0], -normal[1]}, -hp.offset(), result.complement());
+			}
 			break;
 			
 		case NULL:   
 		case UNIVERSE:
-			//System.out.println("simplify_r(): at a leaf!");
+			result = this;
 			break;
 			
 		case UNION:
-		case INTERSECTION:    
-			c1.simplify_r(root, tolerance);
-			c2.simplify_r(root, tolerance);
+		case INTERSECTION:
+			CSG2D a = c1.canonical(table, done);
+			CSG2D b = c2.canonical(table, done);
+			result = op == CSGOp.UNION ? union(a, b) : intersection(a, b);
+			if(result.op == op && result != a && result != b)
+				result = table.share(op, result.c1, result.c2, result);
 			break;
 			
 		default:
-			Debug.e("simplify_r(): invalid operator.");
-		
+			Debug.e("canonical(): invalid operator.");
+			result = this;
 		}
+		
+		done.put(this, result);
+		return result;
 	}
 	
 	/**
-	 * Replace duplicate of all leaves with the last instance of each
+	 * Replace duplicate of all leaves with the first instance of each, and
+	 * link up complements; duplicate subtrees are then shared too.  The leaves
+	 * are looked up in a hash table (CanonicalLeaves) rather than compared with
+	 * each other, so this takes time in proportion to the size of the expression.
 	 * @param tolerance
 	 * @return simplified CSG object
 	 */		
@@ -767,9 +762,8 @@ public class CSG2D
 		if(this == u || this == n)
 			return this;
 		
-		CSG2D root = new CSG2D(this);
-		simplify_r(root, tolerance);
-		return root;
+		CanonicalLeaves<CSG2D> table = new CanonicalLeaves<>(tolerance, (a, b) -> HalfPlane.same(a.hp, b.hp, tolerance));
+		return canonical(table, new IdentityHashMap<>());
 	}
 	
 	/**
@@ -0,0 +1,196 @@
+package org.reprap.geometry.polygons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * A table for simplifying CSG expressions (CSG2D and CSG3D) in one pass: the
+ * leaves found so far, hashed on their half-planes (or half-spaces), and the
+ * operator nodes made from them.  A leaf that is the same as one already in
+ * the table, to within a tolerance, is replaced by that one; an operator with
+ * the same operands as one already made is replaced by that one.  So identical
+ * leaves and subtrees end up shared, and each leaf is looked up in constant
+ * time rather than compared with all the others.
+ *
+ * Leaves are hashed on their normal, quantised to the tolerance, and on the
+ * sign and logarithm of their offset (HalfPlane.same() allows the offsets to
+ * differ by the tolerance relative to their size).  Leaves that are the same
+ * may fall either side of a cell boundary, so the neighbouring cells are looked
+ * in too; whatever is found there is checked with the leaves' own same().
+ *
+ * @param <T> the type of the leaves
+ */
+public class CanonicalLeaves<T>
+{
+	/**
+	 * The leaves in each cell
+	 */
+	private final Map<Cell, List<T>> leaves = new HashMap<>();
+
+	/**
+	 * The operator nodes made so far
+	 */
+	private final Map<Node, T> nodes = new HashMap<>();
+
+	/**
+	 * The size of a cell for the normals and for the logs of the offsets
+	 */
+	private final double normalCell;
+	private final double offsetCell;
+
+	private final double tolerance;
+
+	/**
+	 * 0 if two leaves are the same to within a tolerance (HalfPlane.same() and
+	 * HalfSpace.same())
+	 */
+	private final ToIntBiFunction<T, T> same;
+
+	/**
+	 * A cell of the hash
+	 */
+	private static final class Cell
+	{
+		private final long[] index;
+
+		Cell(long[] index)
+		{
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Cell && Arrays.equals(index, ((Cell)o).index);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode(index);
+		}
+	}
+
+	/**
+	 * An operator and its operands, which are told apart by identity
+	 */
+	private static final class Node
+	{
+		private final Object op;
+		private final Object a, b;
+
+		Node(Object op, Object a, Object b)
+		{
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Node))
+				return false;
+			Node n = (Node)o;
+			return op.equals(n.op) && a == n.a && b == n.b;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31*(31*op.hashCode() + System.identityHashCode(a)) + System.identityHashCode(b);
+		}
+	}
+
+	/**
+	 * @param tolerance as given to same()
+	 * @param same
+	 */
+	public CanonicalLeaves(double tolerance, ToIntBiFunction<T, T> same)
+	{
+		this.tolerance = tolerance;
+		this.same = same;
+		normalCell = tolerance > 0 ? tolerance : 1;
+
+		// |a - b| <= tolerance*rms(a, b) means the logs of a and b differ by no more than this
+
+		offsetCell = tolerance < 1 ? Math.max(tolerance/(1 - tolerance), 1.0e-12) : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * The cell a leaf is in, moved by -1, 0 or +1 in each direction
+	 * @param normal
+	 * @param offset
+	 * @param shift a number between 0 and 3^(dimensions + 1) - 1 saying which way to move
+	 * @return
+	 */
+	private Cell cell(double[] normal, double offset, int shift)
+	{
+		long[] index = new long[normal.length + 2];
+		for(int i = 0; i < normal.length; i++)
+		{
+			index[i] = (long)Math.floor(normal[i]/normalCell) + shift%3 - 1;
+			shift /= 3;
+		}
+		index[normal.length] = (long)Math.signum(offset);
+		if(offset != 0 && offsetCell != Double.POSITIVE_INFINITY)
+			index[normal.length + 1] = (long)Math.floor(Math.log(Math.abs(offset))/offsetCell) + shift%3 - 1;
+		return new Cell(index);
+	}
+
+	/**
+	 * Find a leaf that is the same as this one
+	 * @param normal its normal
+	 * @param offset its offset
+	 * @param leaf
+	 * @return the one found, or null if there isn't one
+	 */
+	public T find(double[] normal, double offset, T leaf)
+	{
+		if(tolerance < 0)
+			return null;
+		int shifts = 1;
+		for(int i = 0; i <= normal.length; i++)
+			shifts *= 3;
+		for(int shift = 0; shift < shifts; shift++)
+		{
+			List<T> found = leaves.get(cell(normal, offset, shift));
+			if(found == null)
+				continue;
+			for(T t : found)
+				if(same.applyAsInt(t, leaf) == 0)
+					return t;
+		}
+		return null;
+	}
+
+	/**
+	 * Add a leaf that wasn't found
+	 * @param normal
+	 * @param offset
+	 * @param leaf
+	 */
+	public void add(double[] normal, double offset, T leaf)
+	{
+		leaves.computeIfAbsent(cell(normal, offset, (int)Math.pow(3, normal.length + 1)/2), c -> new ArrayList<>()).add(leaf);
+	}
+
+	/**
+	 * The operator node with these operands made already, or this one if there
+	 * isn't one yet
+	 * @param op
+	 * @param a
+	 * @param b
+	 * @param made
+	 * @return
+	 */
+	public T share(Object op, T a, T b, T made)
+	{
+		T result = nodes.putIfAbsent(new Node(op, a, b), made);
+		return result == null ? made : result;
+	}
+}
@@ -0,0 +1,457 @@
+package org.reprap.geometry.polygons;
+
+import org.reprap.geometry.polyhedra.CSG3D;
+import org.reprap.geometry.polyhedra.Point3D;
+import org.reprap.utilities.Debug;
+
+/**
+ * A CSG2D expression flattened into a program: its leaves and operators in
+ * postfix order, with each leaf's half-plane kept as the three numbers a, b, c
+ * of a*x + b*y + c in one array of doubles.  Working out the potential of a
+ * point, or the interval of a box, is then a loop down the program with a
+ * small stack, and allocates nothing; the recursive CSG2D.value() makes a new
+ * Interval at every node.
+ *
+ * Pruning to a box doesn't build a new expression either.  Any part of a program
+ * that is itself a program, so a pruned one is just the list of the instructions
+ * that are left, in order, written into an array the caller keeps (a mask).  The
+ * whole program is all(); prune() makes a mask from a mask, and the evaluations
+ * take one.  A mask is an array and a count, and where the count is INSIDE or
+ * OUTSIDE there are no instructions left: the whole thing is in or out.
+ *
+ * The evaluations use working space belonging to the program, so any one program
+ * should only be used by one thread at a time.
+ *
+ */
+public class CompiledCSG2D
+{
+	/**
+	 * The counts of masks with nothing left in them (and what classify() says
+	 * about boxes that are all one or the other)
+	 */
+	public static final int INSIDE = -1;
+	public static final int OUTSIDE = -2;
+
+	/**
+	 * What classify() says about boxes with the surface going through them
+	 */
+	public static final int MIXED = 0;
+
+	private static final byte LEAF = 0;
+	private static final byte UNION = 1;
+	private static final byte INTERSECTION = 2;
+
+	/**
+	 * The instructions
+	 */
+	private byte[] ops = new byte[16];
+
+	/**
+	 * a, b and c of each leaf; three to an instruction
+	 */
+	private double[] planes = new double[48];
+
+	/**
+	 * How many instructions there are
+	 */
+	private int size = 0;
+
+	/**
+	 * INSIDE or OUTSIDE if the expression came to one of those, otherwise 0
+	 */
+	private int constant;
+
+	/**
+	 * Working space as deep as the stack gets
+	 */
+	private double[] lows, highs;
+	private int[] states;
+
+	/**
+	 * Compile a CSG2D expression
+	 * @param c
+	 */
+	public CompiledCSG2D(CSG2D c)
+	{
+		finish(emit(c));
+	}
+
+	/**
+	 * Compile the 2D slice of a 3D CSG at a given Z value straight from the
+	 * CSG3D, without making the CSG2D first
+	 * @param t
+	 * @param z
+	 */
+	private CompiledCSG2D(CSG3D t, double z)
+	{
+		finish(emit(t, z));
+	}
+
+	/**
+	 * The 2D slice of a 3D CSG at a given Z value, compiled
+	 * @param t
+	 * @param z
+	 * @return
+	 */
+	public static CompiledCSG2D slice(CSG3D t, double z)
+	{
+		return new CompiledCSG2D(t, z);
+	}
+
+	/**
+	 * How many instructions there are; masks need to be this long
+	 * @return
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * The number of leaves in a mask (all the operators take two operands)
+	 * @param n the mask's count
+	 * @return
+	 */
+	public static int complexity(int n)
+	{
+		return n < 0 ? 0 : (n + 1)/2;
+	}
+
+	/**
+	 * Write the mask of the whole program
+	 * @param to
+	 * @return its count
+	 */
+	public int all(int[] to)
+	{
+		if(constant != 0)
+			return constant;
+		for(int i = 0; i < size; i++)
+			to[i] = i;
+		return size;
+	}
+
+	/**
+	 * Add an instruction
+	 * @param op
+	 * @param a
+	 * @param b
+	 * @param c
+	 */
+	private void append(byte op, double a, double b, double c)
+	{
+		if(size >= ops.length)
+		{
+			byte[] o = new byte[2*ops.length];
+			System.arraycopy(ops, 0, o, 0, size);
+			ops = o;
+			double[] p = new double[6*ops.length];
+			System.arraycopy(planes, 0, p, 0, 3*size);
+			planes = p;
+		}
+		ops[size] = op;
+		planes[3*size] = a;
+		planes[3*size + 1] = b;
+		planes[3*size + 2] = c;
+		size++;
+	}
+
+	/**
+	 * Add a leaf
+	 * @param h
+	 * @return where it starts
+	 */
+	private int leaf(HalfPlane h)
+	{
+		append(LEAF, h.normal().x(), h.normal().y(), h.offset());
+		return size - 1;
+	}
+
+	/**
+	 * Add an operator after its two operands, each of which is INSIDE, OUTSIDE or
+	 * where its instructions start.  Operands that are INSIDE or OUTSIDE are
+	 * simplified away as CSG2D.union() and intersection() do.
+	 * @param op
+	 * @param s1
+	 * @param s2
+	 * @return INSIDE, OUTSIDE or where the result starts
+	 */
+	private int operator(byte op, int s1, int s2)
+	{
+		int absorbs = op == UNION ? INSIDE : OUTSIDE;
+		if(s1 == absorbs || s2 == absorbs)
+		{
+			if(s1 >= 0)
+				size = s1;
+			else if(s2 >= 0)
+				size = s2;
+			return absorbs;
+		}
+		if(s1 < 0)
+			return s2;
+		if(s2 < 0)
+			return s1;
+		append(op, 0, 0, 0);
+		return s1;
+	}
+
+	/**
+	 * Compile a CSG2D
+	 * @param c
+	 * @return INSIDE, OUTSIDE or where its instructions start
+	 */
+	private int emit(CSG2D c)
+	{
+		switch(c.operator())
+		{
+		case LEAF:
+			return leaf(c.hPlane());
+
+		case NULL:
+			return OUTSIDE;
+
+		case UNIVERSE:
+			return INSIDE;
+
+		case UNION:
+			return operator(UNION, emit(c.c_1()), emit(c.c_2()));
+
+		case INTERSECTION:
+			return operator(INTERSECTION, emit(c.c_1()), emit(c.c_2()));
+
+		default:
+			Debug.e("CompiledCSG2D: invalid operator " + c.operator());
+			return OUTSIDE;
+		}
+	}
+
+	/**
+	 * Compile the slice of a CSG3D
+	 * @param t
+	 * @param z
+	 * @return INSIDE, OUTSIDE or where its instructions start
+	 */
+	private int emit(CSG3D t, double z)
+	{
+		switch(t.operator())
+		{
+		case LEAF:
+			try
+			{
+				return leaf(new HalfPlane(t.hSpace(), z));
+			} catch (ParallelException e)
+			{
+				if(t.hSpace().value(new Point3D(0,0,z)) <= 0)
+					return INSIDE;
+				else
+					return OUTSIDE;
+			}
+
+		case NULL:
+			return OUTSIDE;     // A CSG3D pruned to a box may come to this
+
+		case UNIVERSE:
+			return INSIDE;
+
+		case UNION:
+			return operator(UNION, emit(t.c_1(), z), emit(t.c_2(), z));
+
+		case INTERSECTION:
+			return operator(INTERSECTION, emit(t.c_1(), z), emit(t.c_2(), z));
+
+		default:
+			Debug.e("CompiledCSG2D from CSG3D: invalid operator " + t.operator());
+			return OUTSIDE;
+		}
+	}
+
+	/**
+	 * Set up the working space once all the instructions are in
+	 * @param state what the whole expression came to
+	 */
+	private void finish(int state)
+	{
+		constant = state < 0 ? state : 0;
+		if(constant != 0)
+			size = 0;
+		int depth = 0;
+		int top = 0;
+		for(int i = 0; i < size; i++)
+		{
+			if(ops[i] == LEAF)
+				top++;
+			else
+				top--;
+			depth = Math.max(depth, top);
+		}
+		lows = new double[depth];
+		highs = new double[depth];
+		states = new int[depth];
+	}
+
+	/**
+	 * The least value of leaf i over a box (as HalfPlane.value(Rectangle) gives it)
+	 * @param i
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @return
+	 */
+	private double low(int i, double x0, double y0, double x1, double y1)
+	{
+		double a = planes[3*i];
+		double b = planes[3*i + 1];
+		return ((a > 0 ? a*x0 : a*x1) + (b > 0 ? b*y0 : b*y1)) + planes[3*i + 2];
+	}
+
+	/**
+	 * The greatest value of leaf i over a box
+	 * @param i
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @return
+	 */
+	private double high(int i, double x0, double y0, double x1, double y1)
+	{
+		double a = planes[3*i];
+		double b = planes[3*i + 1];
+		return ((a > 0 ? a*x1 : a*x0) + (b > 0 ? b*y1 : b*y0)) + planes[3*i + 2];
+	}
+
+	/**
+	 * "Potential" value of a point; -ve means inside; 0 means on the surface; +ve
+	 * means outside (see CSG2D.value(Point2D))
+	 * @param mask
+	 * @param n
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public double value(int[] mask, int n, double x, double y)
+	{
+		if(n < 0)
+			return n == INSIDE ? -1 : 1;
+		int top = 0;
+		for(int k = 0; k < n; k++)
+		{
+			int i = mask[k];
+			if(ops[i] == LEAF)
+				lows[top++] = planes[3*i + 2] + (planes[3*i]*x + planes[3*i + 1]*y);
+			else
+			{
+				double v = lows[--top];
+				if(ops[i] == UNION)
+					lows[top - 1] = Math.min(lows[top - 1], v);
+				else
+					lows[top - 1] = Math.max(lows[top - 1], v);
+			}
+		}
+		return lows[0];
+	}
+
+	/**
+	 * Work out the interval of values over a box (see CSG2D.value(Rectangle)) and
+	 * say what it means
+	 * @param mask
+	 * @param n
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @return INSIDE or OUTSIDE if it is all one or the other, or MIXED
+	 */
+	public int classify(int[] mask, int n, double x0, double y0, double x1, double y1)
+	{
+		if(n < 0)
+			return n;
+		int top = 0;
+		for(int k = 0; k < n; k++)
+		{
+			int i = mask[k];
+			if(ops[i] == LEAF)
+			{
+				lows[top] = low(i, x0, y0, x1, y1);
+				highs[top++] = high(i, x0, y0, x1, y1);
+			} else
+			{
+				double lo = lows[--top];
+				double hi = highs[top];
+				if(ops[i] == UNION)
+				{
+					lows[top - 1] = Math.min(lows[top - 1], lo);
+					highs[top - 1] = Math.min(highs[top - 1], hi);
+				} else
+				{
+					lows[top - 1] = Math.max(lows[top - 1], lo);
+					highs[top - 1] = Math.max(highs[top - 1], hi);
+				}
+			}
+		}
+		if(lows[0] < 0 && highs[0] >= 0)
+			return MIXED;
+		return highs[0] <= 0 ? INSIDE : OUTSIDE;
+	}
+
+	/**
+	 * Prune a mask to a box (see CSG2D.prune()): leaves that are all one side of
+	 * the box are replaced by INSIDE or OUTSIDE, and those simplified away.
+	 * @param from the mask to prune
+	 * @param n its count
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @param to where to put the pruned mask (not the same array as from)
+	 * @return its count
+	 */
+	public int prune(int[] from, int n, double x0, double y0, double x1, double y1, int[] to)
+	{
+		if(n < 0)
+			return n;
+		int top = 0;
+		int m = 0;
+		for(int k = 0; k < n; k++)
+		{
+			int i = from[k];
+			if(ops[i] == LEAF)
+			{
+				if(high(i, x0, y0, x1, y1) < 0)
+					states[top++] = INSIDE;
+				else if(low(i, x0, y0, x1, y1) >= 0)
+					states[top++] = OUTSIDE;
+				else
+				{
+					states[top++] = m;
+					to[m++] = i;
+				}
+				continue;
+			}
+
+			// The same simplifications as operator()
+
+			int s2 = states[--top];
+			int s1 = states[--top];
+			int absorbs = ops[i] == UNION ? INSIDE : OUTSIDE;
+			if(s1 == absorbs || s2 == absorbs)
+			{
+				if(s1 >= 0)
+					m = s1;
+				else if(s2 >= 0)
+					m = s2;
+				states[top++] = absorbs;
+			} else if(s1 < 0)
+				states[top++] = s2;
+			else if(s2 < 0)
+				states[top++] = s1;
+			else
+			{
+				to[m++] = i;
+				states[top++] = s1;
+			}
+		}
+		return states[0] < 0 ? states[0] : m;
+	}
+}
@@ -0,0 +1,524 @@
+package org.reprap.geometry.polygons;
+
+/**
+ * The exact squared Euclidean distance from every pixel of a TiledRaster (plus an
+ * optional margin round it) to the nearest pixel of one kind - solid or air.
+ * Pixels beyond the raster count as air.
+ *
+ * Only distances up to a given band are wanted (an offset of radius r needs no
+ * more than r + 1), so the field is stored in 64x64 tiles like the raster.  Tiles
+ * that are all feature share one sentinel of zeros, and tiles more than the band
+ * from any feature are null, meaning "far"; neither is computed or stored.  Only
+ * the tiles in the band round the boundary get their own storage and work.
+ *
+ * Those are computed exactly using the separable lower-envelope-of-parabolas
+ * method of Felzenszwalb and Huttenlocher ("Distance Transforms of Sampled
+ * Functions", 2004): first the distance down each column, then the envelope along
+ * each row.  Anything beyond the band may come out as far, or bigger than it is.
+ *
+ * Thresholding the field gives an offset of any radius up to the band, so
+ * BooleanGrid keeps one and reuses it for all the offsets of the same pattern.
+ *
+ */
+class DistanceField
+{
+	/**
+	 * Stands for "no feature anywhere in reach"
+	 */
+	private static final int far = Integer.MAX_VALUE;
+
+	/**
+	 * The biggest distance whose square fits below far
+	 */
+	private static final int root = 46340;
+
+	/**
+	 * Tiles are tileSize pixels square, as in TiledRaster
+	 */
+	private static final int tileBits = 6;
+	private static final int tileSize = 1 << tileBits;
+
+	/**
+	 * The shared tile of a field that is all feature.  This must never be written to.
+	 */
+	private static final int[] zero = new int[tileSize*tileSize];
+
+	/**
+	 * What the raster has in each tile of the field
+	 */
+	private static final byte none = 0;
+	private static final byte all = 1;
+	private static final byte mixed = 2;
+
+	/**
+	 * Pixels of extension beyond the raster on each side
+	 */
+	private final int margin;
+
+	/**
+	 * Distances up to this many pixels are exact
+	 */
+	private final int band;
+
+	/**
+	 * Size of the field including the margins
+	 */
+	private final int width, height;
+
+	/**
+	 * Tiles across and up
+	 */
+	private final int across, up;
+
+	/**
+	 * Distance to the solid pixels or to the air?
+	 */
+	private final boolean toSolid;
+
+	/**
+	 * Row-major array of tiles of squared distances, each row by row; null
+	 * for far, zero for all feature
+	 */
+	private final int[][] tiles;
+
+	/**
+	 * Compute the field for r.  If toSolid is true each value is the squared distance
+	 * to the nearest solid pixel (0 in the solid); otherwise it is the squared distance
+	 * to the nearest air pixel (0 in the air).
+	 * @param r
+	 * @param toSolid
+	 * @param margin
+	 * @param band
+	 */
+	DistanceField(TiledRaster r, boolean toSolid, int margin, int band)
+	{
+		this.toSolid = toSolid;
+		this.margin = Math.max(margin, 0);
+		this.band = Math.min(Math.max(band, 1), root);
+		width = r.width() + 2*this.margin;
+		height = r.height() + 2*this.margin;
+		across = (width + tileSize - 1) >>> tileBits;
+		up = (height + tileSize - 1) >>> tileBits;
+		tiles = new int[across*up][];
+		byte[] kinds = kinds(r);
+		allocate(kinds);
+		columns(r, kinds);
+		rows();
+	}
+
+	/**
+	 * How far out from the raster does the field go?
+	 * @return
+	 */
+	int margin()
+	{
+		return margin;
+	}
+
+	/**
+	 * How far are the distances exact?
+	 * @return
+	 */
+	int band()
+	{
+		return band;
+	}
+
+	/**
+	 * Number of tiles that have their own storage
+	 * @return
+	 */
+	int allocatedTiles()
+	{
+		int result = 0;
+		for(int i = 0; i < tiles.length; i++)
+			if(tiles[i] != null && tiles[i] != zero)
+				result++;
+		return result;
+	}
+
+	/**
+	 * Is (x, y) (in the coordinates of the raster) a feature pixel?
+	 * @param r
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private boolean feature(TiledRaster r, int x, int y)
+	{
+		boolean inside = x >= 0 && y >= 0 && x < r.width() && y < r.height();
+		boolean solid = inside && r.get(x, y);
+		return solid == toSolid;
+	}
+
+	/**
+	 * Which tiles of the field are none, all or partly feature?
+	 * @param r
+	 * @return
+	 */
+	private byte[] kinds(TiledRaster r)
+	{
+		byte[] kinds = new byte[tiles.length];
+		for(int ty = 0; ty < up; ty++)
+			for(int tx = 0; tx < across; tx++)
+			{
+				int w = r.window((tx << tileBits) - margin, (ty << tileBits) - margin);
+				byte k;
+				if(w == 2)
+					k = mixed;
+				else if((w == 1) == toSolid)
+					k = all;
+				else
+					k = none;
+				kinds[ty*across + tx] = k;
+			}
+		return kinds;
+	}
+
+	/**
+	 * Give storage to the tiles within the band of a feature, including the air
+	 * beyond the field if that's what we are measuring to, and the zero sentinel to
+	 * the tiles that are all feature.
+	 * @param kinds
+	 */
+	private void allocate(byte[] kinds)
+	{
+		// Tiles k apart in either direction may have pixels band apart
+
+		int k = (band + tileSize - 1) >>> tileBits;
+
+		// Dilate the tiles with any feature in them by k tiles, first along the rows...
+
+		boolean[] rows = new boolean[tiles.length];
+		for(int ty = 0; ty < up; ty++)
+			for(int tx = 0; tx < across; tx++)
+			{
+				boolean near = !toSolid && (tx < k || tx >= across - k);
+				for(int i = Math.max(tx - k, 0); i <= Math.min(tx + k, across - 1) && !near; i++)
+					near = kinds[ty*across + i] != none;
+				rows[ty*across + tx] = near;
+			}
+
+		// ...then up the columns
+
+		for(int tx = 0; tx < across; tx++)
+			for(int ty = 0; ty < up; ty++)
+			{
+				int i = ty*across + tx;
+				if(kinds[i] == all)
+				{
+					tiles[i] = zero;
+					continue;
+				}
+				boolean near = !toSolid && (ty < k || ty >= up - k);
+				for(int j = Math.max(ty - k, 0); j <= Math.min(ty + k, up - 1) && !near; j++)
+					near = rows[j*across + tx];
+				if(near)
+					tiles[i] = new int[tileSize*tileSize];
+			}
+	}
+
+	/**
+	 * First pass: distance to the nearest feature in the same column, squared, or
+	 * far if that is beyond the band.  When measuring to the air, the air beyond
+	 * the top and bottom of the field counts.  Columns are only worked out in the
+	 * tiles that have storage, which are the only ones that can have features in
+	 * them apart from the zero ones.
+	 * @param r
+	 * @param kinds
+	 */
+	private void columns(TiledRaster r, byte[] kinds)
+	{
+		int nowhere = Integer.MIN_VALUE/2;
+		for(int tx = 0; tx < across; tx++)
+		{
+			boolean any = false;
+			for(int ty = 0; ty < up && !any; ty++)
+				any = tiles[ty*across + tx] != null && tiles[ty*across + tx] != zero;
+			if(!any)
+				continue;
+			int x0 = tx << tileBits;
+			int x1 = Math.min(x0 + tileSize, width);
+			for(int x = x0; x < x1; x++)
+			{
+				int c = x & (tileSize - 1);
+
+				// Downward scan: distance to the nearest feature below (or at)
+
+				int last = toSolid ? nowhere : -1;
+				for(int ty = 0; ty < up; ty++)
+				{
+					int i = ty*across + tx;
+					int[] t = tiles[i];
+					int y0 = ty << tileBits;
+					int y1 = Math.min(y0 + tileSize, height);
+					if(t == zero)
+					{
+						last = y1 - 1;
+						continue;
+					}
+					if(t == null)
+						continue;
+					boolean look = kinds[i] != none;
+					for(int y = y0; y < y1; y++)
+					{
+						if(look && feature(r, x - margin, y - margin))
+							last = y;
+						t[((y - y0) << tileBits) + c] = y - last;
+					}
+				}
+
+				// Upward scan: take the nearer of that and the nearest feature above
+
+				last = toSolid ? -nowhere : height;
+				for(int ty = up - 1; ty >= 0; ty--)
+				{
+					int[] t = tiles[ty*across + tx];
+					int y0 = ty << tileBits;
+					int y1 = Math.min(y0 + tileSize, height);
+					if(t == zero)
+					{
+						last = y0;
+						continue;
+					}
+					if(t == null)
+						continue;
+					for(int y = y1 - 1; y >= y0; y--)
+					{
+						int j = ((y - y0) << tileBits) + c;
+						if(t[j] == 0)
+							last = y;
+						int d = Math.min(t[j], last - y);
+						t[j] = d > band ? far : d*d;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Second pass: the lower envelope of the parabolas rooted on the column
+	 * distances along each row.  The sites are the pixels in tiles with storage
+	 * that are within the band of a feature in their column, and the two ends
+	 * of each zero tile (the nearest of a run of features to anything outside
+	 * it); all the other pixels are more than the band from any feature.
+	 */
+	private void rows()
+	{
+		int n = width + 2;
+		long[] f = new long[n];
+		int[] v = new int[n];
+		double[] z = new double[n + 1];
+
+		for(int ty = 0; ty < up; ty++)
+		{
+			boolean any = false;
+			for(int tx = 0; tx < across && !any; tx++)
+				any = tiles[ty*across + tx] != null && tiles[ty*across + tx] != zero;
+			if(!any)
+				continue;
+			int y0 = ty << tileBits;
+			int y1 = Math.min(y0 + tileSize, height);
+			for(int y = y0; y < y1; y++)
+			{
+				int row = (y - y0) << tileBits;
+
+				// The sites; for distances to the air, add air just off each end of the row.
+
+				int sites = 0;
+				if(!toSolid)
+				{
+					v[sites] = -1;
+					f[sites] = 0;
+					sites++;
+				}
+				for(int tx = 0; tx < across; tx++)
+				{
+					int[] t = tiles[ty*across + tx];
+					int x0 = tx << tileBits;
+					int x1 = Math.min(x0 + tileSize, width);
+					if(t == null)
+						continue;
+					if(t == zero)
+					{
+						v[sites] = x0;
+						f[sites] = 0;
+						sites++;
+						if(x1 - 1 > x0)
+						{
+							v[sites] = x1 - 1;
+							f[sites] = 0;
+							sites++;
+						}
+						continue;
+					}
+					for(int x = x0; x < x1; x++)
+					{
+						int d = t[row + x - x0];
+						if(d != far)
+						{
+							v[sites] = x;
+							f[sites] = d;
+							sites++;
+						}
+					}
+				}
+				if(!toSolid)
+				{
+					v[sites] = width;
+					f[sites] = 0;
+					sites++;
+				}
+
+				if(sites == 0)
+					continue;  // Every entry in the row is already far
+
+				// Build the envelope in place over the site arrays
+
+				int k = 0;
+				z[0] = Double.NEGATIVE_INFINITY;
+				z[1] = Double.POSITIVE_INFINITY;
+				for(int q = 1; q < sites; q++)
+				{
+					double s = intersect(v[k], f[k], v[q], f[q]);
+					while(s <= z[k])
+					{
+						k--;
+						s = intersect(v[k], f[k], v[q], f[q]);
+					}
+					k++;
+					v[k] = v[q];
+					f[k] = f[q];
+					z[k] = s;
+					z[k + 1] = Double.POSITIVE_INFINITY;
+				}
+
+				// Read off the envelope in the tiles with storage
+
+				k = 0;
+				for(int tx = 0; tx < across; tx++)
+				{
+					int[] t = tiles[ty*across + tx];
+					if(t == null || t == zero)
+						continue;
+					int x0 = tx << tileBits;
+					int x1 = Math.min(x0 + tileSize, width);
+					for(int x = x0; x < x1; x++)
+					{
+						while(z[k + 1] < x)
+							k++;
+						long dx = x - v[k];
+						long d = dx*dx + f[k];
+						t[row + x - x0] = d >= far ? far : (int)d;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Where do the parabolas rooted at (p, fp) and (q, fq) cross?
+	 * @param p
+	 * @param fp
+	 * @param q
+	 * @param fq
+	 * @return
+	 */
+	private static double intersect(int p, long fp, int q, long fq)
+	{
+		return ((double)(fq + (long)q*q) - (double)(fp + (long)p*p))/(2.0*(q - p));
+	}
+
+	/**
+	 * The squared distance at (x, y) in the coordinates of the raster.  Beyond
+	 * the margin, and beyond the band, the answer is far.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	int get(int x, int y)
+	{
+		x += margin;
+		y += margin;
+		if(x < 0 || y < 0 || x >= width || y >= height)
+			return toSolid ? far : 0;
+		int[] t = tiles[(y >>> tileBits)*across + (x >>> tileBits)];
+		if(t == null)
+			return far;
+		return t[((y & (tileSize - 1)) << tileBits) + (x & (tileSize - 1))];
+	}
+
+	/**
+	 * The squared distance of all of the pixels x to x + 63 of row y (in the
+	 * coordinates of the field) if they are all outside the field or in the
+	 * sentinel tiles with the same value, or -1 if they may differ.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private int uniform(int x, int y)
+	{
+		int outside = toSolid ? far : 0;
+		if(y < 0 || y >= height || x + tileSize <= 0 || x >= width)
+			return outside;
+		int result = -1;
+		for(int i = x; i < x + tileSize; i = ((i >> tileBits) + 1) << tileBits)
+		{
+			int d;
+			if(i < 0 || i >= width)
+				d = outside;
+			else
+			{
+				int[] t = tiles[(y >>> tileBits)*across + (i >>> tileBits)];
+				if(t == null)
+					d = far;
+				else if(t == zero)
+					d = 0;
+				else
+					return -1;
+			}
+			if(result >= 0 && d != result)
+				return -1;
+			result = d;
+		}
+		return result;
+	}
+
+	/**
+	 * Write into result every pixel whose squared distance is at most (or, if above
+	 * is true, more than) limit2, which should be no more than the square of the band.
+	 * Pixel (x, y) of result corresponds to pixel (x + dx, y + dy) here.  Words that
+	 * only cover far or zero tiles are done in one go.
+	 * @param result
+	 * @param dx
+	 * @param dy
+	 * @param limit2
+	 * @param above
+	 */
+	void threshold(TiledRaster result, int dx, int dy, long limit2, boolean above)
+	{
+		for(int y = 0; y < result.height(); y++)
+		{
+			int ry = y + dy + margin;
+			for(int w = 0; w < result.stride(); w++)
+			{
+				int x0 = w << 6;
+				int d = uniform(x0 + dx + margin, ry);
+				if(d >= 0)
+				{
+					result.setWord(w, y, (d > limit2) == above ? -1L : 0);
+					continue;
+				}
+				long word = 0;
+				int x1 = Math.min(x0 + 64, result.width());
+				for(int x = x0; x < x1; x++)
+				{
+					if((get(x + dx, y + dy) > limit2) == above)
+						word |= 1L << x;
+				}
+				result.setWord(w, y, word);
+			}
+		}
+		result.compact();
+	}
+}
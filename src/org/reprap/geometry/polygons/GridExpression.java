@@ -0,0 +1,265 @@
+package org.reprap.geometry.polygons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.reprap.Attributes;
+import org.reprap.utilities.Debug;
+
+/**
+ * A union, intersection or difference of BooleanGrids that is not worked out
+ * until its result is wanted.  The operands may themselves be unevaluated, so
+ * a chain of operations builds up a DAG.  When the result is asked for the
+ * DAG below it is evaluated in a single pass over the raster words by
+ * BooleanGrid.evaluate(), with no intermediate grids, and gives the same
+ * pixels as doing the operations one at a time.
+ *
+ * Once a node has been evaluated its grid is kept, and other expressions that
+ * share it use that grid as a leaf.  A node that more than one operation in the
+ * DAG uses is worked out as a grid of its own first, so that it is only worked
+ * out once however many paths lead to it.
+ *
+ * BooleanGrid.intersection() and difference() call deWhisker() on their results,
+ * but inside a single pass there is nowhere to do that, so only the final result
+ * is de-whiskered.  That gives the same pixels because deWhisker() doesn't alter
+ * anything at present; GridExpressionNGTest checks that, and if deWhisker() ever
+ * does something the intersections and differences below the top will have to
+ * be worked out on their own as the shared nodes are.
+ *
+ * Expressions may be shared between threads: grid() is synchronized, and only
+ * reads the nodes below under their own locks.  The locks are always taken from
+ * the top of the DAG down, so they can't deadlock.
+ *
+ */
+class GridExpression
+{
+	/**
+	 * The TiledRaster operation combining left and right, or opCopy for a leaf
+	 */
+	private final int op;
+
+	/**
+	 * The operands; they are let go once we have a value (only
+	 * touched while holding this node's lock)
+	 */
+	private GridExpression left, right;
+
+	/**
+	 * The attributes the result will have
+	 */
+	private final Attributes att;
+
+	/**
+	 * The result, when it's known
+	 */
+	private volatile BooleanGrid value;
+
+	/**
+	 * A leaf
+	 * @param g
+	 */
+	private GridExpression(BooleanGrid g)
+	{
+		op = TiledRaster.opCopy;
+		left = null;
+		right = null;
+		att = g.attribute();
+		value = g;
+	}
+
+	/**
+	 * An operation
+	 * @param op
+	 * @param l
+	 * @param r
+	 * @param a
+	 */
+	private GridExpression(int op, GridExpression l, GridExpression r, Attributes a)
+	{
+		this.op = op;
+		left = l;
+		right = r;
+		att = a;
+		value = null;
+	}
+
+	/**
+	 * An expression that is just g
+	 * @param g
+	 * @return
+	 */
+	static GridExpression of(BooleanGrid g)
+	{
+		return new GridExpression(g);
+	}
+
+	/**
+	 * Check the materials of two operands match
+	 * @param name
+	 * @param d
+	 * @param e
+	 */
+	private static void checkMaterials(String name, GridExpression d, GridExpression e)
+	{
+		if(d.att.getMaterialId() != e.att.getMaterialId())
+			Debug.e("GridExpression." + name + "(): attempt to combine two bitmaps of different materials: " +
+					d.att.getMaterial() + " and " + e.att.getMaterial());
+	}
+
+	/**
+	 * The deferred union of d and e, with d's attributes
+	 * @param d
+	 * @param e
+	 * @return
+	 */
+	static GridExpression union(GridExpression d, GridExpression e)
+	{
+		checkMaterials("union", d, e);
+		return new GridExpression(TiledRaster.opOr, d, e, d.att);
+	}
+
+	/**
+	 * The deferred intersection of d and e, with d's attributes
+	 * @param d
+	 * @param e
+	 * @return
+	 */
+	static GridExpression intersection(GridExpression d, GridExpression e)
+	{
+		checkMaterials("intersection", d, e);
+		return new GridExpression(TiledRaster.opAnd, d, e, d.att);
+	}
+
+	/**
+	 * The deferred d - e, with attributes a
+	 * @param d
+	 * @param e
+	 * @param a
+	 * @return
+	 */
+	static GridExpression difference(GridExpression d, GridExpression e, Attributes a)
+	{
+		return new GridExpression(TiledRaster.opAndNot, d, e, a);
+	}
+
+	/**
+	 * The attributes of the result (this doesn't need it to be worked out)
+	 * @return
+	 */
+	Attributes attribute()
+	{
+		return att;
+	}
+
+	/**
+	 * Has the result been worked out?
+	 * @return
+	 */
+	boolean evaluated()
+	{
+		return value != null;
+	}
+
+	/**
+	 * Count how many operations in the DAG below use each unevaluated node
+	 * @param uses
+	 */
+	private synchronized void count(Map<GridExpression, Integer> uses)
+	{
+		if(value != null)
+			return;
+		for(GridExpression x : new GridExpression[] {left, right})
+		{
+			Integer n = uses.get(x);
+			uses.put(x, n == null ? 1 : n + 1);
+			if(n == null)
+				x.count(uses);
+		}
+	}
+
+	/**
+	 * Append the postfix form of the expression to program, adding any
+	 * grids it needs to leaves.  Operands that more than one operation uses are
+	 * evaluated first, and then go in as leaves.
+	 * @param leaves
+	 * @param indices where each leaf is in leaves
+	 * @param uses from count()
+	 * @param top is this the node whose result we want?
+	 * @param program
+	 * @param length
+	 * @return the new program (it may have grown)
+	 */
+	private synchronized int[] compile(List<BooleanGrid> leaves, Map<BooleanGrid, Integer> indices,
+			Map<GridExpression, Integer> uses, boolean top, int[] program, int[] length)
+	{
+		if(value == null && !top && uses.get(this) > 1)
+			grid();
+		if(length[0] >= program.length)
+			program = Arrays.copyOf(program, 2*program.length);
+		if(value != null)
+		{
+			Integer k = indices.get(value);
+			if(k == null)
+			{
+				k = leaves.size();
+				leaves.add(value);
+				indices.put(value, k);
+			}
+			program[length[0]++] = k;
+			return program;
+		}
+		program = left.compile(leaves, indices, uses, false, program, length);
+		program = right.compile(leaves, indices, uses, false, program, length);
+		if(length[0] >= program.length)
+			program = Arrays.copyOf(program, 2*program.length);
+		program[length[0]++] = -(op + 1);
+		return program;
+	}
+
+	/**
+	 * Work out the result an operation at a time, for when the grids' pixels
+	 * are not all the same size (the operations resample them as they go)
+	 * @return
+	 */
+	private BooleanGrid combine()
+	{
+		BooleanGrid d = left.grid();
+		BooleanGrid e = right.grid();
+		switch(op)
+		{
+		case TiledRaster.opOr:
+			return BooleanGrid.union(d, e, att);
+			
+		case TiledRaster.opAnd:
+			return BooleanGrid.intersection(d, e, att);
+			
+		default:
+			return BooleanGrid.difference(d, e, att);
+		}
+	}
+	
+	/**
+	 * The result (which may be the empty grid), working it out if need be
+	 * @return
+	 */
+	synchronized BooleanGrid grid()
+	{
+		if(value == null)
+		{
+			Map<GridExpression, Integer> uses = new IdentityHashMap<>();
+			count(uses);
+			List<BooleanGrid> leaves = new ArrayList<>();
+			int[] length = {0};
+			int[] program = compile(leaves, new IdentityHashMap<>(), uses, true, new int[16], length);
+			if(BooleanGrid.sameResolution(leaves))
+				value = BooleanGrid.evaluate(leaves, program, length[0], att);
+			else
+				value = combine();
+			left = null;
+			right = null;
+		}
+		return value;
+	}
+}
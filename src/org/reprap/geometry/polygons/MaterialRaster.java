@@ -0,0 +1,479 @@
+package org.reprap.geometry.polygons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.reprap.Attributes;
+
+/**
+ * A slice of several materials held as one raster.  Each pixel has a small
+ * number, its label, saying what material it is (0 for air), and each row is
+ * kept as runs of the same label.  A slice that is a BooleanGridList needs a
+ * bitmap for each material; this needs a few numbers a row whatever the number
+ * of materials.  That isn't always less memory: the bitmaps are tiled, so air and
+ * solid cost next to nothing and only the edges take space, while the rows here
+ * span the box around all the materials.  Where the materials are small or far
+ * apart the raster is the bigger of the two; it is smaller where they fill much
+ * of their box.
+ *
+ * The materials are told apart by number (Attributes.getMaterialId()), and the
+ * labels of two rasters are matched up by material.  A boolean operation between
+ * two rasters goes along each pair of rows once, for all the materials at once,
+ * where the same operation on two BooleanGridLists takes a pass over the bitmaps
+ * of each material.  masks() turns a raster back into a BooleanGridList.
+ *
+ * Any one pixel can only be one material, as in a slice.  Where the grids a raster
+ * is made from overlap, the pixels go to the run that starts first along the row
+ * (or the one earlier in the list if they start together).
+ *
+ * A BooleanGrid intersection or difference de-whiskers its result; here that is
+ * only done once, by masks(), however many operations went before.  That gives
+ * the same pixels because deWhisker() doesn't alter anything at present, which
+ * MaterialRasterNGTest checks; if it ever does, combine() will have to do it
+ * after every operation.
+ *
+ */
+public class MaterialRaster
+{
+	/**
+	 * Where the pixels are, as BooleanGrid.pixelRectangle() gives it, and how many
+	 * full-resolution pixels across each is
+	 */
+	private final int[] frame;
+	private final int coarse;
+
+	/**
+	 * The material of each label; label k is materials.get(k - 1)
+	 */
+	private final List<Attributes> materials;
+
+	/**
+	 * Each row as {start, label, start, label, ...}: a run of a label goes from its
+	 * start to the next one's (or the end of the row).  Null for a row of air.
+	 */
+	private final int[][] rows;
+
+	/**
+	 * Might masks() have whiskers to take off (as a BooleanGrid intersection or
+	 * difference would have done)?
+	 */
+	private final boolean whiskers;
+
+	/**
+	 * The materials of a list of grids, all in one raster
+	 * @param list
+	 */
+	public MaterialRaster(BooleanGridList list)
+	{
+		materials = new ArrayList<>();
+		whiskers = false;
+		List<BooleanGrid> grids = new ArrayList<>();
+		List<Integer> labels = new ArrayList<>();
+		int level = 0;
+		int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE;
+		int x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+		for(int i = 0; i < list.size(); i++)
+		{
+			BooleanGrid g = list.get(i);
+			if(g.isEmpty())
+				continue;
+			if(level == 0)
+				level = g.coarseness();
+			else
+				g = g.resample(level, true);
+			int[] r = g.pixelRectangle();
+			x0 = Math.min(x0, r[0]);
+			y0 = Math.min(y0, r[1]);
+			x1 = Math.max(x1, r[0] + r[2]);
+			y1 = Math.max(y1, r[1] + r[3]);
+			grids.add(g);
+			labels.add(label(materials, list.attribute(i)));
+		}
+		if(grids.isEmpty())
+		{
+			frame = new int[] {0, 0, 0, 0};
+			coarse = 1;
+			rows = new int[0][];
+			return;
+		}
+		frame = new int[] {x0, y0, x1 - x0, y1 - y0};
+		coarse = level;
+		rows = new int[frame[3]][];
+
+		// Gather each row's runs from all the grids as {start, end, label}, then put
+		// them in order along the row
+
+		int[] runs = new int[48];
+		Row row = new Row(frame[2]);
+		for(int y = 0; y < frame[3]; y++)
+		{
+			int n = 0;
+			for(int k = 0; k < grids.size(); k++)
+			{
+				int[] r = grids.get(k).pixelRectangle();
+				int gy = y + frame[1] - r[1];
+				if(gy < 0 || gy >= r[3])
+					continue;
+				int dx = r[0] - frame[0];
+				TiledRaster t = grids.get(k).raster();
+				for(int x = t.nextSetBit(0, gy); x >= 0; x = t.nextSetBit(x, gy))
+				{
+					int end = t.nextClearBit(x, gy);
+					if(n + 3 > runs.length)
+						runs = Arrays.copyOf(runs, 2*runs.length);
+					runs[n++] = x + dx;
+					runs[n++] = end + dx;
+					runs[n++] = labels.get(k);
+					if(end >= r[2])
+						break;
+					x = end;
+				}
+			}
+			if(n == 0)
+				continue;
+			long[] order = new long[n/3];
+			for(int i = 0; i < order.length; i++)
+				order[i] = ((long)runs[3*i] << 32) | i;
+			Arrays.sort(order);
+			row.clear();
+			int pos = 0;
+			for(long o : order)
+			{
+				int i = 3*(int)o;
+				int start = Math.max(runs[i], pos);
+				if(start >= runs[i + 1])
+					continue;
+				row.add(pos, 0);
+				row.add(start, runs[i + 2]);
+				pos = runs[i + 1];
+			}
+			row.add(pos, 0);
+			rows[y] = row.toArray();
+		}
+	}
+
+	/**
+	 * @param frame
+	 * @param coarse
+	 * @param materials
+	 * @param rows
+	 * @param whiskers
+	 */
+	private MaterialRaster(int[] frame, int coarse, List<Attributes> materials, int[][] rows, boolean whiskers)
+	{
+		this.frame = frame;
+		this.coarse = coarse;
+		this.materials = materials;
+		this.rows = rows;
+		this.whiskers = whiskers;
+	}
+
+	/**
+	 * The label of a material in a list of them, adding it if it isn't there
+	 * @param materials
+	 * @param a
+	 * @return
+	 */
+	private static int label(List<Attributes> materials, Attributes a)
+	{
+		for(int k = 0; k < materials.size(); k++)
+			if(materials.get(k).getMaterialId() == a.getMaterialId())
+				return k + 1;
+		materials.add(a);
+		return materials.size();
+	}
+
+	/**
+	 * A row being built, with runs of the same label run together
+	 */
+	private static class Row
+	{
+		private final int width;
+		private int[] entries = new int[16];
+		private int n = 0;
+
+		Row(int width)
+		{
+			this.width = width;
+		}
+
+		void clear()
+		{
+			n = 0;
+		}
+
+		/**
+		 * From x on (until the next run) the label is label
+		 * @param x
+		 * @param label
+		 */
+		void add(int x, int label)
+		{
+			if(x >= width)
+				return;
+			if(n > 0 && entries[n - 1] == label)
+				return;
+			if(n > 0 && entries[n - 2] == x)
+			{
+				n -= 2;
+				if(n > 0 && entries[n - 1] == label)
+					return;
+			}
+			if(n + 2 > entries.length)
+				entries = Arrays.copyOf(entries, 2*entries.length);
+			entries[n++] = x;
+			entries[n++] = label;
+		}
+
+		/**
+		 * @return the row, or null if it is all air
+		 */
+		int[] toArray()
+		{
+			for(int i = 1; i < n; i += 2)
+				if(entries[i] != 0)
+					return Arrays.copyOf(entries, n);
+			return null;
+		}
+	}
+
+	/**
+	 * Row y as {start, label} pairs shifted by dx, with air before and after it
+	 * @param y
+	 * @param dx
+	 * @param out
+	 * @return the number of pairs
+	 */
+	private int breaks(int y, int dx, int[] out)
+	{
+		if(y < 0 || y >= rows.length || rows[y] == null)
+			return 0;
+		int[] row = rows[y];
+		int n = 0;
+		for(int i = 0; i < row.length; i += 2)
+		{
+			out[n++] = row[i] + dx;
+			out[n++] = row[i + 1];
+		}
+		out[n++] = frame[2] + dx;
+		out[n++] = 0;
+		return n/2;
+	}
+
+	/**
+	 * The longest row, as pairs
+	 * @return
+	 */
+	private int widestRow()
+	{
+		int result = 0;
+		for(int[] row : rows)
+			if(row != null)
+				result = Math.max(result, row.length/2);
+		return result + 1;
+	}
+
+	private boolean empty()
+	{
+		return rows.length == 0;
+	}
+
+	/**
+	 * Combine a and b, material by material, with one of the TiledRaster operations
+	 * @param op
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static MaterialRaster combine(int op, MaterialRaster a, MaterialRaster b)
+	{
+		if(a.empty() || b.empty())
+		{
+			if(op == TiledRaster.opOr)
+				return a.empty() ? b : a;
+			if(op == TiledRaster.opAndNot)
+				return a;
+			return a.empty() ? a : b;
+		}
+		if(a.coarse != b.coarse)
+			b = new MaterialRaster(b.masks().resample(a.coarse, op != TiledRaster.opAnd));
+
+		// The labels of b's materials among the result's
+
+		List<Attributes> materials = new ArrayList<>(a.materials);
+		int[] map = new int[b.materials.size() + 1];
+		for(int k = 0; k < b.materials.size(); k++)
+			map[k + 1] = label(materials, b.materials.get(k));
+
+		int[] f;
+		switch(op)
+		{
+		case TiledRaster.opOr:
+			f = new int[] {Math.min(a.frame[0], b.frame[0]), Math.min(a.frame[1], b.frame[1]), 0, 0};
+			f[2] = Math.max(a.frame[0] + a.frame[2], b.frame[0] + b.frame[2]) - f[0];
+			f[3] = Math.max(a.frame[1] + a.frame[3], b.frame[1] + b.frame[3]) - f[1];
+			break;
+
+		case TiledRaster.opAnd:
+			f = new int[] {Math.max(a.frame[0], b.frame[0]), Math.max(a.frame[1], b.frame[1]), 0, 0};
+			f[2] = Math.min(a.frame[0] + a.frame[2], b.frame[0] + b.frame[2]) - f[0];
+			f[3] = Math.min(a.frame[1] + a.frame[3], b.frame[1] + b.frame[3]) - f[1];
+			if(f[2] <= 0 || f[3] <= 0)
+				return new MaterialRaster(new BooleanGridList());
+			break;
+
+		default:
+			f = a.frame.clone();
+		}
+
+		int[][] rows = new int[f[3]][];
+		int[] pa = new int[2*a.widestRow()];
+		int[] pb = new int[2*b.widestRow()];
+		Row row = new Row(f[2]);
+		for(int y = 0; y < f[3]; y++)
+		{
+			int na = a.breaks(y + f[1] - a.frame[1], a.frame[0] - f[0], pa);
+			int nb = b.breaks(y + f[1] - b.frame[1], b.frame[0] - f[0], pb);
+			if(na == 0 && (nb == 0 || op != TiledRaster.opOr))
+				continue;
+			row.clear();
+			int i = 0, j = 0, la = 0, lb = 0;
+			int pos = 0;
+			while(pos < f[2])
+			{
+				while(i < na && pa[2*i] <= pos)
+					la = pa[2*i++ + 1];
+				while(j < nb && pb[2*j] <= pos)
+					lb = map[pb[2*j++ + 1]];
+				int next = f[2];
+				if(i < na)
+					next = Math.min(next, pa[2*i]);
+				if(j < nb)
+					next = Math.min(next, pb[2*j]);
+				int label;
+				switch(op)
+				{
+				case TiledRaster.opOr:
+					label = la != 0 ? la : lb;
+					break;
+
+				case TiledRaster.opAnd:
+					label = la == lb ? la : 0;
+					break;
+
+				default:
+					label = la != lb ? la : 0;
+				}
+				row.add(pos, label);
+				pos = next;
+			}
+			rows[y] = row.toArray();
+		}
+		return new MaterialRaster(f, a.coarse, materials, rows, a.whiskers || op != TiledRaster.opOr);
+	}
+
+	/**
+	 * The union of a and b, material by material (where they are different materials, a's wins)
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static MaterialRaster union(MaterialRaster a, MaterialRaster b)
+	{
+		return combine(TiledRaster.opOr, a, b);
+	}
+
+	/**
+	 * The intersection of a and b, material by material
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static MaterialRaster intersection(MaterialRaster a, MaterialRaster b)
+	{
+		return combine(TiledRaster.opAnd, a, b);
+	}
+
+	/**
+	 * a - b, material by material (as BooleanGridList.differences() with ignoreAttributes false)
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static MaterialRaster difference(MaterialRaster a, MaterialRaster b)
+	{
+		return combine(TiledRaster.opAndNot, a, b);
+	}
+
+	/**
+	 * One grid for each material that has any pixels, in label order
+	 * @return
+	 */
+	public BooleanGridList masks()
+	{
+		BooleanGridList result = new BooleanGridList();
+		BooleanGrid[] grids = new BooleanGrid[materials.size()];
+		for(int y = 0; y < rows.length; y++)
+		{
+			int[] row = rows[y];
+			if(row == null)
+				continue;
+			for(int i = 0; i < row.length; i += 2)
+			{
+				int label = row[i + 1];
+				if(label == 0)
+					continue;
+				if(grids[label - 1] == null)
+					grids[label - 1] = BooleanGrid.blank(materials.get(label - 1), frame, coarse);
+				int end = i + 2 < row.length ? row[i + 2] : frame[2];
+				grids[label - 1].raster().setSpan(y, row[i], end - 1, true);
+			}
+		}
+		for(BooleanGrid g : grids)
+		{
+			if(g == null)
+				continue;
+			g.raster().compact();
+			if(whiskers)
+				g.deWhisker();
+			if(!g.isEmpty())
+				result.add(g);
+		}
+		return result;
+	}
+
+	/**
+	 * Is there nothing here?
+	 * @return
+	 */
+	public boolean isEmpty()
+	{
+		for(int[] row : rows)
+			if(row != null)
+				return false;
+		return true;
+	}
+
+	/**
+	 * How many materials are there?
+	 * @return
+	 */
+	public int materials()
+	{
+		return materials.size();
+	}
+
+	/**
+	 * Roughly how many bytes of memory the raster takes up
+	 * @return
+	 */
+	public long bytes()
+	{
+		long result = 64 + 8L*rows.length;
+		for(int[] row : rows)
+			if(row != null)
+				result += 16 + 4L*row.length;
+		return result;
+	}
+}
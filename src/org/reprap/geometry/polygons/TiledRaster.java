@@ -0,0 +1,940 @@
+package org.reprap.geometry.polygons;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The pixel store behind a BooleanGrid.  The raster is divided into tiles
+ * of 64x64 pixels, each tile being 64 longs, one per row.  Only tiles that
+ * contain a mixture of solid and air need their own storage: all-air tiles
+ * are null and all-solid tiles inside the raster share one read-only sentinel.
+ * A thin ring in a big rectangle therefore costs memory (and boolean time) in
+ * proportion to the ring, not to the rectangle.
+ *
+ * Word w of row y is row y%64 of tile (w, y/64), so horizontal runs of pixels
+ * can still be handled a word at a time with shifts, and grids whose tiles
+ * line up are combined tile for tile.
+ *
+ * Bits beyond the width in the last word of each row, and rows beyond the
+ * height in the top row of tiles, are always kept clear, so whole-word
+ * operations never need to mask them off when counting.
+ *
+ * Coordinates are not bounds checked here; that is the job of BooleanGrid.
+ *
+ */
+class TiledRaster
+{
+	/**
+	 * The combination operations for combine()
+	 */
+	static final int opCopy = 0;
+	static final int opOr = 1;
+	static final int opAnd = 2;
+	static final int opAndNot = 3;
+
+	/**
+	 * Tiles are tileSize pixels square
+	 */
+	private static final int tileBits = 6;
+	private static final int tileSize = 1 << tileBits;
+
+	/**
+	 * The shared all-solid tile.  This must never be written to.
+	 */
+	private static final long[] full = allSet();
+
+	/**
+	 * Pixel dimensions
+	 */
+	private final int width, height;
+
+	/**
+	 * Tiles across (which is also the number of words per row) and up
+	 */
+	private final int stride, tilesUp;
+
+	/**
+	 * Row-major array of tiles; null for all air, full for all solid
+	 */
+	private final long[][] tiles;
+
+	/**
+	 * All-clear raster of the given size
+	 * @param w
+	 * @param h
+	 */
+	TiledRaster(int w, int h)
+	{
+		width = Math.max(w, 0);
+		height = Math.max(h, 0);
+		stride = (width + tileSize - 1) >>> tileBits;
+		tilesUp = (height + tileSize - 1) >>> tileBits;
+		tiles = new long[stride*tilesUp][];
+	}
+
+	/**
+	 * Deep copy (the sentinels are shared, of course)
+	 * @param r
+	 */
+	TiledRaster(TiledRaster r)
+	{
+		width = r.width;
+		height = r.height;
+		stride = r.stride;
+		tilesUp = r.tilesUp;
+		tiles = new long[r.tiles.length][];
+		for(int i = 0; i < tiles.length; i++)
+			tiles[i] = copy(r.tiles[i]);
+	}
+
+	/**
+	 * Read back a raster saved by write()
+	 * @param in
+	 * @throws IOException
+	 */
+	TiledRaster(DataInput in) throws IOException
+	{
+		this(in.readInt(), in.readInt());
+		for(int i = 0; i < tiles.length; i++)
+		{
+			switch(in.readByte())
+			{
+			case 0:
+				break;
+			case 1:
+				tiles[i] = full;
+				break;
+			default:
+				long[] t = new long[tileSize];
+				for(int r = 0; r < tileSize; r++)
+					t[r] = in.readLong();
+				tiles[i] = t;
+			}
+		}
+	}
+
+	private static long[] allSet()
+	{
+		long[] t = new long[tileSize];
+		Arrays.fill(t, -1L);
+		return t;
+	}
+
+	/**
+	 * A tile that can be shared with another raster
+	 * @param t
+	 * @return
+	 */
+	private static long[] copy(long[] t)
+	{
+		if(t == null || t == full)
+			return t;
+		return t.clone();
+	}
+
+	int width() { return width; }
+	int height() { return height; }
+	int stride() { return stride; }
+	int tileSize() { return tileSize; }
+
+	/**
+	 * Number of tiles that have their own storage
+	 * @return
+	 */
+	int allocatedTiles()
+	{
+		int result = 0;
+		for(int i = 0; i < tiles.length; i++)
+			if(tiles[i] != null && tiles[i] != full)
+				result++;
+		return result;
+	}
+
+	/**
+	 * Roughly how many bytes of memory the raster takes up
+	 * @return
+	 */
+	long bytes()
+	{
+		return 32 + 8L*tiles.length + (16 + 8L*tileSize)*allocatedTiles();
+	}
+
+	/**
+	 * Save the raster.  Each tile is a byte saying whether it is air (0), solid (1)
+	 * or mixed (2), and the mixed ones are followed by their words.
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(DataOutput out) throws IOException
+	{
+		out.writeInt(width);
+		out.writeInt(height);
+		for(long[] t : tiles)
+		{
+			if(t == null)
+				out.writeByte(0);
+			else if(t == full)
+				out.writeByte(1);
+			else
+			{
+				out.writeByte(2);
+				for(int r = 0; r < tileSize; r++)
+					out.writeLong(t[r]);
+			}
+		}
+	}
+
+	/**
+	 * Is the tile with index i wholly inside the raster (so that it may be full)?
+	 * @param i
+	 * @return
+	 */
+	private boolean interior(int i)
+	{
+		return ((i % stride) + 1) << tileBits <= width && ((i / stride) + 1) << tileBits <= height;
+	}
+
+	/**
+	 * The tile with index i, ready to be written to
+	 * @param i
+	 * @return
+	 */
+	private long[] writable(int i)
+	{
+		long[] t = tiles[i];
+		if(t == null)
+			t = new long[tileSize];
+		else if(t == full)
+			t = full.clone();
+		else
+			return t;
+		tiles[i] = t;
+		return t;
+	}
+
+	/**
+	 * The value of pixel (x, y)
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	boolean get(int x, int y)
+	{
+		long[] t = tiles[(y >>> tileBits)*stride + (x >>> tileBits)];
+		if(t == null)
+			return false;
+		return (t[y & (tileSize - 1)] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Set pixel (x, y) to v
+	 * @param x
+	 * @param y
+	 * @param v
+	 */
+	void set(int x, int y, boolean v)
+	{
+		int i = (y >>> tileBits)*stride + (x >>> tileBits);
+		long[] t = tiles[i];
+		if(t == (v ? full : null))
+			return;
+		t = writable(i);
+		if(v)
+			t[y & (tileSize - 1)] |= 1L << x;
+		else
+			t[y & (tileSize - 1)] &= ~(1L << x);
+	}
+
+	/**
+	 * Set the run of pixels x0 to x1 inclusive in row y to v
+	 * @param y
+	 * @param x0
+	 * @param x1
+	 * @param v
+	 */
+	void setSpan(int y, int x0, int x1, boolean v)
+	{
+		if(x1 < x0)
+			return;
+		int w0 = x0 >>> tileBits;
+		int w1 = x1 >>> tileBits;
+		long m0 = -1L << x0;
+		long m1 = -1L >>> (63 - (x1 & 63));
+		if(w0 == w1)
+		{
+			setBits(w0, y, m0 & m1, v);
+			return;
+		}
+		setBits(w0, y, m0, v);
+		for(int w = w0 + 1; w < w1; w++)
+			setBits(w, y, -1L, v);
+		setBits(w1, y, m1, v);
+	}
+
+	private void setBits(int w, int y, long mask, boolean v)
+	{
+		int i = (y >>> tileBits)*stride + w;
+		if(tiles[i] == (v ? full : null))
+			return;
+		long[] t = writable(i);
+		if(v)
+			t[y & (tileSize - 1)] |= mask;
+		else
+			t[y & (tileSize - 1)] &= ~mask;
+	}
+
+	/**
+	 * Word w of row y
+	 * @param w
+	 * @param y
+	 * @return
+	 */
+	long word(int w, int y)
+	{
+		long[] t = tiles[(y >>> tileBits)*stride + w];
+		return t == null ? 0 : t[y & (tileSize - 1)];
+	}
+
+	/**
+	 * Overwrite word w of row y.  Bits beyond the width are dropped.  Writing
+	 * what is already there never allocates a tile.
+	 * @param w
+	 * @param y
+	 * @param v
+	 */
+	void setWord(int w, int y, long v)
+	{
+		if(w == stride - 1)
+			v &= tailMask();
+		int i = (y >>> tileBits)*stride + w;
+		long[] t = tiles[i];
+		int r = y & (tileSize - 1);
+		if(t == null ? v == 0 : t[r] == v)
+			return;
+		writable(i)[r] = v;
+	}
+
+	/**
+	 * The valid bits in the last word of a row
+	 * @return
+	 */
+	long tailMask()
+	{
+		int r = width & 63;
+		return r == 0 ? -1L : (1L << r) - 1;
+	}
+
+	/**
+	 * 64 pixels of row y starting at pixel x (which may be negative or
+	 * beyond the width); pixels outside the row read as clear.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	long bitsAt(int x, int y)
+	{
+		if(x <= -64 || x >= width)
+			return 0;
+		if(x < 0)
+			return word(0, y) << -x;
+		int w = x >>> 6;
+		int s = x & 63;
+		long result = word(w, y) >>> s;
+		if(s != 0 && w + 1 < stride)
+			result |= word(w + 1, y) << (64 - s);
+		return result;
+	}
+
+	/**
+	 * Are the tile containing word w of row y and all its neighbours the same
+	 * sentinel (tiles beyond the raster count as air)?  If so, there are no edges()
+	 * in any of the rows of that tile.
+	 * @param w
+	 * @param y
+	 * @return
+	 */
+	boolean quiet(int w, int y)
+	{
+		int tx = w;
+		int ty = y >>> tileBits;
+		long[] t = tiles[ty*stride + tx];
+		if(t != null && t != full)
+			return false;
+		for(int j = ty - 1; j <= ty + 1; j++)
+			for(int i = tx - 1; i <= tx + 1; i++)
+			{
+				long[] n = (i < 0 || j < 0 || i >= stride || j >= tilesUp) ? null : tiles[j*stride + i];
+				if(n != t)
+					return false;
+			}
+		return true;
+	}
+
+	/**
+	 * What is in the 64x64 window with its bottom left at pixel (x, y), which need
+	 * not be on a tile boundary and may lie partly or wholly beyond the raster (where
+	 * it is air)?  The answer is 0 if the tiles it overlaps are all air, 1 if they are
+	 * all solid and it is all inside the raster, and 2 if it may be mixed.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	int window(int x, int y)
+	{
+		if(x <= -tileSize || y <= -tileSize || x >= width || y >= height)
+			return 0;
+		boolean inside = x >= 0 && y >= 0 && x + tileSize <= width && y + tileSize <= height;
+		int i0 = Math.max(x, 0) >>> tileBits;
+		int i1 = Math.min(x + tileSize - 1, width - 1) >>> tileBits;
+		int j0 = Math.max(y, 0) >>> tileBits;
+		int j1 = Math.min(y + tileSize - 1, height - 1) >>> tileBits;
+		long[] t = tiles[j0*stride + i0];
+		if(t != null && (t != full || !inside))
+			return 2;
+		for(int j = j0; j <= j1; j++)
+			for(int i = i0; i <= i1; i++)
+				if(tiles[j*stride + i] != t)
+					return 2;
+		return t == null ? 0 : 1;
+	}
+
+	/**
+	 * The boundary pixels in word w of row y: those whose 3x3 neighbourhood is
+	 * neither all set nor all clear, everything beyond the raster counting as clear.
+	 * @param w
+	 * @param y
+	 * @return
+	 */
+	long edges(int w, int y)
+	{
+		long any = 0;
+		long all = -1L;
+		for(int r = y - 1; r <= y + 1; r++)
+		{
+			long l = 0, c = 0, rt = 0;
+			if(r >= 0 && r < height)
+			{
+				c = word(w, r);
+				if(w > 0)
+					l = word(w - 1, r);
+				if(w + 1 < stride)
+					rt = word(w + 1, r);
+			}
+			long left = (c << 1) | (l >>> 63);
+			long right = (c >>> 1) | (rt << 63);
+			any |= left | c | right;
+			all &= left & c & right;
+		}
+		long result = any & ~all;
+		if(w == stride - 1)
+			result &= tailMask();
+		return result;
+	}
+
+	/**
+	 * Combine the w x h window of src with its bottom left at (sx, sy) into this raster's
+	 * window with its bottom left at (dx, dy) using op.  Pixels outside the window are unaltered.
+	 * Tiles that the operation cannot change are skipped.
+	 * @param op
+	 * @param src
+	 * @param sx
+	 * @param sy
+	 * @param dx
+	 * @param dy
+	 * @param w
+	 * @param h
+	 */
+	void combine(int op, TiledRaster src, int sx, int sy, int dx, int dy, int w, int h)
+	{
+		if(w <= 0 || h <= 0)
+			return;
+		if(op == opCopy && sx == 0 && sy == 0 && dx == 0 && dy == 0 && w == width && h == height
+				&& src.width == width && src.height == height)
+		{
+			for(int i = 0; i < tiles.length; i++)
+				tiles[i] = copy(src.tiles[i]);
+			return;
+		}
+		int k0 = dx >>> tileBits;
+		int k1 = (dx + w - 1) >>> tileBits;
+		int t0 = dy >>> tileBits;
+		int t1 = (dy + h - 1) >>> tileBits;
+		for(int ty = t0; ty <= t1; ty++)
+		{
+			int y0 = Math.max(dy, ty << tileBits);
+			int y1 = Math.min(dy + h, (ty + 1) << tileBits);
+			for(int k = k0; k <= k1; k++)
+			{
+				if((op == opAnd || op == opAndNot) && tiles[ty*stride + k] == null)
+					continue;
+				int lo = Math.max(dx, k << tileBits);
+				int hi = Math.min(dx + w, (k + 1) << tileBits);
+				int shift = lo - (k << tileBits);
+				int n = hi - lo;
+				long mask = (n == 64 ? -1L : (1L << n) - 1) << shift;
+				for(int y = y0; y < y1; y++)
+				{
+					long v = src.bitsAt(sx + lo - dx, sy + y - dy) << shift;
+					long old = word(k, y);
+					long now;
+					switch(op)
+					{
+					case opOr:
+						now = old | (v & mask);
+						break;
+					case opAnd:
+						now = old & (v | ~mask);
+						break;
+					case opAndNot:
+						now = old & ~(v & mask);
+						break;
+					case opCopy:
+					default:
+						now = (old & ~mask) | (v & mask);
+					}
+					setWord(k, y, now);
+				}
+				compact(ty*stride + k);
+			}
+		}
+	}
+
+	/**
+	 * Union with a raster of the same size
+	 * @param b
+	 */
+	void or(TiledRaster b)
+	{
+		for(int i = 0; i < tiles.length; i++)
+		{
+			long[] s = b.tiles[i];
+			long[] t = tiles[i];
+			if(s == null || t == full)
+				continue;
+			if(t == null || s == full)
+			{
+				tiles[i] = copy(s);
+				continue;
+			}
+			for(int r = 0; r < tileSize; r++)
+				t[r] |= s[r];
+			compact(i);
+		}
+	}
+
+	/**
+	 * Intersection with a raster of the same size
+	 * @param b
+	 */
+	void and(TiledRaster b)
+	{
+		for(int i = 0; i < tiles.length; i++)
+		{
+			long[] s = b.tiles[i];
+			long[] t = tiles[i];
+			if(t == null || s == full)
+				continue;
+			if(s == null || t == full)
+			{
+				tiles[i] = copy(s);
+				continue;
+			}
+			for(int r = 0; r < tileSize; r++)
+				t[r] &= s[r];
+			compact(i);
+		}
+	}
+
+	/**
+	 * Difference with a raster of the same size
+	 * @param b
+	 */
+	void andNot(TiledRaster b)
+	{
+		for(int i = 0; i < tiles.length; i++)
+		{
+			long[] s = b.tiles[i];
+			long[] t = tiles[i];
+			if(t == null || s == null)
+				continue;
+			if(s == full)
+			{
+				tiles[i] = null;
+				continue;
+			}
+			t = writable(i);
+			for(int r = 0; r < tileSize; r++)
+				t[r] &= ~s[r];
+			compact(i);
+		}
+	}
+
+	/**
+	 * Bit-sliced counting.  Bit k of each pixel's count is held in counts[k], and all
+	 * the rasters are the same size.  Where solid is set, add one to the count (but
+	 * not beyond depth); where it is clear, set the count to zero.  The new counts go
+	 * into result, which should be all clear.  Tiles where the solid raster and the
+	 * counts are all uniform are done in one go.
+	 * @param solid
+	 * @param counts
+	 * @param depth
+	 * @param result
+	 */
+	static void countUp(TiledRaster solid, TiledRaster[] counts, int depth, TiledRaster[] result)
+	{
+		long[][] c = new long[counts.length][];
+		long[] word = new long[counts.length];
+		for(int i = 0; i < solid.tiles.length; i++)
+		{
+			long[] s = solid.tiles[i];
+			if(s == null)
+				continue;
+			int count = uniform(counts, i, c);
+			if(s == full && count >= 0)
+			{
+				count = Math.min(count + 1, depth);
+				for(int k = 0; k < result.length; k++)
+					if(((count >> k) & 1) != 0)
+						result[k].tiles[i] = full;
+				continue;
+			}
+			long[][] t = new long[result.length][];
+			for(int k = 0; k < t.length; k++)
+				t[k] = new long[tileSize];
+			for(int r = 0; r < tileSize; r++)
+			{
+				long m = s[r];
+				if(m == 0)
+					continue;
+				for(int k = 0; k < word.length; k++)
+					word[k] = c[k] == null ? 0 : c[k][r];
+				long stop = atLeast(word, depth);
+				long carry = -1L;
+				for(int k = 0; k < word.length; k++)
+				{
+					long old = word[k];
+					long sum = old ^ carry;
+					carry &= old;
+					t[k][r] = ((sum & ~stop) | (old & stop)) & m;
+				}
+			}
+			for(int k = 0; k < t.length; k++)
+			{
+				result[k].tiles[i] = t[k];
+				result[k].compact(i);
+			}
+		}
+	}
+
+	/**
+	 * Set the pixels of result whose bit-sliced counts are at least n
+	 * (see countUp()).  Result should be all clear.
+	 * @param counts
+	 * @param n
+	 * @param result
+	 * @return true if any pixels were set
+	 */
+	static boolean atLeast(TiledRaster[] counts, int n, TiledRaster result)
+	{
+		long[][] c = new long[counts.length][];
+		long[] word = new long[counts.length];
+		boolean any = false;
+		for(int i = 0; i < result.tiles.length; i++)
+		{
+			int count = uniform(counts, i, c);
+			if(count >= 0)
+			{
+				// Only interior tiles can be full, so a non-zero uniform count is interior
+
+				if(count >= n)
+				{
+					result.tiles[i] = full;
+					any = true;
+				}
+				continue;
+			}
+			long[] t = new long[tileSize];
+			for(int r = 0; r < tileSize; r++)
+			{
+				for(int k = 0; k < word.length; k++)
+					word[k] = c[k] == null ? 0 : c[k][r];
+				t[r] = atLeast(word, n);
+			}
+			result.tiles[i] = t;
+			result.compact(i);
+			any |= result.tiles[i] != null;
+		}
+		return any;
+	}
+
+	/**
+	 * If tile i of every one of the bit-sliced counts is a sentinel, the count over
+	 * the whole tile; otherwise -1.  The tiles are left in c.
+	 * @param counts
+	 * @param i
+	 * @param c
+	 * @return
+	 */
+	private static int uniform(TiledRaster[] counts, int i, long[][] c)
+	{
+		int count = 0;
+		boolean mixed = false;
+		for(int k = 0; k < counts.length; k++)
+		{
+			c[k] = counts[k].tiles[i];
+			if(c[k] == full)
+				count |= 1 << k;
+			else if(c[k] != null)
+				mixed = true;
+		}
+		return mixed ? -1 : count;
+	}
+
+	/**
+	 * The pixels of a word whose bit-sliced counts c are at least n
+	 * @param c
+	 * @param n
+	 * @return
+	 */
+	private static long atLeast(long[] c, int n)
+	{
+		long greater = 0;
+		long equal = -1L;
+		for(int k = c.length - 1; k >= 0; k--)
+		{
+			if(((n >> k) & 1) != 0)
+				equal &= c[k];
+			else
+			{
+				greater |= equal & c[k];
+				equal &= ~c[k];
+			}
+		}
+		return greater | equal;
+	}
+
+	/**
+	 * Invert every pixel
+	 */
+	void flip()
+	{
+		long tail = tailMask();
+		for(int i = 0; i < tiles.length; i++)
+		{
+			if(interior(i))
+			{
+				long[] t = tiles[i];
+				if(t == null)
+					tiles[i] = full;
+				else if(t == full)
+					tiles[i] = null;
+				else
+					for(int r = 0; r < tileSize; r++)
+						t[r] = ~t[r];
+				continue;
+			}
+
+			// Edge tiles: only flip what's inside the raster
+
+			long mask = (i % stride) == stride - 1 ? tail : -1L;
+			int rows = Math.min(tileSize, height - ((i / stride) << tileBits));
+			long[] t = writable(i);
+			for(int r = 0; r < rows; r++)
+				t[r] = ~t[r] & mask;
+			compact(i);
+		}
+	}
+
+	/**
+	 * Clear every pixel
+	 */
+	void clear()
+	{
+		Arrays.fill(tiles, null);
+	}
+
+	/**
+	 * Replace tile i by a sentinel if it is all air or all solid
+	 * @param i
+	 */
+	private void compact(int i)
+	{
+		long[] t = tiles[i];
+		if(t == null || t == full)
+			return;
+		long any = 0, all = -1L;
+		for(int r = 0; r < tileSize; r++)
+		{
+			any |= t[r];
+			all &= t[r];
+		}
+		if(any == 0)
+			tiles[i] = null;
+		else if(all == -1L && interior(i))
+			tiles[i] = full;
+	}
+
+	/**
+	 * Free the storage of all tiles that have become uniform
+	 */
+	void compact()
+	{
+		for(int i = 0; i < tiles.length; i++)
+			compact(i);
+	}
+
+	/**
+	 * The smallest box containing all the set pixels as {xMin, yMin, xMax, yMax}
+	 * (inclusive), or null if there aren't any.  Air tiles are skipped and the
+	 * others are scanned a word at a time.
+	 * @return
+	 */
+	int[] bounds()
+	{
+		int xMin = width, yMin = height, xMax = -1, yMax = -1;
+		for(int i = 0; i < tiles.length; i++)
+		{
+			long[] t = tiles[i];
+			if(t == null)
+				continue;
+			long any = 0;
+			int r0 = -1, r1 = -1;
+			for(int r = 0; r < tileSize; r++)
+			{
+				if(t[r] != 0)
+				{
+					any |= t[r];
+					if(r0 < 0)
+						r0 = r;
+					r1 = r;
+				}
+			}
+			if(any == 0)
+				continue;
+			int tx = (i % stride) << tileBits;
+			int ty = (i / stride) << tileBits;
+			xMin = Math.min(xMin, tx + Long.numberOfTrailingZeros(any));
+			xMax = Math.max(xMax, tx + 63 - Long.numberOfLeadingZeros(any));
+			yMin = Math.min(yMin, ty + r0);
+			yMax = Math.max(yMax, ty + r1);
+		}
+		if(xMax < 0)
+			return null;
+		return new int[] {xMin, yMin, xMax, yMax};
+	}
+
+	/**
+	 * Number of set pixels
+	 * @return
+	 */
+	long cardinality()
+	{
+		long result = 0;
+		for(int i = 0; i < tiles.length; i++)
+		{
+			long[] t = tiles[i];
+			if(t == full)
+				result += tileSize*tileSize;
+			else if(t != null)
+				for(int r = 0; r < tileSize; r++)
+					result += Long.bitCount(t[r]);
+		}
+		return result;
+	}
+
+	/**
+	 * Anything set?
+	 * @return
+	 */
+	boolean isEmpty()
+	{
+		for(int i = 0; i < tiles.length; i++)
+		{
+			long[] t = tiles[i];
+			if(t == full)
+				return false;
+			if(t != null)
+				for(int r = 0; r < tileSize; r++)
+					if(t[r] != 0)
+						return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The first set pixel in row y at or after x, or -1 if there isn't one
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	int nextSetBit(int x, int y)
+	{
+		if(x >= width)
+			return -1;
+		if(x < 0)
+			x = 0;
+		int w = x >>> 6;
+		long v = word(w, y) & (-1L << x);
+		while(true)
+		{
+			if(v != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(v);
+			w++;
+			if(w >= stride)
+				return -1;
+			v = word(w, y);
+		}
+	}
+
+	/**
+	 * The last clear pixel in row y at or before x, or -1 if there isn't one
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	int previousClearBit(int x, int y)
+	{
+		if(x < 0)
+			return -1;
+		if(x >= width)
+			return x;
+		int w = x >>> 6;
+		long v = ~word(w, y) & (-1L >>> (63 - (x & 63)));
+		while(true)
+		{
+			if(v != 0)
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(v);
+			w--;
+			if(w < 0)
+				return -1;
+			v = ~word(w, y);
+		}
+	}
+
+	/**
+	 * The first clear pixel in row y at or after x, or the width if there isn't one
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	int nextClearBit(int x, int y)
+	{
+		if(x >= width)
+			return width;
+		if(x < 0)
+			x = 0;
+		int w = x >>> 6;
+		long v = ~word(w, y) & (-1L << x);
+		while(true)
+		{
+			if(v != 0)
+				return Math.min(width, (w << 6) + Long.numberOfTrailingZeros(v));
+			w++;
+			if(w >= stride)
+				return width;
+			v = ~word(w, y);
+		}
+	}
+}
@@ -6,20 +6,22 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
-import javafx.collections.ObservableList;
 import javafx.scene.Group;
-import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.paint.Material;
 import javafx.scene.paint.PhongMaterial;
-import javafx.scene.shape.Shape3D;
 import javafx.scene.transform.Transform;
 
 import org.reprap.geometry.LayerRules;
 import org.reprap.geometry.polygons.BooleanGrid;
 import org.reprap.geometry.polygons.BooleanGridList;
+import org.reprap.geometry.polygons.MaterialRaster;
 import org.reprap.geometry.polygons.CSG2D;
+import org.reprap.geometry.polygons.CompiledCSG2D;
 import org.reprap.geometry.polygons.HalfPlane;
 import org.reprap.geometry.polygons.Interval;
 import org.reprap.geometry.polygons.Point2D;
@@ -36,7 +38,6 @@ import org.reprap.utilities.RrGraphics;
 import org.jogamp.vecmath.Color3f;
 import org.jogamp.vecmath.Matrix4d;
 import org.jogamp.vecmath.Point3d;
-import org.jogamp.vecmath.Tuple3d;
 import org.jogamp.vecmath.Vector3d;
 
 /**
@@ -122,7 +123,7 @@ public class AllSTLsToBuild
 	 * @author Adrian
 	 *
 	 */
-	class LineSegment
+	static class LineSegment
 	{	
 		/**
 		 * The ends of the line segment
@@ -134,6 +135,12 @@ public class AllSTLsToBuild
 		 */
 		public Attributes att = null;
 		
+		/**
+		 * The mesh edges that a and b lie on, as keys made from the numbers of their
+		 * vertices; -1 if not known.  The segments from neighbouring triangles share these.
+		 */
+		public long aEdge = -1, bEdge = -1;
+		
 		/**
 		 * Constructor takes two intersection points with an STL triangle edge.
 		 * @param p
@@ -147,101 +154,20 @@ public class AllSTLsToBuild
 			b = q;
 			att = at;
 		}
-	}
-	
-	/**
-	 * Ring buffer cache to hold previously computed slices for doing 
-	 * infill and support material calculations.
-	 * @author ensab
-	 *
-	 */
-	class SliceCache
-	{
-		private final BooleanGridList[][] sliceRing;
-		private final BooleanGridList[][] supportRing;
-		private final int[] layerNumber;
-		private int ringPointer;
-		private final int noLayer = Integer.MIN_VALUE;
-		private int ringSize = 10;
-		
-		public SliceCache(LayerRules lr)
-		{
-			if(lr == null)
-				Debug.e("SliceCache(): null LayerRules!");
-			ringSize = lr.sliceCacheSize();
-			sliceRing = new BooleanGridList[ringSize][stls.size()];
-			supportRing = new BooleanGridList[ringSize][stls.size()];
-			layerNumber = new int[ringSize];
-			ringPointer = 0;
-			for(int layer = 0; layer < ringSize; layer++)
-				for(int stl = 0; stl < stls.size(); stl++)
-				{
-					sliceRing[layer][stl] = null;
-					supportRing[layer][stl] = null;
-					layerNumber[layer] = noLayer;
-				}
-		}
-		
-		private int getTheRingLocationForWrite(int layer)
-		{
-			for(int i = 0; i < ringSize; i++)
-				if(layerNumber[i] == layer)
-					return i;
-
-			int rp = ringPointer;
-			for(int s = 0; s < stls.size(); s++)
-			{
-				sliceRing[rp][s] = null;
-				supportRing[rp][s] = null;
-			}
-			ringPointer++;
-			if(ringPointer >= ringSize)
-				ringPointer = 0;
-			return rp;
-		}
-		
-		public void setSlice(BooleanGridList slice, int layer, int stl)
-		{
-			int rp = getTheRingLocationForWrite(layer);
-			layerNumber[rp] = layer;
-			sliceRing[rp][stl] = slice;
-		}
-		
-		public void setSupport(BooleanGridList support, int layer, int stl)
-		{
-			int rp = getTheRingLocationForWrite(layer);
-			layerNumber[rp] = layer;
-			supportRing[rp][stl] = support;
-		}
-		
-		private int getTheRingLocationForRead(int layer)
-		{
-			int rp = ringPointer;
-			for(int i = 0; i < ringSize; i++)
-			{
-				rp--;
-				if(rp < 0)
-					rp = ringSize - 1;
-				if(layerNumber[rp] == layer)
-					return rp;
-			}
-			return -1;
-		}
 		
-		public BooleanGridList getSlice(int layer, int stl)
-		{
-			int rp = getTheRingLocationForRead(layer);
-			if(rp >= 0)
-				return sliceRing[rp][stl];
-			return null;
-		}
-		
-		public BooleanGridList getSupport(int layer, int stl)
+		/**
+		 * Constructor that also records the mesh edges the ends lie on.
+		 * @param p
+		 * @param q
+		 * @param at
+		 * @param pEdge
+		 * @param qEdge
+		 */
+		public LineSegment(Point2D p, Point2D q, Attributes at, long pEdge, long qEdge)
 		{
-			int rp = getTheRingLocationForRead(layer);
-			if(rp >= 0)
-				return supportRing[rp][stl];
-			return null;
+			this(p, q, at);
+			aEdge = pEdge;
+			bEdge = qEdge;
 		}
 	}
 	
@@ -250,6 +176,16 @@ public class AllSTLsToBuild
 	 */
 	private static final String scad = ".scad";
 	
+	/**
+	 * How far apart (mm) loose ends of slice segments may be and still be joined
+	 */
+	private static final double looseJoin = 1.0;
+	
+	/**
+	 * Segments longer than this (mm) are preferred for starting polygons on
+	 */
+	private static final double longEdge = 1.5;
+	
 	/**
 	 * The list of things to be built
 	 */
@@ -290,6 +226,50 @@ public class AllSTLsToBuild
 	 */
 	private SliceCache cache;
 	
+	/**
+	 * For each item, the triangles of each of its STLs (null for those
+	 * that are CSG) indexed by z, so a slice only visits the triangles it cuts
+	 */
+	private List<TriangleIndex[]> triangles;
+	
+	/**
+	 * If the SweepSlicer preference is set, each thread keeps a plane sweeping
+	 * through each index with the triangles it cuts from one layer to the next
+	 */
+	private boolean sweep;
+	
+	/**
+	 * For each item, the CSG of each of its STLs (null for those that are
+	 * meshes) in place and pruned to slabs of a few layers (see CSGSlabs)
+	 */
+	private List<CSGSlabs[]> csgSlabs;
+	
+	/**
+	 * If the SolidityCounts preference is set, the rolling counts of solid layers
+	 * for each item, used to find its surfaces
+	 */
+	private List<SolidityColumn> columns;
+	
+	/**
+	 * If the SupportShadowPass preference is set, the shadow each item
+	 * casts down for support, worked out before building starts
+	 */
+	private List<SupportShadow> shadows = null;
+	
+	/**
+	 * How many times bigger than the slices' pixels the pixels of the support
+	 * and of the sparse infill are (the SupportResolution and SparseInfillResolution
+	 * preferences)
+	 */
+	private int supportResolution = 1;
+	private int sparseResolution = 1;
+	
+	/**
+	 * How many layers below the one being built may be sliced ahead of time
+	 * (the slice cache needs room for them too)
+	 */
+	private int lookAhead = 0;
+	
 	/**
 	 * Simple constructor
 	 *
@@ -496,6 +476,8 @@ public class AllSTLsToBuild
 		newstls.add(get(0));
 		stls = newstls;
 		newstls = null;
+		if(cache != null)
+			cache.close();
 		cache = null;  // Just in case...
 		
 		return false;
@@ -516,38 +498,28 @@ public class AllSTLsToBuild
 		for(int i = 0; i < stls.size(); i++)
 		{
 			STLObject stl = stls.get(i);
-			Transform trans = stl.getTransform();
-			
-			Group bg = stl.getSTL();
-			
-			ObservableList<Node> enumKids = bg.getChildren();
 
-			for(Node ob:enumKids)
+			for(int part = 0; part < stl.getCount(); part++)
 			{
-				//Object ob = enumKids.next();
-
-				if(ob instanceof Group)
+				if(XYZbox == null)
 				{
-					Group bg1 = (Group)ob;
-					Attributes att = (Attributes)(bg1.getUserData());
+					XYZbox = BBox(stl, part);
 					if(XYZbox == null)
+						continue;
+					if(rectangles.get(i) == null)
+						rectangles.set(i, new Rectangle(XYZbox.XYbox));
+					else
+						rectangles.set(i, Rectangle.union(rectangles.get(i), XYZbox.XYbox));
+				} else
+				{
+					s = BBox(stl, part);
+					if(s != null)
 					{
-						XYZbox = BBox(att.getPart(), trans);
+						XYZbox.expand(s);
 						if(rectangles.get(i) == null)
-							rectangles.set(i, new Rectangle(XYZbox.XYbox));
+							rectangles.set(i, new Rectangle(s.XYbox));
 						else
-							rectangles.set(i, Rectangle.union(rectangles.get(i), XYZbox.XYbox));
-					} else
-					{
-						s = BBox(att.getPart(), trans);
-						if(s != null)
-						{
-							XYZbox.expand(s);
-							if(rectangles.get(i) == null)
-								rectangles.set(i, new Rectangle(s.XYbox));
-							else
-								rectangles.set(i, Rectangle.union(rectangles.get(i), s.XYbox));
-						}
+							rectangles.set(i, Rectangle.union(rectangles.get(i), s.XYbox));
 					}
 				}
 			}
@@ -560,8 +532,10 @@ public class AllSTLsToBuild
 	 * Freeze the list - no more editing.
 	 * Also compute the XY box round everything.
 	 * Also compute the individual plan boxes round each STLObject.
+	 * The first slice may be asked for on more than one thread at once,
+	 * hence the synchronization.
 	 */
-	private void freeze()
+	private synchronized void freeze()
 	{
 		if(frozen)
 			return;
@@ -570,74 +544,172 @@ public class AllSTLsToBuild
 		frozen = true;
 			
 		if(cache == null)
-			cache = new SliceCache(layerRules);
+			cache = new SliceCache(stls.size(), layerRules.sliceCacheSize() + lookAhead);
+		for(STLObject stl : stls)
+			stl.buildMesh();
 		setBoxes();
+		indexTriangles();
+		placeCSGs();
+		columns = null;
+		if(solidityCounts())
+			countSolidity();
+		supportResolution = resolution("SupportResolution");
+		sparseResolution = resolution("SparseInfillResolution");
+	}
+	
+	/**
+	 * A pixel size preference, as a multiple of the slices' pixels.  These may
+	 * be left unset, which means the slices' own.
+	 * @param name
+	 * @return between 1 and 8
+	 */
+	private static int resolution(String name)
+	{
+		try
+		{
+			String value = Preferences.loadGlobalString(name, null);
+			if(value != null && !value.trim().isEmpty())
+				return Math.max(Math.min(Integer.parseInt(value.trim()), 8), 1);
+		} catch (IOException | NumberFormatException e)
+		{
+			Debug.e("AllSTLsToBuild.resolution(): " + name + ": " + e.toString());
+		}
+		return 1;
+	}
+	
+	/**
+	 * Should the solid layers be counted?  This is the SolidityCounts preference,
+	 * which may be left unset.
+	 * @return
+	 */
+	private static boolean solidityCounts()
+	{
+		try
+		{
+			return Preferences.loadGlobalBool("SolidityCounts", false);
+		} catch (IOException e)
+		{
+			Debug.e(e.toString());
+		}
+		return false;
+	}
+	
+	/**
+	 * Set up the counts of solid layers for each item.  This is done when we
+	 * freeze (the items' rectangles must be known), and again if the look-ahead
+	 * changes.
+	 */
+	private void countSolidity()
+	{
+		int depth = 1;
+		for(Extruder e : layerRules.getPrinter().getExtruders())
+			depth = Math.max(depth, e.getSurfaceLayers());
+		columns = new ArrayList<>();
+		for(int i = 0; i < stls.size(); i++)
+			columns.add(new SolidityColumn(this, i, rectangles.get(i), depth, 2*depth + 2 + lookAhead));
+	}
+	
+	/**
+	 * Index the triangles of all the STLs' meshes (which are already in place) by z.
+	 * This is done once, when we freeze.
+	 */
+	private void indexTriangles()
+	{
+		sweep = false;
+		try
+		{
+			sweep = Preferences.loadGlobalBool("SweepSlicer", false);
+		} catch (IOException e)
+		{
+			Debug.e(e.toString());
+		}
+		
+		triangles = new ArrayList<>();
+		for(STLObject stlObject : stls)
+		{
+			Mesh mesh = stlObject.mesh();
+			TriangleIndex[] indexes = new TriangleIndex[stlObject.getCount()];
+			for(int i = 0; i < indexes.length; i++)
+				if(stlObject.getCSG(i) == null)
+					indexes[i] = new TriangleIndex(mesh, i);
+			triangles.add(indexes);
+		}
+	}
+	
+	/**
+	 * Transform the CSGs of all the STLs into place and prune them to slabs, so
+	 * each slice only looks at the half-spaces near it.  This is done once, when
+	 * we freeze.
+	 */
+	private void placeCSGs()
+	{
+		double thickness = CSGSlabs.slabLayers()*layerRules.getZStep();
+		Interval z = XYZbox == null ? new Interval() : XYZbox.Zint;
+		csgSlabs = new ArrayList<>();
+		for(int i = 0; i < stls.size(); i++)
+		{
+			STLObject stlObject = stls.get(i);
+			Matrix4d m4 = new Matrix4d();
+			stlObject.getTransform().get(m4);
+			CSGSlabs[] parts = new CSGSlabs[stlObject.getCount()];
+			for(int part = 0; part < parts.length; part++)
+			{
+				CSG3D csg = stlObject.getCSG(part);
+				if(csg != null)
+					parts[part] = new CSGSlabs(csg.transform(m4), rectangles.get(i), z, thickness);
+			}
+			csgSlabs.add(parts);
+		}
 	}
 	
     /**
-     * Run through a Shape3D and find its enclosing XYZ box
-     * @param shape
-     * @param trans
-     * @param z
+     * Find the XYZ box round one part of an STLObject, in place.  Once we're frozen
+     * nothing can move, so the mesh made by freeze() will do; before that the box
+     * comes straight from the scene graph, so that the mesh is only built the once.
+     * @param stl
+     * @param part
+     * @return the box, or null if the part is empty
      */
-    private BoundingBox BBoxPoints(Shape3D shape, Transform trans)
+    private BoundingBox BBox(STLObject stl, int part)
     {
-        BoundingBox b = null;
-        GeometryArray g = (GeometryArray)shape.getGeometry();
-        Point3d p1 = new Point3d();
-        Point3d q1 = new Point3d();
-        
-        if(g != null)
-        {
-            for(int i = 0; i < g.getVertexCount(); i++) 
-            {
-                g.getCoordinate(i, p1);
-                trans.transform(p1, q1);
-                if(b == null)
-                	b = new BoundingBox(q1);
-                else
-                	b.expand(q1);
-            }
-        }
-        return b;
+    	if(frozen)
+    		return BBoxPoints(stl.mesh(), part);
+    	double[] e = stl.extent(part);
+    	if(e == null)
+    		return null;
+    	BoundingBox b = new BoundingBox(new Point3d(e[0], e[1], e[2]));
+    	b.expand(new Point3d(e[3], e[4], e[5]));
+    	return b;
     }
-	
-	/**
-	 * Unpack the Shape3D(s) from value and find their enclosing XYZ box
-	 * @param value
-	 * @param trans
-	 * @param z
-	 */
-	private BoundingBox BBox(Object sg, Transform trans) 
+    
+    /**
+     * Run through the triangles of one part of a mesh and find their enclosing XYZ box
+     * @param mesh
+     * @param part
+     * @return the box, or null if the part is empty
+     */
+    private BoundingBox BBoxPoints(Mesh mesh, int part)
     {
-		BoundingBox b = null;
-		BoundingBox s;
-		
-        //if(value instanceof SceneGraphObject) 
-        //{
-            //SceneGraphObject sg = (SceneGraphObject)value;
-            if(sg instanceof Group) 
-            {
-                Group g = (Group)sg;
-                ObservableList<Node> enumKids = g.getChildren( );
-                for(Node ob:enumKids)
-                {
-                	if(b == null)
-                		b = BBox(ob, trans);
-                	else
-                	{
-                		s = BBox(ob, trans);
-                		if(s != null)
-                			b.expand(s);
-                	}
-                }
-            } else if (sg instanceof Shape3D) 
-            {
-                b = BBoxPoints((Shape3D)sg, trans);
-            }
-        //}
-        
-        return b;
+    	if(mesh.first(part) >= mesh.end(part))
+    		return null;
+    	double x0 = Double.POSITIVE_INFINITY, y0 = x0, z0 = x0;
+    	double x1 = Double.NEGATIVE_INFINITY, y1 = x1, z1 = x1;
+    	for(int t = mesh.first(part); t < mesh.end(part); t++)
+    	{
+    		for(int c = 0; c < 3; c++)
+    		{
+    			int v = mesh.corner(t, c);
+    			x0 = Math.min(x0, mesh.x(v));
+    			x1 = Math.max(x1, mesh.x(v));
+    			y0 = Math.min(y0, mesh.y(v));
+    			y1 = Math.max(y1, mesh.y(v));
+    			z0 = Math.min(z0, mesh.z(v));
+    			z1 = Math.max(z1, mesh.z(v));
+    		}
+    	}
+    	BoundingBox b = new BoundingBox(new Point3d(x0, y0, z0));
+    	b.expand(new Point3d(x1, y1, z1));
+    	return b;
     }
 	
 	
@@ -665,165 +737,255 @@ public class AllSTLsToBuild
 	
 	
 	/**
-	 * Make sure the list starts with and edge longer than 1.5mm (or the longest if not)
+	 * Plot the edges of the slice for debugging
+	 * @param rg
 	 * @param edges
 	 */
-	private void startLong(ArrayList<LineSegment> edges)
+	private void edgePlot(ArrayList<LineSegment> edges)
 	{
-		if(edges.size() <= 0) return;
-		double d = -1;
-		int swap = -1;
-		LineSegment temp;
+		RrGraphics rg = layerRules.getPrinter().getGraphics();
+		if(rg == null) return;
+		PolygonList pp = new PolygonList();
+		Scene black = new Scene();
+		Material b = new PhongMaterial();
+		b.setDiffuseColor(new Color3f(0,0,0));
+		black.setMaterial(b);
+		Attributes a = new Attributes(null,null,null,black);
 		for(int i = 0; i < edges.size(); i++)
 		{
-			double d2 = Point2D.dSquared(edges.get(i).a, edges.get(i).b);
-			if(d2 > 2.25)
-			{
-				temp = edges.get(0);
-				edges.set(0, edges.get(i));
-				edges.set(i, temp);
-				return;
-			}
-			if(d2 > d)
-			{
-				d = d2;
-				swap = i;
-			}
-		}
-		if(swap < 0)
-		{
-			Debug.e("AllSTLsToBuild.startLong(): no edges found!");
-			return;
+			Polygon p = new Polygon(a, false);
+			p.add(edges.get(i).a);
+			p.add(edges.get(i).b);
+			pp.add(p);
 		}
-		temp = edges.get(0);
-		edges.set(0, edges.get(swap));
-		edges.set(swap, temp);
-		if(Math.sqrt(d) < Preferences.gridRes())
-			Debug.d("AllSTLsToBuild.startLong(): edge length: " + Math.sqrt(d) + " is the longest.");
+		rg.add(pp);
 	}
 	
 	/**
-	 * Stitch together the some of the edges to form a polygon.
+	 * Get all the polygons represented by the edges.
 	 * @param edges
 	 * @return
 	 */
-	private Polygon getNextPolygon(ArrayList<LineSegment> edges)
+	private PolygonList simpleCull(ArrayList<LineSegment> edges)
 	{
 		if(!frozen)
 		{
-			Debug.e("AllSTLsToBuild:getNextPolygon() called for an unfrozen list!");
+			Debug.e("AllSTLsToBuild:simpleCull() called for an unfrozen list!");
 			freeze();
 		}
-		if(edges.size() <= 0)
-			return null;
-		startLong(edges);
-		LineSegment next = edges.get(0);
-		edges.remove(0);
-		Polygon result = new Polygon(next.att, true);
-		result.add(next.a);
-		result.add(next.b);
-		Point2D start = next.a;
-		Point2D end = next.b;
-		
-		boolean first = true;
-		while(edges.size() > 0)
+		return stitch(edges);
+	}
+	
+	/**
+	 * Join the edges up into polygons.
+	 * 
+	 * The ends of segments from neighbouring triangles lie on the mesh edge the triangles share,
+	 * so each end is paired with the other end on the same mesh edge through a hash table
+	 * of the edges, and each loop is then traced by following the pairs, in time linear in the
+	 * number of segments.  Ends that don't pair up like that (where the mesh isn't a closed manifold,
+	 * or the plane goes through a vertex) are paired with the nearest unpaired end within
+	 * looseJoin, found in a hash table of grid cells, unless the loop's own loose start is nearer,
+	 * in which case the loop is closed.  Each polygon starts on a segment longer than longEdge
+	 * if it has one, and otherwise on its longest.
+	 * @param edges
+	 * @return
+	 */
+	static PolygonList stitch(ArrayList<LineSegment> edges)
+	{
+		PolygonList result = new PolygonList();
+		
+		// End 2*i is edges.get(i).a and end 2*i + 1 is its b.
+		
+		int n = edges.size();
+		int[] partner = new int[2*n];
+		HashMap<Long, Integer> waiting = new HashMap<>();
+		for(int e = 0; e < 2*n; e++)
 		{
-			double d2 = Point2D.dSquared(start, end);
-			if(first)
-				d2 = Math.max(d2, 1);
-			first = false;
-			boolean aEnd = false;
-			int index = -1;
-			for(int i = 0; i < edges.size(); i++)
+			partner[e] = -1;
+			long key = edgeKey(edges, e);
+			if(key < 0)
+				continue;
+			Integer other = waiting.remove(key);
+			if(other == null)
+				waiting.put(key, e);
+			else
 			{
-				double dd = Point2D.dSquared(edges.get(i).a, end);
-				if(dd < d2)
-				{
-					d2 = dd;
-					aEnd = true;
-					index = i;
-				}
-				dd = Point2D.dSquared(edges.get(i).b, end);
-				if(dd < d2)
-				{
-					d2 = dd;
-					aEnd = false;
-					index = i;
-				}
+				partner[e] = other;
+				partner[other] = e;
 			}
-
-			if(index >= 0)
+		}
+		
+		// Put the ends left over in grid cells of side looseJoin
+		
+		double cell = looseJoin;
+		HashMap<Long, List<Integer>> loose = new HashMap<>();
+		for(int e = 0; e < 2*n; e++)
+		{
+			if(partner[e] >= 0)
+				continue;
+			Point2D p = endPoint(edges, e);
+			long key = cellKey((long)Math.floor(p.x()/cell), (long)Math.floor(p.y()/cell));
+			List<Integer> ends = loose.get(key);
+			if(ends == null)
 			{
-				next = edges.get(index);
-				edges.remove(index);
-				int ipt = result.size() - 1;
-				if(aEnd)
-				{
-					result.set(ipt, Point2D.mul(Point2D.add(next.a, result.point(ipt)), 0.5));
-					result.add(next.b);
-					end = next.b;
-				} else
+				ends = new ArrayList<>();
+				loose.put(key, ends);
+			}
+			ends.add(e);
+		}
+		
+		// Trace the loops, starting with the long segments in order and then the
+		// others longest first, so each loop starts on a long segment if it can
+		
+		int[] starts = startsLongFirst(edges);
+		boolean[] used = new boolean[n];
+		for(int s : starts)
+		{
+			if(used[s])
+				continue;
+			used[s] = true;
+			LineSegment next = edges.get(s);
+			Polygon polygon = new Polygon(next.att, true);
+			polygon.add(next.a);
+			polygon.add(next.b);
+			int end = 2*s + 1;
+			while(true)
+			{
+				int join = partner[end];
+				if(join < 0)
 				{
-					result.set(ipt, Point2D.mul(Point2D.add(next.b, result.point(ipt)), 0.5));
-					result.add(next.a);
-					end = next.a;				
+					double d2 = cell*cell;
+					if(partner[2*s] < 0)
+						d2 = Math.min(d2, Point2D.dSquared(endPoint(edges, end), endPoint(edges, 2*s)));
+					join = nearestLoose(edges, loose, partner, used, end, cell, d2);
 				}
-			} else
-				return result;
+				if(join < 0 || used[join/2])
+					break;
+				used[join/2] = true;
+				next = edges.get(join/2);
+				int ipt = polygon.size() - 1;
+				polygon.set(ipt, Point2D.mul(Point2D.add(endPoint(edges, join), polygon.point(ipt)), 0.5));
+				end = join ^ 1;
+				polygon.add(endPoint(edges, end));
+			}
+			if(polygon.size() >= 3)
+				result.add(polygon);
 		}
 		
-		Debug.d("AllSTLsToBuild.getNextPolygon(): exhausted edge list!");
-		
 		return result;
 	}
 	
 	/**
-	 * Plot the edges of the slice for debugging
-	 * @param rg
+	 * The point at end e (see stitch())
 	 * @param edges
+	 * @param e
+	 * @return
 	 */
-	private void edgePlot(ArrayList<LineSegment> edges)
+	private static Point2D endPoint(ArrayList<LineSegment> edges, int e)
 	{
-		RrGraphics rg = layerRules.getPrinter().getGraphics();
-		if(rg == null) return;
-		PolygonList pp = new PolygonList();
-		Scene black = new Scene();
-		Material b = new PhongMaterial();
-		b.setDiffuseColor(new Color3f(0,0,0));
-		black.setMaterial(b);
-		Attributes a = new Attributes(null,null,null,black);
-		for(int i = 0; i < edges.size(); i++)
-		{
-			Polygon p = new Polygon(a, false);
-			p.add(edges.get(i).a);
-			p.add(edges.get(i).b);
-			pp.add(p);
-		}
-		rg.add(pp);
+		LineSegment l = edges.get(e/2);
+		return (e & 1) == 0 ? l.a : l.b;
 	}
 	
 	/**
-	 * Get all the polygons represented by the edges.
+	 * The mesh edge key of end e (see stitch())
 	 * @param edges
+	 * @param e
 	 * @return
 	 */
-	private PolygonList simpleCull(ArrayList<LineSegment> edges)
+	private static long edgeKey(ArrayList<LineSegment> edges, int e)
 	{
-		if(!frozen)
+		LineSegment l = edges.get(e/2);
+		return (e & 1) == 0 ? l.aEdge : l.bEdge;
+	}
+	
+	/**
+	 * The order to start tracing polygons from: the segments longer than longEdge in
+	 * the order they come, then the rest longest first (see stitch())
+	 * @param edges
+	 * @return
+	 */
+	private static int[] startsLongFirst(ArrayList<LineSegment> edges)
+	{
+		int n = edges.size();
+		int[] starts = new int[n];
+		int k = 0;
+		long[] rest = new long[n];
+		int m = 0;
+		for(int i = 0; i < n; i++)
 		{
-			Debug.e("AllSTLsToBuild:simpleCull() called for an unfrozen list!");
-			freeze();
+			double d2 = Point2D.dSquared(edges.get(i).a, edges.get(i).b);
+			if(d2 > longEdge*longEdge)
+				starts[k++] = i;
+			else
+			{
+				// Lengths aren't negative, so their float bits sort as ints do; the
+				// complement puts the longest first
+				
+				rest[m++] = ((long)~Float.floatToIntBits((float)d2) << 32) | i;
+			}
 		}
-		PolygonList result = new PolygonList();
-		Polygon next = getNextPolygon(edges);
-		while(next != null)
+		Arrays.sort(rest, 0, m);
+		for(int i = 0; i < m; i++)
+			starts[k++] = (int)rest[i];
+		return starts;
+	}
+	
+	/**
+	 * Hash table key for a grid cell
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	private static long cellKey(long i, long j)
+	{
+		return (i << 32) ^ (j & 0xffffffffL);
+	}
+	
+	/**
+	 * Find the nearest unpaired end to end e, with a squared distance less than d2 (which
+	 * must be no more than cell squared), that's on a segment not yet used, and pair the two.
+	 * Return it, or -1 if there isn't one.
+	 * @param edges
+	 * @param loose
+	 * @param partner
+	 * @param used
+	 * @param e
+	 * @param cell
+	 * @param d2
+	 * @return
+	 */
+	private static int nearestLoose(ArrayList<LineSegment> edges, HashMap<Long, List<Integer>> loose, int[] partner, 
+			boolean[] used, int e, double cell, double d2)
+	{
+		Point2D p = endPoint(edges, e);
+		long ci = (long)Math.floor(p.x()/cell);
+		long cj = (long)Math.floor(p.y()/cell);
+		int best = -1;
+		for(long i = ci - 1; i <= ci + 1; i++)
+			for(long j = cj - 1; j <= cj + 1; j++)
+			{
+				List<Integer> ends = loose.get(cellKey(i, j));
+				if(ends == null)
+					continue;
+				for(int f : ends)
+				{
+					if(f/2 == e/2 || used[f/2] || partner[f] >= 0)
+						continue;
+					double dd = Point2D.dSquared(p, endPoint(edges, f));
+					if(dd < d2)
+					{
+						d2 = dd;
+						best = f;
+					}
+				}
+			}
+		if(best >= 0)
 		{
-			if(next.size() >= 3)
-				result.add(next);
-			next = getNextPolygon(edges);
+			partner[e] = best;
+			partner[best] = e;
 		}
-		
-		return result;
+		return best;
 	}
 	
 	/**
@@ -832,6 +994,20 @@ public class AllSTLsToBuild
 	 * @return
 	 */
 	public PolygonList computeSupport(int stl)
+	{
+		return computeSupport(stl, layerRules);
+	}
+	
+	/**
+	 * Compute the support hatching polygons for this set of patterns in the layer
+	 * lr describes.  Unless computeSupportShadows() has been called, each layer's support
+	 * needs the support of the layer above, so for any one STLObject the layers must be
+	 * done in order from the top down; but that can be on any thread.
+	 * @param stl
+	 * @param lr
+	 * @return
+	 */
+	public PolygonList computeSupport(int stl, LayerRules lr)
 	{
 		// No more additions or movements, please
 		
@@ -844,9 +1020,9 @@ public class AllSTLsToBuild
 		// But it's only going to be subtracted from other shapes, so what it's made
 		// from doesn't matter.
 		
-		int layer = layerRules.getModelLayer();
+		int layer = lr.getModelLayer();
 		
-		BooleanGridList thisLayer = slice(stl, layer);
+		BooleanGridList thisLayer = supportSlice(stl, layer);
 		
 		BooleanGrid unionOfThisLayer;
 		Attributes a;
@@ -868,7 +1044,7 @@ public class AllSTLsToBuild
 		
 		BooleanGridList allThis = new BooleanGridList();
 		allThis.add(unionOfThisLayer);
-		allThis = allThis.offset(layerRules, true, 2);  // 2mm gap is a bit of a hack...
+		allThis = allThis.offset(lr, true, 2);  // 2mm gap is a bit of a hack...
 		if(allThis.size() > 0)
 			unionOfThisLayer = allThis.get(0);
 		else
@@ -877,9 +1053,14 @@ public class AllSTLsToBuild
 		// Get the layer above and union it with this layer.  That's what needs
 		// support on the next layer down.
 		
-		BooleanGridList previousSupport = cache.getSupport(layer+1, stl);
-
-		cache.setSupport(BooleanGridList.unions(previousSupport, thisLayer), layer, stl);
+		BooleanGridList previousSupport;
+		if(shadows != null)
+			previousSupport = shadows.get(stl).shadow(layer);
+		else
+		{
+			previousSupport = cache.getSupport(layer+1, stl);
+			cache.setSupport(BooleanGridList.unions(previousSupport, thisLayer), layer, stl);
+		}
 		
 		// Now we subtract the union of this layer from all the stuff requiring support in the layer above.
 		
@@ -894,7 +1075,7 @@ public class AllSTLsToBuild
 				Extruder e = a.getExtruder().getSupportExtruder();
 				if(e != null)
 				{
-					if(layerRules.extruderLiveThisLayer(e.getID()))
+					if(lr.extruderLiveThisLayer(e.getID()))
 						support.add(BooleanGrid.difference(above, unionOfThisLayer, a));
 				}
 			}
@@ -902,55 +1083,135 @@ public class AllSTLsToBuild
 		}
 		
 		// Now force the attributes of the support pattern to be the support extruders
-		// for all the materials in it.  If the material isn't active in this layer, remove it from the list
+		// for all the materials in it.  If the material isn't active in this layer, remove it from the list.
+		// The grids may be the very ones in the slice cache (the differences above give back
+		// their first argument when there is nothing to subtract), and other threads may be
+		// reading those, so the new attributes go on copies.
 		
+		BooleanGridList supportPatterns = new BooleanGridList();
 		for(int i = 0; i < support.size(); i++)
 		{
 			Extruder e = support.attribute(i).getExtruder().getSupportExtruder();
 			if(e == null)
 			{
 				Debug.e("AllSTLsToBuild.computeSupport(): null support extruder specified!");
+				supportPatterns.add(support.get(i));
 				continue;
 			}
-			support.get(i).forceAttribute(new Attributes(e.getMaterial(), null, null, e.getAppearance()));
+			BooleanGrid pattern = new BooleanGrid(support.get(i));
+			pattern.forceAttribute(new Attributes(e.getMaterial(), null, null, e.getAppearance()));
+			supportPatterns.add(pattern);
 		}
 		
 		// Finally compute the support hatch.
 		
-		PolygonList result = support.hatch(layerRules, false, null, true);
+		PolygonList result = supportPatterns.hatch(lr, false, null, true);
 		
 		return result;
 	}
 	
 	/**
-	 * This finds an individual land in landPattern
-	 * @param landPattern
+	 * A slice as the support sees it: with the support's pixels, each of which is
+	 * solid if any of the slice under it is
+	 * @param stl
+	 * @param layer
 	 * @return
 	 */
-	private BooleanGrid findLand(BooleanGrid landPattern)
+	BooleanGridList supportSlice(int stl, int layer)
 	{
-		Point2D seed = landPattern.findSeed();
-		if(seed == null)
-			return null;
-		
-		return landPattern.floodCopy(seed);
+		BooleanGridList result = slice(stl, layer);
+		if(supportResolution > 1)
+			result = result.resample(supportResolution, true);
+		return result;
+	}
+	
+	/**
+	 * A slice as one MaterialRaster for all its materials; the cache's own if it
+	 * keeps it that way
+	 * @param stl
+	 * @param layer
+	 * @return
+	 */
+	MaterialRaster raster(int stl, int layer)
+	{
+		MaterialRaster result = cache.getRaster(layer, stl);
+		if(result == null)
+			result = new MaterialRaster(slice(stl, layer));
+		return result;
+	}
+	
+	/**
+	 * If the SupportShadowPass preference is set, work out the shadows that all the
+	 * items cast down (see SupportShadow).  After that the support of each layer no
+	 * longer depends on the layer above, so the layers may be done in any order.
+	 * This should be called before building starts.
+	 * 
+	 * The pass slices every layer, through the slice cache, but the cache only holds
+	 * the few layers nearest the ones being built, so the build slices them all again.
+	 * Keeping them for it would take the memory of the whole model's slices, which is
+	 * what the cache is there to limit.  The extra slicing is done on all the cores at
+	 * once, a block of layers each, so the pass is worth it when the build is held up
+	 * by having to do the support a layer at a time, and not otherwise.
+	 * @param pool to work in, or null to use a pool of its own
+	 * @return true if the shadows were worked out
+	 */
+	public boolean computeSupportShadows(ForkJoinPool pool)
+	{
+		freeze();
+		if(!SupportShadow.wanted())
+		{
+			shadows = null;
+			return false;
+		}
+		ForkJoinPool p = pool;
+		if(p == null)
+			p = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try
+		{
+			int block = SupportShadow.blockSize();
+			List<SupportShadow> s = new ArrayList<>();
+			for(int i = 0; i < stls.size(); i++)
+				s.add(new SupportShadow(this, i, layerRules.getModelLayerMax(), block, p));
+			shadows = s;
+		} finally
+		{
+			if(pool == null)
+				p.shutdown();
+		}
+		return true;
+	}
+	
+	/**
+	 * Have the shadows for support been worked out, so that the layers' support
+	 * may be done in any order?
+	 * @return
+	 */
+	public boolean supportShadowed()
+	{
+		return shadows != null;
 	}
 	
 	/**
-	 * This finds the bridges that cover cen.  It assumes that there is only one material at one point in space...
-	 * @param unSupported
-	 * @param cen1
+	 * This finds the bridge that covers cen among the islands of each of the bridge
+	 * patterns, and takes it out of its list.  It assumes that there is only one material at
+	 * one point in space...
+	 * @param bridgeIslands
+	 * @param cen
 	 * @return
 	 */
-	int findBridges(BooleanGridList unSupported, Point2D cen)
+	BooleanGrid.Island findBridges(List<List<BooleanGrid.Island>> bridgeIslands, Point2D cen)
 	{
-		for(int i = 0; i < unSupported.size(); i++)
+		for(int i = 0; i < bridgeIslands.size(); i++)
 		{
-			BooleanGrid bridges = unSupported.get(i);
-			if(bridges.get(cen))
-				return i;
+			List<BooleanGrid.Island> bridges = bridgeIslands.get(i);
+			for(int j = 0; j < bridges.size(); j++)
+			{
+				BooleanGrid.Island bridge = bridges.get(j);
+				if(bridge.grid().get(cen))
+					return bridges.remove(j);
+			}
 		}
-		return -1;
+		return null;
 	}
 	
 	/**
@@ -967,52 +1228,62 @@ public class AllSTLsToBuild
 		InFillPatterns result = new InFillPatterns(infill);
 		BooleanGridList b;
 		
+		// Split the bridge patterns into their separate bridges in one go
+		
+		List<List<BooleanGrid.Island>> bridgeIslands = new ArrayList<>();
+		for(int i = 0; i < result.bridges.size(); i++)
+			bridgeIslands.add(result.bridges.get(i).islands());
+		
 		for(int i = 0; i < lands.size(); i++)
 		{
-			BooleanGrid landPattern = lands.get(i);
-			BooleanGrid land1;
+			// Split the land pattern into its separate lands in one go too.  When a bridge
+			// covers part of a land, what's left of the land goes on the end of the list.
 			
-			// Find a land
+			List<BooleanGrid.Island> landIslands = new ArrayList<>(lands.get(i).islands());
 			
-			while((land1 = findLand(landPattern)) != null)
+			for(int l = 0; l < landIslands.size(); l++)
 			{
-				// Find the middle of the land
-				
-				Point2D cen1 = land1.findCentroid();
+				BooleanGrid.Island land1 = landIslands.get(l);
+				if(land1 == null)
+					continue;
 				
 				// Wipe this land from the land pattern
 				
-				landPattern = BooleanGrid.difference(landPattern, land1);
+				landIslands.set(l, null);
 				
-				if(cen1 == null)
-				{
-					Debug.e("AllSTLsToBuild.bridges(): First land found with no centroid!");
-					continue;
-				}
+				// Find the middle of the land
+				
+				Point2D cen1 = land1.centroid();
 				
-				// Find the bridge that goes with the land
+				// Find the bridge that goes with the land; the bridge must cover the land too
 				
-				int bridgesIndex = findBridges(result.bridges, cen1);
-				if(bridgesIndex < 0)
+				BooleanGrid.Island bridgeIsland = findBridges(bridgeIslands, cen1);
+				if(bridgeIsland == null)
 				{
 					Debug.d("AllSTLsToBuild.bridges(): Land found with no corresponding bridge.");
 					continue;
 				}
-				BooleanGrid bridges = result.bridges.get(bridgesIndex);
-				
-				// The bridge must cover the land too
-				
-				BooleanGrid bridge = bridges.floodCopy(cen1);
-				if(bridge == null)
-					continue;
+				BooleanGrid bridge = bridgeIsland.grid();
 				
-				// Find the other land (the first has been wiped)
+				// Find the other land (the first has been wiped) - the bits of the remaining lands under the bridge
 				
-				BooleanGrid land2 = BooleanGrid.intersection(bridge, landPattern);
+				BooleanGrid land2 = null;
+				List<Integer> under = new ArrayList<>();
+				for(int m = l + 1; m < landIslands.size(); m++)
+				{
+					BooleanGrid.Island other = landIslands.get(m);
+					if(other == null || Rectangle.intersection(other.box(), bridgeIsland.box()).empty())
+						continue;
+					BooleanGrid piece = BooleanGrid.intersection(bridge, other.grid());
+					if(piece.isEmpty())
+						continue;
+					land2 = land2 == null ? piece : BooleanGrid.union(land2, piece);
+					under.add(m);
+				}
 				
 				// Find the middle of this land
 				
-				Point2D cen2 = land2.findCentroid();
+				Point2D cen2 = land2 == null ? null : land2.findCentroid();
 				if(cen2 == null)
 				{
 					Debug.d("AllSTLsToBuild.bridges(): Second land found with no centroid.");
@@ -1033,7 +1304,12 @@ public class AllSTLsToBuild
 				{
 					// Wipe this land from the land pattern
 					//System.out.println("Two lands");
-					landPattern = BooleanGrid.difference(landPattern, land2);
+					for(int m : under)
+					{
+						BooleanGrid rest = BooleanGrid.difference(landIslands.get(m).grid(), bridge);
+						landIslands.set(m, null);
+						landIslands.addAll(rest.islands());
+					}
 
 					// (Roughly) what direction does the bridge go in?
 
@@ -1098,13 +1374,55 @@ public class AllSTLsToBuild
 	}
 	
 	/**
-	 * Select from a slice (allLayer) just those parts of it that will be plotted this layer
+	 * Say how many layers below the one being built will be worked out
+	 * ahead of time, so that the slice cache can be made big enough to
+	 * hold them as well as the ones the current layer needs.
+	 * @param layers
+	 */
+	public void setLookAhead(int layers)
+	{
+		lookAhead = Math.max(layers, 0);
+		if(cache != null)
+		{
+			cache.close();
+			cache = new SliceCache(stls.size(), layerRules.sliceCacheSize() + lookAhead);
+		}
+		if(columns != null)
+			countSolidity();
+	}
+	
+	/**
+	 * How well the slice cache has done so far (see SliceCache.statistics())
+	 * @return
+	 */
+	public String sliceCacheStatistics()
+	{
+		if(cache == null)
+			return "Slice cache: not used";
+		return cache.statistics();
+	}
+	
+	/**
+	 * Slice STLObject stl at a layer and keep the result in the cache for
+	 * when it's wanted.  This may be called on any thread.
+	 * @param stl
+	 * @param layer
+	 */
+	public void sliceAhead(int stl, int layer)
+	{
+		freeze();
+		slice(stl, layer);
+	}
+	
+	/**
+	 * Select from a slice (allLayer) just those parts of it that will be plotted in the layer lr describes
 	 * @param allLayer
 	 * @param infill
 	 * @param support
+	 * @param lr
 	 * @return
 	 */
-	private BooleanGridList neededThisLayer(BooleanGridList allLayer, boolean infill, boolean support)
+	private BooleanGridList neededThisLayer(BooleanGridList allLayer, boolean infill, boolean support, LayerRules lr)
 	{
 		BooleanGridList neededSlice = new BooleanGridList();
 		for(int i = 0; i < allLayer.size(); i++)
@@ -1117,7 +1435,7 @@ public class AllSTLsToBuild
 			else
 				e = allLayer.get(i).attribute().getExtruder();
 			if(e != null)
-				if(layerRules.extruderLiveThisLayer(e.getID()))
+				if(lr.extruderLiveThisLayer(e.getID()))
 					neededSlice.add(allLayer.get(i));
 		}
 		return neededSlice;
@@ -1129,6 +1447,19 @@ public class AllSTLsToBuild
 	 * @return
 	 */
 	public PolygonList computeInfill(int stl) 
+	{
+		return computeInfill(stl, layerRules);
+	}
+	
+	/**
+	 * Compute the infill hatching polygons for this set of patterns in the layer
+	 * lr describes.  This only reads shared state, so the infill of different
+	 * layers may be computed on different threads at once.
+	 * @param stl
+	 * @param lr
+	 * @return
+	 */
+	public PolygonList computeInfill(int stl, LayerRules lr) 
 	{
 		// Where the result will be stored.
 		
@@ -1140,7 +1471,7 @@ public class AllSTLsToBuild
 		
 		// Where are we and what does the current slice look like?
 		
-		int layer = layerRules.getModelLayer();
+		int layer = lr.getModelLayer();
 		
 		BooleanGridList slice = slice(stl, layer);
 		
@@ -1157,9 +1488,9 @@ public class AllSTLsToBuild
 		
 		if(layer <= surfaceLayers)
 		{
-			slice = slice.offset(layerRules, false, -1);
-			slice = neededThisLayer(slice, false, false);
-			infill.hatchedPolygons = slice.hatch(layerRules, true, null, false);
+			slice = slice.offset(lr, false, -1);
+			slice = neededThisLayer(slice, false, false, lr);
+			infill.hatchedPolygons = slice.hatch(lr, true, null, false);
 			return infill.hatchedPolygons;
 		}
 		
@@ -1169,30 +1500,64 @@ public class AllSTLsToBuild
 		// The intersection of the slices above does not need surface infill...
 		// How many do we need to consider?
 		
-				
-		BooleanGridList above = slice(stl, layer+1);
-		for(int i = 2; i <= surfaceLayers; i++)
-			above = BooleanGridList.intersections(slice(stl, layer+i), above);
-		
-		// ...nor does the intersection of those below.
+		// ...nor does the intersection of those below.  With the solid layer counts
+		// these come straight from the counts above and below; otherwise the slices
+		// are intersected.
 		
-		BooleanGridList below = slice(stl, layer-1);
-		for(int i = 2; i <= surfaceLayers; i++)
-			below = BooleanGridList.intersections(slice(stl, layer-i), below);
+		BooleanGridList above = null;
+		BooleanGridList below = null;
+		BooleanGridList nothingabove = null;
+		BooleanGridList nothingbelow = null;
+		if(columns != null)
+		{
+			above = columns.get(stl).solid(layer+1, surfaceLayers);
+			below = columns.get(stl).solid(layer-surfaceLayers, surfaceLayers);
+		} else if(cache.materialRasters() && slice.size() > 1)
+		{
+			// Several materials: do all of them at once on the labelled rasters
+			
+			MaterialRaster here = raster(stl, layer);
+			MaterialRaster up = raster(stl, layer+1);
+			for(int i = 2; i <= surfaceLayers; i++)
+				up = MaterialRaster.intersection(raster(stl, layer+i), up);
+			MaterialRaster down = raster(stl, layer-1);
+			for(int i = 2; i <= surfaceLayers; i++)
+				down = MaterialRaster.intersection(raster(stl, layer-i), down);
+			nothingabove = MaterialRaster.difference(here, up).masks();
+			nothingbelow = MaterialRaster.difference(here, down).masks();
+		} else
+		{
+			above = slice(stl, layer+1);
+			for(int i = 2; i <= surfaceLayers; i++)
+				above = BooleanGridList.intersections(slice(stl, layer+i), above);
+			
+			below = slice(stl, layer-1);
+			for(int i = 2; i <= surfaceLayers; i++)
+				below = BooleanGridList.intersections(slice(stl, layer-i), below);
+		}
 	
 		// The bit of the slice with nothing above it needs fine infill...
 		
-		BooleanGridList nothingabove = BooleanGridList.differences(slice, above, false);
+		if(nothingabove == null)
+			nothingabove = BooleanGridList.differences(slice, above, false);
 		
 		// ...as does the bit with nothing below.
 		
-		BooleanGridList nothingbelow = BooleanGridList.differences(slice, below, false);
+		if(nothingbelow == null)
+			nothingbelow = BooleanGridList.differences(slice, below, false);
 
 		// Find the region that is not surface.
 		
 		infill.insides = BooleanGridList.differences(slice, nothingbelow, false);
 		infill.insides = BooleanGridList.differences(infill.insides, nothingabove, false);
 		
+		// The sparse infill doesn't need to be exact, so maybe work on it with bigger
+		// pixels from here on, keeping only those wholly inside it.  Combining it with
+		// the slice then gives back grids with its pixels.
+		
+		if(sparseResolution > 1)
+			infill.insides = infill.insides.resample(sparseResolution, false);
+		
 		// Parts with nothing under them that have no support material
 		// need to have bridges constructed to do the best for in-air infill.
 		
@@ -1211,7 +1576,7 @@ public class AllSTLsToBuild
 		// This will make them interpenetrate at their ends/sides to give
 		// bridge landing areas.
 		
-		infill.bridges = infill.bridges.offset(layerRules, false, 2);
+		infill.bridges = infill.bridges.offset(lr, false, 2);
 		infill.bridges = BooleanGridList.intersections(infill.bridges, slice);
 		
 		// Find the landing areas as a separate set of shapes that go with the bridges.
@@ -1221,9 +1586,9 @@ public class AllSTLsToBuild
 		// Shapes will be outlined, and so need to be shrunk to allow for that.  But they
 		// must not also shrink from each other internally.  So initially expand them so they overlap
 		
-		infill.bridges = infill.bridges.offset(layerRules, false, 1);
-		infill.insides = infill.insides.offset(layerRules, false, 1);
-		infill.surfaces = infill.surfaces.offset(layerRules, false, 1);
+		infill.bridges = infill.bridges.offset(lr, false, 1);
+		infill.insides = infill.insides.offset(lr, false, 1);
+		infill.surfaces = infill.surfaces.offset(lr, false, 1);
 		
 		// Now intersect them with the slice so the outer edges are back where they should be.
 		
@@ -1235,18 +1600,18 @@ public class AllSTLsToBuild
 		// be put round the outside.  The inner joins should now shrink back to be
 		// adjacent to each other as they should be.
 		
-		infill.bridges = infill.bridges.offset(layerRules, false, -1);
-		infill.insides = infill.insides.offset(layerRules, false, -1);
-		infill.surfaces = infill.surfaces.offset(layerRules, false, -1);
+		infill.bridges = infill.bridges.offset(lr, false, -1);
+		infill.insides = infill.insides.offset(lr, false, -1);
+		infill.surfaces = infill.surfaces.offset(lr, false, -1);
 		
 		// Generate the infill patterns.  We do the bridges first, as each bridge subtracts its
 		// lands from the other two sets of shapes.  We want that, so they don't get infilled twice.
 		
-		infill = bridgeHatch(infill, lands, layerRules);
-		infill.insides = neededThisLayer(infill.insides, true, false);
-		infill.hatchedPolygons.add(infill.insides.hatch(layerRules, false, null, false));
-		infill.surfaces = neededThisLayer(infill.surfaces, false, false);
-		infill.hatchedPolygons.add(infill.surfaces.hatch(layerRules, true, null, false));
+		infill = bridgeHatch(infill, lands, lr);
+		infill.insides = neededThisLayer(infill.insides, true, false, lr);
+		infill.hatchedPolygons.add(infill.insides.hatch(lr, false, null, false));
+		infill.surfaces = neededThisLayer(infill.surfaces, false, false, lr);
+		infill.hatchedPolygons.add(infill.surfaces.hatch(lr, true, null, false));
 	
 		return infill.hatchedPolygons;
 	}
@@ -1340,6 +1705,19 @@ public class AllSTLsToBuild
 	 * @return
 	 */
 	public PolygonList computeOutlines(int stl, PolygonList hatchedPolygons) 
+	{
+		return computeOutlines(stl, hatchedPolygons, layerRules);
+	}
+	
+	/**
+	 * Compute the outline polygons for this set of patterns in the layer lr
+	 * describes.  Like computeInfill() this may run on any thread.
+	 * @param stl
+	 * @param hatchedPolygons
+	 * @param lr
+	 * @return
+	 */
+	public PolygonList computeOutlines(int stl, PolygonList hatchedPolygons, LayerRules lr) 
 	{
 		// No more additions or movements, please
 		
@@ -1347,11 +1725,11 @@ public class AllSTLsToBuild
 		
 		// The shapes to outline.
 		
-		BooleanGridList slice = slice(stl, layerRules.getModelLayer());
+		BooleanGridList slice = slice(stl, lr.getModelLayer());
 		
 		// Pick out the ones we need to do at this height
 		
-		slice = neededThisLayer(slice, false, false);
+		slice = neededThisLayer(slice, false, false, lr);
 		
 		if(slice.size() <= 0)
 			return new PolygonList();
@@ -1360,12 +1738,12 @@ public class AllSTLsToBuild
 		
 		// Are we building the raft under things?  If so, there is no border.
 		
-		if(layerRules.getLayingSupport())
+		if(lr.getLayingSupport())
 		{
 			borderPolygons = null;
 		} else
 		{
-			BooleanGridList offBorder = slice.offset(layerRules, true, -1);
+			BooleanGridList offBorder = slice.offset(lr, true, -1);
 			borderPolygons = offBorder.borders();
 		}
 
@@ -1375,7 +1753,7 @@ public class AllSTLsToBuild
 		
 		if(borderPolygons != null && borderPolygons.size() > 0)
 		{
-			borderPolygons.middleStarts(hatchedPolygons, layerRules, slice);
+			borderPolygons.middleStarts(hatchedPolygons, lr, slice);
 		}
 		
 		return borderPolygons;
@@ -1392,7 +1770,7 @@ public class AllSTLsToBuild
 	 * @return
 	 */
 	@SuppressWarnings("unchecked")
-	private BooleanGridList slice(int stlIndex, int layer)
+	BooleanGridList slice(int stlIndex, int layer)
 	{
 		if(!frozen)
 		{
@@ -1421,7 +1799,7 @@ public class AllSTLsToBuild
 		double z = layerRules.getModelZ(layer) + layerRules.getZStep()*0.5;
 		Extruder[] extruders = layerRules.getPrinter().getExtruders();
 		result = new BooleanGridList();
-		CSG2D csgp;
+		CompiledCSG2D csgp;
 		PolygonList pgl;
 		int extruderID;
 		
@@ -1440,25 +1818,25 @@ public class AllSTLsToBuild
 		// Generate all the edges for STLObject i at this z
 		
 		STLObject stlObject = stls.get(stlIndex);
-		Transform trans = stlObject.getTransform();
-		Matrix4d m4 = new Matrix4d();
-		trans.get(m4);
+		TriangleIndex[] indexes = triangles.get(stlIndex);
 		
 		for(int i = 0; i < stlObject.getCount(); i++)
 		{
 			Group bg1 = stlObject.getSTL(i);
 			Attributes attr = (Attributes)(bg1.getUserData());
 			atts[attr.getExtruder().getID()] = attr;
-			CSG3D csg = stlObject.getCSG(i);
+			CSGSlabs csg = csgSlabs.get(stlIndex)[i];
 			for(extruderID = 0; extruderID < extruders.length; extruderID++)
 			{
 				edges[extruderID] = new ArrayList<>();
 				csgs[extruderID] = new ArrayList<>();
 			}
 			if(csg != null)
-				csgs[attr.getExtruder().getID()].add(csg.transform(m4));
+				csgs[attr.getExtruder().getID()].add(csg.at(z));
+			else if(sweep)
+				addEdges(indexes[i], indexes[i].sweep().at(z), z, attr, edges);
 			else
-				recursiveSetEdges(bg1, trans, z, attr, edges);
+				addEdges(indexes[i], indexes[i].crossing(z), z, attr, edges);
 
 
 			// Turn them into lists of polygons, one for each extruder, then
@@ -1470,7 +1848,7 @@ public class AllSTLsToBuild
 
 				for(int j = 0; j < csgs[extruderID].size(); j++)
 				{
-					csgp = CSG2D.slice(csgs[extruderID].get(j), z);
+					csgp = CSG2D.compiledSlice(csgs[extruderID].get(j), z);
 					result.add(new BooleanGrid(csgp, rectangles.get(stlIndex), atts[extruderID]));
 				}
 
@@ -1490,22 +1868,21 @@ public class AllSTLsToBuild
 
 						pgl = pgl.arcCompensate();
 
-						csgp = pgl.toCSG(Preferences.tiny());
-
 						// We use the plan rectangle of the entire stl object to store the bitmap, even though this slice may be
 						// much smaller than the whole.  This allows booleans on slices to be computed much more
-						// quickly as each is in the same rectangle so the bit patterns match exactly.  But it does use more memory.
+						// quickly as each is in the same rectangle so the bit patterns match exactly.  Only the tiles
+						// of the bitmap that the slice touches take up memory.
+						
+						// The outlines go straight into the bitmap by scanline filling; there's no need to convert
+						// them to CSG as the even-odd rule sorts out which are holes.
 
-						result.add(new BooleanGrid(csgp, rectangles.get(stlIndex), pgl.get(0).getAttributes()));
+						result.add(new BooleanGrid(pgl, rectangles.get(stlIndex), pgl.get(0).getAttributes(), false));
 					}
 				}
 			}
 		}
 		
 		result = result.unionDuplicates();
-		
-		// We may need this later...
-		
 		cache.setSlice(result, layer, stlIndex);
 		
 		return result;
@@ -1515,24 +1892,27 @@ public class AllSTLsToBuild
 	public void destroyLayer() {}
 	
 	/**
-	 * Add the edge where the plane z cuts the triangle (p, q, r) (if it does).
-	 * Also update the triangulation of the object below the current slice used
-	 * for the simulation window.
-	 * @param p
-	 * @param q
-	 * @param r
+	 * Add the edge where the plane z cuts triangle t of mesh (if it does).
+	 * The segment records which mesh edges its ends are on.
+	 * @param mesh
+	 * @param t
 	 * @param z
+	 * @param att
+	 * @param edges
 	 */
-	private void addEdge(Point3d p, Point3d q, Point3d r, double z, Attributes att, ArrayList<LineSegment> edges[])
+	private void addEdge(Mesh mesh, int t, double z, Attributes att, ArrayList<LineSegment> edges[])
 	{
-		Point3d odd = null, even1 = null, even2 = null;
+		int p = mesh.corner(t, 0);
+		int q = mesh.corner(t, 1);
+		int r = mesh.corner(t, 2);
+		int odd = -1, even1 = -1, even2 = -1;
 		int pat = 0;
 		
-		if(p.z < z)
+		if(mesh.z(p) < z)
 			pat = pat | 1;
-		if(q.z < z)
+		if(mesh.z(q) < z)
 			pat = pat | 2;
-		if(r.z < z)
+		if(mesh.z(r) < z)
 			pat = pat | 4;
 		
 		switch(pat)
@@ -1581,80 +1961,47 @@ public class AllSTLsToBuild
 		
 		// Work out the intersection line segment (e1 -> e2) between the z plane and the triangle
 		
-		even1.sub((Tuple3d)odd);
-		even2.sub((Tuple3d)odd);
-		double t = (z - odd.z)/even1.z;	
-		Point2D e1 = new Point2D(odd.x + t*even1.x, odd.y + t*even1.y);	
-		e1 = new Point2D(e1.x(), e1.y());
-		t = (z - odd.z)/even2.z;
-		Point2D e2 = new Point2D(odd.x + t*even2.x, odd.y + t*even2.y);
-		e2 = new Point2D(e2.x(), e2.y());
+		double ox = mesh.x(odd);
+		double oy = mesh.y(odd);
+		double oz = mesh.z(odd);
+		double s = (z - oz)/(mesh.z(even1) - oz);	
+		Point2D e1 = new Point2D(ox + s*(mesh.x(even1) - ox), oy + s*(mesh.y(even1) - oy));
+		s = (z - oz)/(mesh.z(even2) - oz);
+		Point2D e2 = new Point2D(ox + s*(mesh.x(even2) - ox), oy + s*(mesh.y(even2) - oy));
 		
 		// Too short?
 		//if(!Point2D.same(e1, e2, Preferences.lessGridSquare()))
-			edges[att.getExtruder().getID()].add(new LineSegment(e1, e2, att));
+			edges[att.getExtruder().getID()].add(new LineSegment(e1, e2, att, meshEdge(odd, even1), meshEdge(odd, even2)));
 	}
 	
-
+	/**
+	 * A key for the mesh edge between vertices u and v (either way round)
+	 * @param u
+	 * @param v
+	 * @return
+	 */
+	private static long meshEdge(int u, int v)
+	{
+		return ((long)Math.min(u, v) << 32) | Math.max(u, v);
+	}
 	
-    /**
-     * Run through a Shape3D and set edges from it at plane z
-     * Apply the transform first
-     * @param shape
-     * @param trans
-     * @param z
-     */
-    private void addAllEdges(Shape3D shape, Transform trans, double z, Attributes att, ArrayList<LineSegment> edges[])
-    {
-        GeometryArray g = (GeometryArray)shape.getGeometry();
-        Point3d p1 = new Point3d();
-        Point3d p2 = new Point3d();
-        Point3d p3 = new Point3d();
-        Point3d q1 = new Point3d();
-        Point3d q2 = new Point3d();
-        Point3d q3 = new Point3d();
-        
-        if(g.getVertexCount()%3 != 0)
-        {
-        	Debug.e("addAllEdges(): shape3D with vertices not a multiple of 3!");
-        }
-        if(g != null)
-        {
-            for(int i = 0; i < g.getVertexCount(); i += 3) 
-            {
-                g.getCoordinate(i, p1);
-                g.getCoordinate(i+1, p2);
-                g.getCoordinate(i+2, p3);
-                trans.transform(p1, q1);
-                trans.transform(p2, q2);
-                trans.transform(p3, q3);
-                addEdge(q1, q2, q3, z, att, edges);
-            }
-        }
-    }
+
 	
-    /**
-     * Unpack the Shape3D(s) from value and set edges from them
-     * @param value
-     * @param trans
-     * @param z
-     */
-    private void recursiveSetEdges(Object sg, Transform trans, double z, Attributes att, ArrayList<LineSegment> edges[]) 
-    {
-        //if(value instanceof SceneGraphObject) 
-        //{
-            //SceneGraphObject sg = (SceneGraphObject)value;
-            if(sg instanceof Group) 
-            {
-                Group g = (Group)sg;
-                ObservableList<Node> enumKids = g.getChildren( );
-                for(Node ob:enumKids)
-                    recursiveSetEdges(ob, trans, z, att, edges);
-            } else if (sg instanceof Shape3D) 
-            {
-                addAllEdges((Shape3D)sg, trans, z, att, edges);
-            }
-        //}
-    }
+	/**
+	 * Add the edges where the plane z cuts the triangles in the list cut from
+	 * the index.  That should be the triangles whose z range includes z, from
+	 * either the index itself or a sweep through it.
+	 * @param index
+	 * @param cut
+	 * @param z
+	 * @param att
+	 * @param edges
+	 */
+	private void addEdges(TriangleIndex index, int[] cut, double z, Attributes att, ArrayList<LineSegment> edges[])
+	{
+		Mesh mesh = index.mesh();
+		for(int t : cut)
+			addEdge(mesh, index.meshTriangle(t), z, att, edges);
+	}
 
 }
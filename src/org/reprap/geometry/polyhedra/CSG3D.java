@@ -51,11 +51,16 @@
 package org.reprap.geometry.polyhedra;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.jogamp.vecmath.Matrix4d;
 
 import org.reprap.CSGOp;
 import org.reprap.utilities.Debug;
+import org.reprap.geometry.polygons.CanonicalLeaves;
 import org.reprap.geometry.polygons.Interval;
 
 /**
@@ -433,21 +438,18 @@ public class CSG3D
 	 * a list of the distinct leaves.  Note: leaf and leaf.complement() are
 	 * not considered distinct.
 	 * Recursive internal call.
-	 * @param expression
+	 * @param list
+	 * @param seen the leaves in the list so far
 	 * @return
 	 */
-	private void uniqueList_r(ArrayList<CSG3D> list)
+	private void uniqueList_r(ArrayList<CSG3D> list, Set<CSG3D> seen)
 	{
 		switch(op)
 		{
 		case LEAF:
-			CSG3D entry;
-			for(int i = 0; i < list.size(); i++)
-			{
-				entry = list.get(i);
-				if(this == entry || complement() == entry)
-					return;
-			}
+			if(seen.contains(this) || seen.contains(complement()))
+				return;
+			seen.add(this);
 			list.add(this);
 			break;
 
@@ -458,8 +460,8 @@ public class CSG3D
 			
 		case UNION:
 		case INTERSECTION:
-			c1.uniqueList_r(list);
-			c2.uniqueList_r(list);
+			c1.uniqueList_r(list, seen);
+			c2.uniqueList_r(list, seen);
 			break;
 			
 		default:
@@ -478,91 +480,66 @@ public class CSG3D
 	private ArrayList<CSG3D> uniqueList()
 	{
 		ArrayList<CSG3D> result = new ArrayList<>();
-		uniqueList_r(result);
+		uniqueList_r(result, Collections.newSetFromMap(new IdentityHashMap<>()));
 		return result;
 	}	
 	
 	
 	/**
-	 * Replace duplicate of leaf with leaf itself
-	 * TODO: this should also use known complements
-	 * @param leaf
-	 * @param tolerance
-	 */		
-	private void replaceAllSameLeaves(CSG3D leaf, double tolerance)
-	{	
-		int same;
-		switch(op)
-		{
-		case LEAF:
-		case NULL:   
-		case UNIVERSE:
-			//System.out.println("replace_all_same_leaves(): at a leaf!");
-			break;
-			
-		case UNION:
-		case INTERSECTION:    
-			HalfSpace hp = leaf.hp;
-			if(c1.op == CSGOp.LEAF)
-			{
-				same = HalfSpace.same(hp, c1.hp, tolerance);
-				if(same == 0)
-					c1 = leaf;
-				if(same == -1)
-					c1 = leaf.complement();
-			} else
-				c1.replaceAllSameLeaves(leaf, tolerance);
-			
-			if(c2.op == CSGOp.LEAF)
-			{
-				same = HalfSpace.same(hp, c2.hp, tolerance);
-				if(same == 0)
-					c2 = leaf;
-				if(same == -1)
-					c2 = leaf.complement();
-			} else
-				c2.replaceAllSameLeaves(leaf, tolerance);
-			break;
-			
-		default:
-			Debug.e("replace_all_same(): invalid operator.");		
-		}
-	}
-	
-	/**
-	 * Replace duplicate of all leaves with the last instance of each; also
-	 * link up complements.
-	 * @param root
-	 * @param tolerance
-	 * @return simplified CSG object
-	 */		
-	private void simplify_r(CSG3D root, double tolerance)
+	 * Rebuild an expression from the leaves and nodes in a table, adding any
+	 * that aren't there yet.  Each node is only done once, however many times
+	 * it appears.
+	 * @param table
+	 * @param done the nodes done so far, and what they became
+	 * @return the rebuilt expression
+	 */
+	private CSG3D canonical(CanonicalLeaves<CSG3D> table, Map<CSG3D, CSG3D> done)
 	{
+		CSG3D result = done.get(this);
+		if(result != null)
+			return result;
+		
 		switch(op)
 		{
 		case LEAF:
-			root.replaceAllSameLeaves(this, tolerance);
+			Point3D p = hp.normal();
+			double[] normal = {p.x(), p.y(), p.z()};
+			result = table.find(normal, hp.offset(), this);
+			if(result == null)
+			{
+				result = new CSG3D(hp);
+				table.add(normal, hp.offset(), result);
+				table.add(new double[] {-normal[0], -normal[1], -normal[2]}, -hp.offset(), result.complement());
+			}
 			break;
 			
 		case NULL:   
 		case UNIVERSE:
-			//System.out.println("simplify_r(): at a leaf!");
+			result = this;
 			break;
 			
 		case UNION:
-		case INTERSECTION:    
-			c1.simplify_r(root, tolerance);
-			c2.simplify_r(root, tolerance);
+		case INTERSECTION:
+			CSG3D a = c1.canonical(table, done);
+			CSG3D b = c2.canonical(table, done);
+			result = op == CSGOp.UNION ? union(a, b) : intersection(a, b);
+			if(result.op == op && result != a && result != b)
+				result = table.share(op, result.c1, result.c2, result);
 			break;
 			
 		default:
-			Debug.e("simplify_r(): invalid operator.");
-		
+			Debug.e("canonical(): invalid operator.");
+			result = this;
 		}
+		
+		done.put(this, result);
+		return result;
 	}
 	
 	/**
-	 * Replace duplicate of all leaves with the last instance of each
+	 * Replace duplicate of all leaves with the first instance of each, and
+	 * link up complements; duplicate subtrees are then shared too (see
+	 * CSG2D.simplify()).
 	 * @param tolerance
 	 * @return simplified CSG object
 	 */		
@@ -571,9 +548,8 @@ public class CSG3D
 		if(this == u || this == n)
 			return this;
 		
-		CSG3D root = new CSG3D(this);
-		simplify_r(root, tolerance);
-		return root;
+		CanonicalLeaves<CSG3D> table = new CanonicalLeaves<>(tolerance, (a, b) -> HalfSpace.same(a.hp, b.hp, tolerance));
+		return canonical(table, new IdentityHashMap<>());
 	}
 	
 
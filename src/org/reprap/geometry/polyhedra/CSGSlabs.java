@@ -0,0 +1,100 @@
+package org.reprap.geometry.polyhedra;
+
+import java.io.IOException;
+
+import org.reprap.Preferences;
+import org.reprap.geometry.polygons.BooleanGrid;
+import org.reprap.geometry.polygons.Interval;
+import org.reprap.geometry.polygons.Rectangle;
+import org.reprap.utilities.Debug;
+
+/**
+ * A CSG part of an STLObject, in place on the build, ready for slicing.  It is
+ * transformed once, and then pruned (CSG3D.prune()) to a box round it for each
+ * of a run of slabs up the build, each a few layers thick.  A slice at some
+ * height starts from the expression for the slab it is in, which has none of
+ * the half-spaces that are wholly in or out of that slab: in an assembly of many
+ * primitives most of them are only in a few slabs.
+ *
+ * The boxes go round the part's plan rectangle with the margin BooleanGrid
+ * leaves round rectangles, so the pruned expressions give the same slices as
+ * the whole one wherever the grids are built.
+ *
+ */
+class CSGSlabs
+{
+	/**
+	 * The whole expression, transformed, for heights outside the slabs
+	 */
+	private final CSG3D whole;
+
+	/**
+	 * Where the slabs start, and how thick they are
+	 */
+	private final double bottom;
+	private final double thickness;
+
+	/**
+	 * The expression pruned to each slab
+	 */
+	private final CSG3D[] slabs;
+
+	/**
+	 * How many layers thick a slab is.  This is the CSGSlabLayers preference, which
+	 * may be left unset.  Thinner slabs prune more away but take more memory.
+	 * @return
+	 */
+	static int slabLayers()
+	{
+		try
+		{
+			String value = Preferences.loadGlobalString("CSGSlabLayers", null);
+			if(value != null && !value.trim().isEmpty())
+				return Math.max(Integer.parseInt(value.trim()), 1);
+		} catch (IOException | NumberFormatException e)
+		{
+			Debug.e("CSGSlabs.slabLayers(): " + e.toString());
+		}
+		return 4;
+	}
+
+	/**
+	 * @param csg the part, transformed into place
+	 * @param plan the rectangle its grids will be built in
+	 * @param z the heights it will be sliced at
+	 * @param thickness of each slab
+	 */
+	CSGSlabs(CSG3D csg, Rectangle plan, Interval z, double thickness)
+	{
+		whole = csg;
+		bottom = z.low();
+		this.thickness = thickness;
+		int count = 0;
+		if(plan != null && thickness > 0 && !z.empty())
+			count = (int)Math.floor((z.high() - bottom)/thickness) + 1;
+		slabs = new CSG3D[count];
+		if(count == 0)
+			return;
+		Rectangle r = plan.offset(2*BooleanGrid.margin());
+		for(int k = 0; k < count; k++)
+		{
+			Interval slab = new Interval(bottom + k*thickness, bottom + (k + 1)*thickness);
+			slabs[k] = csg.prune(new Box(r.x(), r.y(), slab));
+		}
+	}
+
+	/**
+	 * The expression to slice at height z
+	 * @param z
+	 * @return
+	 */
+	CSG3D at(double z)
+	{
+		if(slabs.length == 0 || z < bottom)
+			return whole;
+		int k = (int)Math.floor((z - bottom)/thickness);
+		if(k >= slabs.length)
+			return whole;
+		return slabs[k];
+	}
+}
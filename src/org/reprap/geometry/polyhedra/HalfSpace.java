@@ -162,6 +162,11 @@ public class HalfSpace
 			if(Math.abs(a.normal.y() + b.normal.y()) > tolerance || result != -1)
 				return 1;
 		}
+		if(Math.abs(a.normal.z() - b.normal.z()) > tolerance)
+		{
+			if(Math.abs(a.normal.z() + b.normal.z()) > tolerance || result != -1)
+				return 1;
+		}
 		double rms = Math.sqrt((a.offset*a.offset + b.offset*b.offset)*0.5);
 		if(Math.abs(a.offset - b.offset) > tolerance*rms)
 		{
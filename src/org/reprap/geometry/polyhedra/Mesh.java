@@ -0,0 +1,301 @@
+package org.reprap.geometry.polyhedra;
+
+import java.util.Arrays;
+
+import org.jogamp.vecmath.Point3d;
+
+/**
+ * A flat copy of the triangles of an STLObject, held as plain arrays rather than
+ * as a scene graph: the vertex coordinates in three arrays x, y and z, and the
+ * triangles as three vertex numbers each.  The triangles come in parts, one for each
+ * of the STLObject's contents (and so one for each set of attributes); the triangles
+ * of a part are numbered consecutively.
+ *
+ * Corners in exactly the same place are welded into the same vertex, so that
+ * neighbouring triangles can tell which edges they share.
+ *
+ * The slicer works entirely from one of these, made when the objects are frozen on
+ * the build platform with their transforms applied, so it never needs to go near
+ * the scene graph that the user interface draws.
+ *
+ */
+class Mesh
+{
+	/**
+	 * The vertex coordinates
+	 */
+	private double[] x, y, z;
+
+	/**
+	 * How many vertices?
+	 */
+	private int vertices;
+
+	/**
+	 * The vertex number of each corner, three per triangle
+	 */
+	private int[] corner;
+
+	/**
+	 * How many triangles?
+	 */
+	private int triangles;
+
+	/**
+	 * The first triangle of each part
+	 */
+	private int[] first;
+
+	/**
+	 * How many parts?
+	 */
+	private int parts;
+
+	/**
+	 * Open-addressed hash table of the vertex at each place, used to weld corners
+	 * while triangles are being added; null after finish()
+	 */
+	private int[] table;
+
+	Mesh()
+	{
+		x = new double[64];
+		y = new double[64];
+		z = new double[64];
+		vertices = 0;
+		corner = new int[3*64];
+		triangles = 0;
+		first = new int[4];
+		parts = 0;
+		table = new int[128];
+		Arrays.fill(table, -1);
+	}
+
+	/**
+	 * Triangles added after this belong to a new part
+	 */
+	void startPart()
+	{
+		if(parts >= first.length)
+			first = Arrays.copyOf(first, 2*first.length);
+		first[parts++] = triangles;
+	}
+
+	/**
+	 * Add the triangle (p, q, r) to the current part
+	 * @param p
+	 * @param q
+	 * @param r
+	 */
+	void add(Point3d p, Point3d q, Point3d r)
+	{
+		if(parts == 0)
+			startPart();
+		if(3*(triangles + 1) > corner.length)
+			corner = Arrays.copyOf(corner, 2*corner.length);
+		int i = 3*triangles;
+		corner[i] = weld(p.x, p.y, p.z);
+		corner[i + 1] = weld(q.x, q.y, q.z);
+		corner[i + 2] = weld(r.x, r.y, r.z);
+		triangles++;
+	}
+
+	/**
+	 * No more triangles will be added; trim the arrays to size
+	 */
+	void finish()
+	{
+		x = Arrays.copyOf(x, vertices);
+		y = Arrays.copyOf(y, vertices);
+		z = Arrays.copyOf(z, vertices);
+		corner = Arrays.copyOf(corner, 3*triangles);
+		first = Arrays.copyOf(first, parts);
+		table = null;
+	}
+
+	/**
+	 * A hash of the place (px, py, pz)
+	 * @param px
+	 * @param py
+	 * @param pz
+	 * @return
+	 */
+	private static long hash(double px, double py, double pz)
+	{
+		long h = Double.doubleToLongBits(px + 0.0);  // + 0.0 makes -0.0 into 0.0
+		h = h*0x9E3779B97F4A7C15L + Double.doubleToLongBits(py + 0.0);
+		h = h*0x9E3779B97F4A7C15L + Double.doubleToLongBits(pz + 0.0);
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * The number of the vertex at (px, py, pz), making a new one if there isn't one
+	 * there yet.  The hash table is doubled when it gets half full.
+	 * @param px
+	 * @param py
+	 * @param pz
+	 * @return
+	 */
+	private int weld(double px, double py, double pz)
+	{
+		if(2*(vertices + 1) > table.length)
+		{
+			int[] bigger = new int[2*table.length];
+			Arrays.fill(bigger, -1);
+			for(int v : table)
+			{
+				if(v < 0)
+					continue;
+				int slot = (int)hash(x[v], y[v], z[v]) & (bigger.length - 1);
+				while(bigger[slot] >= 0)
+					slot = (slot + 1) & (bigger.length - 1);
+				bigger[slot] = v;
+			}
+			table = bigger;
+		}
+		int slot = (int)hash(px, py, pz) & (table.length - 1);
+		while(true)
+		{
+			int v = table[slot];
+			if(v < 0)
+				break;
+			if(x[v] == px && y[v] == py && z[v] == pz)
+				return v;
+			slot = (slot + 1) & (table.length - 1);
+		}
+		if(vertices >= x.length)
+		{
+			x = Arrays.copyOf(x, 2*x.length);
+			y = Arrays.copyOf(y, 2*y.length);
+			z = Arrays.copyOf(z, 2*z.length);
+		}
+		x[vertices] = px;
+		y[vertices] = py;
+		z[vertices] = pz;
+		table[slot] = vertices;
+		return vertices++;
+	}
+
+	/**
+	 * How many parts are there?
+	 * @return
+	 */
+	int parts()
+	{
+		return parts;
+	}
+
+	/**
+	 * The number of the first triangle of part p
+	 * @param p
+	 * @return
+	 */
+	int first(int p)
+	{
+		return first[p];
+	}
+
+	/**
+	 * One more than the number of the last triangle of part p
+	 * @param p
+	 * @return
+	 */
+	int end(int p)
+	{
+		return p + 1 < parts ? first[p + 1] : triangles;
+	}
+
+	/**
+	 * How many triangles are there?
+	 * @return
+	 */
+	int triangles()
+	{
+		return triangles;
+	}
+
+	/**
+	 * The vertex number of corner 0, 1 or 2 of triangle t
+	 * @param t
+	 * @param c
+	 * @return
+	 */
+	int corner(int t, int c)
+	{
+		return corner[3*t + c];
+	}
+
+	/**
+	 * The x coordinate of vertex v
+	 * @param v
+	 * @return
+	 */
+	double x(int v)
+	{
+		return x[v];
+	}
+
+	/**
+	 * The y coordinate of vertex v
+	 * @param v
+	 * @return
+	 */
+	double y(int v)
+	{
+		return y[v];
+	}
+
+	/**
+	 * The z coordinate of vertex v
+	 * @param v
+	 * @return
+	 */
+	double z(int v)
+	{
+		return z[v];
+	}
+
+	/**
+	 * The lowest z of triangle t
+	 * @param t
+	 * @return
+	 */
+	double bottom(int t)
+	{
+		int i = 3*t;
+		return Math.min(z[corner[i]], Math.min(z[corner[i + 1]], z[corner[i + 2]]));
+	}
+
+	/**
+	 * The highest z of triangle t
+	 * @param t
+	 * @return
+	 */
+	double top(int t)
+	{
+		int i = 3*t;
+		return Math.max(z[corner[i]], Math.max(z[corner[i + 1]], z[corner[i + 2]]));
+	}
+
+	/**
+	 * The signed volume enclosed by the triangles of part p.  This sums the prisms
+	 * between each triangle and the XY plane: downward-facing triangles give negative
+	 * volumes, upward positive.  The prism under a triangle is its signed area in
+	 * plan times the mean height of its corners.
+	 * @param p
+	 * @return
+	 */
+	double volume(int p)
+	{
+		double total = 0;
+		for(int t = first(p); t < end(p); t++)
+		{
+			int a = corner[3*t];
+			int b = corner[3*t + 1];
+			int c = corner[3*t + 2];
+			double area = (x[b] - x[a])*(y[c] - y[a]) - (x[c] - x[a])*(y[b] - y[a]);
+			total += area*(z[a] + z[b] + z[c]);
+		}
+		return total/6.0;
+	}
+}
@@ -150,6 +150,7 @@ public class STLObject
     private BoundingBox bbox = null;    // Temporary storage for the bounding box while loading
     private Vector3d rootOffset = null; // Offset of the first-loaded STL under stl
     private ArrayList<Contents> contents = null;
+    private Mesh mesh = null;           // Flat copy of the geometry in place on the bed, for slicing
 
     public STLObject()
     {
@@ -746,6 +747,140 @@ public class STLObject
     	return contents.get(i).csg;
     }
     
+    /**
+     * Make the flat copy of all the geometry, with the transform applied,
+     * that the slicer works from.  Part i of the mesh is contents i.
+     * @return
+     */
+    Mesh buildMesh()
+    {
+    	Transform t3d = getTransform();
+    	mesh = new Mesh();
+    	for(int i = 0; i < contents.size(); i++)
+    	{
+    		mesh.startPart();
+    		recursiveAddToMesh(getSTL(i), t3d, mesh);
+    	}
+    	mesh.finish();
+    	return mesh;
+    }
+    
+    /**
+     * The mesh made by the last call of buildMesh()
+     * @return
+     */
+    Mesh mesh()
+    {
+    	return mesh;
+    }
+    
+    /**
+     * The box round part i with the transform applied, as {x0, y0, z0, x1, y1, z1},
+     * found without building a mesh.
+     * @param i
+     * @return the box, or null if the part is empty
+     */
+    double[] extent(int i)
+    {
+    	double[] e = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+    			Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    	recursiveExtent(getSTL(i), getTransform(), e);
+    	if(e[0] > e[3])
+    		return null;
+    	return e;
+    }
+    
+    /**
+     * Unpack the Shape3D(s) from sg and expand the box e to take in their
+     * vertices, transformed by t3d
+     * @param sg
+     * @param t3d
+     * @param e
+     */
+    private void recursiveExtent(Object sg, Transform t3d, double[] e)
+    {
+    	if(sg instanceof Group)
+    	{
+    		Group g = (Group)sg;
+    		ObservableList<Node> enumKids = g.getChildren();
+    		for(Node ob:enumKids)
+    			recursiveExtent(ob, t3d, e);
+    	} else if(sg instanceof Shape3D)
+    	{
+    		GeometryArray g = (GeometryArray)((Shape3D)sg).getGeometry();
+    		if(g == null)
+    			return;
+    		Point3d p = new Point3d();
+    		Point3d q = new Point3d();
+    		for(int v = 0; v < g.getVertexCount(); v++)
+    		{
+    			g.getCoordinate(v, p);
+    			t3d.transform(p, q);
+    			e[0] = Math.min(e[0], q.x);
+    			e[1] = Math.min(e[1], q.y);
+    			e[2] = Math.min(e[2], q.z);
+    			e[3] = Math.max(e[3], q.x);
+    			e[4] = Math.max(e[4], q.y);
+    			e[5] = Math.max(e[5], q.z);
+    		}
+    	}
+    }
+    
+    /**
+     * Unpack the Shape3D(s) from sg and add their triangles to m,
+     * transformed by t3d if that isn't null.
+     * @param sg
+     * @param t3d
+     * @param m
+     */
+    private void recursiveAddToMesh(Object sg, Transform t3d, Mesh m)
+    {
+    	if(sg instanceof Group)
+    	{
+    		Group g = (Group)sg;
+    		ObservableList<Node> enumKids = g.getChildren();
+    		for(Node ob:enumKids)
+    			recursiveAddToMesh(ob, t3d, m);
+    	} else if(sg instanceof Shape3D)
+    		s3dAddToMesh((Shape3D)sg, t3d, m);
+    }
+    
+    /**
+     * Add the triangles of a Shape3D to m, transformed by t3d if that isn't null.
+     * @param shape
+     * @param t3d
+     * @param m
+     */
+    private void s3dAddToMesh(Shape3D shape, Transform t3d, Mesh m)
+    {
+        GeometryArray g = (GeometryArray)shape.getGeometry();
+        if(g == null)
+        	return;
+        if(g.getVertexCount()%3 != 0)
+        	Debug.e("s3dAddToMesh(): shape3D with vertices not a multiple of 3!");
+        Point3d p1 = new Point3d();
+        Point3d p2 = new Point3d();
+        Point3d p3 = new Point3d();
+        Point3d q1 = new Point3d();
+        Point3d q2 = new Point3d();
+        Point3d q3 = new Point3d();
+        for(int i = 0; i + 2 < g.getVertexCount(); i += 3) 
+        {
+        	g.getCoordinate(i, p1);
+        	g.getCoordinate(i+1, p2);
+        	g.getCoordinate(i+2, p3);
+        	if(t3d == null)
+        		m.add(p1, p2, p3);
+        	else
+        	{
+        		t3d.transform(p1, q1);
+        		t3d.transform(p2, q2);
+        		t3d.transform(p3, q3);
+        		m.add(q1, q2, q3);
+        	}
+        }
+    }
+    
     // Get the number of objects
     
     public int numChildren()
@@ -1081,68 +1216,21 @@ public class STLObject
     }
     
     
- /*
-    Project each triangle onto the XY plane and sum all the resulting prisms.  Downward-facing triangles will
-    give negative volumes, upward positive.  So the result is the volume of the triangulated object.
- */
-    
    /**
-    * Compute the volume of a Shape3D
+    * Compute the volume of a Shape3D from a flat copy of its triangles
+    * (see Mesh.volume())
     * @param shape
     * @return
     */
     
     private double s3dVolume(Shape3D shape)
     {
-        double total = 0;
-        GeometryArray g = (GeometryArray)shape.getGeometry();
-        Point3d a = new Point3d();
-        Point3d b = new Point3d();
-        Point3d c = new Point3d();
-        if(g != null)
-        {
-            for(int i = 0; i < g.getVertexCount(); i += 3) 
-            {
-                g.getCoordinate(i, a);
-                g.getCoordinate(i+1, b);
-                g.getCoordinate(i+2, c);
-                total += prismVolume(a, b, c);
-            }
-        }
-        return Math.abs(total);
-    }
-    
-    /**
-     * Compute the signed volume of a tetrahedron
-     * @param a
-     * @param b
-     * @param c
-     * @param d
-     * @return
-     */
-    private double tetVolume(Point3d a, Point3d b, Point3d c, Point3d d)
-    {
-    	Matrix3d m = new Matrix3d(b.x - a.x, c.x - a.x, d.x - a.x, b.y - a.y, c.y - a.y, d.y - a.y, b.z - a.z, c.z - a.z, d.z - a.z);
-    	return m.determinant()/6.0;
-    }
-    
-    /**
-     * Compute the signed volume of the prism between the XY plane and the 
-     * space triangle {a, b, c}
-     * 
-     * @param a
-     * @param b
-     * @param c
-     * @return
-     */
-    private double prismVolume(Point3d a, Point3d b, Point3d c)
-    {
-    	Point3d d = new Point3d(a.x, a.y, 0); 
-    	Point3d e = new Point3d(b.x, b.y, 0);  
-    	Point3d f = new Point3d(c.x, c.y, 0);
-    	return tetVolume(a, b, c, e) +
-    		tetVolume(a, e, c, d) +
-    		tetVolume(e, f, c, d);
+    	Mesh m = new Mesh();
+    	s3dAddToMesh(shape, null, m);
+    	m.finish();
+    	if(m.parts() <= 0)
+    		return 0;
+        return Math.abs(m.volume(0));
     }
     
 }
@@ -0,0 +1,722 @@
+package org.reprap.geometry.polyhedra;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.reprap.Attributes;
+import org.reprap.Preferences;
+import org.reprap.geometry.polygons.BooleanGrid;
+import org.reprap.geometry.polygons.BooleanGridList;
+import org.reprap.geometry.polygons.MaterialRaster;
+import org.reprap.utilities.Debug;
+
+/**
+ * Cache to hold previously computed slices (and the accumulated support above
+ * each layer) for doing infill and support material calculations.  Entries are
+ * kept by layer, in a hash table.
+ *
+ * There are two limits:
+ *
+ *  - The number of layers.  Layers are built from the top down, so a layer well
+ *    above the ones being worked on is never wanted again.  When there are too
+ *    many layers one is dropped altogether.
+ *
+ *  - The memory the bitmaps take up (the SliceCacheMegabytes preference; zero or
+ *    unset means no limit).  When that is exceeded a layer is pushed out of memory.
+ *    If the SliceCacheSpill preference is set it is compressed and written to a
+ *    temporary file, to be read back if it's wanted; otherwise it is dropped and
+ *    will be sliced again if it's wanted.
+ *
+ * Which layer goes is chosen by the SliceCacheEviction preference: LRU (the default)
+ * picks the one used least recently, Highest the one highest up the build.
+ *
+ * If the MaterialRasters preference is set, slices of more than one material are
+ * kept as a MaterialRaster (one raster for all the materials, in runs) rather than a
+ * bitmap for each, and turned back into grids when they are asked for.  That is not
+ * always smaller: see MaterialRaster.  They are spilled as grids and made rasters
+ * again when they are read back.
+ *
+ * The slice lookups are counted so the limits can be tuned: see statistics().
+ *
+ * Slices may be worked out on several threads at once, so access is synchronized.
+ *
+ */
+class SliceCache
+{
+	/**
+	 * How to choose the layer to evict
+	 */
+	enum Eviction
+	{
+		LRU, HIGHEST
+	}
+
+	/**
+	 * What is held for one layer
+	 */
+	private static class Layer
+	{
+		/**
+		 * The slices and support of each STLObject (null if not in memory)
+		 */
+		BooleanGridList[] slices, support;
+
+		/**
+		 * The slices that are kept as MaterialRasters instead
+		 */
+		MaterialRaster[] rasters;
+
+		/**
+		 * Roughly how much memory those take up
+		 */
+		long bytes = 0;
+
+		/**
+		 * Where the layer is in the spill file if it's been pushed out of memory, and
+		 * the attributes of its grids (which aren't written out)
+		 */
+		long offset = -1;
+		int length = 0;
+		Attributes[][] sliceAttributes, supportAttributes;
+
+		Layer(int stls)
+		{
+			slices = new BooleanGridList[stls];
+			support = new BooleanGridList[stls];
+			rasters = new MaterialRaster[stls];
+		}
+
+		boolean inMemory()
+		{
+			return offset < 0;
+		}
+	}
+
+	private final int stls;
+
+	/**
+	 * The most layers to keep
+	 */
+	private final int maxLayers;
+
+	/**
+	 * The most bytes of bitmap to keep in memory (Long.MAX_VALUE for no limit)
+	 */
+	private final long budget;
+
+	private final Eviction eviction;
+
+	private final boolean spill;
+
+	/**
+	 * Keep slices of several materials as MaterialRasters?
+	 */
+	private final boolean labelled;
+
+	/**
+	 * The layers, in order of use
+	 */
+	private final LinkedHashMap<Integer, Layer> layers = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The bytes of the layers in memory
+	 */
+	private long bytes = 0;
+
+	/**
+	 * The file layers are spilled to, and its length (null until it's needed)
+	 */
+	private File spillFile = null;
+	private RandomAccessFile spillStore = null;
+	private long spillLength = 0;
+
+	/**
+	 * The bytes of the spill file that no layer is using any more (those of layers
+	 * read back or dropped).  When they are more than half the file it is compacted.
+	 */
+	private long spillGarbage = 0;
+
+	/**
+	 * Slices that have been dropped since they were worked out, by layer*stls + stl
+	 * (a bit for every slice of the build at most)
+	 */
+	private final BitSet dropped = new BitSet();
+
+	/**
+	 * The counters
+	 */
+	private long hits = 0, misses = 0, recomputes = 0, spills = 0, unspills = 0, drops = 0, peak = 0, compactions = 0;
+
+	/**
+	 * @param stls the number of STLObjects
+	 * @param layers the most layers to keep
+	 */
+	SliceCache(int stls, int layers)
+	{
+		this.stls = stls;
+		maxLayers = Math.max(layers, 1);
+		double megabytes = preference("SliceCacheMegabytes", 0);
+		if(megabytes > 0)
+			budget = (long)(megabytes*1024*1024);
+		else
+			budget = Long.MAX_VALUE;
+		eviction = "Highest".equalsIgnoreCase(preference("SliceCacheEviction")) ? Eviction.HIGHEST : Eviction.LRU;
+		spill = "true".equalsIgnoreCase(preference("SliceCacheSpill"));
+		labelled = "true".equalsIgnoreCase(preference("MaterialRasters"));
+	}
+
+	/**
+	 * A preference that may not be set
+	 * @param name
+	 * @return the value, or null
+	 */
+	private static String preference(String name)
+	{
+		try
+		{
+			return Preferences.loadGlobalString(name, null);
+		} catch (IOException e)
+		{
+			Debug.e(e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * A numerical preference that may not be set
+	 * @param name
+	 * @param otherwise the value if it isn't set
+	 * @return
+	 */
+	private static double preference(String name, double otherwise)
+	{
+		String value = preference(name);
+		if(value == null || value.trim().isEmpty())
+			return otherwise;
+		try
+		{
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e)
+		{
+			Debug.e("SliceCache: " + name + " should be a number, not " + value);
+			return otherwise;
+		}
+	}
+
+	/**
+	 * Roughly how much memory a list of grids takes up
+	 * @param list
+	 * @return
+	 */
+	private static long bytes(BooleanGridList list)
+	{
+		if(list == null)
+			return 0;
+		long result = 0;
+		for(int i = 0; i < list.size(); i++)
+			result += list.get(i).bytes();
+		return result;
+	}
+
+	/**
+	 * The layer's record, reading it back from the spill file if need be
+	 * @param layer
+	 * @return null if the layer isn't held
+	 */
+	private Layer find(int layer)
+	{
+		Layer l = layers.get(layer);
+		if(l == null || l.inMemory())
+			return l;
+		try
+		{
+			unspill(l);
+			unspills++;
+		} catch (IOException e)
+		{
+			Debug.e("SliceCache: can't read back layer " + layer + ": " + e.toString());
+			layers.remove(layer);
+			spillGarbage += l.length;
+			forget(layer, l);
+			return null;
+		}
+		bytes += l.bytes;
+		peak = Math.max(peak, bytes);
+		makeRoom(layer);
+		return l;
+	}
+
+	/**
+	 * The layer's record, making a new one if need be
+	 * @param layer
+	 * @return
+	 */
+	private Layer forWrite(int layer)
+	{
+		Layer l = find(layer);
+		if(l == null)
+		{
+			l = new Layer(stls);
+			layers.put(layer, l);
+			makeRoom(layer);
+		}
+		return l;
+	}
+
+	/**
+	 * Replace one entry of a layer and keep the memory total
+	 * @param layer
+	 * @param lists
+	 * @param stl
+	 * @param value
+	 */
+	private void store(int layer, BooleanGridList[] lists, int stl, BooleanGridList value)
+	{
+		long change = bytes(value) - bytes(lists[stl]);
+		lists[stl] = value;
+		account(layer, change);
+	}
+
+	/**
+	 * A layer's memory has changed
+	 * @param layer
+	 * @param change in bytes
+	 */
+	private void account(int layer, long change)
+	{
+		layers.get(layer).bytes += change;
+		bytes += change;
+		peak = Math.max(peak, bytes);
+		makeRoom(layer);
+	}
+
+	/**
+	 * The layer to evict next (not keep, which is in use)
+	 * @param keep
+	 * @param inMemory only consider layers in memory
+	 * @return
+	 */
+	private Integer victim(int keep, boolean inMemory)
+	{
+		Integer result = null;
+		for(Map.Entry<Integer, Layer> e : layers.entrySet())
+		{
+			int layer = e.getKey();
+			if(layer == keep || (inMemory && !e.getValue().inMemory()))
+				continue;
+			if(eviction == Eviction.LRU)
+				return layer;  // The map is in order of use
+			if(result == null || layer > result)
+				result = layer;
+		}
+		return result;
+	}
+
+	/**
+	 * Evict layers until the cache is within its limits.  Layers over the count
+	 * are dropped; layers over the memory budget are spilled if that's allowed.
+	 * @param keep a layer that is in use and mustn't go
+	 */
+	private void makeRoom(int keep)
+	{
+		while(layers.size() > maxLayers)
+		{
+			Integer layer = victim(keep, false);
+			if(layer == null)
+				break;
+			drop(layer);
+		}
+		while(bytes > budget)
+		{
+			Integer layer = victim(keep, true);
+			if(layer == null)
+				break;
+			if(spill)
+				spill(layer);
+			else
+				drop(layer);
+		}
+	}
+
+	/**
+	 * Remember that a layer's slices have been let go
+	 * @param layer
+	 * @param l
+	 */
+	private void forget(int layer, Layer l)
+	{
+		for(int stl = 0; stl < stls; stl++)
+			if(l.slices != null ? l.slices[stl] != null || l.rasters[stl] != null : l.sliceAttributes[stl] != null)
+				setDropped(layer, stl, true);
+	}
+
+	/**
+	 * Note whether a slice has been dropped since it was worked out
+	 * @param layer
+	 * @param stl
+	 * @param value
+	 */
+	private void setDropped(int layer, int stl, boolean value)
+	{
+		if(layer >= 0)
+			dropped.set(layer*stls + stl, value);
+	}
+
+	/**
+	 * Has a slice been dropped since it was worked out?
+	 * @param layer
+	 * @param stl
+	 * @return
+	 */
+	private boolean wasDropped(int layer, int stl)
+	{
+		return layer >= 0 && dropped.get(layer*stls + stl);
+	}
+
+	/**
+	 * Let a layer go altogether
+	 * @param layer
+	 */
+	private void drop(int layer)
+	{
+		Layer l = layers.remove(layer);
+		if(l.inMemory())
+			bytes -= l.bytes;
+		else
+			spillGarbage += l.length;
+		forget(layer, l);
+		drops++;
+	}
+
+	/**
+	 * Move a layer out of memory into the spill file, or drop it if that can't be done
+	 * @param layer
+	 */
+	private void spill(int layer)
+	{
+		Layer l = layers.get(layer);
+		try
+		{
+			if(spillStore == null)
+			{
+				spillFile = File.createTempFile("reprap-slices", ".tmp");
+				spillFile.deleteOnExit();
+				spillStore = new RandomAccessFile(spillFile, "rw");
+			} else if(spillGarbage > spillLength/2)
+				compact();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(buffer));
+			BooleanGridList[] slices = l.slices.clone();
+			for(int stl = 0; stl < stls; stl++)
+				if(l.rasters[stl] != null)
+					slices[stl] = l.rasters[stl].masks();
+			l.sliceAttributes = write(out, slices);
+			l.supportAttributes = write(out, l.support);
+			out.close();
+			byte[] data = buffer.toByteArray();
+			spillStore.seek(spillLength);
+			spillStore.write(data);
+			l.offset = spillLength;
+			l.length = data.length;
+			spillLength += data.length;
+		} catch (IOException e)
+		{
+			Debug.e("SliceCache: can't spill layer " + layer + ": " + e.toString());
+			drop(layer);
+			return;
+		}
+		l.slices = null;
+		l.support = null;
+		l.rasters = null;
+		bytes -= l.bytes;
+		spills++;
+	}
+
+	/**
+	 * Copy the layers still in the spill file to a new one, leaving out the space
+	 * of those read back or dropped, so the file doesn't keep growing as layers
+	 * come and go
+	 * @throws IOException
+	 */
+	private void compact() throws IOException
+	{
+		File newFile = File.createTempFile("reprap-slices", ".tmp");
+		newFile.deleteOnExit();
+		RandomAccessFile newStore = new RandomAccessFile(newFile, "rw");
+		long newLength = 0;
+		try
+		{
+			for(Layer l : layers.values())
+			{
+				if(l.inMemory())
+					continue;
+				byte[] data = new byte[l.length];
+				spillStore.seek(l.offset);
+				spillStore.readFully(data);
+				newStore.write(data);
+				l.offset = newLength;
+				newLength += data.length;
+			}
+		} catch (IOException e)
+		{
+			newStore.close();
+			newFile.delete();
+			throw e;
+		}
+		spillStore.close();
+		spillFile.delete();
+		spillFile = newFile;
+		spillStore = newStore;
+		spillLength = newLength;
+		spillGarbage = 0;
+		compactions++;
+	}
+
+	/**
+	 * Write the grids in lists out
+	 * @param out
+	 * @param lists
+	 * @return the attributes of the grids
+	 * @throws IOException
+	 */
+	private static Attributes[][] write(DataOutputStream out, BooleanGridList[] lists) throws IOException
+	{
+		Attributes[][] result = new Attributes[lists.length][];
+		for(int stl = 0; stl < lists.length; stl++)
+		{
+			BooleanGridList list = lists[stl];
+			if(list == null)
+			{
+				out.writeInt(-1);
+				continue;
+			}
+			out.writeInt(list.size());
+			result[stl] = new Attributes[list.size()];
+			for(int i = 0; i < list.size(); i++)
+			{
+				result[stl][i] = list.attribute(i);
+				list.get(i).write(out);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Read back grids written by write()
+	 * @param in
+	 * @param attributes
+	 * @return
+	 * @throws IOException
+	 */
+	private static BooleanGridList[] read(DataInputStream in, Attributes[][] attributes) throws IOException
+	{
+		BooleanGridList[] result = new BooleanGridList[attributes.length];
+		for(int stl = 0; stl < attributes.length; stl++)
+		{
+			int n = in.readInt();
+			if(n < 0)
+				continue;
+			result[stl] = new BooleanGridList();
+			for(int i = 0; i < n; i++)
+				result[stl].add(BooleanGrid.read(in, attributes[stl][i]));
+		}
+		return result;
+	}
+
+	/**
+	 * Bring a spilled layer back into memory
+	 * @param l
+	 * @throws IOException
+	 */
+	private void unspill(Layer l) throws IOException
+	{
+		byte[] data = new byte[l.length];
+		spillStore.seek(l.offset);
+		spillStore.readFully(data);
+		DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+		l.slices = read(in, l.sliceAttributes);
+		l.support = read(in, l.supportAttributes);
+		l.rasters = new MaterialRaster[stls];
+
+		// The rasters were written out as grids; make them rasters again, and count
+		// what is in memory now
+
+		l.bytes = 0;
+		for(int stl = 0; stl < stls; stl++)
+		{
+			l.rasters[stl] = raster(l.slices[stl]);
+			if(l.rasters[stl] != null)
+			{
+				l.slices[stl] = null;
+				l.bytes += l.rasters[stl].bytes();
+			} else
+				l.bytes += bytes(l.slices[stl]);
+			l.bytes += bytes(l.support[stl]);
+		}
+		l.sliceAttributes = null;
+		l.supportAttributes = null;
+		l.offset = -1;
+		spillGarbage += l.length;
+		l.length = 0;
+	}
+
+	/**
+	 * A slice as the cache keeps it
+	 * @param slice
+	 * @return a MaterialRaster of it if it has several materials and they are kept that
+	 * way, otherwise null
+	 */
+	private MaterialRaster raster(BooleanGridList slice)
+	{
+		if(labelled && slice != null && slice.size() > 1)
+			return new MaterialRaster(slice);
+		return null;
+	}
+
+	public void setSlice(BooleanGridList slice, int layer, int stl)
+	{
+		MaterialRaster raster = raster(slice);
+		synchronized(this)
+		{
+			Layer l = forWrite(layer);
+			long change = (raster != null ? raster.bytes() : bytes(slice)) - bytes(l.slices[stl]);
+			if(l.rasters[stl] != null)
+				change -= l.rasters[stl].bytes();
+			l.slices[stl] = raster != null ? null : slice;
+			l.rasters[stl] = raster;
+			account(layer, change);
+			setDropped(layer, stl, false);
+		}
+	}
+
+	public synchronized void setSupport(BooleanGridList support, int layer, int stl)
+	{
+		Layer l = forWrite(layer);
+		store(layer, l.support, stl, support);
+	}
+
+	public BooleanGridList getSlice(int layer, int stl)
+	{
+		BooleanGridList result;
+		MaterialRaster raster;
+		synchronized(this)
+		{
+			boolean onDisk = layers.containsKey(layer) && !layers.get(layer).inMemory();
+			Layer l = find(layer);
+			result = l == null ? null : l.slices[stl];
+			raster = l == null ? null : l.rasters[stl];
+			if(result != null || raster != null)
+			{
+				if(!onDisk)
+					hits++;
+			} else
+			{
+				misses++;
+				if(wasDropped(layer, stl))
+					recomputes++;
+			}
+		}
+		if(raster != null)
+			return raster.masks();
+		return result;
+	}
+
+	/**
+	 * A slice, if it is kept as a MaterialRaster
+	 * @param layer
+	 * @param stl
+	 * @return null if it isn't
+	 */
+	public synchronized MaterialRaster getRaster(int layer, int stl)
+	{
+		Layer l = layers.get(layer);
+		if(l == null || !l.inMemory())
+			return null;
+		return l.rasters[stl];
+	}
+
+	/**
+	 * Are slices of several materials kept as MaterialRasters?
+	 * @return
+	 */
+	public boolean materialRasters()
+	{
+		return labelled;
+	}
+
+	public synchronized BooleanGridList getSupport(int layer, int stl)
+	{
+		Layer l = find(layer);
+		if(l == null)
+			return null;
+		return l.support[stl];
+	}
+
+	/**
+	 * Let go of everything, including the spill file
+	 */
+	public synchronized void close()
+	{
+		layers.clear();
+		bytes = 0;
+		dropped.clear();
+		if(spillStore != null)
+		{
+			try
+			{
+				spillStore.close();
+			} catch (IOException e)
+			{
+				Debug.e("SliceCache.close(): " + e.toString());
+			}
+			spillFile.delete();
+			spillStore = null;
+			spillFile = null;
+			spillLength = 0;
+			spillGarbage = 0;
+		}
+	}
+
+	/**
+	 * How many bytes the layers in memory take up
+	 * @return
+	 */
+	synchronized long memory()
+	{
+		return bytes;
+	}
+
+	/**
+	 * How long the spill file is, counting the bytes no layer uses any more
+	 * @return
+	 */
+	synchronized long spillLength()
+	{
+		return spillLength;
+	}
+
+	/**
+	 * How the cache has done: slice lookups found in memory and not found (of which
+	 * recomputes are slices that had been worked out before and dropped); layers
+	 * read back from the spill file, dropped and spilled; memory; and the spill file.
+	 * @return
+	 */
+	public synchronized String statistics()
+	{
+		return "Slice cache: " + hits + " hits, " + misses + " misses (" + recomputes + " recomputed); " +
+				unspills + " layers read back, " + drops + " dropped, " + spills + " spilled, " +
+				layers.size() + " layers held, " + bytes/1024 + "kB in memory (peak " + peak/1024 +
+				"kB), " + spillLength/1024 + "kB spilled (" + spillGarbage/1024 + "kB unused, " + compactions +
+				" compactions); " + eviction + " eviction";
+	}
+}
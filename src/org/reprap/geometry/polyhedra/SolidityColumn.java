@@ -0,0 +1,147 @@
+package org.reprap.geometry.polyhedra;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.reprap.geometry.polygons.BooleanGrid;
+import org.reprap.geometry.polygons.BooleanGridList;
+import org.reprap.geometry.polygons.Rectangle;
+
+/**
+ * Rolling per-pixel counts of solid layers for one STLObject, used to find
+ * which parts of a slice are surface.  For each layer, and each extruder, it
+ * holds a BooleanGrid.Solidity giving how many layers in a row are solid at
+ * each pixel going up from that layer.  The counts at a layer come from those
+ * at the layer above and that layer's slice, so going down the layers each
+ * slice is looked at once and the parts solid in all of the n layers from a
+ * layer up are found in a single pass, rather than by intersecting n slices.
+ *
+ * Counts that don't reach the depth only depend on the layers up to depth
+ * above, so when a layer is wanted that isn't held (at the start, or when the
+ * layers are worked on out of order) the counting just starts again from
+ * depth - 1 layers above it.
+ *
+ * The counts are kept for a window of layers above the lowest one wanted.
+ * Layers may be worked on by several threads at once, so access is synchronized.
+ *
+ */
+class SolidityColumn
+{
+	private final AllSTLsToBuild allSTLs;
+
+	private final int stl;
+
+	/**
+	 * The plan rectangle the STLObject's slices are made in
+	 */
+	private final Rectangle box;
+
+	/**
+	 * The counts stop at this
+	 */
+	private final int depth;
+
+	/**
+	 * How many layers above the one last wanted to keep the counts for
+	 */
+	private final int window;
+
+	/**
+	 * The counts at each layer that are held, by extruder ID
+	 */
+	private final TreeMap<Integer, Map<Integer, BooleanGrid.Solidity>> counts = new TreeMap<>();
+
+	/**
+	 * The counts at the lowest layer counted so far, which layer that is, and
+	 * the layer the counting started from (the counts are right up to depth
+	 * - 1 layers below that)
+	 */
+	private Map<Integer, BooleanGrid.Solidity> current = null;
+	private int lowest = Integer.MIN_VALUE;
+	private int start = Integer.MIN_VALUE;
+
+	/**
+	 * @param a
+	 * @param stl
+	 * @param box
+	 * @param depth
+	 * @param window
+	 */
+	SolidityColumn(AllSTLsToBuild a, int stl, Rectangle box, int depth, int window)
+	{
+		allSTLs = a;
+		this.stl = stl;
+		this.box = box;
+		this.depth = Math.max(depth, 1);
+		this.window = window;
+	}
+
+	/**
+	 * Count one more layer down
+	 */
+	private void step()
+	{
+		int layer = lowest - 1;
+		BooleanGridList slice = allSTLs.slice(stl, layer);
+		Map<Integer, BooleanGrid.Solidity> next = new HashMap<>();
+		for(int i = 0; i < slice.size(); i++)
+		{
+			int id = slice.attribute(i).getExtruder().getID();
+			BooleanGrid.Solidity above = current.get(id);
+			if(above == null)
+				above = new BooleanGrid.Solidity(box, slice.attribute(i), depth);
+			next.put(id, above.down(slice.get(i)));
+		}
+
+		// Extruders with nothing in this layer have zero counts, so they are left out
+
+		current = next;
+		lowest = layer;
+		if(layer <= start - depth + 1)
+			counts.put(layer, current);
+	}
+
+	/**
+	 * The counts at a layer, counting down to it (or starting again above it) if need be
+	 * @param layer
+	 * @return
+	 */
+	private Map<Integer, BooleanGrid.Solidity> at(int layer)
+	{
+		Map<Integer, BooleanGrid.Solidity> result = counts.get(layer);
+		if(result != null)
+			return result;
+		if(current == null || layer >= lowest || lowest - layer > depth)
+		{
+			current = new HashMap<>();
+			start = layer + depth - 1;
+			lowest = start + 1;
+		}
+		while(lowest > layer)
+			step();
+		counts.tailMap(layer + window, false).clear();
+		return counts.get(layer);
+	}
+
+	/**
+	 * The parts of the STLObject that are solid in all of the n layers from layer
+	 * up, one grid per extruder (the same as the intersections of those n slices)
+	 * @param layer
+	 * @param n (at least 1 and no more than the depth)
+	 * @return
+	 */
+	synchronized BooleanGridList solid(int layer, int n)
+	{
+		BooleanGridList result = new BooleanGridList();
+		if(box == null || layer < 0)
+			return result;
+		for(BooleanGrid.Solidity s : at(layer).values())
+		{
+			BooleanGrid g = s.atLeast(n);
+			if(g != BooleanGrid.nullBooleanGrid())
+				result.add(g);
+		}
+		return result;
+	}
+}
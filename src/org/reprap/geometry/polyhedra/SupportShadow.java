@@ -0,0 +1,200 @@
+package org.reprap.geometry.polyhedra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.reprap.Preferences;
+import org.reprap.geometry.polygons.BooleanGridList;
+import org.reprap.utilities.Debug;
+
+/**
+ * The shadow one STLObject casts down for support: at each layer, the union of
+ * its slices in all the layers above, one grid per extruder (with the support's
+ * pixels; see AllSTLsToBuild.supportSlice()).  That is everywhere that might need
+ * holding up in that layer.
+ *
+ * Building each layer's shadow from the one above as the layers are done means
+ * they must be done in order, and a shadow lost from the slice cache breaks the
+ * chain.  Instead the shadows are worked out in a pass of their own before the
+ * building starts, as a parallel scan down the layers:
+ *
+ *  1. The layers are split into blocks, and the union of the slices in each
+ *     block is found, all the blocks at once.
+ *
+ *  2. Going down the blocks, the union of all the blocks above one is its shadow
+ *     at its top layer.  Only these are kept.
+ *
+ *  3. The shadow at any layer is its block's shadow plus the slices from the top
+ *     of the block down to the layer above it.  The last one found is kept, so
+ *     going down the layers in order costs one union a layer.
+ *
+ * So any layer's shadow may be had at any time, on any thread, for the memory
+ * of one shadow per block.  The price is slicing every layer an extra time in
+ * step 1 (see AllSTLsToBuild.computeSupportShadows()).
+ *
+ */
+class SupportShadow
+{
+	private final AllSTLsToBuild allSTLs;
+
+	private final int stl;
+
+	/**
+	 * The highest layer; nothing above it casts a shadow
+	 */
+	private final int top;
+
+	/**
+	 * How many layers there are in a block
+	 */
+	private final int block;
+
+	/**
+	 * The shadow at the top layer of each block
+	 */
+	private final BooleanGridList[] tops;
+
+	/**
+	 * The last shadow worked out, and its layer
+	 */
+	private BooleanGridList last = null;
+	private int lastLayer = Integer.MIN_VALUE;
+
+	/**
+	 * Should the support shadows be worked out before building?  This is the SupportShadowPass preference.
+	 * @return
+	 */
+	static boolean wanted()
+	{
+		try
+		{
+			return "true".equalsIgnoreCase(Preferences.loadGlobalString("SupportShadowPass", null));
+		} catch (IOException e)
+		{
+			Debug.e(e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * How many layers go in a block.  This is the SupportShadowBlock preference,
+	 * which may be left unset.  Bigger blocks keep fewer shadows but cost more
+	 * unions when the layers are not asked for in order.
+	 * @return
+	 */
+	static int blockSize()
+	{
+		try
+		{
+			String value = Preferences.loadGlobalString("SupportShadowBlock", null);
+			if(value != null && !value.trim().isEmpty())
+				return Math.max(Integer.parseInt(value.trim()), 1);
+		} catch (IOException | NumberFormatException e)
+		{
+			Debug.e("SupportShadow.blockSize(): " + e.toString());
+		}
+		return 16;
+	}
+
+	/**
+	 * Work out the shadows of STLObject stl in the layers from top down
+	 * @param a
+	 * @param stl
+	 * @param top
+	 * @param block
+	 * @param pool to do the blocks at the same time in, or null to do them in turn
+	 */
+	SupportShadow(AllSTLsToBuild a, int stl, int top, int block, ForkJoinPool pool)
+	{
+		allSTLs = a;
+		this.stl = stl;
+		this.top = top;
+		this.block = Math.max(block, 1);
+		int blocks = Math.max(top, 0)/this.block + 1;
+
+		BooleanGridList[] unions = new BooleanGridList[blocks];
+		if(pool == null)
+		{
+			for(int b = 0; b < blocks; b++)
+				unions[b] = union(b);
+		} else
+		{
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for(int b = 0; b < blocks; b++)
+			{
+				final int bl = b;
+				tasks.add(pool.submit(() -> { unions[bl] = union(bl); }));
+			}
+			for(ForkJoinTask<?> task : tasks)
+				task.join();
+		}
+
+		tops = new BooleanGridList[blocks];
+		BooleanGridList above = new BooleanGridList();
+		for(int b = blocks - 1; b >= 0; b--)
+		{
+			tops[b] = above;
+			above = BooleanGridList.unions(above, unions[b]);
+		}
+	}
+
+	/**
+	 * The top layer of block b
+	 * @param b
+	 * @return
+	 */
+	private int topOf(int b)
+	{
+		return Math.min(b*block + block - 1, top);
+	}
+
+	/**
+	 * The union of the slices in block b.  This is worked out straight away,
+	 * even if the booleans are being deferred, so that the blocks really are
+	 * done at the same time.
+	 * @param b
+	 * @return
+	 */
+	private BooleanGridList union(int b)
+	{
+		BooleanGridList result = new BooleanGridList();
+		for(int layer = topOf(b); layer >= b*block; layer--)
+			result = BooleanGridList.unions(result, allSTLs.supportSlice(stl, layer));
+		result.evaluate();
+		return result;
+	}
+
+	/**
+	 * The union of the slices in all the layers above a layer.  This may be called
+	 * on any thread, for the layers in any order.
+	 * @param layer
+	 * @return
+	 */
+	BooleanGridList shadow(int layer)
+	{
+		if(layer >= top)
+			return new BooleanGridList();
+		int b = Math.max(layer, 0)/block;
+		int from = topOf(b);
+		BooleanGridList result = tops[b];
+		synchronized(this)
+		{
+			if(last != null && lastLayer >= layer && lastLayer <= from && lastLayer/block == b)
+			{
+				from = lastLayer;
+				result = last;
+			}
+		}
+		for(int l = from; l > layer; l--)
+			result = BooleanGridList.unions(result, allSTLs.supportSlice(stl, l));
+		synchronized(this)
+		{
+			last = result;
+			lastLayer = layer;
+		}
+		return result;
+	}
+}
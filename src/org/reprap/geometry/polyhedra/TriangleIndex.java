@@ -0,0 +1,424 @@
+package org.reprap.geometry.polyhedra;
+
+import java.util.Arrays;
+
+/**
+ * The triangles of one part of a Mesh (which has already been put in its place on the
+ * build platform) indexed by their z extents, so that slicing at a given z only needs
+ * to look at the triangles that the plane actually cuts, not the whole mesh.
+ *
+ * The index is a centred interval tree: each node holds the triangles whose z range
+ * spans its centre, once sorted by their bottoms and once by their tops, and the
+ * triangles wholly below and wholly above the centre go to its two subtrees.  A query
+ * walks one path from the root, stopping its scan of each node's lists as soon as the
+ * triangles can't reach z, so it costs O(log n + k) for k triangles found.
+ *
+ * The index numbers the triangles its own way; meshTriangle() gives the Mesh's
+ * number for each.
+ *
+ * When the slices come in order, as they do when the layers are built one after
+ * another, a Sweep does better still: it keeps the set of triangles the plane
+ * is cutting, and as the plane moves it only looks at the triangles it enters
+ * or leaves.  Each thread has a Sweep of its own.
+ *
+ */
+class TriangleIndex
+{
+	/**
+	 * A node of the tree
+	 */
+	private static class Node
+	{
+		/**
+		 * The z value that all the triangles in this node span
+		 */
+		double centre;
+
+		/**
+		 * This node's triangles in order of increasing bottom
+		 */
+		int[] byBottom;
+
+		/**
+		 * This node's triangles in order of decreasing top
+		 */
+		int[] byTop;
+
+		/**
+		 * The triangles wholly below and wholly above the centre
+		 */
+		Node below, above;
+	}
+
+	/**
+	 * The mesh the triangles come from
+	 */
+	private final Mesh mesh;
+
+	/**
+	 * The mesh's number for each triangle
+	 */
+	private int[] meshTriangle;
+
+	/**
+	 * The lowest and highest z of each triangle
+	 */
+	private double[] bottom, top;
+
+	/**
+	 * How many triangles?
+	 */
+	private final int count;
+
+	/**
+	 * The root of the tree (null if there are no triangles)
+	 */
+	private Node root;
+
+	/**
+	 * All the triangles in order of decreasing top (the triangles are numbered in
+	 * order of increasing bottom, so that order needs no array)
+	 */
+	private int[] byTop;
+
+	/**
+	 * Index the triangles of part p of mesh
+	 * @param mesh
+	 * @param p
+	 */
+	TriangleIndex(Mesh mesh, int p)
+	{
+		this.mesh = mesh;
+		int start = mesh.first(p);
+		count = mesh.end(p) - start;
+		bottom = new double[count];
+		top = new double[count];
+		for(int t = 0; t < count; t++)
+		{
+			bottom[t] = mesh.bottom(start + t);
+			top[t] = mesh.top(start + t);
+		}
+
+		// Sort once by bottom and once by top; the nodes' lists are then
+		// just these orders filtered, so they need no sorting of their own.
+		// The triangles are renumbered in order of their bottoms, which keeps
+		// the tree's look-ups of nearby triangles close together in memory.
+
+		int[] byBottom = order(bottom, 1);
+		meshTriangle = new int[count];
+		double[] newBottom = new double[count];
+		double[] newTop = new double[count];
+		for(int t = 0; t < count; t++)
+		{
+			int old = byBottom[t];
+			meshTriangle[t] = start + old;
+			newBottom[t] = bottom[old];
+			newTop[t] = top[old];
+			byBottom[t] = t;
+		}
+		bottom = newBottom;
+		top = newTop;
+		byTop = order(top, -1);
+
+		root = build(byBottom, byTop);
+	}
+
+	/**
+	 * How many triangles are there?
+	 * @return
+	 */
+	int size()
+	{
+		return count;
+	}
+
+	/**
+	 * The mesh the triangles come from
+	 * @return
+	 */
+	Mesh mesh()
+	{
+		return mesh;
+	}
+
+	/**
+	 * The triangle numbers in order of increasing sign*key, ties in number order.  The
+	 * keys are turned into longs that sort the same way, and the rank of each among
+	 * them goes in the top half of a primitive long with the triangle number in the
+	 * bottom, so two primitive sorts do it all.
+	 * @param key
+	 * @param sign
+	 * @return
+	 */
+	private int[] order(double[] key, int sign)
+	{
+		long[] bits = new long[count];
+		for(int t = 0; t < count; t++)
+		{
+			long b = Double.doubleToLongBits(sign*key[t] + 0.0);  // + 0.0 makes -0 into 0
+			bits[t] = b ^ ((b >> 63) & 0x7fffffffffffffffL);  // Negative doubles sort backwards as longs
+		}
+		long[] sorted = bits.clone();
+		Arrays.sort(sorted);
+		long[] packed = new long[count];
+		for(int t = 0; t < count; t++)
+			packed[t] = ((long)Arrays.binarySearch(sorted, bits[t]) << 32) | t;
+		Arrays.sort(packed);
+		int[] result = new int[count];
+		for(int i = 0; i < count; i++)
+			result[i] = (int)packed[i];
+		return result;
+	}
+
+	/**
+	 * Build the subtree holding a set of triangles, given in both orders
+	 * @param byBottom
+	 * @param byTop
+	 * @return
+	 */
+	private Node build(int[] byBottom, int[] byTop)
+	{
+		int n = byBottom.length;
+		if(n == 0)
+			return null;
+
+		// The centre is the median of all the triangles' ends.  Each triangle wholly on one
+		// side of it has both its ends there, so at most half of them go to each subtree.
+		// Merge the bottoms (ascending) with the tops (byTop is descending) to find it.
+
+		Node node = new Node();
+		int i = 0;
+		int j = n - 1;
+		double c = 0;
+		for(int k = 0; k < n; k++)
+		{
+			if(j < 0 || (i < n && bottom[byBottom[i]] <= top[byTop[j]]))
+				c = bottom[byBottom[i++]];
+			else
+				c = top[byTop[j--]];
+		}
+		node.centre = c;
+		int[][] b = split(byBottom, c);
+		int[][] t = split(byTop, c);
+		node.byBottom = b[1];
+		node.byTop = t[1];
+		node.below = build(b[0], t[0]);
+		node.above = build(b[2], t[2]);
+		return node;
+	}
+
+	/**
+	 * Split list into the triangles wholly below c, those spanning it, and those
+	 * wholly above it, keeping their order
+	 * @param list
+	 * @param c
+	 * @return
+	 */
+	private int[][] split(int[] list, double c)
+	{
+		int[] sizes = new int[3];
+		for(int t : list)
+			sizes[side(t, c)]++;
+		int[][] result = {new int[sizes[0]], new int[sizes[1]], new int[sizes[2]]};
+		Arrays.fill(sizes, 0);
+		for(int t : list)
+		{
+			int s = side(t, c);
+			result[s][sizes[s]++] = t;
+		}
+		return result;
+	}
+
+	/**
+	 * Is triangle t wholly below c (0), spanning it (1) or wholly above it (2)?
+	 * @param t
+	 * @param c
+	 * @return
+	 */
+	private int side(int t, double c)
+	{
+		if(top[t] < c)
+			return 0;
+		return bottom[t] > c ? 2 : 1;
+	}
+
+	/**
+	 * The triangles whose z range includes z
+	 * @param z
+	 * @return
+	 */
+	int[] crossing(double z)
+	{
+		int[] result = new int[64];
+		int n = 0;
+		Node node = root;
+		while(node != null)
+		{
+			if(z < node.centre)
+			{
+				for(int t : node.byBottom)
+				{
+					if(bottom[t] > z)
+						break;
+					if(n >= result.length)
+						result = Arrays.copyOf(result, 2*n);
+					result[n++] = t;
+				}
+				node = node.below;
+			} else
+			{
+				for(int t : node.byTop)
+				{
+					if(top[t] < z)
+						break;
+					if(n >= result.length)
+						result = Arrays.copyOf(result, 2*n);
+					result[n++] = t;
+				}
+				node = node.above;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * The number of triangles in byTop with top >= z (they are all at the start)
+	 * @param z
+	 * @return
+	 */
+	private int topsAtOrAbove(double z)
+	{
+		int lo = 0;
+		int hi = count;
+		while(lo < hi)
+		{
+			int m = (lo + hi) >>> 1;
+			if(top[byTop[m]] >= z)
+				lo = m + 1;
+			else
+				hi = m;
+		}
+		return lo;
+	}
+
+	/**
+	 * The number of triangles with bottom <= z (they are the first ones)
+	 * @param z
+	 * @return
+	 */
+	private int bottomsAtOrBelow(double z)
+	{
+		int lo = 0;
+		int hi = count;
+		while(lo < hi)
+		{
+			int m = (lo + hi) >>> 1;
+			if(bottom[m] <= z)
+				lo = m + 1;
+			else
+				hi = m;
+		}
+		return lo;
+	}
+
+	/**
+	 * A plane moving through the index, keeping the set of triangles that it cuts
+	 * from one position to the next.  Each sweep has its own state, so there should
+	 * be one for each sequence of slices.
+	 */
+	class Sweep
+	{
+		/**
+		 * The triangles whose z range includes z
+		 */
+		private int[] active = new int[64];
+		private int n = 0;
+
+		/**
+		 * Where the plane is; NaN before it's been anywhere
+		 */
+		private double z = Double.NaN;
+
+		/**
+		 * Move the plane to z and return the triangles whose z range includes it
+		 * (the same set as crossing(z) gives, though in a different order).  Moving
+		 * the plane costs time proportional to the number of triangles it cuts plus
+		 * the number it starts or stops cutting, whichever way it goes.
+		 * @param newZ
+		 * @return
+		 */
+		int[] at(double newZ)
+		{
+			if(Double.isNaN(z))
+			{
+				active = crossing(newZ);
+				n = active.length;
+			} else if(newZ < z)
+			{
+				// Going down: let go of triangles now above the plane and pick up the
+				// ones whose tops it has passed, which are together in byTop
+
+				int kept = 0;
+				for(int i = 0; i < n; i++)
+					if(bottom[active[i]] <= newZ)
+						active[kept++] = active[i];
+				n = kept;
+				int end = topsAtOrAbove(newZ);
+				for(int i = topsAtOrAbove(z); i < end; i++)
+					if(bottom[byTop[i]] <= newZ)
+						add(byTop[i]);
+			} else if(newZ > z)
+			{
+				// Going up: the same, with the bottoms
+
+				int kept = 0;
+				for(int i = 0; i < n; i++)
+					if(top[active[i]] >= newZ)
+						active[kept++] = active[i];
+				n = kept;
+				int end = bottomsAtOrBelow(newZ);
+				for(int t = bottomsAtOrBelow(z); t < end; t++)
+					if(top[t] >= newZ)
+						add(t);
+			}
+			z = newZ;
+			return Arrays.copyOf(active, n);
+		}
+
+		/**
+		 * Put t in the active set
+		 * @param t
+		 */
+		private void add(int t)
+		{
+			if(n >= active.length)
+				active = Arrays.copyOf(active, 2*active.length + 1);
+			active[n++] = t;
+		}
+	}
+
+	/**
+	 * Each thread's sweep through the index, so threads slicing different layers
+	 * at the same time don't drag one plane back and forth between them
+	 */
+	private final ThreadLocal<Sweep> sweeps = ThreadLocal.withInitial(() -> new Sweep());
+
+	/**
+	 * The calling thread's sweep through the index (only that thread may use it)
+	 * @return
+	 */
+	Sweep sweep()
+	{
+		return sweeps.get();
+	}
+
+	/**
+	 * The mesh's number for triangle t
+	 * @param t
+	 * @return
+	 */
+	int meshTriangle(int t)
+	{
+		return meshTriangle[t];
+	}
+}
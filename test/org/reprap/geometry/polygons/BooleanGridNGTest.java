@@ -0,0 +1,614 @@
+package org.reprap.geometry.polygons;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.reprap.Attributes;
+
+/**
+ * Tests of BooleanGrid against straightforward pixel-by-pixel answers
+ */
+public class BooleanGridNGTest {
+
+    private static final BooleanGrid g = BooleanGrid.nullBooleanGrid();
+
+    private static BooleanGrid.iRectangle rectangle(int x0, int y0, int x1, int y1) {
+        return g.new iRectangle(g.new iPoint(x0, y0), g.new iPoint(x1, y1));
+    }
+
+    /**
+     * A grid of a box in mm
+     */
+    static BooleanGrid box(double x0, double y0, double x1, double y1, String material) {
+        Rectangle r = new Rectangle(new Point2D(x0, y0), new Point2D(x1, y1));
+        return new BooleanGrid(CSG2D.RrCSGFromBox(r), r, new Attributes(material, null, null, null));
+    }
+
+    /**
+     * A regular polygon approximating a circle, anticlockwise or clockwise
+     */
+    static Polygon circle(Attributes a, double cx, double cy, double r, int n, boolean ccw) {
+        Polygon p = new Polygon(a, true);
+        for (int i = 0; i < n; i++) {
+            double t = 2*Math.PI*i/n*(ccw ? 1 : -1);
+            p.add(new Point2D(cx + r*Math.cos(t), cy + r*Math.sin(t)));
+        }
+        return p;
+    }
+
+    /**
+     * A disc with a hole in it and an island in the hole, and another small disc
+     */
+    static PolygonList rings(Attributes a) {
+        PolygonList pl = new PolygonList();
+        pl.add(circle(a, 10, 10, 5, 40, true));
+        pl.add(circle(a, 10, 10, 2, 20, false));
+        pl.add(circle(a, 10, 10, 1, 20, true));
+        pl.add(circle(a, 17, 16, 1.5, 7, true));
+        return pl;
+    }
+
+    /**
+     * Are two grids the same pixel for pixel?
+     */
+    static void assertSamePixels(BooleanGrid a, BooleanGrid b) {
+        assertEquals(BooleanGrid.difference(a, b).pixelCount(), 0);
+        assertEquals(BooleanGrid.difference(b, a).pixelCount(), 0);
+    }
+
+    /**
+     * Test of iRectangle.union and intersection with rectangles that partly overlap.
+     */
+    @Test
+    public void testRectanglesPartlyOverlapping() {
+        BooleanGrid.iRectangle a = rectangle(0, 0, 9, 9);
+        BooleanGrid.iRectangle b = rectangle(5, 3, 14, 19);
+        assertTrue(a.union(b).coincidesWith(rectangle(0, 0, 14, 19)));
+        assertTrue(b.union(a).coincidesWith(rectangle(0, 0, 14, 19)));
+        assertTrue(a.intersection(b).coincidesWith(rectangle(5, 3, 9, 9)));
+        assertTrue(b.intersection(a).coincidesWith(rectangle(5, 3, 9, 9)));
+    }
+
+    /**
+     * Test of iRectangle.union and intersection with one rectangle inside the other.
+     */
+    @Test
+    public void testRectanglesContained() {
+        BooleanGrid.iRectangle a = rectangle(-4, -2, 20, 30);
+        BooleanGrid.iRectangle b = rectangle(2, 3, 4, 5);
+        assertTrue(a.union(b).coincidesWith(a));
+        assertTrue(b.union(a).coincidesWith(a));
+        assertTrue(a.intersection(b).coincidesWith(b));
+        assertTrue(b.intersection(a).coincidesWith(b));
+    }
+
+    /**
+     * Test of iRectangle.union and intersection with rectangles that don't meet.
+     */
+    @Test
+    public void testRectanglesDisjoint() {
+        BooleanGrid.iRectangle a = rectangle(0, 0, 3, 3);
+        BooleanGrid.iRectangle b = rectangle(10, 12, 12, 15);
+        assertTrue(a.union(b).coincidesWith(rectangle(0, 0, 12, 15)));
+        assertTrue(b.union(a).coincidesWith(rectangle(0, 0, 12, 15)));
+        assertTrue(a.intersection(b).isEmpty());
+        assertTrue(b.intersection(a).isEmpty());
+    }
+
+    /**
+     * Test of the booleans of grids that partly overlap, pixel by pixel.
+     */
+    @Test
+    public void testBooleansPartlyOverlapping() {
+        BooleanGrid a = box(0, 0, 1, 1, "A");
+        BooleanGrid b = box(0.6, 0.3, 1.9, 2.2, "A");
+        BooleanGrid u = BooleanGrid.union(a, b);
+        BooleanGrid i = BooleanGrid.intersection(a, b);
+        BooleanGrid d = BooleanGrid.difference(a, b);
+        for (double y = -0.5; y < 2.7; y += 0.013) {
+            for (double x = -0.5; x < 2.4; x += 0.017) {
+                Point2D p = new Point2D(x, y);
+                assertEquals(u.get(p), a.get(p) || b.get(p), "union at " + p);
+                assertEquals(i.get(p), a.get(p) && b.get(p), "intersection at " + p);
+                assertEquals(d.get(p), a.get(p) && !b.get(p), "difference at " + p);
+            }
+        }
+    }
+
+    /**
+     * Test of the scanline fill of polygons against building the grid from their CSG
+     */
+    @Test
+    public void testScanFillMatchesCSG() {
+        Attributes a = new Attributes("A", null, null, null);
+        Rectangle box = new Rectangle(new Point2D(0, 0), new Point2D(20, 20));
+        PolygonList pl = rings(a);
+        assertSamePixels(new BooleanGrid(pl, box, a, false), new BooleanGrid(pl.toCSG(1e-12), box, a));
+
+        // With the non-zero rule overlapping polygons going the same way are their union
+
+        PolygonList overlapping = new PolygonList();
+        overlapping.add(circle(a, 8, 9, 5, 33, true));
+        overlapping.add(circle(a, 12, 11, 4.3, 29, true));
+        BooleanGrid union = BooleanGrid.union(new BooleanGrid(overlapping.get(0).toCSG(1e-12), box, a),
+                new BooleanGrid(overlapping.get(1).toCSG(1e-12), box, a));
+        assertSamePixels(new BooleanGrid(overlapping, box, a, true), union);
+    }
+
+    /**
+     * The outlines found the way marchAll() used to find them: every cell tried in
+     * column order, and each new one marched round
+     */
+    static List<BooleanGrid.iPolygon> marchByColumns(BooleanGrid g) {
+        List<BooleanGrid.iPolygon> result = new ArrayList<>();
+        int w = g.pixelRectangle()[2];
+        int h = g.pixelRectangle()[3];
+        for (int x = 0; x < w - 1; x++)
+            for (int y = 0; y < h - 1; y++) {
+                int m = (g.get(g.new iPoint(x, y)) ? 1 : 0) + (g.get(g.new iPoint(x + 1, y)) ? 2 : 0)
+                        + (g.get(g.new iPoint(x, y - 1)) ? 4 : 0) + (g.get(g.new iPoint(x + 1, y - 1)) ? 8 : 0);
+                if (m == 0 || m == 15)
+                    continue;
+                if (g.vGet(x, y) || g.vGet(x + 1, y) || g.vGet(x, y - 1) || g.vGet(x + 1, y - 1))
+                    continue;
+                BooleanGrid.iPolygon p = g.marchRound(x, y);
+                if (p.size() > 2)
+                    result.add(p);
+            }
+        g.resetVisited();
+        return result;
+    }
+
+    /**
+     * Is b the same loop of points as a, perhaps starting somewhere else?
+     */
+    static boolean sameLoop(BooleanGrid.iPolygon a, BooleanGrid.iPolygon b) {
+        int n = a.size();
+        if (b.size() != n)
+            return false;
+        for (int s = 0; s < n; s++) {
+            int i = 0;
+            while (i < n && a.x(i) == b.x((i + s)%n) && a.y(i) == b.y((i + s)%n))
+                i++;
+            if (i == n)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Test that scanning for outlines a word at a time in row order finds the
+     * same outlines as trying every cell
+     */
+    @Test
+    public void testMarchMatchesCellByCell() {
+        Attributes a = new Attributes("A", null, null, null);
+        PolygonList pl = rings(a);
+        pl.add(circle(a, 3, 17, 2.5, 5, true));
+        BooleanGrid g = new BooleanGrid(pl, new Rectangle(new Point2D(0, 0), new Point2D(20, 20)), a, false);
+        g.disc(new Point2D(4, 4), 0.07, true);
+        List<BooleanGrid.iPolygon> want = marchByColumns(g);
+        BooleanGrid.iPolygonList got = g.marchAll();
+        assertEquals(got.size(), want.size());
+        assertTrue(want.size() >= 5);
+        for (BooleanGrid.iPolygon p : want) {
+            boolean found = false;
+            for (int i = 0; i < got.size() && !found; i++)
+                found = sameLoop(p, got.polygon(i));
+            assertTrue(found, "outline of " + p.size() + " points");
+        }
+    }
+
+    /**
+     * Where line h enters and leaves the solid, by walking every pixel of its DDA
+     * (the way hatch() used to find them)
+     */
+    static BooleanGrid.iPolygon walk(BooleanGrid g, HalfPlane h) {
+        BooleanGrid.iPolygon result = g.new iPolygon(false);
+        Interval se = g.box().wipe(h.pLine(), Interval.bigInterval());
+        if (se.empty())
+            return result;
+        BooleanGrid.iPoint s = g.new iPoint(h.pLine().point(se.low()));
+        BooleanGrid.iPoint e = g.new iPoint(h.pLine().point(se.high()));
+        BooleanGrid.DDA dda = g.new DDA(s, e);
+        BooleanGrid.iPoint n = dda.next();
+        BooleanGrid.iPoint nOld = n;
+        boolean vs = false;
+        while (n != null) {
+            boolean v = g.get(n);
+            if (v != vs)
+                result.add(v ? n : nOld);
+            vs = v;
+            nOld = n;
+            n = dda.next();
+        }
+        if (g.get(e))
+            result.add(e);
+        return result;
+    }
+
+    /**
+     * Check the crossings hatch() finds from the boundary pixels against walking each line
+     */
+    static void checkHatch(BooleanGrid g, double degrees, double gap) {
+        double r = Math.toRadians(degrees);
+        Point2D direction = new Point2D(Math.cos(r), Math.sin(r));
+        HalfPlane h = new HalfPlane(new Point2D(0, 0), direction);
+        double d = Math.sqrt(g.box().scale(1.1).dSquared());
+        List<HalfPlane> lines = new ArrayList<>();
+        for (double o = -2*d; o < 2*d; o += gap)
+            lines.add(h.offset(o));
+        BooleanGrid.iPolygonList found = g.hatch(lines);
+        assertEquals(found.size(), lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            BooleanGrid.iPolygon want = walk(g, lines.get(i));
+            BooleanGrid.iPolygon got = found.polygon(i);
+            String where = degrees + " degrees, gap " + gap + ", line " + i;
+            assertEquals(got.size(), want.size(), where);
+            for (int j = 0; j < want.size(); j++)
+                assertTrue(got.point(j).coincidesWith(want.point(j)), where + ", point " + j);
+        }
+    }
+
+    /**
+     * Test of the hatch crossings at awkward angles and spacings, including
+     * spacings of a pixel or less where the lines' DDAs stray furthest
+     * relative to the gap between them
+     */
+    @Test
+    public void testHatchMatchesWalk() {
+        Attributes a = new Attributes("A", null, null, null);
+        BooleanGrid g = new BooleanGrid(rings(a), new Rectangle(new Point2D(0, 0), new Point2D(20, 20)), a, false);
+        double pixel = g.pixelSize();
+        for (double degrees : new double[] {0, 17.3, 33.69, 45, 61.7, 90, 101.2, 143.13, 179.9, 223.4, 301.1}) {
+            for (double gap : new double[] {0.5, 0.3737, 2.1*pixel, 3.49*pixel, 1.01*pixel})
+                checkHatch(g, degrees, gap);
+        }
+
+        // Lines closer than a pixel, where some boundary pixels are more than a pixel from the nearest line
+
+        checkHatch(g, 15.134754453418005, 0.618166739*pixel);
+        checkHatch(g, 187.06138786445078, 0.624207509*pixel);
+        checkHatch(g, 80.63071142157222, 0.605422576*pixel);
+    }
+
+    /**
+     * The pixels 4-connected to the seed, by pushing one pixel at a time (the
+     * way floodCopy() used to fill)
+     */
+    static boolean[][] floodByPixels(BooleanGrid g, BooleanGrid.iPoint seed) {
+        int w = g.pixelRectangle()[2];
+        int h = g.pixelRectangle()[3];
+        boolean[][] result = new boolean[w][h];
+        if (!g.get(seed))
+            return result;
+        ArrayDeque<int[]> stack = new ArrayDeque<>();
+        for (int x = 0; x < w; x++)
+            for (int y = 0; y < h; y++)
+                if (seed.coincidesWith(g.new iPoint(x, y))) {
+                    stack.push(new int[] {x, y});
+                    result[x][y] = true;
+                }
+        int[][] steps = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+        while (!stack.isEmpty()) {
+            int[] p = stack.pop();
+            for (int[] d : steps) {
+                int x = p[0] + d[0];
+                int y = p[1] + d[1];
+                if (x >= 0 && y >= 0 && x < w && y < h && !result[x][y] && g.get(g.new iPoint(x, y))) {
+                    result[x][y] = true;
+                    stack.push(new int[] {x, y});
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Test of the run-at-a-time flood fill against filling pixel by pixel
+     */
+    @Test
+    public void testFloodMatchesPixelByPixel() {
+        Attributes a = new Attributes("A", null, null, null);
+        PolygonList pl = rings(a);
+        pl.add(circle(a, 3, 17, 2.5, 5, true));
+        BooleanGrid g = new BooleanGrid(pl, new Rectangle(new Point2D(0, 0), new Point2D(20, 20)), a, false);
+
+        // A thin wiggle, so the runs split and join again
+
+        for (double t = 0; t < 1; t += 0.002)
+            g.disc(new Point2D(2 + 15*t, 1.5 + Math.sin(20*t)), 0.05, true);
+        int w = g.pixelRectangle()[2];
+        int h = g.pixelRectangle()[3];
+        Point2D[] seeds = {new Point2D(10, 14.5), new Point2D(10, 10), new Point2D(17, 16),
+                new Point2D(3, 17), new Point2D(2, 1.5), new Point2D(10, 11.5)};
+        for (Point2D seed : seeds) {
+            BooleanGrid.iPoint s = g.new iPoint(seed);
+            boolean[][] want = floodByPixels(g, s);
+            BooleanGrid flood = g.floodCopy(seed);
+            BooleanGrid region = g.region(seed);
+            for (int x = 0; x < w; x++)
+                for (int y = 0; y < h; y++) {
+                    BooleanGrid.iPoint p = g.new iPoint(x, y);
+                    assertEquals(flood.get(p.realPoint()), want[x][y], "flood from " + seed + " at " + x + ", " + y);
+                    assertEquals(region.get(p.realPoint()), want[x][y], "region of " + seed + " at " + x + ", " + y);
+                }
+        }
+    }
+
+    /**
+     * Test of the solid-layer counts against intersecting the slices above, for
+     * depths that do and don't fill their counter bits, with some empty layers
+     * and slices on rectangles other than the counts'
+     */
+    @Test
+    public void testSolidityMatchesIntersections() {
+        Random r = new Random(1);
+        Attributes a = new Attributes("A", null, null, null);
+        Rectangle box = new Rectangle(new Point2D(0, 0), new Point2D(30, 25));
+        int layers = 30;
+        BooleanGrid[] slices = new BooleanGrid[layers];
+        for (int l = 0; l < layers; l++) {
+            Rectangle rec = new Rectangle(new Point2D(r.nextInt(8), r.nextInt(8)),
+                    new Point2D(15 + r.nextInt(15), 12 + r.nextInt(13)));
+            BooleanGrid s = new BooleanGrid(CSG2D.RrCSGFromBox(rec), rec, a);
+            for (int k = 0; k < 4; k++)
+                s.disc(new Point2D(r.nextDouble()*30, r.nextDouble()*25), 1 + r.nextDouble()*4, r.nextBoolean());
+            slices[l] = l%11 == 4 ? BooleanGrid.nullBooleanGrid() : s;
+        }
+        for (int depth : new int[] {1, 3, 4, 7}) {
+            BooleanGrid.Solidity counts = new BooleanGrid.Solidity(box, a, depth);
+            for (int l = layers - 1; l >= 0; l--) {
+                counts = counts.down(slices[l]);
+                BooleanGrid want = slices[l];
+                for (int n = 1; n <= depth; n++) {
+                    if (n > 1)
+                        want = l + n - 1 < layers ? BooleanGrid.intersection(want, slices[l + n - 1]) : BooleanGrid.nullBooleanGrid();
+                    assertSamePixels(counts.atLeast(n), want);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of splitting a grid into islands in one pass against flood-filling
+     * from a pixel of each.  There are pieces that only touch diagonally, which
+     * are separate islands as they are separate floods.
+     */
+    @Test
+    public void testIslandsMatchFloodCopy() {
+        Attributes a = new Attributes("A", null, null, null);
+        PolygonList pl = rings(a);
+        pl.add(circle(a, 3, 17, 2.5, 5, true));
+        BooleanGrid g = new BooleanGrid(pl, new Rectangle(new Point2D(0, 0), new Point2D(20, 20)), a, false);
+        for (double t = 0; t < 1; t += 0.002)
+            g.disc(new Point2D(2 + 15*t, 1.5 + Math.sin(20*t)), 0.05, true);
+        int w = g.pixelRectangle()[2];
+        int h = g.pixelRectangle()[3];
+
+        // A staircase of single pixels, a checkerboard, and a block touching
+        // the staircase at one corner
+
+        for (int i = 0; i < 8; i++)
+            g.set(g.new iPoint(w - 20 + i, 3 + i), true);
+        for (int x = 0; x < 6; x++)
+            for (int y = 0; y < 6; y++)
+                g.set(g.new iPoint(w - 10 + x, 2 + y), (x + y)%2 == 0);
+        for (int x = 0; x < 3; x++)
+            for (int y = 0; y < 3; y++)
+                g.set(g.new iPoint(w - 12 + x, 11 + y), true);
+
+        // Five pieces from the polygons and the wiggle, then eight stairs, 18
+        // squares of the checkerboard and the block
+
+        List<BooleanGrid.Island> islands = g.islands();
+        assertEquals(islands.size(), 5 + 8 + 18 + 1, "islands");
+        long pixels = 0;
+        BooleanGrid all = BooleanGrid.nullBooleanGrid();
+        Point2D last = null;
+        for (BooleanGrid.Island island : islands) {
+            Point2D seed = island.grid().findSeed();
+            if (last != null)
+                assertTrue(seed.y() > last.y() || (seed.y() == last.y() && seed.x() > last.x()),
+                        "islands in the order of their first pixels");
+            last = seed;
+
+            BooleanGrid flood = g.floodCopy(seed);
+            assertSamePixels(island.grid(), flood);
+            assertEquals(island.pixelCount(), flood.pixelCount(), "pixels of island at " + seed);
+            assertTrue(Point2D.same(island.centroid(), flood.findCentroid(), 1.0e-12), "centroid of island at " + seed);
+
+            int x0 = w, y0 = h, x1 = -1, y1 = -1;
+            for (int x = 0; x < w; x++)
+                for (int y = 0; y < h; y++)
+                    if (flood.get(g.new iPoint(x, y).realPoint())) {
+                        x0 = Math.min(x0, x);
+                        y0 = Math.min(y0, y);
+                        x1 = Math.max(x1, x);
+                        y1 = Math.max(y1, y);
+                    }
+            Point2D sw = g.new iPoint(x0, y0).realPoint();
+            Point2D ne = g.new iPoint(x1, y1).realPoint();
+            assertTrue(Point2D.same(island.box().sw(), sw, 1.0e-12) && Point2D.same(island.box().ne(), ne, 1.0e-12),
+                    "box of island at " + seed);
+
+            pixels += island.pixelCount();
+            all = BooleanGrid.union(all, island.grid(), a);
+        }
+        assertEquals(pixels, g.pixelCount(), "islands overlap");
+        assertSamePixels(all, g);
+    }
+
+    /**
+     * A box with random discs added and taken away, and random single pixels,
+     * from (x, y) in mm, with its edge pixels solid so that bigger pixels hang
+     * over them
+     */
+    static BooleanGrid speckled(Random r, Attributes a, double x, double y) {
+        Rectangle rec = new Rectangle(new Point2D(x, y), new Point2D(x + 3, y + 2.5));
+        BooleanGrid g = new BooleanGrid(CSG2D.RrCSGFromBox(rec), rec, a);
+        for (int k = 0; k < 12; k++)
+            g.disc(new Point2D(x + r.nextDouble()*3, y + r.nextDouble()*2.5), 0.02 + r.nextDouble()*0.3, r.nextBoolean());
+        int[] p = g.pixelRectangle();
+        for (int k = 0; k < 50; k++)
+            g.set(g.new iPoint(r.nextInt(p[2]), r.nextInt(p[3])), r.nextBoolean());
+        for (int i = 0; i < p[2]; i++) {
+            g.set(g.new iPoint(i, 0), true);
+            g.set(g.new iPoint(i, p[3] - 1), true);
+        }
+        for (int j = 0; j < p[3]; j++) {
+            g.set(g.new iPoint(0, j), true);
+            g.set(g.new iPoint(p[2] - 1, j), true);
+        }
+        return g;
+    }
+
+    /**
+     * Pixel (x, y) of a grid, counted in its own pixels from the origin rather
+     * than from its corner
+     */
+    static boolean pixel(BooleanGrid g, int x, int y) {
+        if (g.isEmpty())
+            return false;
+        int[] p = g.pixelRectangle();
+        return g.get(g.new iPoint(x - p[0], y - p[1]));
+    }
+
+    /**
+     * Are any (or all) of the full-resolution pixels of g that are under the
+     * pixel (x, y) level full-resolution pixels across solid?
+     */
+    static boolean cell(BooleanGrid g, int level, int x, int y, boolean any) {
+        int c = g.coarseness();
+        for (int i = 0; i < level; i++)
+            for (int j = 0; j < level; j++)
+                if (pixel(g, Math.floorDiv(x*level + i, c), Math.floorDiv(y*level + j, c)) == any)
+                    return any;
+        return !any;
+    }
+
+    /**
+     * The full-resolution pixels some grids cover, as {x0, y0, x1, y1}, with a
+     * margin of air all round
+     */
+    static int[] extent(BooleanGrid... grids) {
+        int[] result = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (BooleanGrid g : grids) {
+            if (g.isEmpty())
+                continue;
+            int[] p = g.pixelRectangle();
+            int c = g.coarseness();
+            result[0] = Math.min(result[0], p[0]*c - 20);
+            result[1] = Math.min(result[1], p[1]*c - 20);
+            result[2] = Math.max(result[2], (p[0] + p[2])*c + 20);
+            result[3] = Math.max(result[3], (p[1] + p[3])*c + 20);
+        }
+        return result;
+    }
+
+    /**
+     * Test of resampling to bigger pixels, on grids whose corners are and
+     * aren't on the bigger pixels' boundaries, against looking at the pixels
+     * under each bigger one; and of going back to full-resolution pixels and
+     * up again
+     */
+    @Test
+    public void testResampleMatchesPixels() {
+        Random r = new Random(7);
+        Attributes a = new Attributes("A", null, null, null);
+        int[] offCorner = new int[9];
+        for (int origin = 0; origin < 4; origin++) {
+            BooleanGrid g = speckled(r, a, 1 + 0.01*origin*origin*3, 2 + 0.01*origin*7);
+            assertEquals(g.coarseness(), 1);
+            int[] e = extent(g);
+            for (int level = 2; level <= 8; level++) {
+                String where = "origin " + origin + " level " + level;
+                int[] p = g.pixelRectangle();
+                if (Math.floorMod(p[0], level) != 0 || Math.floorMod(p[1], level) != 0)
+                    offCorner[level]++;
+                BooleanGrid cover = g.resample(level, true);
+                BooleanGrid inside = g.resample(level, false);
+                assertEquals(cover.coarseness(), level, where);
+                assertEquals(inside.coarseness(), level, where);
+                for (int x = Math.floorDiv(e[0], level); x <= Math.floorDiv(e[2], level); x++)
+                    for (int y = Math.floorDiv(e[1], level); y <= Math.floorDiv(e[3], level); y++) {
+                        assertEquals(pixel(cover, x, y), cell(g, level, x, y, true), where + " covering (" + x + ", " + y + ")");
+                        assertEquals(pixel(inside, x, y), cell(g, level, x, y, false), where + " inside (" + x + ", " + y + ")");
+                    }
+
+                // Covering, the grid, inside: each holds the next, pixel for pixel
+
+                for (int x = e[0]; x <= e[2]; x++)
+                    for (int y = e[1]; y <= e[3]; y++) {
+                        int cx = Math.floorDiv(x, level);
+                        int cy = Math.floorDiv(y, level);
+                        if (pixel(g, x, y))
+                            assertTrue(pixel(cover, cx, cy), where + " not covered (" + x + ", " + y + ")");
+                        if (pixel(inside, cx, cy))
+                            assertTrue(pixel(g, x, y), where + " not inside (" + x + ", " + y + ")");
+                    }
+
+                // Down to full resolution is exact, and back up again gives the same
+
+                for (BooleanGrid c : new BooleanGrid[] {cover, inside}) {
+                    BooleanGrid f = c.resample(1, r.nextBoolean());
+                    assertEquals(f.coarseness(), 1, where);
+                    for (int x = e[0]; x <= e[2]; x++)
+                        for (int y = e[1]; y <= e[3]; y++)
+                            assertEquals(pixel(f, x, y), pixel(c, Math.floorDiv(x, level), Math.floorDiv(y, level)),
+                                    where + " refined (" + x + ", " + y + ")");
+                    for (boolean back : new boolean[] {true, false}) {
+                        BooleanGrid up = f.resample(level, back);
+                        for (int x = Math.floorDiv(e[0], level); x <= Math.floorDiv(e[2], level); x++)
+                            for (int y = Math.floorDiv(e[1], level); y <= Math.floorDiv(e[3], level); y++)
+                                assertEquals(pixel(up, x, y), pixel(c, x, y), where + " round trip (" + x + ", " + y + ")");
+                    }
+                }
+            }
+        }
+        for (int level = 2; level <= 8; level++)
+            assertTrue(offCorner[level] > 0, "no grid off the level " + level + " pixels");
+    }
+
+    /**
+     * Test of union, intersection and difference of grids with different sized
+     * pixels: the result has the first grid's, and the second is resampled to
+     * cover all of itself for union and difference and only what is inside it
+     * for intersection
+     */
+    @Test
+    public void testBooleansOfMixedLevels() {
+        Random r = new Random(8);
+        Attributes a = new Attributes("A", null, null, null);
+        BooleanGrid d = speckled(r, a, 1.03, 2.11);
+        BooleanGrid e = speckled(r, a, 2.57, 2.89);
+        int[][] levels = {{1, 3}, {3, 1}, {2, 3}, {3, 2}, {4, 2}, {2, 4}, {5, 7}};
+        for (int[] l : levels) {
+            BooleanGrid dl = d.resample(l[0], true);
+            BooleanGrid el = e.resample(l[1], r.nextBoolean());
+            BooleanGrid union = BooleanGrid.union(dl, el);
+            BooleanGrid intersection = BooleanGrid.intersection(dl, el);
+            BooleanGrid difference = BooleanGrid.difference(dl, el);
+            String where = "levels " + l[0] + " and " + l[1];
+            for (BooleanGrid g : new BooleanGrid[] {union, intersection, difference})
+                assertTrue(g.isEmpty() || g.coarseness() == l[0], where);
+            int[] x = extent(dl, el);
+            int level = l[0];
+            for (int cx = Math.floorDiv(x[0], level); cx <= Math.floorDiv(x[2], level); cx++)
+                for (int cy = Math.floorDiv(x[1], level); cy <= Math.floorDiv(x[3], level); cy++) {
+                    boolean in = pixel(dl, cx, cy);
+                    boolean any = cell(el, level, cx, cy, true);
+                    boolean all = cell(el, level, cx, cy, false);
+                    String at = where + " (" + cx + ", " + cy + ")";
+                    assertEquals(pixel(union, cx, cy), in || any, "union " + at);
+                    assertEquals(pixel(intersection, cx, cy), in && all, "intersection " + at);
+                    assertEquals(pixel(difference, cx, cy), in && !any, "difference " + at);
+                }
+        }
+    }
+}
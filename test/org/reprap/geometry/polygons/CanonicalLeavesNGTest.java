@@ -0,0 +1,147 @@
+package org.reprap.geometry.polygons;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.reprap.CSGOp;
+import org.reprap.geometry.polyhedra.CSG3D;
+import org.reprap.geometry.polyhedra.HalfSpace;
+import org.reprap.geometry.polyhedra.Point3D;
+
+/**
+ * Tests of simplifying CSG expressions through the table of leaves against
+ * comparing every leaf with every other, as simplify() used to
+ */
+public class CanonicalLeavesNGTest {
+
+    private static final double tolerance = 1.0e-6;
+
+    /**
+     * Grid-aligned squares, so most of their sides are shared, each moved by
+     * less than the tolerance
+     */
+    static CSG2D squares(Random r, int n) {
+        CSG2D c = CSG2D.nothing();
+        for (int i = 0; i < n; i++) {
+            double x = 5 + r.nextInt(20)*5 + (r.nextDouble() - 0.5)*2.0e-6;
+            double y = 5 + r.nextInt(20)*5 + (r.nextDouble() - 0.5)*2.0e-6;
+            CSG2D b = CSG2D.RrCSGFromBox(new Rectangle(new Point2D(x, y), new Point2D(x + 5, y + 5)));
+            c = r.nextInt(4) == 0 ? CSG2D.difference(c, b) : CSG2D.union(c, b);
+        }
+        return c;
+    }
+
+    static void leaves(CSG2D c, List<CSG2D> list) {
+        if (c.operator() == CSGOp.LEAF)
+            list.add(c);
+        else if (c.operator() == CSGOp.UNION || c.operator() == CSGOp.INTERSECTION) {
+            leaves(c.c_1(), list);
+            leaves(c.c_2(), list);
+        }
+    }
+
+    /**
+     * How many different half-planes there are, comparing each leaf with every
+     * other one found so far, as the old simplify() did
+     */
+    static int oldCount(List<CSG2D> list) {
+        List<CSG2D> found = new ArrayList<>();
+        for (CSG2D l : list) {
+            boolean seen = false;
+            for (CSG2D f : found)
+                if (HalfPlane.same(f.hPlane(), l.hPlane(), tolerance) != 1)
+                    seen = true;
+            if (!seen)
+                found.add(l);
+        }
+        return found.size();
+    }
+
+    /**
+     * The leaves of a simplified expression that are different objects (a leaf
+     * and its complement count as one)
+     */
+    static List<CSG2D> distinct(List<CSG2D> list) {
+        Set<CSG2D> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<CSG2D> result = new ArrayList<>();
+        for (CSG2D l : list)
+            if (!seen.contains(l) && !seen.contains(l.complement())) {
+                seen.add(l);
+                result.add(l);
+            }
+        return result;
+    }
+
+    /**
+     * Test that simplifying leaves the same shape, with every set of leaves that
+     * are the same to within the tolerance made into one object
+     */
+    @Test
+    public void testSimplify2D() {
+        Random r = new Random(1);
+        for (int n : new int[] {10, 100, 400}) {
+            CSG2D c = squares(r, n);
+            CSG2D s = c.simplify(tolerance);
+            for (int k = 0; k < 5000; k++) {
+                Point2D p = new Point2D(r.nextDouble()*120, r.nextDouble()*120);
+                assertEquals(s.value(p) <= 0, c.value(p) <= 0, n + " squares, point " + k);
+            }
+
+            List<CSG2D> before = new ArrayList<>();
+            leaves(c, before);
+            List<CSG2D> after = new ArrayList<>();
+            leaves(s, after);
+            List<CSG2D> kept = distinct(after);
+            assertTrue(kept.size() <= oldCount(before), n + " squares: " + kept.size() + " leaves");
+            for (int i = 0; i < kept.size(); i++)
+                for (int j = i + 1; j < kept.size(); j++)
+                    assertEquals(HalfPlane.same(kept.get(i).hPlane(), kept.get(j).hPlane(), tolerance), 1,
+                            n + " squares, leaves " + i + " and " + j);
+        }
+    }
+
+    static CSG3D box(double x, double y, double z, double size) {
+        CSG3D b = new CSG3D(new HalfSpace(new Point3D(1, 0, 0), new Point3D(x + size, 0, 0)));
+        b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(-1, 0, 0), new Point3D(x, 0, 0))));
+        b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, 1, 0), new Point3D(0, y + size, 0))));
+        b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, -1, 0), new Point3D(0, y, 0))));
+        b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, 0, 1), new Point3D(0, 0, z + size))));
+        return CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, 0, -1), new Point3D(0, 0, z))));
+    }
+
+    /**
+     * Test that simplifying a CSG3D leaves the same solid, including where two
+     * half-spaces only differ in the z of their normals
+     */
+    @Test
+    public void testSimplify3D() {
+        Random r = new Random(2);
+        CSG3D d = CSG3D.nothing();
+        for (int i = 0; i < 200; i++) {
+            CSG3D b = box(5 + r.nextInt(10)*5, 5 + r.nextInt(10)*5, 5 + r.nextInt(10)*5, 5);
+            d = r.nextInt(4) == 0 ? CSG3D.difference(d, b) : CSG3D.union(d, b);
+        }
+        CSG3D e = d.simplify(tolerance);
+        for (int k = 0; k < 20000; k++) {
+            Point3D p = new Point3D(r.nextDouble()*70, r.nextDouble()*70, r.nextDouble()*70);
+            assertEquals(e.value(p) <= 0, d.value(p) <= 0, "point " + k);
+        }
+
+        // Two planes through the y axis that are only told apart by z
+
+        CSG3D wedge = CSG3D.intersection(new CSG3D(new HalfSpace(new Point3D(1, 0, 0.5), new Point3D(0, 0, 0))),
+                new CSG3D(new HalfSpace(new Point3D(1, 0, -0.5), new Point3D(0, 0, 0))));
+        e = wedge.simplify(tolerance);
+        for (int k = 0; k < 1000; k++) {
+            Point3D p = new Point3D(r.nextDouble()*20 - 10, r.nextDouble()*20 - 10, r.nextDouble()*20 - 10);
+            assertEquals(e.value(p) <= 0, wedge.value(p) <= 0, "wedge point " + k);
+        }
+    }
+}
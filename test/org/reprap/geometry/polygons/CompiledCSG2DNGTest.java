@@ -0,0 +1,122 @@
+package org.reprap.geometry.polygons;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import org.reprap.geometry.polyhedra.CSG3D;
+import org.reprap.geometry.polyhedra.HalfSpace;
+import org.reprap.geometry.polyhedra.Point3D;
+
+/**
+ * Tests of compiled CSG expressions against the CSG2D trees they came from
+ */
+public class CompiledCSG2DNGTest {
+
+    /**
+     * Boxes unioned together, with some taken away
+     */
+    static CSG2D shape(Random r) {
+        CSG2D c = CSG2D.nothing();
+        for (int k = 0; k < 12; k++) {
+            double x = r.nextDouble()*80;
+            double y = r.nextDouble()*80;
+            CSG2D b = CSG2D.RrCSGFromBox(new Rectangle(new Point2D(x, y),
+                    new Point2D(x + 5 + r.nextDouble()*20, y + 5 + r.nextDouble()*20)));
+            c = r.nextInt(3) == 0 ? CSG2D.difference(c, b) : CSG2D.union(c, b);
+        }
+        return c;
+    }
+
+    /**
+     * Test of point values, box classifications and prunes against the tree
+     */
+    @Test
+    public void testMatchesTree() {
+        for (int trial = 0; trial < 4; trial++) {
+            Random r = new Random(trial);
+            CSG2D c = shape(r);
+            CompiledCSG2D p = c.compile();
+            int[] mask = new int[p.size()];
+            int[] pruned = new int[p.size()];
+            int n = p.all(mask);
+            for (int k = 0; k < 1000; k++) {
+                double x = r.nextDouble()*100;
+                double y = r.nextDouble()*100;
+                assertEquals(p.value(mask, n, x, y), c.value(new Point2D(x, y)), "trial " + trial + " point " + k);
+
+                double w = r.nextDouble()*10;
+                double h = r.nextDouble()*10;
+                Rectangle b = new Rectangle(new Point2D(x, y), new Point2D(x + w, y + h));
+                Interval i = c.value(b);
+                int expected = i.zero() ? CompiledCSG2D.MIXED : (i.high() <= 0 ? CompiledCSG2D.INSIDE : CompiledCSG2D.OUTSIDE);
+                assertEquals(p.classify(mask, n, x, y, x + w, y + h), expected, "trial " + trial + " box " + k);
+
+                CSG2D pr = c.prune(b);
+                int pn = p.prune(mask, n, x, y, x + w, y + h, pruned);
+                assertEquals(CompiledCSG2D.complexity(pn), pr.complexity(), "trial " + trial + " prune " + k);
+                for (int q = 0; q < 5; q++) {
+                    double px = x + r.nextDouble()*w;
+                    double py = y + r.nextDouble()*h;
+                    assertEquals(p.value(pruned, pn, px, py) <= 0, pr.value(new Point2D(px, py)) <= 0,
+                            "trial " + trial + " prune " + k + " point " + q);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that building a grid from the compiled expression sets exactly the
+     * pixels whose centres are inside the tree (on every other row, as working
+     * out the tree at every pixel is slow)
+     */
+    @Test
+    public void testGridMatchesPixels() {
+        for (int trial = 0; trial < 3; trial++) {
+            CSG2D c = shape(new Random(10 + trial));
+            BooleanGrid g = new BooleanGrid(c, new Rectangle(new Point2D(0, 0), new Point2D(100, 100)), null);
+            int[] rectangle = g.pixelRectangle();
+            int wrong = 0;
+            for (int y = trial%2; y < rectangle[3]; y += 2)
+                for (int x = 0; x < rectangle[2]; x++) {
+                    BooleanGrid.iPoint ip = g.new iPoint(x, y);
+                    if (g.get(ip) != (c.value(ip.realPoint()) <= 0))
+                        wrong++;
+                }
+            assertEquals(wrong, 0, "trial " + trial);
+        }
+    }
+
+    /**
+     * Test of slices compiled straight from a CSG3D against slices made as trees
+     */
+    @Test
+    public void testSlicesMatch() {
+        Random r = new Random(5);
+        CSG3D s = CSG3D.nothing();
+        for (int k = 0; k < 6; k++) {
+            double x = r.nextDouble()*50;
+            double y = r.nextDouble()*50;
+            double z = r.nextDouble()*10;
+            CSG3D b = new CSG3D(new HalfSpace(new Point3D(1, 0, 0), new Point3D(x + 10, 0, 0)));
+            b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(-1, 0, 0), new Point3D(x, 0, 0))));
+            b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, 1, 0), new Point3D(0, y + 10, 0))));
+            b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, -1, 0), new Point3D(0, y, 0))));
+            b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, 0, 1), new Point3D(0, 0, z + 5))));
+            b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, 0, -1), new Point3D(0, 0, z))));
+            s = CSG3D.union(s, b);
+        }
+        for (double z = 0; z < 16; z += 0.7) {
+            CSG2D c = CSG2D.slice(s, z);
+            CompiledCSG2D p = CSG2D.compiledSlice(s, z);
+            int[] mask = new int[Math.max(p.size(), 1)];
+            int n = p.all(mask);
+            for (int k = 0; k < 500; k++) {
+                double x = r.nextDouble()*70;
+                double y = r.nextDouble()*70;
+                assertEquals(p.value(mask, n, x, y) <= 0, c.value(new Point2D(x, y)) <= 0, "z " + z + " point " + k);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.reprap.geometry.polygons;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+/**
+ * Tests of DistanceField against a search of every pixel within the band
+ */
+public class DistanceFieldNGTest {
+
+    /**
+     * A raster with some solid blobs in it, leaving whole tiles of air and
+     * of solid as well as mixed ones
+     */
+    static TiledRaster blobs(int w, int h, long seed) {
+        TiledRaster r = new TiledRaster(w, h);
+        Random random = new Random(seed);
+        r.setSpan(h/2, 0, w - 1, true);
+        for (int y = h/4; y < h/4 + 70 && y < h; y++)
+            r.setSpan(y, 3, Math.min(w - 1, 72), true);
+        for (int i = 0; i < 6; i++) {
+            int cx = random.nextInt(w);
+            int cy = random.nextInt(h);
+            int rad = 1 + random.nextInt(9);
+            for (int y = Math.max(cy - rad, 0); y <= Math.min(cy + rad, h - 1); y++)
+                r.setSpan(y, Math.max(cx - rad, 0), Math.min(cx + rad, w - 1), true);
+        }
+        r.compact();
+        return r;
+    }
+
+    /**
+     * The squared distance from (x, y) to the nearest feature within band, or -1
+     */
+    static long search(TiledRaster r, boolean toSolid, int x, int y, int band) {
+        long best = -1;
+        for (int j = y - band; j <= y + band; j++)
+            for (int i = x - band; i <= x + band; i++) {
+                boolean inside = i >= 0 && j >= 0 && i < r.width() && j < r.height();
+                if ((inside && r.get(i, j)) != toSolid)
+                    continue;
+                long d = (long)(i - x)*(i - x) + (long)(j - y)*(j - y);
+                if (best < 0 || d < best)
+                    best = d;
+            }
+        return best;
+    }
+
+    static void check(TiledRaster r, boolean toSolid, int margin, int band) {
+        DistanceField field = new DistanceField(r, toSolid, margin, band);
+        long band2 = (long)band*band;
+        for (int y = -margin; y < r.height() + margin; y++)
+            for (int x = -margin; x < r.width() + margin; x++) {
+                long d = search(r, toSolid, x, y, band);
+                if (d >= 0 && d <= band2)
+                    assertEquals(field.get(x, y), d, "at " + x + ", " + y);
+                else
+                    assertTrue(field.get(x, y) > band2, "at " + x + ", " + y);
+            }
+    }
+
+    /**
+     * Test of distances to the solid, with a margin
+     */
+    @Test
+    public void testToSolid() {
+        TiledRaster r = blobs(230, 170, 1);
+        check(r, true, 5, 4);
+        check(r, true, 12, 11);
+        check(r, true, 70, 71);
+    }
+
+    /**
+     * Test of distances to the air, which includes the air beyond the raster
+     */
+    @Test
+    public void testToAir() {
+        TiledRaster r = blobs(200, 150, 2);
+        check(r, false, 0, 3);
+        check(r, false, 0, 20);
+        check(r, false, 0, 66);
+    }
+
+    /**
+     * Test that only the tiles near the boundary are stored (out of 400)
+     */
+    @Test
+    public void testSparse() {
+        TiledRaster r = new TiledRaster(64*20, 64*20);
+        for (int y = 64*5 + 10; y < 64*15 - 10; y++)
+            r.setSpan(y, 64*5 + 10, 64*15 - 10, true);
+        r.compact();
+
+        // The ring of tiles with the edges in, and the rings either side of that
+
+        assertTrue(new DistanceField(r, false, 0, 10).allocatedTiles() <= 4*13 + 4*11 + 4*9);
+        assertTrue(new DistanceField(r, true, 10, 11).allocatedTiles() <= 4*13 + 4*11 + 4*9);
+    }
+
+    /**
+     * Test of a threshold (as BooleanGrid.offset() uses it) against the search
+     */
+    @Test
+    public void testThreshold() {
+        TiledRaster r = blobs(190, 140, 3);
+        int g = 7;
+        long g2 = (long)g*g + g;
+        TiledRaster grown = new TiledRaster(r.width() + 2*g, r.height() + 2*g);
+        new DistanceField(r, true, g, g + 1).threshold(grown, -g, -g, g2, false);
+        TiledRaster shrunk = new TiledRaster(r.width() - 2*g, r.height() - 2*g);
+        new DistanceField(r, false, 0, g + 1).threshold(shrunk, g, g, g2, true);
+        for (int y = 0; y < grown.height(); y++)
+            for (int x = 0; x < grown.width(); x++) {
+                long d = search(r, true, x - g, y - g, g + 1);
+                assertEquals(grown.get(x, y), d >= 0 && d <= g2, "grown at " + x + ", " + y);
+            }
+        for (int y = 0; y < shrunk.height(); y++)
+            for (int x = 0; x < shrunk.width(); x++) {
+                long d = search(r, false, x + g, y + g, g + 1);
+                assertEquals(shrunk.get(x, y), d < 0 || d > g2, "shrunk at " + x + ", " + y);
+            }
+    }
+}
@@ -0,0 +1,144 @@
+package org.reprap.geometry.polygons;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.reprap.Attributes;
+
+/**
+ * Tests of deferred boolean expressions against doing the booleans one at a time
+ */
+public class GridExpressionNGTest {
+
+    private static final Attributes a = new Attributes("A", null, null, null);
+
+    private static final Rectangle box = new Rectangle(new Point2D(0, 0), new Point2D(20, 20));
+
+    /**
+     * A box with a disc taken out of it and a thin spur on it, so that the
+     * booleans leave whiskers to clean up
+     */
+    static BooleanGrid shape(Random r) {
+        double x = r.nextDouble()*12;
+        double y = r.nextDouble()*12;
+        BooleanGrid g = new BooleanGrid(CSG2D.RrCSGFromBox(new Rectangle(new Point2D(x, y),
+                new Point2D(x + 2 + r.nextDouble()*8, y + 2 + r.nextDouble()*8))), box, a);
+        g.disc(new Point2D(x + 1, y + 1), 0.5 + r.nextDouble(), false);
+        for (double t = 0; t < 3; t += 0.01)
+            g.set(g.new iPoint(new Point2D(x + t, y + 0.3*t)), true);
+        return g;
+    }
+
+    /**
+     * An expression and the grid that doing its operations one at a time gives
+     */
+    static class Pair {
+        final GridExpression lazy;
+        final BooleanGrid eager;
+
+        Pair(GridExpression lazy, BooleanGrid eager) {
+            this.lazy = lazy;
+            this.eager = eager;
+        }
+
+        Pair(BooleanGrid g) {
+            this(GridExpression.of(g), g);
+        }
+    }
+
+    static Pair combine(int op, Pair d, Pair e) {
+        switch (op) {
+            case 0:
+                return new Pair(GridExpression.union(d.lazy, e.lazy), BooleanGrid.union(d.eager, e.eager));
+            case 1:
+                return new Pair(GridExpression.intersection(d.lazy, e.lazy), BooleanGrid.intersection(d.eager, e.eager));
+            default:
+                return new Pair(GridExpression.difference(d.lazy, e.lazy, a), BooleanGrid.difference(d.eager, e.eager, a));
+        }
+    }
+
+    static void assertSamePixels(BooleanGrid d, BooleanGrid e, String where) {
+        assertEquals(BooleanGrid.difference(d, e).pixelCount(), 0, where);
+        assertEquals(BooleanGrid.difference(e, d).pixelCount(), 0, where);
+    }
+
+    /**
+     * Test of random DAGs of unions, intersections and differences, with the
+     * nodes used more than once, against the booleans done one at a time.  The
+     * single pass only de-whiskers the final result, and this is what checks
+     * that that comes to the same thing.
+     */
+    @Test
+    public void testRandomExpressions() {
+        Random r = new Random(7);
+        for (int trial = 0; trial < 20; trial++) {
+            List<Pair> nodes = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+                nodes.add(new Pair(shape(r)));
+            for (int i = 0; i < 12; i++) {
+                Pair d = nodes.get(r.nextInt(nodes.size()));
+                Pair e = nodes.get(r.nextInt(nodes.size()));
+                nodes.add(combine(r.nextInt(3), d, e));
+            }
+            Pair last = nodes.get(nodes.size() - 1);
+            assertSamePixels(last.lazy.grid(), last.eager, "trial " + trial);
+            for (int i = 0; i < nodes.size(); i++)
+                assertSamePixels(nodes.get(i).lazy.grid(), nodes.get(i).eager, "trial " + trial + " node " + i);
+        }
+    }
+
+    /**
+     * Test of a chain where every node is used twice by the next, which would
+     * take 2^n passes if the shared nodes were gone through again every time
+     */
+    @Test
+    public void testSharedNodesOnlyWorkedOutOnce() {
+        Random r = new Random(11);
+        Pair b = new Pair(shape(r));
+        Pair c = new Pair(shape(r));
+        Pair x = new Pair(shape(r));
+        for (int i = 0; i < 40; i++)
+            x = combine(0, combine(2, x, b), combine(1, x, c));
+        for (int i = 0; i < 40; i++)
+            x = combine(0, x, x);
+        assertSamePixels(x.lazy.grid(), x.eager, "chain");
+    }
+
+    /**
+     * Test that threads asking for a shared expression's result all get the same one
+     */
+    @Test
+    public void testThreadsShareResult() throws Exception {
+        Random r = new Random(13);
+        List<Pair> leaves = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            leaves.add(new Pair(shape(r)));
+        Pair shared = combine(0, combine(2, leaves.get(0), leaves.get(1)), combine(0, leaves.get(2), leaves.get(3)));
+        List<Pair> tops = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            tops.add(combine(i%3, shared, leaves.get(4 + i%2)));
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<BooleanGrid>> results = new ArrayList<>();
+            for (Pair p : tops) {
+                final GridExpression top = p.lazy;
+                results.add(pool.submit((Callable<BooleanGrid>) () -> top.grid()));
+                results.add(pool.submit((Callable<BooleanGrid>) () -> shared.lazy.grid()));
+            }
+            for (int i = 0; i < tops.size(); i++) {
+                assertSamePixels(results.get(2*i).get(), tops.get(i).eager, "top " + i);
+                assertSame(results.get(2*i + 1).get(), shared.lazy.grid());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
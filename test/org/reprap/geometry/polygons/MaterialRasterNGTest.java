@@ -0,0 +1,150 @@
+package org.reprap.geometry.polygons;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import org.reprap.Attributes;
+
+/**
+ * Tests of MaterialRaster against doing the same booleans one material at a time
+ * with BooleanGrids
+ */
+public class MaterialRasterNGTest {
+
+    private static final Attributes[] m = {
+        new Attributes("M0", null, null, null),
+        new Attributes("M1", null, null, null),
+        new Attributes("M2", null, null, null)
+    };
+
+    private static final Rectangle box = new Rectangle(new Point2D(0, 0), new Point2D(40, 30));
+
+    static BooleanGrid block(double x0, double y0, double x1, double y1, Attributes a) {
+        return new BooleanGrid(CSG2D.RrCSGFromBox(new Rectangle(new Point2D(x0, y0), new Point2D(x1, y1))), box, a);
+    }
+
+    /**
+     * A slice of up to three materials that don't overlap each other, each a
+     * box with a hole in it
+     */
+    static BooleanGridList slice(Random r) {
+        BooleanGridList result = new BooleanGridList();
+        BooleanGrid used = BooleanGrid.nullBooleanGrid();
+        for (Attributes a : m) {
+            if (r.nextInt(5) == 0)
+                continue;
+            double x = r.nextDouble()*25;
+            double y = r.nextDouble()*18;
+            BooleanGrid g = block(x, y, x + 4 + r.nextDouble()*12, y + 4 + r.nextDouble()*10, a);
+            g.disc(new Point2D(x + 2, y + 2), 1 + r.nextDouble(), false);
+            g = BooleanGrid.difference(g, used, a);
+            if (g.isEmpty())
+                continue;
+            used = BooleanGrid.union(used, g, a);
+            result.add(g);
+        }
+        return result;
+    }
+
+    /**
+     * The pixels of material a in a list (nothing if it isn't there)
+     */
+    static BooleanGrid of(BooleanGridList list, Attributes a) {
+        BooleanGrid result = BooleanGrid.nullBooleanGrid();
+        for (int i = 0; i < list.size(); i++)
+            if (list.attribute(i).getMaterialId() == a.getMaterialId())
+                result = BooleanGrid.union(result, list.get(i), a);
+        return result;
+    }
+
+    /**
+     * All the pixels of a list, whatever their material
+     */
+    static BooleanGrid all(BooleanGridList list) {
+        BooleanGrid result = BooleanGrid.nullBooleanGrid();
+        for (int i = 0; i < list.size(); i++)
+            result = BooleanGrid.union(result, list.get(i), m[0]);
+        return result;
+    }
+
+    static void assertSamePixels(BooleanGrid a, BooleanGrid b, String where) {
+        assertEquals(BooleanGrid.difference(a, b, m[0]).pixelCount(), 0, where);
+        assertEquals(BooleanGrid.difference(b, a, m[0]).pixelCount(), 0, where);
+    }
+
+    /**
+     * Check a raster's masks against the grid each material should have
+     */
+    static void check(MaterialRaster raster, BooleanGrid[] want, String where) {
+        BooleanGridList masks = raster.masks();
+        for (int k = 0; k < m.length; k++)
+            assertSamePixels(of(masks, m[k]), want[k], where + " material " + k);
+    }
+
+    /**
+     * Test that where the grids a raster is made from overlap, the run that starts
+     * first along the row gets the pixels, and the one earlier in the list if they
+     * start together
+     */
+    @Test
+    public void testOverlapsInTheList() {
+        BooleanGrid a = block(2, 2, 10, 10, m[0]);
+        BooleanGrid b = block(6, 4, 16, 12, m[1]);
+        BooleanGrid c = block(2, 6, 8, 14, m[2]);
+        BooleanGridList list = new BooleanGridList();
+        list.add(b);
+        list.add(a);
+        list.add(c);
+
+        // a starts first along every row it shares with b or c, so it keeps
+        // all its pixels even though b is before it in the list; a and c start
+        // together, and a is before c
+
+        check(new MaterialRaster(list), new BooleanGrid[] {
+            a,
+            BooleanGrid.difference(b, BooleanGrid.union(a, c, m[0]), m[1]),
+            BooleanGrid.difference(c, a, m[2])
+        }, "overlaps");
+    }
+
+    /**
+     * Test of union, intersection and difference, and a chain of them, on slices
+     * whose materials overlap each other's, against the same done one material and
+     * one operation at a time.  The raster only takes whiskers off when masks() is
+     * called, so the chain checks that that comes to the same as doing it after
+     * every operation.
+     */
+    @Test
+    public void testBooleansMatchGrids() {
+        Random r = new Random(3);
+        for (int trial = 0; trial < 15; trial++) {
+            BooleanGridList a = slice(r);
+            BooleanGridList b = slice(r);
+            BooleanGridList c = slice(r);
+            MaterialRaster ra = new MaterialRaster(a);
+            MaterialRaster rb = new MaterialRaster(b);
+            MaterialRaster rc = new MaterialRaster(c);
+            check(ra, new BooleanGrid[] {of(a, m[0]), of(a, m[1]), of(a, m[2])}, "trial " + trial + " round trip");
+
+            BooleanGrid aAll = all(a);
+            BooleanGrid[] union = new BooleanGrid[m.length];
+            BooleanGrid[] intersection = new BooleanGrid[m.length];
+            BooleanGrid[] difference = new BooleanGrid[m.length];
+            BooleanGrid[] chain = new BooleanGrid[m.length];
+            for (int k = 0; k < m.length; k++) {
+                union[k] = BooleanGrid.union(of(a, m[k]), BooleanGrid.difference(of(b, m[k]), aAll, m[k]), m[k]);
+                intersection[k] = BooleanGrid.intersection(of(a, m[k]), of(b, m[k]));
+                difference[k] = BooleanGrid.difference(of(a, m[k]), of(b, m[k]), m[k]);
+                chain[k] = BooleanGrid.intersection(BooleanGrid.difference(union[k], of(c, m[k]), m[k]), of(b, m[k]));
+            }
+            check(MaterialRaster.union(ra, rb), union, "trial " + trial + " union");
+            check(MaterialRaster.intersection(ra, rb), intersection, "trial " + trial + " intersection");
+            check(MaterialRaster.difference(ra, rb), difference, "trial " + trial + " difference");
+
+            check(MaterialRaster.intersection(MaterialRaster.difference(MaterialRaster.union(ra, rb), rc), rb),
+                    chain, "trial " + trial + " chain");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.reprap.geometry.polyhedra;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.reprap.Attributes;
+import org.reprap.geometry.polygons.Point2D;
+import org.reprap.geometry.polygons.Polygon;
+import org.reprap.geometry.polygons.PolygonList;
+
+/**
+ * Tests of the stitching of slice segments into polygons against the old
+ * search for the nearest end
+ */
+public class AllSTLsToBuildNGTest {
+
+    private static final Attributes a = new Attributes("A", null, null, null);
+
+    /**
+     * The old startLong(): put an edge longer than 1.5mm (or the longest) first
+     */
+    static void startLong(List<AllSTLsToBuild.LineSegment> edges) {
+        double d = -1;
+        int swap = -1;
+        for (int i = 0; i < edges.size(); i++) {
+            double d2 = Point2D.dSquared(edges.get(i).a, edges.get(i).b);
+            if (d2 > 2.25) {
+                Collections.swap(edges, 0, i);
+                return;
+            }
+            if (d2 > d) {
+                d = d2;
+                swap = i;
+            }
+        }
+        Collections.swap(edges, 0, swap);
+    }
+
+    /**
+     * The old getNextPolygon(): join on the nearest end until the start is nearer
+     */
+    static Polygon nextPolygon(List<AllSTLsToBuild.LineSegment> edges) {
+        if (edges.isEmpty())
+            return null;
+        startLong(edges);
+        AllSTLsToBuild.LineSegment next = edges.remove(0);
+        Polygon result = new Polygon(next.att, true);
+        result.add(next.a);
+        result.add(next.b);
+        Point2D start = next.a;
+        Point2D end = next.b;
+        boolean first = true;
+        while (!edges.isEmpty()) {
+            double d2 = Point2D.dSquared(start, end);
+            if (first)
+                d2 = Math.max(d2, 1);
+            first = false;
+            boolean aEnd = false;
+            int index = -1;
+            for (int i = 0; i < edges.size(); i++) {
+                double dd = Point2D.dSquared(edges.get(i).a, end);
+                if (dd < d2) {
+                    d2 = dd;
+                    aEnd = true;
+                    index = i;
+                }
+                dd = Point2D.dSquared(edges.get(i).b, end);
+                if (dd < d2) {
+                    d2 = dd;
+                    aEnd = false;
+                    index = i;
+                }
+            }
+            if (index < 0)
+                return result;
+            next = edges.remove(index);
+            int ipt = result.size() - 1;
+            Point2D join = aEnd ? next.a : next.b;
+            end = aEnd ? next.b : next.a;
+            result.set(ipt, Point2D.mul(Point2D.add(join, result.point(ipt)), 0.5));
+            result.add(end);
+        }
+        return result;
+    }
+
+    static PolygonList oldStitch(List<AllSTLsToBuild.LineSegment> edges) {
+        List<AllSTLsToBuild.LineSegment> copy = new ArrayList<>(edges);
+        PolygonList result = new PolygonList();
+        for (Polygon p = nextPolygon(copy); p != null; p = nextPolygon(copy))
+            if (p.size() >= 3)
+                result.add(p);
+        return result;
+    }
+
+    /**
+     * The segments of some rings of short edges, each with one long edge, in a
+     * random order and either way round.  The ends of neighbouring segments are
+     * moved apart by up to gap, and carry their mesh edge keys if weld is set.
+     */
+    static ArrayList<AllSTLsToBuild.LineSegment> rings(Random r, double gap, boolean weld) {
+        ArrayList<AllSTLsToBuild.LineSegment> edges = new ArrayList<>();
+        long key = 0;
+        for (int ring = 0; ring < 6; ring++) {
+            Point2D c = new Point2D(25*(ring%3), 25*(ring/3));
+            double radius = 8 + r.nextDouble()/2;
+            int n = 36 + r.nextInt(12);
+            double step = 2*Math.PI/(n + 2);
+            List<Point2D> corners = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                double t = i == 0 ? 0 : (i + 2)*step;
+                corners.add(Point2D.add(c, new Point2D(radius*Math.cos(t), radius*Math.sin(t))));
+            }
+            long first = key;
+            for (int i = 0; i < n; i++) {
+                Point2D p = corners.get(i);
+                Point2D q = corners.get((i + 1)%n);
+                Point2D along = Point2D.mul(Point2D.sub(q, p), r.nextDouble()*gap/(2*Point2D.d(p, q)));
+                long pKey = weld ? key : -1;
+                long qKey = weld ? (i == n - 1 ? first : key + 1) : -1;
+                key++;
+                if (r.nextBoolean())
+                    edges.add(new AllSTLsToBuild.LineSegment(Point2D.add(p, along), Point2D.sub(q, along), a, pKey, qKey));
+                else
+                    edges.add(new AllSTLsToBuild.LineSegment(Point2D.sub(q, along), Point2D.add(p, along), a, qKey, pKey));
+            }
+        }
+        Collections.shuffle(edges, r);
+        return edges;
+    }
+
+    static void assertSamePolygons(PolygonList got, PolygonList expected, String where) {
+        assertEquals(got.size(), expected.size(), where);
+        for (Polygon e : expected) {
+            Polygon match = null;
+            for (Polygon g : got)
+                if (Point2D.same(g.point(0), e.point(0), 1e-12))
+                    match = g;
+            assertNotNull(match, where);
+            assertEquals(match.size(), e.size(), where);
+            for (int i = 0; i < e.size(); i++)
+                assertTrue(Point2D.same(match.point(i), e.point(i), 1e-12), where + " point " + i);
+        }
+    }
+
+    /**
+     * Test of welded rings, where the ends pair up by their mesh edges
+     */
+    @Test
+    public void testWelded() {
+        Random r = new Random(1);
+        for (int trial = 0; trial < 10; trial++) {
+            ArrayList<AllSTLsToBuild.LineSegment> edges = rings(r, 0, true);
+            assertSamePolygons(AllSTLsToBuild.stitch(edges), oldStitch(edges), "trial " + trial);
+        }
+    }
+
+    /**
+     * Test of rings whose ends have to be joined by distance, right up to
+     * the old tolerance of about a millimetre
+     */
+    @Test
+    public void testLooseEnds() {
+        Random r = new Random(2);
+        for (double gap : new double[] {1e-7, 0.01, 0.3, 0.9}) {
+            for (int trial = 0; trial < 10; trial++) {
+                ArrayList<AllSTLsToBuild.LineSegment> edges = rings(r, gap, r.nextBoolean());
+                for (AllSTLsToBuild.LineSegment l : edges)
+                    if (r.nextInt(3) == 0) {
+                        l.aEdge = -1;
+                        l.bEdge = -1;
+                    }
+                assertSamePolygons(AllSTLsToBuild.stitch(edges), oldStitch(edges), "gap " + gap + " trial " + trial);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.reprap.geometry.polyhedra;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import org.reprap.geometry.polygons.CSG2D;
+import org.reprap.geometry.polygons.Interval;
+import org.reprap.geometry.polygons.Point2D;
+import org.reprap.geometry.polygons.Rectangle;
+
+/**
+ * Tests of slicing CSG parts from the slabs against slicing the whole expression
+ */
+public class CSGSlabsNGTest {
+
+    /**
+     * A box from (x, y, z) with a sloping top
+     */
+    static CSG3D box(double x, double y, double z, double size) {
+        CSG3D b = new CSG3D(new HalfSpace(new Point3D(1, 0, 0), new Point3D(x + size, 0, 0)));
+        b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(-1, 0, 0), new Point3D(x, 0, 0))));
+        b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, 1, 0), new Point3D(0, y + size, 0))));
+        b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, -1, 0), new Point3D(0, y, 0))));
+        b = CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0.1, 0, 1), new Point3D(0, 0, z + 3))));
+        return CSG3D.intersection(b, new CSG3D(new HalfSpace(new Point3D(0, 0, -1), new Point3D(0, 0, z))));
+    }
+
+    static void assertSameSlices(CSG3D whole, CSGSlabs slabs, double z0, double z1, Random r, String where) {
+        for (double z = z0; z < z1; z += 0.2) {
+            CSG2D w = CSG2D.slice(whole, z);
+            CSG2D s = CSG2D.slice(slabs.at(z), z);
+            for (int k = 0; k < 200; k++) {
+                Point2D p = new Point2D(r.nextDouble()*55, r.nextDouble()*55);
+                assertEquals(s.value(p) <= 0, w.value(p) <= 0, where + " z " + z + " point " + k);
+            }
+        }
+    }
+
+    /**
+     * Test of a pile of sloping boxes, sliced every 0.2mm from below the slabs
+     * to above them
+     */
+    @Test
+    public void testSlicesMatchWhole() {
+        Random r = new Random(5);
+        CSG3D s = CSG3D.nothing();
+        for (int k = 0; k < 100; k++)
+            s = CSG3D.union(s, box(r.nextDouble()*50, r.nextDouble()*50, r.nextDouble()*40, 5));
+        CSGSlabs slabs = new CSGSlabs(s, new Rectangle(new Point2D(0, 0), new Point2D(55, 55)), new Interval(0, 45), 0.8);
+        assertSameSlices(s, slabs, -1.1, 47, r, "pile");
+    }
+
+    /**
+     * Test of a part with gaps between its boxes thicker than a slab, so that
+     * some slabs prune to nothing, and of one slab thick enough to be wholly
+     * inside a box, so that it prunes to everything in plan
+     */
+    @Test
+    public void testSlabsThatPruneAway() {
+        Random r = new Random(6);
+        CSG3D s = CSG3D.union(box(10, 10, 0, 30), box(20, 20, 10, 20));
+        CSGSlabs slabs = new CSGSlabs(s, new Rectangle(new Point2D(0, 0), new Point2D(55, 55)), new Interval(0, 20), 0.8);
+        assertSameSlices(s, slabs, 0.1, 20, r, "gaps");
+
+        CSG3D solid = new CSG3D(new HalfSpace(new Point3D(0, 0, 1), new Point3D(0, 0, 30)));
+        slabs = new CSGSlabs(solid, new Rectangle(new Point2D(0, 0), new Point2D(55, 55)), new Interval(0, 20), 4);
+        assertSameSlices(solid, slabs, 0.1, 20, r, "solid");
+    }
+}
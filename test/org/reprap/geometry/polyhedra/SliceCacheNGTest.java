@@ -0,0 +1,228 @@
+package org.reprap.geometry.polyhedra;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.reprap.Attributes;
+import org.reprap.Preferences;
+import org.reprap.geometry.polygons.BooleanGrid;
+import org.reprap.geometry.polygons.BooleanGridList;
+import org.reprap.geometry.polygons.CSG2D;
+import org.reprap.geometry.polygons.MaterialRaster;
+import org.reprap.geometry.polygons.Point2D;
+import org.reprap.geometry.polygons.Rectangle;
+
+/**
+ * Tests of the slice cache's limits: what it evicts, and that what it spills
+ * comes back the same
+ */
+public class SliceCacheNGTest {
+
+    private static final Attributes a = new Attributes("A", null, null, null);
+
+    private static final Rectangle box = new Rectangle(new Point2D(0, 0), new Point2D(20, 20));
+
+    /**
+     * A cache made with the given preferences, which are then unset again
+     */
+    static SliceCache cache(int layers, double megabytes, String eviction, boolean spill) throws IOException {
+        Preferences.setGlobalString("SliceCacheMegabytes", Double.toString(megabytes));
+        Preferences.setGlobalString("SliceCacheEviction", eviction);
+        Preferences.setGlobalString("SliceCacheSpill", Boolean.toString(spill));
+        try {
+            return new SliceCache(1, layers);
+        } finally {
+            Preferences.setGlobalString("SliceCacheMegabytes", "");
+            Preferences.setGlobalString("SliceCacheEviction", "");
+            Preferences.setGlobalString("SliceCacheSpill", "");
+        }
+    }
+
+    /**
+     * A slice of one material: a box with a hole in it
+     */
+    static BooleanGridList slice(Random r) {
+        double x = r.nextDouble()*5;
+        double y = r.nextDouble()*5;
+        BooleanGrid g = new BooleanGrid(CSG2D.RrCSGFromBox(new Rectangle(new Point2D(x, y),
+                new Point2D(10 + r.nextDouble()*5, 10 + r.nextDouble()*5))), box, a);
+        g.disc(new Point2D(x + 3, y + 3), 1 + r.nextDouble(), false);
+        BooleanGridList result = new BooleanGridList();
+        result.add(g);
+        return result;
+    }
+
+    /**
+     * The same slice for every layer
+     */
+    static BooleanGridList square() {
+        BooleanGridList result = new BooleanGridList();
+        result.add(new BooleanGrid(CSG2D.RrCSGFromBox(new Rectangle(new Point2D(2, 2), new Point2D(12, 12))), box, a));
+        return result;
+    }
+
+    static void assertSamePixels(BooleanGridList got, BooleanGridList want, String where) {
+        assertNotNull(got, where);
+        assertEquals(got.size(), want.size(), where);
+        for (int i = 0; i < want.size(); i++) {
+            assertEquals(BooleanGrid.difference(got.get(i), want.get(i)).pixelCount(), 0, where);
+            assertEquals(BooleanGrid.difference(want.get(i), got.get(i)).pixelCount(), 0, where);
+            assertEquals(got.attribute(i).getMaterialId(), want.attribute(i).getMaterialId(), where);
+        }
+    }
+
+    /**
+     * Test that slices and support pushed out to the spill file, and read back
+     * again, have the pixels they went in with
+     */
+    @Test
+    public void testSpilledLayersReadBack() throws IOException {
+        Random r = new Random(1);
+        double megabytes = 3*square().get(0).bytes()/(1024.0*1024.0);
+        for (String eviction : new String[] {"LRU", "Highest"}) {
+            SliceCache cache = cache(1000, megabytes, eviction, true);
+            Map<Integer, BooleanGridList> slices = new HashMap<>();
+            Map<Integer, BooleanGridList> support = new HashMap<>();
+            for (int layer = 200; layer >= 0; layer--) {
+                slices.put(layer, slice(r));
+                support.put(layer, slice(r));
+                cache.setSlice(slices.get(layer), layer, 0);
+                cache.setSupport(support.get(layer), layer, 0);
+                for (int k = 0; k < 3; k++) {
+                    int q = layer + r.nextInt(Math.min(40, 201 - layer));
+                    assertSamePixels(cache.getSlice(q, 0), slices.get(q), eviction + " slice " + q);
+                    assertSamePixels(cache.getSupport(q, 0), support.get(q), eviction + " support " + q);
+                }
+            }
+            assertTrue(cache.spillLength() > 0, eviction);
+            cache.close();
+        }
+    }
+
+    /**
+     * Put layers 10 to 13 in a cache with room for four, use layer 10 again, and
+     * add layer 9
+     */
+    static SliceCache fill(String eviction, boolean spill) throws IOException {
+        BooleanGridList s = square();
+        SliceCache cache = cache(1000, 4.5*s.get(0).bytes()/(1024.0*1024.0), eviction, spill);
+        for (int layer = 10; layer <= 13; layer++)
+            cache.setSlice(s, layer, 0);
+        cache.getSlice(10, 0);
+        cache.setSlice(s, 9, 0);
+        return cache;
+    }
+
+    /**
+     * Test which layer goes when the memory is full: the one used least
+     * recently, or the highest
+     */
+    @Test
+    public void testEviction() throws IOException {
+        SliceCache cache = fill("LRU", false);
+        for (int layer = 9; layer <= 13; layer++)
+            assertEquals(cache.getSlice(layer, 0) == null, layer == 11, "LRU layer " + layer);
+
+        cache = fill("Highest", false);
+        for (int layer = 9; layer <= 13; layer++)
+            assertEquals(cache.getSlice(layer, 0) == null, layer == 13, "Highest layer " + layer);
+
+        // Spilled, the same layer goes to the file, and is the only one there
+
+        cache = fill("Highest", true);
+        long length = cache.spillLength();
+        assertTrue(length > 0);
+        for (int layer = 9; layer <= 12; layer++)
+            assertNotNull(cache.getSlice(layer, 0), "spilled layer " + layer);
+        assertEquals(cache.spillLength(), length);
+        assertNotNull(cache.getSlice(13, 0));
+        cache.close();
+
+        // Over the number of layers, the layer goes altogether whatever the memory
+
+        cache = cache(3, 0, "LRU", true);
+        BooleanGridList s = square();
+        for (int layer = 10; layer <= 13; layer++)
+            cache.setSlice(s, layer, 0);
+        assertNull(cache.getSlice(10, 0));
+        assertEquals(cache.spillLength(), 0);
+    }
+
+    /**
+     * Test that reading spilled layers back and spilling them again, over and
+     * over, doesn't make the spill file grow without end
+     */
+    @Test
+    public void testCompactionBoundsSpillFile() throws IOException {
+        Random r = new Random(2);
+        BooleanGridList s = square();
+        int layers = 20;
+        SliceCache cache = cache(layers, 2.5*s.get(0).bytes()/(1024.0*1024.0), "LRU", true);
+        cache.setSlice(s, 0, 0);
+        cache.setSlice(s, 1, 0);
+        cache.setSlice(s, 2, 0);
+        long one = cache.spillLength();
+        assertTrue(one > 0);
+        for (int layer = 3; layer < layers; layer++)
+            cache.setSlice(s, layer, 0);
+
+        // No more than the layers that are spilled, plus as much again unused, plus
+        // the one being written
+
+        long limit = (2*layers + 1)*one;
+        for (int k = 0; k < 5000; k++) {
+            int layer = r.nextInt(layers);
+            assertSamePixels(cache.getSlice(layer, 0), s, "read " + k);
+            assertTrue(cache.spillLength() <= limit, "read " + k + ": " + cache.spillLength() + " bytes");
+        }
+        cache.close();
+    }
+
+    /**
+     * Test that slices of two materials kept as MaterialRasters are rasters
+     * again when they are read back from the spill file, with the same pixels,
+     * and that the memory they are counted as is what the rasters take
+     */
+    @Test
+    public void testRastersReadBack() throws IOException {
+        Random r = new Random(3);
+        Attributes b = new Attributes("B", null, null, null);
+        Map<Integer, BooleanGridList> slices = new HashMap<>();
+        for (int layer = 0; layer < 10; layer++) {
+            BooleanGridList slice = slice(r);
+            slice.add(new BooleanGrid(CSG2D.RrCSGFromBox(new Rectangle(new Point2D(16, 2 + layer),
+                    new Point2D(19, 4 + layer))), box, b));
+            slices.put(layer, slice);
+        }
+        Preferences.setGlobalString("MaterialRasters", "true");
+        SliceCache cache;
+        try {
+            cache = cache(1000, 2.5*new MaterialRaster(slices.get(0)).bytes()/(1024.0*1024.0), "LRU", true);
+        } finally {
+            Preferences.setGlobalString("MaterialRasters", "");
+        }
+        for (int layer = 0; layer < 10; layer++)
+            cache.setSlice(slices.get(layer), layer, 0);
+        assertTrue(cache.spillLength() > 0);
+
+        for (int k = 0; k < 30; k++) {
+            int layer = r.nextInt(10);
+            assertSamePixels(cache.getSlice(layer, 0), slices.get(layer), "read " + k + ", layer " + layer);
+            MaterialRaster raster = cache.getRaster(layer, 0);
+            assertNotNull(raster, "read " + k + ", layer " + layer);
+            assertSamePixels(raster.masks(), slices.get(layer), "raster " + k + ", layer " + layer);
+
+            long memory = 0;
+            for (int l = 0; l < 10; l++)
+                if (cache.getRaster(l, 0) != null)
+                    memory += cache.getRaster(l, 0).bytes();
+            assertEquals(cache.memory(), memory, "read " + k);
+        }
+        cache.close();
+    }
+}
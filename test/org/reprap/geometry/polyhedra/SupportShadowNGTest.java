@@ -0,0 +1,165 @@
+package org.reprap.geometry.polyhedra;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.reprap.Attributes;
+import org.reprap.Extruder;
+import org.reprap.geometry.polygons.BooleanGrid;
+import org.reprap.geometry.polygons.BooleanGridList;
+import org.reprap.geometry.polygons.CSG2D;
+import org.reprap.geometry.polygons.Point2D;
+import org.reprap.geometry.polygons.Rectangle;
+
+/**
+ * Tests of the support shadows worked out in blocks against the union of all
+ * the slices above each layer
+ */
+public class SupportShadowNGTest {
+
+    /**
+     * A material with an extruder of its own, which BooleanGridList matches
+     * grids by (without a printer to look it up in)
+     */
+    static Attributes material(String name, int id) {
+        Extruder e = (Extruder)Proxy.newProxyInstance(Extruder.class.getClassLoader(), new Class<?>[] {Extruder.class},
+                (proxy, method, args) -> method.getName().equals("getID") ? id : null);
+        return new Attributes(name, null, null, null) {
+            @Override
+            public Extruder getExtruder() {
+                return e;
+            }
+        };
+    }
+
+    private static final Attributes a = material("A", 0);
+    private static final Attributes b = material("B", 1);
+
+    /**
+     * Slices to cast shadows from, counting how many are asked for
+     */
+    static class Slices extends AllSTLsToBuild {
+        final BooleanGridList[] slices;
+        final AtomicInteger asked = new AtomicInteger();
+
+        Slices(BooleanGridList[] slices) {
+            this.slices = slices;
+        }
+
+        @Override
+        BooleanGridList supportSlice(int stl, int layer) {
+            asked.incrementAndGet();
+            return slices[layer];
+        }
+    }
+
+    static BooleanGrid block(Random r, Attributes m) {
+        double x = r.nextDouble()*5;
+        double y = r.nextDouble()*5;
+        Rectangle rec = new Rectangle(new Point2D(x, y), new Point2D(x + 0.5 + r.nextDouble(), y + 0.5 + r.nextDouble()));
+        return new BooleanGrid(CSG2D.RrCSGFromBox(rec), rec, m);
+    }
+
+    /**
+     * A slice for each layer: a block of material A, a block of B as well in
+     * some, and nothing in a few
+     */
+    static BooleanGridList[] slices(Random r, int layers) {
+        BooleanGridList[] result = new BooleanGridList[layers];
+        for (int l = 0; l < layers; l++) {
+            result[l] = new BooleanGridList();
+            if (l%7 == 3)
+                continue;
+            result[l].add(block(r, a));
+            if (l%3 == 0)
+                result[l].add(block(r, b));
+        }
+        return result;
+    }
+
+    /**
+     * The pixels of material m in a list
+     */
+    static BooleanGrid of(BooleanGridList list, Attributes m) {
+        BooleanGrid result = BooleanGrid.nullBooleanGrid();
+        for (int i = 0; i < list.size(); i++) {
+            assertTrue(list.attribute(i) == a || list.attribute(i) == b);
+            if (list.attribute(i) == m)
+                result = BooleanGrid.union(result, list.get(i), m);
+        }
+        return result;
+    }
+
+    static void assertSamePixels(BooleanGrid x, BooleanGrid y, String where) {
+        assertEquals(BooleanGrid.difference(x, y, a).pixelCount(), 0, where);
+        assertEquals(BooleanGrid.difference(y, x, a).pixelCount(), 0, where);
+    }
+
+    /**
+     * Check the shadow at a layer against the union of the slices above it, up
+     * to the top layer
+     */
+    static void check(SupportShadow shadow, BooleanGridList[] slices, int top, int layer, String where) {
+        BooleanGridList s = shadow.shadow(layer);
+        for (Attributes m : new Attributes[] {a, b}) {
+            BooleanGrid want = BooleanGrid.nullBooleanGrid();
+            for (int l = layer + 1; l <= top; l++)
+                want = BooleanGrid.union(want, of(slices[l], m), m);
+            assertSamePixels(of(s, m), want, where + " layer " + layer + " material " + m.getMaterial());
+        }
+    }
+
+    /**
+     * Test the shadows with the layers asked for going down in order (when each
+     * should cost one slice at most), going up, at random, either side of each
+     * block's edges, and at and above the top layer, for blocks of one layer,
+     * several, and more than there are
+     */
+    @Test
+    public void testShadowsMatchUnions() {
+        Random r = new Random(9);
+        int top = 37;
+        BooleanGridList[] s = slices(r, top + 1);
+        for (int block : new int[] {1, 4, 16, 100}) {
+            for (ForkJoinPool pool : new ForkJoinPool[] {null, ForkJoinPool.commonPool()}) {
+                String where = "block " + block + (pool == null ? "" : " in pool");
+                Slices slices = new Slices(s);
+                SupportShadow shadow = new SupportShadow(slices, 0, top, block, pool);
+                assertEquals(slices.asked.get(), top + 1, where);
+
+                for (int layer = top + 2; layer >= 0; layer--) {
+                    slices.asked.set(0);
+                    check(shadow, s, top, layer, where + " down");
+                    assertTrue(slices.asked.get() <= 1, where + " down, layer " + layer + ": " + slices.asked.get() + " slices");
+                }
+
+                shadow = new SupportShadow(new Slices(s), 0, top, block, pool);
+                for (int layer = 0; layer <= top + 2; layer++)
+                    check(shadow, s, top, layer, where + " up");
+
+                shadow = new SupportShadow(new Slices(s), 0, top, block, pool);
+                List<Integer> edges = new ArrayList<>();
+                for (int e = 0; e <= top + block; e += block)
+                    for (int d = -1; d <= 1; d++)
+                        if (e + d >= 0)
+                            edges.add(e + d);
+                edges.add(top - 1);
+                edges.add(top);
+                edges.add(top + 50);
+                Collections.shuffle(edges, r);
+                for (int layer : edges)
+                    check(shadow, s, top, layer, where + " edges");
+                for (int k = 0; k < 60; k++)
+                    check(shadow, s, top, r.nextInt(top + 3), where + " random");
+            }
+        }
+    }
+}
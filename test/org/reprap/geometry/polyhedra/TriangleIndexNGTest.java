@@ -0,0 +1,161 @@
+package org.reprap.geometry.polyhedra;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.jogamp.vecmath.Point3d;
+
+/**
+ * Tests of the z index of a mesh's triangles against looking at every triangle
+ */
+public class TriangleIndexNGTest {
+
+    /**
+     * Heights for the corners: a few round ones, so that many triangles start or
+     * stop at exactly the same z, some that are different doubles but the same
+     * float, and zero both ways round
+     */
+    static double[] heights() {
+        List<Double> z = new ArrayList<>();
+        for (int i = -4; i <= 20; i++)
+            z.add(0.5*i);
+        for (int i = 1; i <= 4; i++) {
+            z.add(3 + i*1.0e-12);
+            z.add(-1 - i*1.0e-12);
+        }
+        z.add(-0.0);
+        double[] result = new double[z.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = z.get(i);
+        return result;
+    }
+
+    /**
+     * A mesh of n random triangles in each of a few parts, with corners at the
+     * given heights (some flat, some that are only a point in z)
+     */
+    static Mesh mesh(Random r, int n, double[] z) {
+        Mesh mesh = new Mesh();
+        for (int part = 0; part < 3; part++) {
+            mesh.startPart();
+            for (int i = 0; i < n; i++) {
+                Point3d[] p = new Point3d[3];
+                double flat = z[r.nextInt(z.length)];
+                for (int k = 0; k < 3; k++)
+                    p[k] = new Point3d(r.nextDouble()*10, r.nextDouble()*10, i%7 == 0 ? flat : z[r.nextInt(z.length)]);
+                mesh.add(p[0], p[1], p[2]);
+            }
+        }
+        mesh.finish();
+        return mesh;
+    }
+
+    /**
+     * The mesh's numbers of the triangles of a part whose z range includes z,
+     * looking at every one
+     */
+    static int[] scan(Mesh mesh, int part, double z) {
+        int[] result = new int[mesh.end(part) - mesh.first(part)];
+        int n = 0;
+        for (int t = mesh.first(part); t < mesh.end(part); t++)
+            if (mesh.bottom(t) <= z && mesh.top(t) >= z)
+                result[n++] = t;
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * The mesh's numbers of some of the index's triangles, in order
+     */
+    static int[] meshTriangles(TriangleIndex index, int[] triangles) {
+        int[] result = new int[triangles.length];
+        for (int i = 0; i < triangles.length; i++)
+            result[i] = index.meshTriangle(triangles[i]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * The heights to look at: every corner height, either side of each, and
+     * outside them all
+     */
+    static double[] queries(double[] z) {
+        double[] result = new double[3*z.length + 2];
+        for (int i = 0; i < z.length; i++) {
+            result[3*i] = z[i];
+            result[3*i + 1] = Math.nextUp(z[i]);
+            result[3*i + 2] = Math.nextDown(z[i]) + 0.1;
+        }
+        result[3*z.length] = -100;
+        result[3*z.length + 1] = 100;
+        return result;
+    }
+
+    /**
+     * Test that the triangles are numbered in order of their bottoms, exactly,
+     * and that crossing() finds the same triangles as looking at them all,
+     * including those whose bottom or top is at z
+     */
+    @Test
+    public void testCrossingMatchesScan() {
+        Random r = new Random(1);
+        double[] z = heights();
+        for (int n : new int[] {1, 10, 300, 3000}) {
+            Mesh mesh = mesh(r, n, z);
+            for (int part = 0; part < 3; part++) {
+                TriangleIndex index = new TriangleIndex(mesh, part);
+                assertEquals(index.size(), n);
+                for (int t = 1; t < n; t++) {
+                    int a = index.meshTriangle(t - 1);
+                    int b = index.meshTriangle(t);
+                    assertTrue(mesh.bottom(a) < mesh.bottom(b) || (mesh.bottom(a) == mesh.bottom(b) && a < b),
+                            n + " triangles, part " + part + ": " + (t - 1) + " and " + t + " out of order");
+                }
+                for (double q : queries(z))
+                    assertEquals(meshTriangles(index, index.crossing(q)), scan(mesh, part, q),
+                            n + " triangles, part " + part + ", z " + q);
+            }
+        }
+    }
+
+    /**
+     * Test that a sweep moved up and down at random, sometimes by a long way,
+     * sometimes by the smallest step and sometimes not at all, always has the
+     * same triangles as crossing()
+     */
+    @Test
+    public void testSweepMatchesCrossing() {
+        Random r = new Random(2);
+        double[] z = heights();
+        double[] q = queries(z);
+        for (int n : new int[] {1, 10, 300, 3000}) {
+            Mesh mesh = mesh(r, n, z);
+            for (int part = 0; part < 3; part++) {
+                TriangleIndex index = new TriangleIndex(mesh, part);
+                TriangleIndex.Sweep sweep = index.new Sweep();
+                int k = r.nextInt(q.length);
+                for (int step = 0; step < 500; step++) {
+                    switch (r.nextInt(4)) {
+                        case 0:
+                            k = r.nextInt(q.length);
+                            break;
+                        case 1:
+                            k = Math.min(k + 1, q.length - 1);
+                            break;
+                        case 2:
+                            k = Math.max(k - 1, 0);
+                            break;
+                        default:
+                            break;
+                    }
+                    assertEquals(meshTriangles(index, sweep.at(q[k])), meshTriangles(index, index.crossing(q[k])),
+                            n + " triangles, part " + part + ", step " + step + ", z " + q[k]);
+                }
+            }
+        }
+    }
+}